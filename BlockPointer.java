@@ -1,26 +1,55 @@
 public class BlockPointer {
-  private int pfsNumber; // PFS file number, 3 digits
-  private int blockNumber; // Block number, 4 digits
-  private String ptrString; // Combined 7 digit string representation
+  public static final int LENGTH = 12; // 4 hex digits PFS number + 8 hex digits block number
+  public static final String NULL_PTR = "FFFFFFFFFFFF"; // no block, e.g. the end of a data block chain
+  public static final int MAX_PFS_NUMBER = 0xFFFE; // 0xFFFF is reserved for NULL_PTR
+  public static final int MAX_BLOCK_NUMBER = Integer.MAX_VALUE;
+
+  private int pfsNumber; // PFS file number, 16 bits
+  private int blockNumber; // Block number, 31 bits
+  private String ptrString; // Combined 12 hex digit string representation
 
   // Constructor using integers for PFS number and block number
-  // if pfc # = 1, block # = 0. the ptrString will be 0010000.
+  // if pfc # = 1, block # = 0. the ptrString will be 000100000000.
   public BlockPointer(int pfsNumber, int blockNumber) {
+    if (pfsNumber < 0 || pfsNumber > MAX_PFS_NUMBER || blockNumber < 0) {
+      throw new IllegalArgumentException("Block pointer out of range: " + pfsNumber + "/" + blockNumber);
+    }
     this.pfsNumber = pfsNumber;
     this.blockNumber = blockNumber;
-    // Combine the numbers into a 7 character string, ensuring correct formatting
-    this.ptrString = String.format("%03d%04d", pfsNumber, blockNumber);
+    // Combine the numbers into a 12 character string, ensuring correct formatting
+    this.ptrString = String.format("%04X%08X", pfsNumber, blockNumber);
   }
 
-  // Constructor using a 7 character string
+  // Constructor using a 12 character string
   public BlockPointer(String ptrString) {
-    if (ptrString == null || ptrString.length() != 7) {
-      throw new IllegalArgumentException("PtrString must be exactly 7 digits long");
+    if (ptrString == null || ptrString.length() != LENGTH) {
+      throw new IllegalArgumentException("PtrString must be exactly " + LENGTH + " hex digits long");
     }
     this.ptrString = ptrString;
     // Parse the PFS number and block number from the string
-    this.pfsNumber = Integer.parseInt(ptrString.substring(0, 3));
-    this.blockNumber = Integer.parseInt(ptrString.substring(3, 7));
+    this.pfsNumber = Integer.parseInt(ptrString.substring(0, 4), 16);
+    this.blockNumber = (int) Long.parseLong(ptrString.substring(4, LENGTH), 16);
+  }
+
+  /**
+   * Packs a (PFS number, block number, record number) location into one 64-bit address.
+   * Bits 63-48 are the PFS number, bits 47-16 the block number and bits 15-0 the record number.
+   */
+  public static long toAddress(int pfsNumber, int blockNumber, int recordNumber) {
+    return ((long) pfsNumber << 48) | ((long) blockNumber << 16) | recordNumber;
+  }
+
+  /**
+   * Formats the low bits of a value as upper case hex digits, like String.format("%0nX") but without parsing a
+   * format, for the pointers and keys decoded from binary index blocks.
+   */
+  public static String toHex(long value, int digits) {
+    char[] hex = new char[digits];
+    for (int i = digits - 1; i >= 0; i--) {
+      hex[i] = Character.toUpperCase(Character.forDigit((int) (value & 0xF), 16));
+      value >>>= 4;
+    }
+    return new String(hex);
   }
 
   // Getter for the PFS file number
@@ -38,6 +67,11 @@ public class BlockPointer {
     return this.ptrString;
   }
 
+  // Getter for the 64-bit address, record number is 0
+  public long getAddress() {
+    return toAddress(pfsNumber, blockNumber, 0);
+  }
+
   // Override toString() for easy printing
   @Override
   public String toString() {
@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The Bloom filter of a file over the keys of its records, so find turns away most keys which are not in the file
+ * with one probe in memory instead of a descent of the index (DB.find).
+ *
+ * Each key sets HASHES bits, taken from the two halves of one 64-bit mix of the key (h1 + i * h2), in an array of
+ * BITS_PER_KEY bits per key: about 1% false positives. The bits are stored in their own blocks, 8 bits per char:
+ * {bit count, number of hashes, bits ... -> next block} in the first block and {bits ... -> next block} in the
+ * others, the FCB points to the first one. The database loads the filters of its files when it is opened.
+ * An inserted key sets its bits and only rewrites the blocks they are in. A deleted key keeps its bits, which is
+ * still correct, it only adds false positives.
+ */
+public class BloomFilter {
+  public static final int BITS_PER_KEY = 10;
+  public static final int HASHES = 7;
+  private static final int HEADER_LENGTH = 12 + 2; // the bit count in hex and the number of hashes
+
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashes;
+  private final List<String> blockPtrs = new ArrayList<>(); // the blocks of the filter, empty until written
+  private final BitSet changedBlocks = new BitSet(); // blocks with bits set since they were written
+  private int payload; // chars of the bits in one block
+
+  // the probes of find since the filter was loaded
+  private long probes;
+  private long rejected;
+  private long falsePositives;
+
+  /**
+   * Creates an empty filter.
+   *
+   * @param keys The number of keys it is built for.
+   */
+  public BloomFilter(long keys) {
+    this((Math.max(1, keys) * BITS_PER_KEY + 63) / 64 * 64, HASHES);
+  }
+
+  private BloomFilter(long bitCount, int hashes) {
+    this.bitCount = bitCount;
+    this.hashes = hashes;
+    this.bits = new long[(int) (bitCount / 64)];
+  }
+
+  // sets the bits of a key, the caller writes the changed blocks with store
+  public void add(long key) {
+    long hash = mix(key);
+    long h1 = (int) hash;
+    long h2 = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+      if (!blockPtrs.isEmpty()) {
+        changedBlocks.set((int) ((HEADER_LENGTH + (bit >>> 3)) / payload));
+      }
+    }
+  }
+
+  /**
+   * Probes the filter for find.
+   *
+   * @param key The key.
+   * @return False if the key is not in the file, true if it could be.
+   */
+  public boolean mightContain(long key) {
+    probes++;
+    long hash = mix(key);
+    long h1 = (int) hash;
+    long h2 = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        rejected++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // counts a key which passed mightContain but is not in the index
+  public void addFalsePositive() {
+    falsePositives++;
+  }
+
+  public long getProbes() {
+    return probes;
+  }
+
+  public long getRejected() {
+    return rejected;
+  }
+
+  public long getFalsePositives() {
+    return falsePositives;
+  }
+
+  // the share of the missing keys which passed the filter since it was loaded, 0 before the first miss
+  public double getObservedFalsePositiveRate() {
+    long misses = rejected + falsePositives;
+    return misses == 0 ? 0 : (double) falsePositives / misses;
+  }
+
+  // (1 - e^(-k * n / m))^k for n keys
+  public double getExpectedFalsePositiveRate(long keys) {
+    return Math.pow(1 - Math.exp(-(double) hashes * keys / bitCount), hashes);
+  }
+
+  // the number of keys the filter was built for
+  public long getCapacity() {
+    return bitCount / BITS_PER_KEY;
+  }
+
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  public List<String> getBlockPointers() {
+    return blockPtrs;
+  }
+
+  // the number of blocks the filter takes
+  public int getBlocks(int blockSize) {
+    int perBlock = blockSize - BlockPointer.LENGTH;
+    return (int) ((HEADER_LENGTH + bitCount / 8 + perBlock - 1) / perBlock);
+  }
+
+  /**
+   * Writes the filter to new blocks.
+   *
+   * @param db The database, the caller flushes the blocks.
+   * @return The first block.
+   */
+  public String write(DB db) {
+    payload = db.getBlockSize() - BlockPointer.LENGTH;
+    blockPtrs.clear();
+    blockPtrs.addAll(db.allocateBlocks(getBlocks(db.getBlockSize())));
+    for (int i = 0; i < blockPtrs.size(); i++) {
+      char[] content = new char[db.getBlockSize()];
+      fillBlock(content, i);
+      String nextPtr = i + 1 < blockPtrs.size() ? blockPtrs.get(i + 1) : BlockPointer.NULL_PTR;
+      nextPtr.getChars(0, BlockPointer.LENGTH, content, payload);
+      BlockPointer bp = new BlockPointer(blockPtrs.get(i));
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    }
+    changedBlocks.clear();
+    return blockPtrs.get(0);
+  }
+
+  /**
+   * Writes the blocks with bits set by add since the filter was written or read.
+   *
+   * @param db The database, the caller flushes the blocks.
+   * @return The number of blocks written.
+   */
+  public int store(DB db) {
+    int written = 0;
+    for (int i = changedBlocks.nextSetBit(0); i >= 0; i = changedBlocks.nextSetBit(i + 1)) {
+      BlockPointer bp = new BlockPointer(blockPtrs.get(i));
+      PFS pfs = db.getPfsList().get(bp.getPfsNumber());
+      char[] content = pfs.getBlock(bp.getBlockNumber());
+      fillBlock(content, i);
+      pfs.writeContent(bp.getBlockNumber(), content);
+      written++;
+    }
+    changedBlocks.clear();
+    return written;
+  }
+
+  /**
+   * Reads the filter of a file.
+   *
+   * @param db   The database.
+   * @param head The first block of the filter.
+   * @return The filter.
+   */
+  public static BloomFilter read(DB db, String head) {
+    List<String> ptrs = blockPointers(db, head);
+    char[] first = getBlock(db, head);
+    BloomFilter filter = new BloomFilter(Long.parseLong(new String(first, 0, 12), 16),
+            Integer.parseInt(new String(first, 12, 2)));
+    filter.payload = db.getBlockSize() - BlockPointer.LENGTH;
+    filter.blockPtrs.addAll(ptrs);
+    long bytes = filter.bitCount / 8;
+    for (int i = 0; i < ptrs.size(); i++) {
+      char[] content = getBlock(db, ptrs.get(i));
+      long start = (long) i * filter.payload - HEADER_LENGTH; // the byte at the start of the block
+      for (int offset = Math.max(0, (int) -start); offset < filter.payload && start + offset < bytes; offset++) {
+        long index = start + offset;
+        filter.bits[(int) (index >>> 3)] |= (long) (content[offset] & 0xFF) << ((index & 7) << 3);
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * Lists the blocks of a filter.
+   *
+   * @param db   The database.
+   * @param head The first block of the filter.
+   * @return The block pointers in order.
+   */
+  public static List<String> blockPointers(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    String ptr = head;
+    while (isPointer(ptr)) {
+      ptrs.add(ptr);
+      ptr = new String(getBlock(db, ptr), db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    return ptrs;
+  }
+
+  // the chars of block i of the filter, without its next block pointer
+  private void fillBlock(char[] content, int block) {
+    Arrays.fill(content, 0, payload, ' ');
+    long bytes = bitCount / 8;
+    long start = (long) block * payload - HEADER_LENGTH;
+    if (block == 0) {
+      String.format("%012X%02d", bitCount, hashes).getChars(0, HEADER_LENGTH, content, 0);
+    }
+    for (int offset = Math.max(0, (int) -start); offset < payload && start + offset < bytes; offset++) {
+      long index = start + offset;
+      content[offset] = (char) ((bits[(int) (index >>> 3)] >>> ((index & 7) << 3)) & 0xFF);
+    }
+  }
+
+  // the finalizer of MurmurHash3, the keys are often consecutive numbers, HashIndex spreads them with it too
+  static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private static char[] getBlock(DB db, String ptr) {
+    BlockPointer bp = new BlockPointer(ptr);
+    return db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
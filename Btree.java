@@ -15,9 +15,12 @@ import java.util.Queue;
 
 final class Btree {
 
-    /* Size of Node. Mininum is 3. */
+    /* Default size of Node. Mininum is 3. */
 
-    private static final int NODESIZE = 11;
+    private static final int DEFAULT_NODESIZE = 11;
+
+    /* Size of Node, the number of keys one index block could hold. */
+    private final int nodeSize;
 
 
     /* Node array, initialized with length = 1. i.e. root node */
@@ -39,6 +42,18 @@ final class Btree {
      * Initializes the tree by creating the root node.
      */
     public Btree() {
+        this(DEFAULT_NODESIZE);
+    }
+
+    /*
+     * Constructor for the B-tree with a given node size.
+     * @param nodeSize The maximum number of keys in one node, at least 3.
+     */
+    public Btree(int nodeSize) {
+        if (nodeSize < 3) {
+            throw new IllegalArgumentException("Node size must be at least 3.");
+        }
+        this.nodeSize = nodeSize;
         root = initNode();
     }
 
@@ -58,7 +73,7 @@ final class Btree {
     }
 
     public int getNodeSize() {
-        return NODESIZE;
+        return nodeSize;
     }
 
     /*
@@ -69,21 +84,37 @@ final class Btree {
 //  public boolean Lookup(int value) {
 //    return nodeLookup(value, root, "", 0).found;
 //  }
-    public SearchResult Lookup(int value) {
+    public SearchResult Lookup(long value) {
         return nodeLookup(value, root, "", 0);
     }
 
     /*
      * Inserts a value into the B-tree.
      * @param value The value to insert.
+     * @return False if the key already exists, the caller reports it.
      */
-    public void Insert(KeyPointer value) {
+    public boolean Insert(KeyPointer value) {
         int result = nodeInsert(value, root);
         if (result == -1) {
             cntValues++; // Value successfully inserted, increment the count of values
 //        System.out.println("Insertion complete: " + value + " has been added.");
-        } else if (result == -2) {
-            System.out.println("Insertion failed: " + value + " already exists.");
+        }
+        return result != -2;
+    }
+
+    /*
+     * Deletes a key from the B-tree, rebalancing the nodes on the way back up.
+     * @param key The key to delete.
+     */
+    public void Delete(long key) {
+        if (nodeDelete(key, root)) {
+            cntValues--;
+            // the root lost its last key, its only child becomes the root
+            if (nodes[root].size == 0 && !isLeaf(nodes[root])) {
+                root = nodes[root].children[0];
+            }
+        } else {
+            System.out.println("Deletion failed: " + key + " does not exist.");
         }
     }
 
@@ -123,7 +154,7 @@ final class Btree {
                 int count = 0;
 //            for (int val : currentNode) {    
                 for (KeyPointer node : currentNode.values) {
-                    int key = node.getKey();
+                    long key = node.getKey();
                     if (count > 0) {
                         System.out.print(",");
                     }
@@ -139,7 +170,7 @@ final class Btree {
                 System.out.print("]");
 
                 // Add child nodes of the current node to the queue for later processing
-                for (int j = 0; j <= NODESIZE; j++) { // Iterate through all possible children
+                for (int j = 0; j <= nodeSize; j++) { // Iterate through all possible children
                     int childId = currentNode.children[j];
                     if (childId != -1) {
                         queue.add(childId);
@@ -178,7 +209,7 @@ final class Btree {
 //
 //   * @return True if the value is found, false otherwise.
 //   */
-  private boolean nodeLookup(int value, int pointer, String s) {
+  private boolean nodeLookup(long value, int pointer, String s) {
     Node node = nodes[pointer];
 
     int i = 0;
@@ -206,7 +237,7 @@ final class Btree {
     }
   }
 
-    private SearchResult nodeLookup(int value, int pointer, String s, int accessedBlocks) {
+    private SearchResult nodeLookup(long value, int pointer, String s, int accessedBlocks) {
         if (pointer == -1) {
             return new SearchResult(null, accessedBlocks, false); // Node not found, and no more nodes to access
         }
@@ -243,8 +274,8 @@ final class Btree {
     /**
      * Splits a full child node of a given parent node into two nodes.
      * <p>
-     * When a child node has reached its maximum capacity (NODESIZE), this method
-     * is called to split it into two nodes. The median value (take the floor when NODESIZE is even)
+     * When a child node has reached its maximum capacity (nodeSize), this method
+     * is called to split it into two nodes. The median value (take the floor when nodeSize is even)
      * is promoted to the parent node, and the values greater than the median are moved
      * to a new node. The parent node's children pointers are also updated accordingly.
      *
@@ -257,20 +288,20 @@ final class Btree {
         Node child = nodes[fullChild];
         Node newNode = nodes[newChild];
 
-        // Determine indices based on NODESIZE being even or odd
-        int promoteIndex = (NODESIZE % 2 == 0) ? (NODESIZE / 2) - 1 : NODESIZE / 2;
+        // Determine indices based on nodeSize being even or odd
+        int promoteIndex = (nodeSize % 2 == 0) ? (nodeSize / 2) - 1 : nodeSize / 2;
         int startIndexOfNewNode = promoteIndex + 1;
 
-        // For odd NODESIZE, the right half includes the middle element
-        int numOfValuesToNewNode = NODESIZE / 2;
+        // For odd nodeSize, the right half includes the middle element
+        int numOfValuesToNewNode = nodeSize / 2;
         newNode.size = numOfValuesToNewNode;
 
         // Copy values to the new node, starting from startIndexOfNewNode
         System.arraycopy(child.values, startIndexOfNewNode, newNode.values, 0, numOfValuesToNewNode);
 
         if (!isLeaf(child)) {
-            // Calculate the number of children to move for both even and odd NODESIZE
-            int childrenToMove = NODESIZE + 1 - startIndexOfNewNode;
+            // Calculate the number of children to move for both even and odd nodeSize
+            int childrenToMove = nodeSize + 1 - startIndexOfNewNode;
             newNode.childrenSize = childrenToMove;
 
             // Copy the children to the new node
@@ -288,8 +319,8 @@ final class Btree {
         nodes[parent].values[i] = child.values[promoteIndex];
 
         // Clear the values that were moved to the new node
-//      Arrays.fill(child.values, promoteIndex, NODESIZE, -1);
-        for (int j = promoteIndex; j < NODESIZE; j++) {
+//      Arrays.fill(child.values, promoteIndex, nodeSize, -1);
+        for (int j = promoteIndex; j < nodeSize; j++) {
             child.values[j] = new KeyPointer(); // Assuming null indicates an empty slot
         }
 
@@ -340,7 +371,7 @@ final class Btree {
         i++;
 
         // if the node is full, split the node
-        if (nodes[node.children[i]].size == NODESIZE) {
+        if (nodes[node.children[i]].size == nodeSize) {
             splitChild(nodeIndex, i, node.children[i]);
             if (value.getKey() > node.values[i].getKey()) {
                 i++;
@@ -365,7 +396,7 @@ final class Btree {
      */
     private int nodeInsert(KeyPointer value, int pointer) {
         Node currNode = nodes[pointer];
-        if (currNode.size == NODESIZE) { // If current node is full
+        if (currNode.size == nodeSize) { // If current node is full
             if (pointer == root) { // if current node is root
                 // create a new root and split the old root
                 int newRoot = initNode();
@@ -384,6 +415,138 @@ final class Btree {
     }
 
 
+    /**
+     * Deletes a key from the subtree of a node.
+     * <p>
+     * A key in a leaf is removed directly. A key in an internal node is replaced by its predecessor
+     * (the largest key of the left subtree), which is then deleted from that subtree.
+     * After the recursion, the child we descended into is rebalanced if it has too few keys.
+     *
+     * @param key     The key to delete.
+     * @param pointer The node pointer of the subtree root.
+     * @return True if the key was found and deleted.
+     */
+    private boolean nodeDelete(long key, int pointer) {
+        Node node = nodes[pointer];
+        int i = 0;
+        while (i < node.size && key > node.values[i].getKey()) {
+            i++;
+        }
+
+        if (i < node.size && key == node.values[i].getKey()) {
+            if (isLeaf(node)) {
+                removeValue(node, i);
+                return true;
+            }
+            // replace the key with its predecessor and delete the predecessor from the left subtree
+            int predecessor = node.children[i];
+            while (!isLeaf(nodes[predecessor])) {
+                predecessor = nodes[predecessor].children[nodes[predecessor].size];
+            }
+            KeyPointer value = nodes[predecessor].values[nodes[predecessor].size - 1];
+            node.values[i] = value;
+            nodeDelete(value.getKey(), node.children[i]);
+            rebalanceChild(pointer, i);
+            return true;
+        }
+
+        if (isLeaf(node)) {
+            return false;
+        }
+        boolean isDeleted = nodeDelete(key, node.children[i]);
+        if (isDeleted) {
+            rebalanceChild(pointer, i);
+        }
+        return isDeleted;
+    }
+
+    /**
+     * Makes sure the i-th child of a node has at least the minimum number of keys.
+     * <p>
+     * A key is borrowed from the left or the right sibling through the parent if the sibling has more than
+     * the minimum. Otherwise the child is merged with a sibling and the separating key of the parent.
+     * The merged right node is left unused in the nodes array.
+     *
+     * @param parent The node pointer of the parent.
+     * @param i      The position of the child in the parent's children array.
+     */
+    private void rebalanceChild(int parent, int i) {
+        Node node = nodes[parent];
+        Node child = nodes[node.children[i]];
+        int minSize = getMinNodeSize();
+        if (child.size >= minSize) {
+            return;
+        }
+
+        if (i > 0 && nodes[node.children[i - 1]].size > minSize) {
+            // borrow the last key of the left sibling
+            Node left = nodes[node.children[i - 1]];
+            insertValue(child, 0, node.values[i - 1], isLeaf(left) ? -1 : left.children[left.size], true);
+            node.values[i - 1] = left.values[left.size - 1];
+            removeValue(left, left.size - 1);
+            if (!isLeaf(left)) {
+                left.children[left.size + 1] = -1;
+                left.childrenSize = left.size + 1;
+            }
+        } else if (i < node.size && nodes[node.children[i + 1]].size > minSize) {
+            // borrow the first key of the right sibling
+            Node right = nodes[node.children[i + 1]];
+            insertValue(child, child.size, node.values[i], isLeaf(right) ? -1 : right.children[0], false);
+            node.values[i] = right.values[0];
+            removeValue(right, 0);
+            if (!isLeaf(right)) {
+                System.arraycopy(right.children, 1, right.children, 0, right.size + 1);
+                right.children[right.size + 1] = -1;
+                right.childrenSize = right.size + 1;
+            }
+        } else {
+            // merge the child with one of its siblings
+            int leftIndex = i > 0 ? i - 1 : i;
+            Node left = nodes[node.children[leftIndex]];
+            Node right = nodes[node.children[leftIndex + 1]];
+            left.values[left.size] = node.values[leftIndex];
+            System.arraycopy(right.values, 0, left.values, left.size + 1, right.size);
+            if (!isLeaf(right)) {
+                System.arraycopy(right.children, 0, left.children, left.size + 1, right.size + 1);
+                left.childrenSize = left.size + right.size + 2;
+            }
+            left.size += right.size + 1;
+            right.size = 0;
+            right.childrenSize = 0;
+
+            // remove the separating key and the right child from the parent
+            removeValue(node, leftIndex);
+            System.arraycopy(node.children, leftIndex + 2, node.children, leftIndex + 1, node.size - leftIndex);
+            node.children[node.size + 1] = -1;
+            node.childrenSize = node.size + 1;
+        }
+    }
+
+    // a node other than the root has at least this many keys, the smaller half of a split
+    private int getMinNodeSize() {
+        return (nodeSize - 1) / 2;
+    }
+
+    // remove values[i] of a node, the children are not changed
+    private void removeValue(Node node, int i) {
+        System.arraycopy(node.values, i + 1, node.values, i, node.size - i - 1);
+        node.values[--node.size] = new KeyPointer();
+    }
+
+    // insert a value at position i, with a child on its left (isLeftChild) or on its right; -1 for leaves
+    private void insertValue(Node node, int i, KeyPointer value, int childPointer, boolean isLeftChild) {
+        System.arraycopy(node.values, i, node.values, i + 1, node.size - i);
+        node.values[i] = value;
+        node.size++;
+        if (childPointer != -1) {
+            // an internal node has size + 1 children, childrenSize is not kept up to date by splitChild
+            int childIndex = isLeftChild ? i : i + 1;
+            System.arraycopy(node.children, childIndex, node.children, childIndex + 1, node.size - childIndex);
+            node.children[childIndex] = childPointer;
+            node.childrenSize = node.size + 1;
+        }
+    }
+
     /*********** Functions for accessing node  ******************/
 
     /*
@@ -402,14 +565,14 @@ final class Btree {
      */
     int initNode() {
         Node node = new Node();
-//    node.values = new int[NODESIZE];
-        node.values = new KeyPointer[NODESIZE];
-        node.children = new int[NODESIZE + 1];
+//    node.values = new int[nodeSize];
+        node.values = new KeyPointer[nodeSize];
+        node.children = new int[nodeSize + 1];
 
         // init node values and children into -1;
 //    Arrays.fill(node.values, -1);
         // Initialize node values and children with default KeyPointer objects
-        for (int i = 0; i < NODESIZE; i++) {
+        for (int i = 0; i < nodeSize; i++) {
             node.values[i] = new KeyPointer(); // Using default constructor
         }
         Arrays.fill(node.children, -1);
@@ -44,44 +44,46 @@ public final class BtreeTest {
         // TODO: Input your array here
 //        int[] values = new int[] {29,41,44,62,46,49,27,76,91,30,100,47,34,53,9,45};
         KeyPointer[] keyPointers = new KeyPointer [] {
-                new KeyPointer(29, "0000001"),
-                new KeyPointer(11, "0000002"),
-                new KeyPointer(44, "0000003"),
-                new KeyPointer(99, "0000004"),
-                new KeyPointer(46, "0000005"),
-                new KeyPointer(49, "0000006"),
-                new KeyPointer(27, "0000007"),
-                new KeyPointer(76, "0000008"),
-                new KeyPointer(91, "0000009"),
-                new KeyPointer(30, "0000010"),
-                new KeyPointer(100, "0000011"),
-                new KeyPointer(47, "0000012"),
-                new KeyPointer(34, "0000013"),
-                new KeyPointer(53, "0000014"),
-                new KeyPointer(9, "0000015"),
-                new KeyPointer(45, "0000016"),
-                new KeyPointer(1, "0000017"),
-                new KeyPointer(5, "0000018"),
-                new KeyPointer(3, "0000019"),
-                new KeyPointer(4, "0000020"),
-                new KeyPointer(5, "0000021"),
-                new KeyPointer(6, "0000022"),
-                new KeyPointer(70, "0000023"),
-                new KeyPointer(8, "0000024"),
-                new KeyPointer(10, "0000025"), // Skipping 9 as it's already used in your example
-                new KeyPointer(20, "0000026"), // Skipping 11
-                new KeyPointer(13, "0000027"),
-                new KeyPointer(14, "0000028"),
-                new KeyPointer(60, "0000029"),
-                new KeyPointer(16, "0000030"),
-                new KeyPointer(17, "0000031"),
-                new KeyPointer(18, "0000032")
+                new KeyPointer(29, new DataBlockPointer(0, 1, 0).getPtrString()),
+                new KeyPointer(11, new DataBlockPointer(0, 2, 0).getPtrString()),
+                new KeyPointer(44, new DataBlockPointer(0, 3, 0).getPtrString()),
+                new KeyPointer(99, new DataBlockPointer(0, 4, 0).getPtrString()),
+                new KeyPointer(46, new DataBlockPointer(0, 5, 0).getPtrString()),
+                new KeyPointer(49, new DataBlockPointer(0, 6, 0).getPtrString()),
+                new KeyPointer(27, new DataBlockPointer(0, 7, 0).getPtrString()),
+                new KeyPointer(76, new DataBlockPointer(0, 8, 0).getPtrString()),
+                new KeyPointer(91, new DataBlockPointer(0, 9, 0).getPtrString()),
+                new KeyPointer(30, new DataBlockPointer(0, 10, 0).getPtrString()),
+                new KeyPointer(100, new DataBlockPointer(0, 11, 0).getPtrString()),
+                new KeyPointer(47, new DataBlockPointer(0, 12, 0).getPtrString()),
+                new KeyPointer(34, new DataBlockPointer(0, 13, 0).getPtrString()),
+                new KeyPointer(53, new DataBlockPointer(0, 14, 0).getPtrString()),
+                new KeyPointer(9, new DataBlockPointer(0, 15, 0).getPtrString()),
+                new KeyPointer(45, new DataBlockPointer(0, 16, 0).getPtrString()),
+                new KeyPointer(1, new DataBlockPointer(0, 17, 0).getPtrString()),
+                new KeyPointer(5, new DataBlockPointer(0, 18, 0).getPtrString()),
+                new KeyPointer(3, new DataBlockPointer(0, 19, 0).getPtrString()),
+                new KeyPointer(4, new DataBlockPointer(0, 20, 0).getPtrString()),
+                new KeyPointer(5, new DataBlockPointer(0, 21, 0).getPtrString()),
+                new KeyPointer(6, new DataBlockPointer(0, 22, 0).getPtrString()),
+                new KeyPointer(70, new DataBlockPointer(0, 23, 0).getPtrString()),
+                new KeyPointer(8, new DataBlockPointer(0, 24, 0).getPtrString()),
+                new KeyPointer(10, new DataBlockPointer(0, 25, 0).getPtrString()), // Skipping 9 as it's already used in your example
+                new KeyPointer(20, new DataBlockPointer(0, 26, 0).getPtrString()), // Skipping 11
+                new KeyPointer(13, new DataBlockPointer(0, 27, 0).getPtrString()),
+                new KeyPointer(14, new DataBlockPointer(0, 28, 0).getPtrString()),
+                new KeyPointer(60, new DataBlockPointer(0, 29, 0).getPtrString()),
+                new KeyPointer(16, new DataBlockPointer(0, 30, 0).getPtrString()),
+                new KeyPointer(17, new DataBlockPointer(0, 31, 0).getPtrString()),
+                new KeyPointer(18, new DataBlockPointer(0, 32, 0).getPtrString())
 
         };
 
         System.out.println("Insert Values...");
         for(KeyPointer v : keyPointers) {
-          tree.Insert(v);
+          if (!tree.Insert(v)) {
+            System.out.println("Insertion failed: " + v + " already exists.");
+          }
           // Uncomment when you want to see the step-by-step insert..
            tree.DisplayEntileBTree();
         }
@@ -90,7 +92,7 @@ public final class BtreeTest {
         boolean running = true;
 
         while (running) {
-            System.out.println("(1) Look-up, (2) Insert, or (q) Quit");
+            System.out.println("(1) Look-up, (2) Insert, (3) Delete, or (q) Quit");
             String choice = scanner.nextLine(); // Read user input
 
             switch (choice) {
@@ -105,11 +107,17 @@ public final class BtreeTest {
 //                    tree.Insert(insertKey); // Insert the key into the tree
                     tree.DisplayEntileBTree(); // Display the tree
                     break;
+                case "3": // Delete
+                    System.out.println("Enter Key?");
+                    int deleteKey = Integer.parseInt(scanner.nextLine()); // Read the key to delete
+                    tree.Delete(deleteKey); // Delete the key and rebalance the tree
+                    tree.DisplayEntileBTree(); // Display the tree
+                    break;
                 case "q": // Quit
                     running = false;
                     break;
                 default:
-                    System.out.println("Invalid option. Please enter 1, 2, or q.");
+                    System.out.println("Invalid option. Please enter 1, 2, 3, or q.");
                     break;
             }
         }
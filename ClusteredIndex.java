@@ -0,0 +1,296 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The index of a clustered file, chosen with put -clustered: the records are the leaves of a B+tree.
+ *
+ * Put stores the records in key order, so every data block holds a range of keys and the data chain links the
+ * ranges in order. The upper levels are an IndexTree with one entry per data block, {the largest key the block
+ * may hold -> the block}, the last block holding every key up to Long.MAX_VALUE. A key is in the block of the
+ * smallest entry >= key, so a lookup descends the small tree and reads the record from that block, with no separate
+ * data block behind the index, and a key range is the blocks of the chain from the block of its first key to the
+ * block of its last key.
+ *
+ * The records of a block are in no order, a new record takes an empty slot of the block of its key. A full block is
+ * split by DB.insertIntoLeaf: the larger half of its keys moves to a new block linked after it (only the new key if it
+ * is larger than all of them, so keys added in order fill whole blocks), and splitLeaf adds the entry of the new
+ * block. A deleted record leaves an empty slot, blocks are not merged. The changes are only written to the PFS cache,
+ * the caller flushes them.
+ */
+public class ClusteredIndex implements KeyIndex {
+  public static final long LAST_BOUND = Long.MAX_VALUE; // the entry of the last data block
+
+  private final DB db;
+  private final IndexTree tree; // the entries of the data blocks
+  private int keyDelta; // keys inserted minus keys deleted
+  private int blocksRead; // data blocks read by search, first, last and iterator
+
+  /**
+   * Opens the index of a clustered file.
+   *
+   * @param db   The database.
+   * @param root The index start block of the file, the root of the tree of its data blocks.
+   */
+  public ClusteredIndex(DB db, String root) {
+    this.db = db;
+    this.tree = new IndexTree(db, root);
+  }
+
+  /**
+   * Builds the entries of the data blocks of a file put in key order, as the KeyPointers of its records come:
+   * one KeyPointer per data block, {the largest key it may hold -> slot 0 of the block}, in key order.
+   */
+  public static class LeafEntries {
+    private final IndexBuilder builder;
+    private String blockPtr; // the block of the last record
+    private long lastKey; // the key of the last record
+
+    /**
+     * @param builder Gets the entries, it writes the tree of the data blocks.
+     */
+    public LeafEntries(IndexBuilder builder) {
+      this.builder = builder;
+    }
+
+    /**
+     * Adds the next record, the entry of the block before it is added when it is in the next block.
+     *
+     * @param keyPointer The key of the record and its DataBlockPointer, the keys in ascending order.
+     */
+    public void add(KeyPointer keyPointer) {
+      String ptr = new DataBlockPointer(keyPointer.getPointer()).getBlockPointer().getPtrString();
+      if (blockPtr != null && !ptr.equals(blockPtr)) {
+        builder.add(new KeyPointer(lastKey, leafPointer(blockPtr)));
+      }
+      blockPtr = ptr;
+      lastKey = keyPointer.getKey();
+    }
+
+    /**
+     * Adds the entry of the last block.
+     */
+    public void finish() {
+      if (blockPtr != null) {
+        builder.add(new KeyPointer(LAST_BOUND, leafPointer(blockPtr)));
+      }
+    }
+  }
+
+  /**
+   * Looks up a key in the data block whose range holds it.
+   *
+   * @param key The key.
+   * @return The DataBlockPointer String of the record, or null if the key is not in the file.
+   */
+  public String search(long key) {
+    String leafPtr = leaf(key);
+    if (leafPtr == null) {
+      return null;
+    }
+    char[] content = readLeaf(leafPtr);
+    for (int slot = 0; slot < db.getRecordsPerBlock(); slot++) {
+      if (RecordDictionary.parseKey(content, slot * DB.RECORD_LENGTH) == key) {
+        return recordPointer(leafPtr, slot);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the data block whose range holds a key.
+   *
+   * @param key The key.
+   * @return The BlockPointer String of the block, or null if the file has no data block.
+   */
+  public String leaf(long key) {
+    KeyPointer entry = tree.ceiling(key);
+    return entry == null ? null : entry.getPointer().substring(0, BlockPointer.LENGTH);
+  }
+
+  /**
+   * Returns the data blocks whose range could hold a key of a range of keys, from their entries, so the data blocks
+   * are not read to find the next one (DB.scanRecordsParallel).
+   *
+   * @param fromKey The smallest key of the range.
+   * @param toKey   The largest key of the range.
+   * @return The BlockPointer Strings of the blocks, in chain order.
+   */
+  public Iterator<String> leaves(long fromKey, long toKey) {
+    Iterator<KeyPointer> entries = tree.iterator(fromKey);
+    return new Iterator<String>() {
+      private boolean isDone; // the block of toKey was returned
+
+      @Override
+      public boolean hasNext() {
+        return !isDone && entries.hasNext();
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        KeyPointer entry = entries.next();
+        isDone = entry.getKey() >= toKey;
+        return entry.getPointer().substring(0, BlockPointer.LENGTH);
+      }
+    };
+  }
+
+  /**
+   * Adds the first data block of an empty file, it holds every key.
+   *
+   * @param leafPtr The block.
+   */
+  public void addFirstLeaf(String leafPtr) {
+    tree.insert(new KeyPointer(LAST_BOUND, leafPointer(leafPtr)));
+  }
+
+  /**
+   * Records the split of a data block: the keys up to lowerMax stay in it, the larger ones of its range are in the
+   * new block linked after it.
+   *
+   * @param lowerMax   The largest key left in the block.
+   * @param leafPtr    The block which was split.
+   * @param newLeafPtr The new block.
+   */
+  public void splitLeaf(long lowerMax, String leafPtr, String newLeafPtr) {
+    // the entry of the block keeps its bound and points to the new block, the block gets a smaller bound
+    KeyPointer entry = tree.ceiling(lowerMax);
+    tree.updatePointer(entry.getKey(), leafPointer(newLeafPtr));
+    tree.insert(new KeyPointer(lowerMax, leafPointer(leafPtr)));
+  }
+
+  // the record is already in the block of its key, see DB.insertIntoLeaf
+  public boolean insert(KeyPointer keyPointer) {
+    keyDelta++;
+    return true;
+  }
+
+  // the slot of the record is already cleared, its block keeps its range
+  public boolean delete(long key) {
+    keyDelta--;
+    return true;
+  }
+
+  // the records only move when their block is split, which updates the entries itself
+  public boolean updatePointer(long key, String pointer) {
+    return true;
+  }
+
+  public void write() {
+    tree.write();
+  }
+
+  public String getRoot() {
+    return tree.getRoot();
+  }
+
+  // index blocks only, the data blocks added by splits are counted by DB.insertIntoLeaf
+  public int getBlockDelta() {
+    return tree.getBlockDelta();
+  }
+
+  public int getKeyDelta() {
+    return keyDelta;
+  }
+
+  public KeyPointer first() {
+    Iterator<KeyPointer> keys = iterator(Long.MIN_VALUE);
+    return keys.hasNext() ? keys.next() : null;
+  }
+
+  // the largest key of the last data block, or of the whole chain if deletes left that block empty
+  public KeyPointer last() {
+    KeyPointer lastEntry = tree.last();
+    if (lastEntry == null) {
+      return null;
+    }
+    String lastLeaf = new DataBlockPointer(lastEntry.getPointer()).getBlockPointer().getPtrString();
+    List<KeyPointer> keys = leafKeys(lastLeaf, readLeaf(lastLeaf), Long.MIN_VALUE);
+    if (!keys.isEmpty()) {
+      return keys.get(keys.size() - 1);
+    }
+    KeyPointer last = null;
+    for (Iterator<KeyPointer> all = iterator(Long.MIN_VALUE); all.hasNext(); ) {
+      last = all.next();
+    }
+    return last;
+  }
+
+  /**
+   * Walks the keys in ascending order along the data chain, from the block of fromKey on, one block in memory at a
+   * time. The file must not change during the walk.
+   *
+   * @param fromKey The first key to return if it is in the file, Long.MIN_VALUE for every key.
+   * @return The KeyPointers in key order.
+   */
+  public Iterator<KeyPointer> iterator(long fromKey) {
+    String firstLeaf = leaf(fromKey);
+    return new Iterator<KeyPointer>() {
+      private String nextLeaf = firstLeaf;
+      private List<KeyPointer> keys = new ArrayList<>();
+      private int position;
+
+      @Override
+      public boolean hasNext() {
+        while (position == keys.size() && isPointer(nextLeaf)) {
+          char[] content = readLeaf(nextLeaf);
+          keys = leafKeys(nextLeaf, content, fromKey);
+          position = 0;
+          nextLeaf = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+        }
+        return position < keys.size();
+      }
+
+      @Override
+      public KeyPointer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return keys.get(position++);
+      }
+    };
+  }
+
+  // index blocks and data blocks read since the index was opened
+  public int getBlocksRead() {
+    return tree.getBlocksRead() + blocksRead;
+  }
+
+  // the keys >= fromKey of one data block, sorted
+  private List<KeyPointer> leafKeys(String leafPtr, char[] content, long fromKey) {
+    List<KeyPointer> keys = new ArrayList<>(db.getRecordsPerBlock());
+    for (int slot = 0; slot < db.getRecordsPerBlock(); slot++) {
+      long key = RecordDictionary.parseKey(content, slot * DB.RECORD_LENGTH);
+      if (key >= 0 && key >= fromKey) {
+        keys.add(new KeyPointer(key, recordPointer(leafPtr, slot)));
+      }
+    }
+    keys.sort(Comparator.comparingLong(KeyPointer::getKey));
+    return keys;
+  }
+
+  private char[] readLeaf(String leafPtr) {
+    BlockPointer bp = new BlockPointer(leafPtr);
+    blocksRead++;
+    return db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+  }
+
+  // an entry points to slot 0 of its block, so compaction remaps it like a record pointer
+  private static String leafPointer(String blockPtr) {
+    return recordPointer(blockPtr, 0);
+  }
+
+  // the DataBlockPointer String of a slot, without parsing the block pointer again
+  private static String recordPointer(String blockPtr, int slot) {
+    return blockPtr + Integer.toHexString(0x10000 | slot).substring(1).toUpperCase();
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
@@ -0,0 +1,364 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compacts the PFS files of a database.
+ *
+ * The live blocks are laid out again from the first data block of .db0:
+ * for each file its data blocks in chain order, its dictionary block, its index blocks (breadth first, the
+ * directory and then the buckets of a hash index, or the segments of a learned index and then its B-tree), its zone
+ * map blocks, its Bloom filter blocks and the blocks of its secondary indexes (the tree and then the posting lists),
+ * then the FCB catalog blocks and the index directory. The data chain, dictionary, child, record, bucket, segment,
+ * posting, zone and Bloom filter pointers, the FCBs, the catalog directory, the index directory and the superblock
+ * are rewritten to the new addresses.
+ * The data blocks of a file stay in chain order, so the runs a learned index predicts into stay consecutive and a
+ * clustered file stays in key order.
+ * Blocks which are not reachable from a live file are freed,
+ * the trailing empty PFS files are deleted and the last one is truncated.
+ *
+ * The live blocks are copied in memory before they are written back, so the order of the writes does not matter.
+ * Removed files have to be reclaimed before compaction, DB.compact runs it after the pending reclaims.
+ */
+public class Compactor {
+  private static final int DATA = 0; // {records -> next block pointer}
+  private static final int DICTIONARY = 1; // no pointers
+  private static final int INDEX = 2; // {child0 key0 child1 ... childN}, keys hold record pointers
+  private static final int CATALOG = 3; // {FCB0 FCB1 ... -> next catalog block pointer}
+  private static final int ZONE_MAP = 4; // {zone0 zone1 ... -> older zone map block pointer}, see ZoneMap
+  private static final int BLOOM_FILTER = 5; // {bits -> next block pointer}, see BloomFilter
+  private static final int INDEX_DIRECTORY = 6; // {entry0 entry1 ... -> next directory block}, see SecondaryIndex
+  private static final int HASH_DIRECTORY = 7; // {# of buckets, next directory block, bucket0 ...}, see HashIndex
+  private static final int HASH_BUCKET = 8; // {# of keys, overflow block, keyPointer0 ...}, see HashIndex
+  private static final int LEARNED_HEADER = 9; // {B-tree root, # of segments, epsilon -> segment block}
+  private static final int LEARNED_SEGMENTS = 10; // {segment0 segment1 ... -> next segment block}, see LearnedIndex
+  private static final int POSTINGS = 11; // {# of records, next posting block, record0 record1 ...}, see SecondaryIndex
+
+  private DB db;
+  private int blockSize;
+  private List<String> liveBlocks; // BlockPointer String of the live blocks, in the new order
+  private List<Integer> kinds; // kind of each live block
+  private Map<String, String> newAddress; // old BlockPointer String -> new BlockPointer String
+
+  public Compactor(DB db) {
+    this.db = db;
+    this.blockSize = db.getBlockSize();
+    this.liveBlocks = new ArrayList<>();
+    this.kinds = new ArrayList<>();
+    this.newAddress = new HashMap<>();
+  }
+
+  /**
+   * Relocates all the live blocks. The caller has to hold the storage lock of the database.
+   */
+  public void compact() {
+    if (!db.getFcbCatalog().getTombstones().isEmpty()) {
+      System.out.println("Removed files are still being reclaimed, try again later.");
+      return;
+    }
+    int pfsFilesBefore = db.getNumOfPFSFiles();
+    int chainBreaksBefore = countChainBreaks();
+
+    collectLiveBlocks();
+    int moved = assignNewAddresses();
+
+    // copy the live blocks and rewrite their pointers
+    List<char[]> contents = new ArrayList<>();
+    for (int i = 0; i < liveBlocks.size(); i++) {
+      BlockPointer bp = new BlockPointer(liveBlocks.get(i));
+      char[] block = Arrays.copyOf(db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber()), blockSize);
+      rewritePointers(block, kinds.get(i));
+      contents.add(block);
+    }
+    int directoryBlock = db.getFirstPFS().getFCBBlockNumber();
+    char[] directory = Arrays.copyOf(db.getFirstPFS().getBlock(directoryBlock), blockSize);
+    for (int i = 0; i + BlockPointer.LENGTH <= blockSize; i += BlockPointer.LENGTH) {
+      remapPointer(directory, i);
+    }
+    char[] superBlock = Arrays.copyOf(db.getFirstPFS().getBlock(PFS.SUPER_BLOCK), blockSize);
+    remapPointer(superBlock, PFS.INDEX_DIRECTORY_OFFSET);
+
+    // free every data and index block, then write the live blocks at their new addresses
+    for (PFS pfs : db.getPfsList()) {
+      for (int block = pfs.getFirstDataBlock(); block < pfs.getBlocksPerPFS(); block++) {
+        pfs.updateBitMap(block, false);
+      }
+    }
+    for (int i = 0; i < liveBlocks.size(); i++) {
+      BlockPointer bp = new BlockPointer(newAddress.get(liveBlocks.get(i)));
+      PFS pfs = db.getPfsList().get(bp.getPfsNumber());
+      pfs.writeContent(bp.getBlockNumber(), contents.get(i));
+      pfs.updateBitMap(bp.getBlockNumber(), true);
+    }
+    db.getFirstPFS().writeContent(directoryBlock, directory);
+    db.getFirstPFS().writeContent(PFS.SUPER_BLOCK, superBlock);
+    for (PFS pfs : db.getPfsList()) {
+      pfs.writeContentToFile();
+    }
+
+    truncate();
+    db.reloadAfterCompaction();
+
+    System.out.println("Compacted " + liveBlocks.size() + " live blocks (" + moved + " moved), PFS files "
+            + pfsFilesBefore + " -> " + db.getNumOfPFSFiles() + ", data chain breaks "
+            + chainBreaksBefore + " -> " + countChainBreaks() + ".");
+  }
+
+  // the live blocks in their new order: each file, then the catalog and the index directory
+  private void collectLiveBlocks() {
+    for (FCB fcb : db.getFcbCatalog().getAll()) {
+      String ptr = fcb.getDataStartBlock();
+      String dictionaryPtr = null;
+      while (isPointer(ptr)) {
+        char[] block = getBlock(ptr);
+        if (dictionaryPtr == null && PFS.isCompressedBlock(block)) {
+          dictionaryPtr = new String(block, 1, BlockPointer.LENGTH);
+        }
+        add(ptr, DATA);
+        ptr = new String(block, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+      }
+      if (dictionaryPtr != null) {
+        add(dictionaryPtr, DICTIONARY);
+      }
+
+      if (fcb.getIndexType() == FCB.HASH_INDEX) {
+        for (String directoryPtr : HashIndex.directoryBlocks(db, fcb.getIndexStartBlock())) {
+          add(directoryPtr, HASH_DIRECTORY);
+        }
+        for (String bucketPtr : HashIndex.bucketBlocks(db, fcb.getIndexStartBlock())) {
+          add(bucketPtr, HASH_BUCKET);
+        }
+      } else if (fcb.getIndexType() == FCB.LEARNED_INDEX) {
+        List<String> learnedPtrs = LearnedIndex.blockPointers(db, fcb.getIndexStartBlock());
+        add(learnedPtrs.get(0), LEARNED_HEADER);
+        for (String segmentPtr : learnedPtrs.subList(1, learnedPtrs.size())) {
+          add(segmentPtr, LEARNED_SEGMENTS);
+        }
+        addIndex(LearnedIndex.treeRoot(db, fcb.getIndexStartBlock()));
+      } else {
+        addIndex(fcb.getIndexStartBlock());
+      }
+
+      for (String zoneMapPtr : ZoneMap.blockPointers(db, fcb.getZoneMapStart())) {
+        add(zoneMapPtr, ZONE_MAP);
+      }
+      for (String bloomFilterPtr : BloomFilter.blockPointers(db, fcb.getBloomFilterStart())) {
+        add(bloomFilterPtr, BLOOM_FILTER);
+      }
+      for (SecondaryIndex secondary : db.getSecondaryIndexes(fcb.getName())) {
+        addIndex(secondary.getRoot());
+        for (String postingPtr : SecondaryIndex.postingBlocks(db, secondary.getRoot())) {
+          add(postingPtr, POSTINGS);
+        }
+      }
+    }
+
+    char[] directory = db.getFirstPFS().getBlock(db.getFirstPFS().getFCBBlockNumber());
+    for (int i = 0; i + BlockPointer.LENGTH <= blockSize; i += BlockPointer.LENGTH) {
+      String ptr = new String(directory, i, BlockPointer.LENGTH);
+      while (isPointer(ptr)) {
+        add(ptr, CATALOG);
+        ptr = new String(getBlock(ptr), blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+      }
+    }
+    for (String directoryPtr : SecondaryIndex.directoryBlocks(db, db.getIndexDirectoryStart())) {
+      add(directoryPtr, INDEX_DIRECTORY);
+    }
+  }
+
+  // the blocks of an index tree, breadth first, so the upper levels of the tree are next to each other
+  private void addIndex(String root) {
+    List<String> queue = new ArrayList<>();
+    if (isPointer(root)) {
+      queue.add(root);
+    }
+    for (int i = 0; i < queue.size(); i++) {
+      add(queue.get(i), INDEX);
+      for (BlockPointer child : db.generateBTreeChildBlockPointerArray(getBlock(queue.get(i)))) {
+        queue.add(child.getPtrString());
+      }
+    }
+  }
+
+  private void add(String ptr, int kind) {
+    if (newAddress.containsKey(ptr)) {
+      return;
+    }
+    newAddress.put(ptr, null);
+    liveBlocks.add(ptr);
+    kinds.add(kind);
+  }
+
+  // pack the live blocks from the first data block of .db0, returns how many of them move
+  private int assignNewAddresses() {
+    int moved = 0;
+    int pfsNumber = 0;
+    int blockNumber = db.getFirstPFS().getFirstDataBlock();
+    for (String ptr : liveBlocks) {
+      if (blockNumber >= db.getBlocksPerPFS()) {
+        pfsNumber++;
+        blockNumber = db.getPfsList().get(pfsNumber).getFirstDataBlock();
+      }
+      String target = new BlockPointer(pfsNumber, blockNumber).getPtrString();
+      newAddress.put(ptr, target);
+      if (!target.equals(ptr)) {
+        moved++;
+      }
+      blockNumber++;
+    }
+    return moved;
+  }
+
+  private void rewritePointers(char[] block, int kind) {
+    if (kind == DATA) {
+      if (PFS.isCompressedBlock(block)) {
+        remapPointer(block, 1);
+      }
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == INDEX) {
+      // the children and the BlockPointer part of the record pointers, the node is binary so it is decoded
+      List<KeyPointer> keys = new ArrayList<>();
+      for (KeyPointer keyPointer : IndexTree.decodeKeys(block)) {
+        String pointer = keyPointer.getPointer();
+        String target = newAddress.get(pointer.substring(0, BlockPointer.LENGTH));
+        keys.add(target == null ? keyPointer
+                : new KeyPointer(keyPointer.getKey(), target + pointer.substring(BlockPointer.LENGTH)));
+      }
+      List<String> children = new ArrayList<>();
+      for (String child : IndexTree.decodeChildren(block)) {
+        String target = newAddress.get(child);
+        children.add(target == null ? child : target);
+      }
+      IndexTree.encodeNode(block, keys, children);
+    } else if (kind == CATALOG) {
+      int slots = (blockSize - BlockPointer.LENGTH) / FCB.LENGTH;
+      for (int slot = 0; slot < slots; slot++) {
+        if (isBlank(block, slot * FCB.LENGTH, FCB.LENGTH)) continue;
+        // data start block, index start block (B-tree root, hash directory or learned index header), data end block,
+        // zone map start block and Bloom filter start block
+        remapPointer(block, slot * FCB.LENGTH + 44);
+        remapPointer(block, slot * FCB.LENGTH + 44 + BlockPointer.LENGTH);
+        remapPointer(block, slot * FCB.LENGTH + 44 + 2 * BlockPointer.LENGTH);
+        remapPointer(block, slot * FCB.LENGTH + 55 + 3 * BlockPointer.LENGTH);
+        remapPointer(block, slot * FCB.LENGTH + 55 + 4 * BlockPointer.LENGTH);
+      }
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == ZONE_MAP) {
+      // the first data block of each zone, the next blocks of a zone follow the chain
+      for (int i = 0; i < ZoneMap.entriesPerBlock(db); i++) {
+        if (isBlank(block, i * ZoneMap.ENTRY_LENGTH, BlockPointer.LENGTH)) break;
+        remapPointer(block, i * ZoneMap.ENTRY_LENGTH);
+      }
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == BLOOM_FILTER) {
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == HASH_DIRECTORY) {
+      List<String> buckets = new ArrayList<>();
+      for (String bucket : HashIndex.decodeDirectory(block)) {
+        String target = newAddress.get(bucket);
+        buckets.add(target == null ? bucket : target);
+      }
+      String next = HashIndex.nextPtr(block);
+      String target = newAddress.get(next);
+      HashIndex.encodeDirectory(block, buckets, target == null ? next : target);
+    } else if (kind == HASH_BUCKET) {
+      // the BlockPointer part of the record pointers and the overflow block, the block is binary like a node
+      List<KeyPointer> entries = new ArrayList<>();
+      for (KeyPointer keyPointer : HashIndex.decodeBucket(block)) {
+        String pointer = keyPointer.getPointer();
+        String target = newAddress.get(pointer.substring(0, BlockPointer.LENGTH));
+        entries.add(target == null ? keyPointer
+                : new KeyPointer(keyPointer.getKey(), target + pointer.substring(BlockPointer.LENGTH)));
+      }
+      String next = HashIndex.nextPtr(block);
+      String target = newAddress.get(next);
+      HashIndex.encodeBucket(block, entries, target == null ? next : target);
+    } else if (kind == LEARNED_HEADER) {
+      remapPointer(block, 0);
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == LEARNED_SEGMENTS) {
+      // the first block of the run of each segment, the next blocks of a run follow it
+      for (int i = 0; i < LearnedIndex.segmentsPerBlock(db); i++) {
+        if (isBlank(block, i * LearnedIndex.SEGMENT_LENGTH, LearnedIndex.SEGMENT_LENGTH)) break;
+        remapPointer(block, i * LearnedIndex.SEGMENT_LENGTH + LearnedIndex.RUN_START_OFFSET);
+      }
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    } else if (kind == POSTINGS) {
+      // the BlockPointer part of the record pointers and the next posting block, the block is binary like a node
+      List<String> pointers = new ArrayList<>();
+      for (String pointer : SecondaryIndex.decodePostings(block)) {
+        String target = newAddress.get(pointer.substring(0, BlockPointer.LENGTH));
+        pointers.add(target == null ? pointer : target + pointer.substring(BlockPointer.LENGTH));
+      }
+      String next = SecondaryIndex.decodeNext(block);
+      String target = newAddress.get(next);
+      SecondaryIndex.encodePostings(block, pointers, target == null ? next : target);
+    } else if (kind == INDEX_DIRECTORY) {
+      for (int i = 0; i < SecondaryIndex.entriesPerBlock(db); i++) {
+        if (isBlank(block, i * SecondaryIndex.ENTRY_LENGTH, 1)) continue;
+        remapPointer(block, i * SecondaryIndex.ENTRY_LENGTH + SecondaryIndex.ROOT_OFFSET);
+      }
+      remapPointer(block, blockSize - BlockPointer.LENGTH);
+    }
+  }
+
+  private void remapPointer(char[] block, int offset) {
+    String target = newAddress.get(new String(block, offset, BlockPointer.LENGTH));
+    if (target != null) {
+      target.getChars(0, BlockPointer.LENGTH, block, offset);
+    }
+  }
+
+  // delete the PFS files which became empty and shrink the last one
+  private void truncate() {
+    int lastPFS = 0;
+    int lastBlock = db.getFirstPFS().getFirstDataBlock() - 1;
+    if (!liveBlocks.isEmpty()) {
+      BlockPointer last = new BlockPointer(newAddress.get(liveBlocks.get(liveBlocks.size() - 1)));
+      lastPFS = last.getPfsNumber();
+      lastBlock = last.getBlockNumber();
+    }
+    while (db.getNumOfPFSFiles() > lastPFS + 1) {
+      db.removeLastPFS();
+    }
+    db.getPfsList().get(lastPFS).truncate(lastBlock + 1);
+  }
+
+  // number of data blocks whose next block is not the block right after it
+  private int countChainBreaks() {
+    int breaks = 0;
+    for (FCB fcb : db.getFcbCatalog().getAll()) {
+      String ptr = fcb.getDataStartBlock();
+      while (isPointer(ptr)) {
+        String next = new String(getBlock(ptr), blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+        if (isPointer(next)) {
+          BlockPointer curr = new BlockPointer(ptr);
+          BlockPointer nextBP = new BlockPointer(next);
+          if (curr.getPfsNumber() != nextBP.getPfsNumber() || curr.getBlockNumber() + 1 != nextBP.getBlockNumber()) {
+            breaks++;
+          }
+        }
+        ptr = next;
+      }
+    }
+    return breaks;
+  }
+
+  private char[] getBlock(String ptr) {
+    BlockPointer bp = new BlockPointer(ptr);
+    return db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+  }
+
+  private static boolean isBlank(char[] block, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (block[i] > ' ') return false;
+    }
+    return true;
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
@@ -1,34 +1,84 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.Key;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents a database, handling the creation and management of PFS files
  * and the upload and storage of data into these files.
  */
 public class DB {
+  public static final int DEFAULT_BLOCKS_PER_PFS = 4000; // 1MB PFS files with 256 byte blocks
+  public static final int RECORD_LENGTH = 40; // Length of each record in a data block
+  public static final int MIN_BLOCK_SIZE = 128; // the superblock and one FCB have to fit in one block
+  public static final int MAX_BLOCK_SIZE = 65536;
+  public static final int RECLAIM_BATCH_BLOCKS = 1024; // blocks freed while holding the lock once
+  public static final int SCAN_RANGE_BLOCKS = 256; // consecutive data blocks scanned by one task
+  public static final int SCAN_WINDOW_BLOCKS = 4096; // data blocks handed to the scan tasks and not merged yet
+  public static final int EXPORT_BUFFER_BYTES = 1 << 20; // bytes of records written out at once by an export
+
   // Variables
   private String name; // Name of the database.
   private int blockSize; // Size of one blocks within the PFS files. Unit is byte.
+  private int blocksPerPFS; // Number of blocks in one PFS file (segment size / block size)
+  private int growthBlocks; // Number of blocks preallocated at once when a PFS file grows
   private int numOfFCBFiles; // Number of FCB files, default value 0
   private int numOfPFSFiles; // Number of PFC files, default value 1
   private List<PFS> pfsList; // List of PFS instances associated with this database.
-  private List<FCB> fcbList; // List of FCB instances associated with this database.
-
-  private Map<String, Btree> filenameToBtreeMap;
-  private Map<String,List<KeyPointer>> keyPointerMap;
+  private FCBCatalog fcbCatalog; // name -> FCB hash index of the files in this database.
+
+  private Map<String, RecordDictionary> dictionaryMap; // dictionary block pointer -> dictionary
+  private Map<String, BloomFilter> bloomFilters; // file name -> Bloom filter of its keys, loaded at open
+  private Map<String, List<SecondaryIndex>> secondaryIndexes; // file name -> its secondary indexes, loaded at open
+  private Map<String, HashIndex> hashIndexes; // file name -> its hash index, the directory is read on first use
+  private Map<String, LearnedIndex> learnedIndexes; // file name -> its learned index, segments read on first use
+  private final ReentrantLock storageLock = new ReentrantLock(); // guards the block allocator and the FCB catalog
+  private volatile boolean isVerbose; // print the blocks allocated and written by each operation
+  // the tasks of scanRecordsParallel, shared by all the scans of this database, null with a single core
+  private final ExecutorService scanWorkers = Runtime.getRuntime().availableProcessors() == 1 ? null
+          : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "scan");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final ExecutorService reclaimer = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "block-reclaimer");
+    thread.setDaemon(true);
+    return thread;
+  }); // frees the blocks of removed files in the background
 
   /**
    * Constructor for the DB class. Initializes a new database or loads an existing one.
@@ -38,23 +88,53 @@ public class DB {
    * @param isLoad Indicates whether to load an existing database (true) or create a new one (false).
    */
   public DB(String name, int blockSize, boolean isLoad) {
+    this(name, blockSize, DEFAULT_BLOCKS_PER_PFS, DEFAULT_BLOCKS_PER_PFS, isLoad);
+  }
+
+  /**
+   * Constructor for the DB class with a configurable PFS file (segment) size.
+   * When an existing database is loaded, the sizes stored in its superblock are used instead.
+   *
+   * @param name The name of the database.
+   * @param blockSize The size of blocks within the PFS files.
+   * @param blocksPerPFS The number of blocks in one PFS file.
+   * @param growthBlocks The number of blocks preallocated at once when a PFS file grows.
+   * @param isLoad Indicates whether to load an existing database (true) or create a new one (false).
+   */
+  public DB(String name, int blockSize, int blocksPerPFS, int growthBlocks, boolean isLoad) {
 
+    if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Block size must be from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE);
+    }
     this.name = name;
     this.blockSize = blockSize;
-    this.pfsList = new ArrayList<>();
-    this.fcbList = new ArrayList<>();
-
-    this.filenameToBtreeMap = new HashMap<>();
-    this.keyPointerMap = new HashMap<>();
+    this.blocksPerPFS = blocksPerPFS;
+    this.growthBlocks = Math.min(growthBlocks, blocksPerPFS);
+    // files could be put concurrently, see uploadFCBFiles
+    this.pfsList = new CopyOnWriteArrayList<>();
+
+    this.dictionaryMap = new ConcurrentHashMap<>();
+    this.bloomFilters = new ConcurrentHashMap<>();
+    this.secondaryIndexes = new ConcurrentHashMap<>();
+    this.hashIndexes = new ConcurrentHashMap<>();
+    this.learnedIndexes = new ConcurrentHashMap<>();
     if (!isLoad) {
       System.out.println("creating DB " + name + "...");
       init();
     } else {
       System.out.println("loading DB " + name + "...");
+      loadSuperBlock();
       loadExistingPFSs();
 //      System.out.println("loading PFS size" + numOfPFSFiles);
       // need to create a pfs first
-      this.numOfFCBFiles = this.pfsList.get(0).loadExistingFCB(this.fcbList);
+      this.fcbCatalog = new FCBCatalog(this, true);
+      this.numOfFCBFiles = this.fcbCatalog.size();
+      loadBloomFilters();
+      loadSecondaryIndexes();
+      // resume reclaiming the files removed before the database was closed
+      for (FCB fcb : this.fcbCatalog.getTombstones()) {
+        scheduleReclaim(fcb);
+      }
 //      System.out.println("loading fcb size" + numOfFCBFiles);
     }
   }
@@ -64,23 +144,143 @@ public class DB {
    * @param root the root of the b-tree
    * @param key the key we are looking for
    */
-  public void find(BlockPointer root, int key) {
+  public void find(BlockPointer root, long key) {
     String dataBlockPtrStr = findDataBlockPtr(root, key, 0);
     if(dataBlockPtrStr != "") {
       findDataBlockContent(dataBlockPtrStr);
     }
   }
 
+  /**
+   * Find the record of a key in a file and print it out. The Bloom filter of the file turns away most keys
+   * which are not in it before any block is read.
+   * @param fcb the file
+   * @param key the key we are looking for
+   */
+  public void find(FCB fcb, long key) {
+    BloomFilter filter = this.bloomFilters.get(fcb.getName());
+    if (filter != null && !filter.mightContain(key)) {
+      System.out.println("Can't find " + key + " (Bloom filter, 0 blocks read)");
+      return;
+    }
+    String dataBlockPtrStr;
+    if (fcb.getIndexType() == FCB.HASH_INDEX) {
+      KeyIndex index = openIndex(fcb);
+      String found = index.search(key);
+      dataBlockPtrStr = found == null ? "" : found;
+      // plus 1 metadata block and 1 data block, the directory of the hash index is in memory
+      System.out.println(found == null ? "Can't find " + key
+              : "Found key after search " + (index.getBlocksRead() + 2) + " blocks.");
+    } else if (fcb.getIndexType() == FCB.LEARNED_INDEX) {
+      LearnedIndex index = (LearnedIndex) openIndex(fcb);
+      String found = index.search(key);
+      dataBlockPtrStr = found == null ? "" : found;
+      // plus 1 metadata block, and the data block unless the model already read it
+      System.out.println(found == null ? "Can't find " + key
+              : "Found key after search " + (index.getBlocksRead() + (index.isLastSearchByModel() ? 1 : 2))
+              + " blocks" + (index.isLastSearchByModel() ? " (learned index)." : " (B-tree)."));
+    } else if (fcb.getIndexType() == FCB.CLUSTERED_INDEX) {
+      KeyIndex index = openIndex(fcb);
+      String found = index.search(key);
+      dataBlockPtrStr = found == null ? "" : found;
+      // plus 1 metadata block, the record is in the last block of the search
+      System.out.println(found == null ? "Can't find " + key
+              : "Found key after search " + (index.getBlocksRead() + 1) + " blocks.");
+    } else {
+      dataBlockPtrStr = findDataBlockPtr(new BlockPointer(fcb.getIndexStartBlock()), key, 0);
+    }
+    if (dataBlockPtrStr.isEmpty()) {
+      if (filter != null) {
+        filter.addFalsePositive();
+      }
+      return;
+    }
+    findDataBlockContent(dataBlockPtrStr);
+  }
+
+  /**
+   * Opens the index of a file, the B-tree, the hash index, the learned index or the clustered index it was put with.
+   * The directory of a hash index and the segments of a learned index are read on first use and kept, so a lookup
+   * only reads the blocks of one bucket or of one window.
+   * @param fcb the file
+   * @return the index, its block and key deltas count from now
+   */
+  public KeyIndex openIndex(FCB fcb) {
+    if (fcb.getIndexType() == FCB.CLUSTERED_INDEX) {
+      return new ClusteredIndex(this, fcb.getIndexStartBlock());
+    }
+    if (fcb.getIndexType() == FCB.LEARNED_INDEX) {
+      LearnedIndex index = this.learnedIndexes.computeIfAbsent(fcb.getName(),
+              name -> LearnedIndex.read(this, fcb.getIndexStartBlock()));
+      index.reset();
+      return index;
+    }
+    if (fcb.getIndexType() != FCB.HASH_INDEX) {
+      return new IndexTree(this, fcb.getIndexStartBlock());
+    }
+    HashIndex index = this.hashIndexes.computeIfAbsent(fcb.getName(),
+            name -> HashIndex.read(this, fcb.getIndexStartBlock(), fcb.getKeyCount()));
+    index.reset();
+    return index;
+  }
+
+  /**
+   * Prints the size of the Bloom filter of a file, its expected false positive rate for the keys in the file and
+   * the rate observed by find since the database was opened.
+   * @param fcb the file
+   */
+  public void showBloomFilter(FCB fcb) {
+    BloomFilter filter = this.bloomFilters.get(fcb.getName());
+    if (filter == null) {
+      System.out.println(fcb.getName() + " has no Bloom filter, put it again to build one.");
+      return;
+    }
+    System.out.printf("Bloom filter of %s: %d bits in %d blocks, %d hashes, built for %d keys, %d keys now.%n",
+            fcb.getName(), filter.getBitCount(), filter.getBlockPointers().size(), BloomFilter.HASHES,
+            filter.getCapacity(), fcb.getKeyCount());
+    System.out.printf("Expected false positive rate %.2f%%. find: %d probes, %d rejected, %d false positives "
+                    + "(%.2f%% of the missing keys).%n", 100 * filter.getExpectedFalsePositiveRate(fcb.getKeyCount()),
+            filter.getProbes(), filter.getRejected(), filter.getFalsePositives(),
+            100 * filter.getObservedFalsePositiveRate());
+  }
+
+  /**
+   * Prints the segments of the learned index of a file, how many of its keys they cover and how find looked up
+   * the keys since the database was opened.
+   * @param fcb the file
+   */
+  public void showLearnedIndex(FCB fcb) {
+    if (fcb.getIndexType() != FCB.LEARNED_INDEX) {
+      System.out.println(fcb.getName() + " has no learned index, put it again with -learned to build one.");
+      return;
+    }
+    LearnedIndex index = (LearnedIndex) openIndex(fcb);
+    int segmentBlocks = LearnedIndex.blockPointers(this, fcb.getIndexStartBlock()).size();
+    System.out.printf("Learned index of %s: %d segments in %d blocks, epsilon %d records, %d of %d keys covered.%n",
+            fcb.getName(), index.getSegments(), segmentBlocks, index.getEpsilon(),
+            Math.min(index.getCoveredSlots(), fcb.getKeyCount()), fcb.getKeyCount());
+    System.out.printf("find: %d keys found by the model, %d looked up in the B-tree.%n", index.getModelHits(),
+            index.getTreeLookups());
+  }
+
+  // loads the Bloom filters of the files, find probes them before it reads the index
+  private void loadBloomFilters() {
+    this.bloomFilters.clear();
+    for (FCB fcb : this.fcbCatalog.getAll()) {
+      if (isBlockPointer(fcb.getBloomFilterStart())) {
+        this.bloomFilters.put(fcb.getName(), BloomFilter.read(this, fcb.getBloomFilterStart()));
+      }
+    }
+  }
+
   /**
    * Find the corresponding record and print it out
    * @param dataBlockPtrStr where record located
    */
   public void findDataBlockContent(String dataBlockPtrStr) {
     DataBlockPointer dbp = new DataBlockPointer(dataBlockPtrStr);
-    // get content[] from that block
-    char[] content = this.pfsList.get(dbp.getPfsNumber()).getContent()[dbp.getBlockNumber()];
-    int recordSize = 40;
-    String data = new String(content, dbp.getRecordNumber() * recordSize, recordSize);
+    // get the record from that block, compressed blocks are decoded by the PFS
+    String data = getRecordbyDataBlockPointer(dbp.getPfsNumber(), dbp.getBlockNumber(), dbp.getRecordNumber());
     System.out.println("Found record:");
     System.out.println(data);
   }
@@ -92,11 +292,11 @@ public class DB {
    * @param counter count how many blocks we are looking at
    * @return the data block pointer String
    */
-  public String findDataBlockPtr(BlockPointer root, int key, int counter) {
+  public String findDataBlockPtr(BlockPointer root, long key, int counter) {
     // find the node
     counter++;
 
-    char[] blockContent = pfsList.get(root.getPfsNumber()).getContent()[root.getBlockNumber()];
+    char[] blockContent = pfsList.get(root.getPfsNumber()).getBlock(root.getBlockNumber());
     // generate a block pointer array
     List<KeyPointer> keypointerList = generateBTreeKeyPointerArray(blockContent);
     // generate a keyPointer array
@@ -134,25 +334,7 @@ public class DB {
    * @return a list of Key pointer which contains the key information and record location pointer
    */
   public List<KeyPointer> generateBTreeKeyPointerArray(char[] blockContent){
-    List<KeyPointer> result = new ArrayList<>();
-    int blockPointerSize = 7;
-    int keyPointerSize = 15;
-    for(int i = 0; i < 11; i++) {
-      String temp = new String(blockContent,
-              (i * keyPointerSize) + ((i + 1) * blockPointerSize ),
-              keyPointerSize);
-
-      // if all white space in the following
-      if(! temp.trim().isEmpty()) {
-          KeyPointer kp = new KeyPointer(temp);
-//        System.out.println("result.getKey()" +kp.getKey());
-//        System.out.println("result.getPointer()" +kp.getPointer());
-          result.add(kp);
-      } else {
-        break;
-      }
-    }
-    return result;
+    return IndexTree.decodeKeys(blockContent);
   }
 
   /**
@@ -162,24 +344,26 @@ public class DB {
    */
   public List<BlockPointer> generateBTreeChildBlockPointerArray(char[] blockContent){
     List<BlockPointer> result = new ArrayList<>();
-    int blockPointerSize = 7;
-    int keyPointerSize = 15;
-    for(int i = 0; i < 11; i++) {
-      String temp = new String(blockContent,
-              (i * keyPointerSize) + (i * blockPointerSize ),
-              blockPointerSize);
-
-      // if all white space in the following
-      if(! temp.trim().isEmpty() && ! temp.equals("9999999")) {
-        BlockPointer bp = new BlockPointer(temp);
-        result.add(bp);
-      } else {
-        break;
-      }
+    for (String child : IndexTree.decodeChildren(blockContent)) {
+      result.add(new BlockPointer(child));
     }
     return result;
   }
 
+  /**
+   * Reads the block size and the PFS file size from the superblock of .db0
+   */
+  public void loadSuperBlock() {
+    try {
+      int[] superBlock = PFS.parseSuperBlock(PFS.readSuperBlock(this.name));
+      this.blockSize = superBlock[0];
+      this.blocksPerPFS = superBlock[1];
+      this.growthBlocks = superBlock[2];
+    } catch (IOException | RuntimeException e) {
+      System.err.println("An error occurred while reading the superblock: " + e.getMessage());
+    }
+  }
+
   /**
    * Loaded existing PFS
    */
@@ -196,10 +380,8 @@ public class DB {
    * show FCB
    */
   public void showFCBs() {
-    for(int i=0; i<this.fcbList.size(); i++) {
-      if(fcbList.get(i).getName() != "") {
-        fcbList.get(i).showContent();
-      }
+    for (FCB fcb : this.fcbCatalog.getAll()) {
+      fcb.showContent(this.blockSize);
     }
     System.out.println();
   }
@@ -240,6 +422,9 @@ public class DB {
     //    block
     PFS pfs = new PFS(this, 0);
     pfsList.add(pfs);
+
+    // write an empty FCB catalog directory in the FCB block
+    this.fcbCatalog = new FCBCatalog(this, false);
   }
 
 
@@ -252,7 +437,7 @@ public class DB {
    */
   private char[][] convertCSVToCharArray(String filePath) throws IOException {
     List<String> lines = new ArrayList<>();
-    try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+    try (BufferedReader br = openCSV(filePath)) {
       String line;
       boolean firstLine = true;
       while ((line = br.readLine()) != null) {
@@ -260,31 +445,92 @@ public class DB {
           firstLine = false; // Skip the header line
           continue;
         }
-        // Truncate or pad the line to ensure it is exactly 40 characters
-        if (line.length() > 40) {
-          line = line.substring(0, 40);
-        } else {
-          line = String.format("%-40s", line); // Right-pad with spaces to make it 40 chars
-        }
         lines.add(line);
       }
     }
 
     // Since every line is now exactly 40 characters, set the second dimension to 40
-    char[][] records = new char[lines.size()][40];
+    char[][] records = new char[lines.size()][];
 
     for (int i = 0; i < lines.size(); i++) {
-      char[] lineChars = lines.get(i).toCharArray();
-      System.arraycopy(lineChars, 0, records[i], 0, lineChars.length);
+      records[i] = lineToRecord(lines.get(i));
     }
 
     return records;
   }
 
+  /**
+   * Samples the records of a CSV file, uniformly over the whole file (reservoir sampling), so a large file is not
+   * held in memory to train its dictionary. A file with at most count rows is returned whole, in row order.
+   *
+   * @param filePath The path to the CSV file.
+   * @param count The largest number of records returned.
+   * @return The sampled records.
+   * @throws IOException If an error occurs while reading the file.
+   */
+  private static char[][] sampleCSV(String filePath, int count) throws IOException {
+    List<char[]> sample = new ArrayList<>();
+    Random random = new Random(count); // a fixed seed, so a file gets the same dictionary every time
+    try (BufferedReader br = openCSV(filePath)) {
+      br.readLine(); // Skip the header line
+      long rows = 0;
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (sample.size() < count) {
+          sample.add(lineToRecord(line));
+        } else {
+          long slot = (long) (random.nextDouble() * (rows + 1));
+          if (slot < count) {
+            sample.set((int) slot, lineToRecord(line));
+          }
+        }
+        rows++;
+      }
+    }
+    return sample.toArray(new char[0][]);
+  }
+
+  /**
+   * Opens a CSV file to read its lines as bytes, one char per byte (ISO-8859-1), so the records keep the bytes of
+   * the file whatever its encoding is and get writes them back unchanged.
+   *
+   * @param filePath The path to the CSV file.
+   * @return The reader.
+   * @throws IOException If the file could not be opened.
+   */
+  public static BufferedReader openCSV(String filePath) throws IOException {
+    return new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Truncates or pads one CSV line to a record of exactly RECORD_LENGTH bytes. The line holds one byte per char,
+   * see openCSV, and a UTF-8 character is never cut: a record which would end inside one ends before it.
+   *
+   * @param line The CSV line.
+   * @return The record.
+   * @throws IllegalArgumentException If the line has a char which is not a byte.
+   */
+  public static char[] lineToRecord(String line) {
+    char[] record = new char[RECORD_LENGTH];
+    int length = Math.min(line.length(), RECORD_LENGTH);
+    // the first byte left out must not be a UTF-8 continuation byte (10xxxxxx)
+    while (length < line.length() && length > 0 && (line.charAt(length) & 0xC0) == 0x80) {
+      length--;
+    }
+    for (int i = 0; i < length; i++) {
+      if (line.charAt(i) > 0xFF) {
+        throw new IllegalArgumentException("Only bytes could be stored, read the row as ISO-8859-1: " + line);
+      }
+    }
+    line.getChars(0, length, record, 0);
+    Arrays.fill(record, length, RECORD_LENGTH, ' '); // Right-pad with spaces
+    return record;
+  }
+
   // Method to combine 6 records into 1 blocks
   /**
    * Combines multiple records into blocks, adhering to the specified block size.
-   *  Combine 6 records and one pointer into 1 blocks
+   *  Combine getRecordsPerBlock() records (6 for 256 byte blocks) and one pointer into 1 blocks
    *  List<{dblock0 dblock1 dblock2 dblock3 dblock4 dblock5 -> block pointer}>
    *
    * @param data A 2D char array of records to be combined into blocks.
@@ -292,9 +538,9 @@ public class DB {
    */
   public List<char[]> recordsToBlock(char[][] data) {
     List<char[]> blocks = new ArrayList<>();
-    int blockSize = 256; // The size of each block
-    int recordsPerBlock = 6; // Number of records per block
-    int recordLength = 40; // Length of each record
+    int blockSize = this.blockSize; // The size of each block
+    int recordsPerBlock = getRecordsPerBlock(); // Number of records per block
+    int recordLength = RECORD_LENGTH; // Length of each record
     int recordsInCurrentBlock = 0; // Counter for records in the current block
     StringBuilder blockBuilder = new StringBuilder(blockSize);
 
@@ -321,126 +567,425 @@ public class DB {
     return blocks;
   }
 
+  /**
+   * Combines records into compressed blocks. Every record is encoded with the file's dictionary
+   * and terminated by a record separator, so a block takes as many records as fit after
+   * compression.
+   *  List<{# dictionaryPtr record0 RS record1 RS ... -> block pointer}>
+   *
+   * @param data A 2D char array of records to be combined into blocks.
+   * @param dictionary The dictionary trained for this file.
+   * @param dictionaryPtr The block pointer of the dictionary block.
+   * @return A list of blocks, each represented as a char array.
+   */
+  public List<char[]> recordsToCompressedBlock(char[][] data, RecordDictionary dictionary, String dictionaryPtr) {
+    List<char[]> blocks = new ArrayList<>();
+    int capacity = this.blockSize - BlockPointer.LENGTH; // leave the last chars for the block pointer
+    StringBuilder blockBuilder = new StringBuilder(this.blockSize);
+    int recordsInCurrentBlock = 0;
+    long previousKey = -1; // key of the previous record in the current block
+
+    for (char[] record : data) {
+      String encoded = dictionary.encode(record, previousKey);
+      boolean isFull = recordsInCurrentBlock == PFS.MAX_COMPRESSED_RECORDS
+              || blockBuilder.length() + encoded.length() + 1 > capacity;
+      if (recordsInCurrentBlock > 0 && isFull) {
+        blocks.add(finishBlock(blockBuilder));
+        recordsInCurrentBlock = 0;
+        // the first record of a block always keeps its full key
+        encoded = dictionary.encode(record, -1);
+      }
+      if (recordsInCurrentBlock == 0) {
+        blockBuilder.append(PFS.COMPRESSED_BLOCK_MARKER).append(dictionaryPtr);
+      }
+      blockBuilder.append(encoded).append(RecordDictionary.RECORD_SEPARATOR);
+      recordsInCurrentBlock++;
+      previousKey = RecordDictionary.parseKey(record);
+    }
+    if (recordsInCurrentBlock > 0) {
+      blocks.add(finishBlock(blockBuilder));
+    }
+    return blocks;
+  }
+
+  // pad the block with spaces and reset the builder for the next block
+  private char[] finishBlock(StringBuilder blockBuilder) {
+    while (blockBuilder.length() < this.blockSize) {
+      blockBuilder.append(' ');
+    }
+    char[] block = blockBuilder.toString().toCharArray();
+    blockBuilder.setLength(0);
+    return block;
+  }
+
   /**
    * Uploads a CSV file as an FCB file, converting its contents into data blocks and storing them within PFS files.
    *
    * @param fileName The name of the CSV file to upload.
    */
   public void uploadFCBFile(String fileName) {
+    uploadFCBFile(fileName, false);
+  }
+
+  /**
+   * Uploads a CSV file as an FCB file, converting its contents into data blocks and storing them within PFS files.
+   * In compressed mode a dictionary is trained on a sample of this file and stored in its own block, and the data
+   * blocks are packed with as many encoded records as fit.
+   *
+   * @param fileName The name of the CSV file to upload.
+   * @param isCompressed Whether to store the data blocks in the compressed layout.
+   * @return False if the file could not be stored.
+   */
+  public boolean uploadFCBFile(String fileName, boolean isCompressed) {
+    return uploadFCBFile(fileName, isCompressed, FCB.BTREE_INDEX);
+  }
+
+  /**
+   * Uploads a CSV file as an FCB file, see uploadFCBFile(String, boolean), with the index of its keys in a B-tree
+   * or in a hash index. A clustered file (FCB.CLUSTERED_INDEX) is sorted by key on disk first (RecordSorter) and
+   * stored in key order in plain blocks, without its rows which have no key or a key of an earlier row. The caller must not hold the storage
+   * lock, see uploadFCBFiles.
+   *
+   * @param fileName The name of the CSV file to upload.
+   * @param isCompressed Whether to store the data blocks in the compressed layout.
+   * @param indexType FCB.BTREE_INDEX, FCB.HASH_INDEX, FCB.LEARNED_INDEX or FCB.CLUSTERED_INDEX.
+   * @return False if the file could not be stored.
+   */
+  public boolean uploadFCBFile(String fileName, boolean isCompressed, char indexType) {
     // load file, calculate the record size
     // transfer the file into a datablock char[]
 
     System.out.println("Uploading FCB File: " + fileName + "...");
     String filePath = "./csvs/" + fileName;
-    try {
-      char[][] data = convertCSVToCharArray(filePath);
-      List<char[]> blocks = recordsToBlock(data);
-
-      storeBlocksInPFS(blocks, fileName, blocks.size());
+    UploadPipeline pipeline;
+    int extraBlocks = 0;
+    String dictionaryPtr = null; // the dictionary block of a compressed file
+    boolean isStored;
+
+    if (indexType == FCB.CLUSTERED_INDEX) {
+      // the records are sorted by key, so the data blocks are the leaves of the index
+      if (isCompressed) {
+        System.out.println("A clustered file is stored in plain blocks, -compress is ignored.");
+      }
+      pipeline = new UploadPipeline(this, null, null);
+      try (RecordSorter sorter = new RecordSorter(KeyPointerSorter.DEFAULT_BUDGET)) {
+        sorter.addAll(filePath);
+        isStored = pipeline.run(sorter.sorted());
+        if (isStored && sorter.getSkipped() > 0) {
+          System.out.println("Skipped " + sorter.getSkipped() + " rows without a key or with a key already in "
+                  + fileName + ".");
+        }
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println("An error occurred while reading the file: " + e.getMessage());
+        return false;
+      }
+    } else if (isCompressed) {
+      // the dictionary is trained on a sample of the file before the blocks are packed, the file is read again
+      char[][] sample;
+      try {
+        sample = sampleCSV(filePath, RecordDictionary.TRAINING_RECORDS);
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println("An error occurred while reading the file: " + e.getMessage());
+        return false;
+      }
+      RecordDictionary dictionary = RecordDictionary.train(sample, this.blockSize);
+      dictionaryPtr = findEmptyBlocks(1).get(0);
+      BlockPointer bp = new BlockPointer(dictionaryPtr);
+      this.pfsList.get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), dictionary.toBlock(this.blockSize));
+      this.dictionaryMap.put(dictionaryPtr, dictionary);
+      extraBlocks = 1;
+
+      pipeline = new UploadPipeline(this, dictionary, dictionaryPtr);
+      isStored = pipeline.run(filePath);
+      if (isStored) {
+        System.out.println("Compressed " + pipeline.getRecords() + " records into " + pipeline.getDataBlocks()
+                + " blocks (" + (pipeline.getRecords() + getRecordsPerBlock() - 1) / getRecordsPerBlock()
+                + " uncompressed).");
+      }
+    } else {
+      pipeline = new UploadPipeline(this, null, null);
+      isStored = pipeline.run(filePath);
+    }
+    if (!isStored) {
+      // the pipeline freed its data blocks
+      if (dictionaryPtr != null) {
+        this.dictionaryMap.remove(dictionaryPtr);
+        reclaimBlocks(Collections.singletonList(dictionaryPtr));
+      }
+      return false;
+    }
+    System.out.println("Stored " + pipeline.getRecords() + " records of " + fileName + " in "
+            + pipeline.getDataBlocks() + " data blocks.");
 
-    } catch (IOException e) {
-      System.err.println("An error occurred while reading the file: " + e.getMessage());
+    try (KeyPointerSorter sorter = pipeline.getSorter()) {
+      if (sorter.getRuns() > 0) {
+        System.out.println("Merging " + sorter.size() + " keys from " + sorter.getRuns() + " sorted runs...");
+      }
+      storeIndexAndFCB(fileName, sorter.sorted(), sorter.size(),
+              Arrays.asList(pipeline.getDataStartPtr(), pipeline.getDataEndPtr()),
+              pipeline.getDataBlocks(), extraBlocks, pipeline.getZoneMap(), indexType);
+    } catch (IOException | UncheckedIOException e) {
+      System.err.println("An error occurred while building the index: " + e.getMessage());
+      pipeline.freeStoredBlocks();
+      if (dictionaryPtr != null) {
+        this.dictionaryMap.remove(dictionaryPtr);
+        reclaimBlocks(Collections.singletonList(dictionaryPtr));
+      }
+      return false;
     }
+    return true;
   }
 
-  /**loading
-   * Stores data blocks and index block into PFS files,  managing block allocation and updating
-   * superblock and FCB metadata as necessary.
+  /**
+   * Uploads several CSV files at once, each one on its own thread with its own upload pipeline.
+   * The files only share the block allocator, which hands out whole regions (see allocateBlocks),
+   * and the FCB catalog, which is updated once per file. Both take the storage lock, so the caller must not hold it.
    *
-   * @param blocks A list of data blocks to store.
-   * @param fileName The name of the file associated with these data blocks.
-   * @param blocksSize The total number of blocks to store.
-   * @return A string representing the starting pointer of the stored data blocks.
+   * @param fileNames The names of the CSV files to upload, not stored yet and all different.
+   * @param isCompressed Whether to store the data blocks in the compressed layout.
+   * @return The number of files which were stored.
    */
-  public void storeBlocksInPFS(List<char[]> blocks, String fileName, int blocksSize) {
-    List<KeyPointer> keyPointerList = new ArrayList<>();
-
-    String dataStartPtr =  storeDataInPFSs(blocks, blocksSize, keyPointerList);
-
-    // Generate a b-tree which inserted all the keyPointers
-     Btree btree =  generateBTree(keyPointerList, fileName);
-//     btree.DisplayEntileBTree();
-
-    // Find how many space we need and generate a List<Empty Block Lists String>
-    List<String> emptyBlocks = findEmptyBlocks(btree.getCntNodes());
-
-    // Put the index block into corresponding place
-    // Replace all the pointer to corresponding String
-    String indexRootPtr = storeIndexToEmptyBlocks(emptyBlocks, btree);
+  public int uploadFCBFiles(List<String> fileNames, boolean isCompressed) {
+    return uploadFCBFiles(fileNames, isCompressed, FCB.BTREE_INDEX);
+  }
 
-    LocalDateTime time = LocalDateTime.now();
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MMM/yy:HHa");
-    String formattedTime = time.format(formatter);
-    FCB newFCB = new FCB(fileName, formattedTime, blocksSize + btree.getCntNodes(), dataStartPtr, indexRootPtr);
-    fcbList.add(newFCB);
+  /**
+   * Uploads several CSV files at once, see uploadFCBFiles(List, boolean).
+   *
+   * @param fileNames The names of the CSV files to upload, not stored yet and all different.
+   * @param isCompressed Whether to store the data blocks in the compressed layout.
+   * @param indexType FCB.BTREE_INDEX, FCB.HASH_INDEX, FCB.LEARNED_INDEX or FCB.CLUSTERED_INDEX, the index of the keys
+   *                  of each file.
+   * @return The number of files which were stored.
+   */
+  public int uploadFCBFiles(List<String> fileNames, boolean isCompressed, char indexType) {
+    long startTime = System.nanoTime();
+    long bytes = 0;
+    for (String fileName : fileNames) {
+      bytes += new File("./csvs/" + fileName).length();
+    }
 
-    pfsList.get(0).updateFCBMetadata(fcbList);
+    int stored = 0;
+    if (fileNames.size() == 1) {
+      stored = uploadFCBFile(fileNames.get(0), isCompressed, indexType) ? 1 : 0;
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(fileNames.size(), r -> {
+        Thread thread = new Thread(r, "put");
+        thread.setDaemon(true);
+        return thread;
+      });
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (String fileName : fileNames) {
+        results.add(executor.submit(() -> uploadFCBFile(fileName, isCompressed, indexType)));
+      }
+      for (Future<Boolean> result : results) {
+        try {
+          if (result.get()) {
+            stored++;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (ExecutionException e) {
+          System.err.println("An error occurred while uploading the file: " + e.getCause());
+        }
+      }
+      executor.shutdownNow();
+    }
 
-    this.numOfFCBFiles++;
-    pfsList.get(0).updateSuperBlock();
+    long millis = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+    System.out.printf("Stored %d of %d files (%.1f MB) in %d ms, %.1f MB/s.%n", stored, fileNames.size(),
+            bytes / 1e6, millis, bytes / 1e3 / millis);
+    return stored;
+  }
 
-    // write the current char array to .dbfile
-    try {
-      pfsList.get(0).writeCharArrayToFile();
-    } catch (IOException e) {
-      System.err.println("An error occurred while writing the file: " + e.getMessage());
+  /**
+   * Returns the dictionary stored in a dictionary block, loading it on first use.
+   *
+   * @param dictionaryPtr The block pointer of the dictionary block.
+   * @return The dictionary.
+   */
+  public RecordDictionary getDictionary(String dictionaryPtr) {
+    RecordDictionary dictionary = this.dictionaryMap.get(dictionaryPtr);
+    if (dictionary == null) {
+      BlockPointer bp = new BlockPointer(dictionaryPtr);
+      dictionary = RecordDictionary.fromBlock(this.pfsList.get(bp.getPfsNumber()).getBlock(bp.getBlockNumber()));
+      this.dictionaryMap.put(dictionaryPtr, dictionary);
     }
+    return dictionary;
   }
 
-  // stores b-tree nodes into empty blocks and write the corresponding files
-  public String storeIndexToEmptyBlocks(List<String> emptyBlocks, Btree btree) {
-    // handling root as return
-    String rootBlockPointer = emptyBlocks.get(btree.getRoot());
-    Node[] nodes = btree.getNodes();
+  // adds the blocks of a chain to a zone map, the KeyPointers of the chain are in chain order
+  private void addZones(ZoneMap zones, String startPtr, List<KeyPointer> keyPointers) {
+    int from = 0;
+    String currBPStr = startPtr;
+    while (isBlockPointer(currBPStr)) {
+      BlockPointer currBP = new BlockPointer(currBPStr);
+      int to = from;
+      while (to < keyPointers.size() && new DataBlockPointer(keyPointers.get(to).getPointer()).getBlockPointer()
+              .getPtrString().equals(currBPStr)) {
+        to++;
+      }
+      zones.addBlock(currBPStr, keyPointers.subList(from, to), 0);
+      from = to;
+      char[] content = this.pfsList.get(currBP.getPfsNumber()).getBlock(currBP.getBlockNumber());
+      currBPStr = new String(content, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+  }
 
-    for(int i=0; i<emptyBlocks.size(); i++) {
-      // generate a index block string
-      int j=0;
-      String temp = "";
-      for(; j<nodes[i].size; j++){
-        int childPointer = nodes[i].children[j];
+  /**
+   * Stores the B-tree of a file into index blocks and adds its FCB.
+   *
+   * @param fileName The name of the file.
+   * @param sorted The KeyPointers of the file in ascending key order.
+   * @param keys The number of KeyPointers, with the duplicate keys.
+   * @param dataStartNEndPtr The first and the last data block of the file.
+   * @param blocksSize The number of data blocks.
+   * @param extraBlocks Blocks already stored for this file besides data and index blocks (e.g. dictionary).
+   * @param zones The zone map of the data blocks.
+   */
+  public void storeIndexAndFCB(String fileName, Iterator<KeyPointer> sorted, long keys,
+                               List<String> dataStartNEndPtr, int blocksSize, int extraBlocks, ZoneMap zones) {
+    storeIndexAndFCB(fileName, sorted, keys, dataStartNEndPtr, blocksSize, extraBlocks, zones, FCB.BTREE_INDEX);
+  }
 
-        if(childPointer == -1 ) {
-          temp += "9999999";
-        } else {
-          temp += emptyBlocks.get(childPointer);
+  /**
+   * Stores the keys of a file into index blocks, as a B-tree, as a hash index (HashIndex), as a B-tree with a
+   * learned index (LearnedIndex) over its data blocks or as the tree of the data blocks of a clustered file
+   * (ClusteredIndex), and adds its FCB. A clustered file has no zone map, its key ranges are found through the tree.
+   * The trees are written bottom up while the keys are read (IndexBuilder). A key which is already in the file keeps
+   * its first record, like Btree.Insert does.
+   *
+   * @param fileName The name of the file.
+   * @param sorted The KeyPointers of the file in ascending key order, e.g. from KeyPointerSorter.sorted().
+   * @param keys The number of KeyPointers, with the duplicate keys.
+   * @param dataStartNEndPtr The first and the last data block of the file.
+   * @param blocksSize The number of data blocks.
+   * @param extraBlocks Blocks already stored for this file besides data and index blocks (e.g. dictionary).
+   * @param zones The zone map of the data blocks.
+   * @param indexType FCB.BTREE_INDEX, FCB.HASH_INDEX, FCB.LEARNED_INDEX or FCB.CLUSTERED_INDEX.
+   */
+  public void storeIndexAndFCB(String fileName, Iterator<KeyPointer> sorted, long keys,
+                               List<String> dataStartNEndPtr, int blocksSize, int extraBlocks, ZoneMap zones,
+                               char indexType) {
+    boolean isHash = indexType == FCB.HASH_INDEX;
+    boolean isClustered = indexType == FCB.CLUSTERED_INDEX;
+    BloomFilter filter = new BloomFilter(keys);
+    List<KeyPointer> keyPointers = new ArrayList<>(); // the keys of a hash index
+    IndexBuilder builder = new IndexBuilder(this); // the tree of the keys, or of the data blocks of a clustered file
+    ClusteredIndex.LeafEntries leafEntries = isClustered ? new ClusteredIndex.LeafEntries(builder) : null;
+    KeyPointer previous = null;
+    long keyCount = 0;
+    long duplicates = 0;
+    while (sorted.hasNext()) {
+      KeyPointer keyPointer = sorted.next();
+      if (previous != null && previous.getKey() == keyPointer.getKey()) {
+        if (isVerbose) {
+          System.out.println("Insertion failed: " + keyPointer + " already exists.");
         }
-        temp += nodes[i].values[j].getKeyPointerStr();
+        duplicates++;
+        continue;
       }
-
-      int laseChildPointer = nodes[i].children[j];
-      if(laseChildPointer == -1 ) {
-        temp += "9999999";
+      previous = keyPointer;
+      keyCount++;
+      filter.add(keyPointer.getKey());
+      if (isHash) {
+        keyPointers.add(keyPointer);
+      } else if (isClustered) {
+        leafEntries.add(keyPointer);
       } else {
-        temp += emptyBlocks.get(laseChildPointer);
+        builder.add(keyPointer);
       }
-
-      // write this block in content[][]
-      BlockPointer bp = new BlockPointer(emptyBlocks.get(i));
-      char[] tempCharArray = new char[this.blockSize];
-      for (int k = 0; k < temp.toCharArray().length; k++) {
-        tempCharArray[k] = temp.charAt(k);
+    }
+    if (duplicates > 0) {
+      System.out.println("Skipped " + duplicates + " records whose key is already in the file.");
+    }
+    if (isClustered) {
+      leafEntries.finish();
+    }
+    String zoneMapPtr = isClustered ? BlockPointer.NULL_PTR : zones.write(this);
+    int zoneMapBlocks = isClustered ? 0
+            : (zones.size() + ZoneMap.entriesPerBlock(this) - 1) / ZoneMap.entriesPerBlock(this);
+    String bloomFilterPtr = filter.write(this);
+
+    String indexRootPtr;
+    int indexBlocks;
+    if (isHash) {
+      HashIndex index = HashIndex.build(this, keyPointers);
+      indexRootPtr = index.getRoot();
+      indexBlocks = index.getBlockDelta();
+      this.hashIndexes.put(fileName, index);
+      flush(this.pfsList);
+      System.out.println("Stored the hash index of " + fileName + ": " + index.getBucketCount() + " buckets in "
+              + indexBlocks + " blocks (" + index.getDirectoryBlocks() + " directory blocks).");
+    } else {
+      indexRootPtr = builder.finish();
+      indexBlocks = builder.getBlocks();
+      if (isVerbose) {
+        System.out.println("Inserted " + indexBlocks + " index blocks.");
+      }
+      if (isClustered) {
+        System.out.println("Stored the clustered index of " + fileName + ": " + builder.getKeys()
+                + " data blocks in key order, " + indexBlocks + " index blocks ("
+                + IndexBuilder.blocks(keyCount, getIndexNodeSize()) + " for a B-tree of the keys).");
+      }
+      if (indexType == FCB.LEARNED_INDEX) {
+        LearnedIndex index = LearnedIndex.build(this, indexRootPtr, dataStartNEndPtr.get(0));
+        int learnedBlocks = LearnedIndex.blockPointers(this, index.getRoot()).size();
+        indexRootPtr = index.getRoot();
+        indexBlocks += learnedBlocks;
+        this.learnedIndexes.put(fileName, index);
+        flush(this.pfsList);
+        System.out.println("Stored the learned index of " + fileName + ": " + index.getSegments() + " segments over "
+                + Math.min(index.getCoveredSlots(), keyCount) + " of " + keyCount + " keys in "
+                + learnedBlocks + " blocks (epsilon " + index.getEpsilon() + " records).");
       }
-      this.pfsList.get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), tempCharArray);
     }
 
-    // write into .db file
-    for(int i=0; i<pfsList.size(); i++) {
+    LocalDateTime time = LocalDateTime.now();
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MMM/yy:HHa");
+    String formattedTime = time.format(formatter);
+    FCB newFCB = new FCB(fileName, formattedTime, blocksSize + indexBlocks + extraBlocks + zoneMapBlocks
+            + filter.getBlockPointers().size(), dataStartNEndPtr.get(0), indexRootPtr, dataStartNEndPtr.get(1));
+    newFCB.setKeyCount(keyCount);
+    newFCB.setIndexType(indexType);
+    newFCB.setZoneMapStart(zoneMapPtr);
+    newFCB.setBloomFilterStart(bloomFilterPtr);
+    // files put concurrently add their FCBs one at a time
+    lock();
+    try {
+      fcbCatalog.put(newFCB);
+      this.bloomFilters.put(fileName, filter);
+
+      this.numOfFCBFiles = fcbCatalog.size();
+      pfsList.get(0).updateSuperBlock();
+
+      // write the current char array to .dbfile
       try {
-        pfsList.get(i).writeCharArrayToFile();
+        pfsList.get(0).writeCharArrayToFile();
       } catch (IOException e) {
         System.err.println("An error occurred while writing the file: " + e.getMessage());
       }
+    } finally {
+      unlock();
     }
-    // rootBlockPointer is the root block pointer of
-    return rootBlockPointer;
   }
+
   // get the root block number
 
 
 
   // get the btree size and find empty blocks in database
   public List<String> findEmptyBlocks(int btreeSize) {
+    lock();
+    try {
+      return findEmptyBlocksLocked(btreeSize);
+    } finally {
+      unlock();
+    }
+  }
+
+  private List<String> findEmptyBlocksLocked(int btreeSize) {
     List<String> emptyBlocks = new ArrayList<>(); // list of BlockPointer String
 
     int blockleft = btreeSize; // counter for data block needs to insert
@@ -454,7 +999,9 @@ public class DB {
         // find empty blocks and update emptyBlocks List with empty BlockPointer String
         pfsList.get(i).findEmptyBlocks(assignedBlock, emptyBlocks);
 
-        System.out.println("Inserted index block " + assignedBlock +" to .db" + pfsList.get(i).getSequenceNumber());
+        if (isVerbose) {
+          System.out.println("Inserted index block " + assignedBlock + " to .db" + pfsList.get(i).getSequenceNumber());
+        }
         // blockeleft mi
         blockleft -= assignedBlock;
 
@@ -479,7 +1026,9 @@ public class DB {
       // find empty blocks and update emptyBlocks List with empty BlockPointer String
       pfs.findEmptyBlocks(assignedBlock, emptyBlocks);
 
-      System.out.println("Inserted " + assignedBlock +" to .db" + pfs.getSequenceNumber());
+      if (isVerbose) {
+        System.out.println("Inserted " + assignedBlock + " to .db" + pfs.getSequenceNumber());
+      }
 
       // write the current char array to .dbfile
       try {
@@ -496,35 +1045,85 @@ public class DB {
     return emptyBlocks;
   }
 
+  /**
+   * Allocates one empty block, in the first PFS file which has room or in a new PFS file.
+   * Unlike findEmptyBlocks nothing is written yet, the caller flushes the changed PFS files.
+   *
+   * @return The BlockPointer String of the block.
+   */
+  public String allocateBlock() {
+    return allocateBlocks(1).get(0);
+  }
 
-  // inserted all the keys and genarate a B-tree
-  public Btree generateBTree(List<KeyPointer> keyPointerList, String fcbFilename){
-    Btree btree = new Btree();
-//    this.btree = new Btree();
-
-    for(KeyPointer currKeyPtr:keyPointerList) {
-      btree.Insert(currKeyPtr);
-//      btree.DisplayEntileBTree();
+  /**
+   * Allocates a region of empty blocks, from the first PFS files which have room and new PFS files.
+   * This is the only place where concurrent puts meet: each one takes a whole region at once under the storage
+   * lock and fills it without holding the lock. Nothing is written yet, the caller flushes the changed PFS files.
+   *
+   * @param count The number of blocks.
+   * @return The BlockPointer Strings of the blocks, in allocation order.
+   */
+  public List<String> allocateBlocks(int count) {
+    List<String> emptyBlocks = new ArrayList<>(count);
+    lock();
+    try {
+      for (PFS pfs : this.pfsList) {
+        int assignedBlock = Math.min(count - emptyBlocks.size(), pfs.getBlockLeft());
+        if (assignedBlock > 0) {
+          pfs.findEmptyBlocks(assignedBlock, emptyBlocks);
+        }
+      }
+      while (emptyBlocks.size() < count) {
+        PFS pfs = new PFS(this, this.numOfPFSFiles);
+        pfsList.add(pfs);
+        pfsList.get(0).updateSuperBlockNumOfPFSFiles(this.numOfPFSFiles);
+        pfs.findEmptyBlocks(Math.min(count - emptyBlocks.size(), pfs.getBlockLeft()), emptyBlocks);
+      }
+    } finally {
+      unlock();
     }
-    // Add the B-tree to the mapping with its corresponding FCB filename
-    this.filenameToBtreeMap.put(fcbFilename, btree);
-    this.keyPointerMap.put(fcbFilename, keyPointerList);
-
-    return btree;
-  }
-  public List<KeyPointer> getKeyPointerList(String fcbFilename) {
-    return this.keyPointerMap.get(fcbFilename);
+    return emptyBlocks;
   }
 
-  //get btree using fcb filename
-  public Btree getBtree(String fcbFilename) {
-    Btree btree = this.filenameToBtreeMap.get(fcbFilename);
-//    btree.DisplayEntileBTree();
-    return btree;
+  /**
+   * Stores data blocks in a region from allocateBlocks and links them in order. The blocks are written outside
+   * of the allocator, so files put by different threads do not wait for each other.
+   *
+   * @param blocks The data blocks.
+   * @param keyPointerList The KeyPointers of the stored records are added to it.
+   * @param zones The blocks are added to this zone map, in chain order.
+   * @return The first and the last block pointer {start pointer, end pointer}.
+   */
+  public List<String> storeDataInRegion(List<char[]> blocks, List<KeyPointer> keyPointerList, ZoneMap zones) {
+    List<String> region = allocateBlocks(blocks.size());
+    Set<PFS> changed = new HashSet<>();
+    try {
+      for (int i = 0; i < blocks.size(); i++) {
+        BlockPointer bp = new BlockPointer(region.get(i));
+        PFS pfs = this.pfsList.get(bp.getPfsNumber());
+        char[] block = Arrays.copyOf(blocks.get(i), this.blockSize);
+        String nextPtr = i + 1 < region.size() ? region.get(i + 1) : BlockPointer.NULL_PTR;
+        nextPtr.getChars(0, BlockPointer.LENGTH, block, this.blockSize - BlockPointer.LENGTH);
+        pfs.writeContent(bp.getBlockNumber(), block);
+        int from = keyPointerList.size();
+        pfs.updateKeyPointerList(block, keyPointerList, bp.getBlockNumber());
+        zones.addBlock(region.get(i), keyPointerList, from);
+        changed.add(pfs);
+      }
+    } catch (RuntimeException e) {
+      // the region is not linked to the file yet, so nothing else would free it
+      reclaimBlocks(region);
+      throw e;
+    }
+    flush(changed);
+    return Arrays.asList(region.get(0), region.get(region.size() - 1));
   }
 
 
 
+
+
+
   public int getRootBlockNumber(Btree btree) {
     return btree.getRoot();
   }
@@ -537,10 +1136,10 @@ public class DB {
    *
    * @param blocks A list of data blocks (char arrays) that need to be stored in the PFS files.
    * @param blocksSize The total number of blocks to be stored, guiding how many PFS files might be needed.
-   * @return A String representing the starting pointer of the data within the PFS structure, which can be used
-   *         to locate the data for future retrieval or modification.
+   * @return The start and end pointers of the data within the PFS structure {start pointer, end pointer},
+   *         the end pointer is where records are inserted later.
    */
-  public String storeDataInPFSs(List<char[]> blocks, int blocksSize, List<KeyPointer> keyPointerList) {
+  public List<String> storeDataInPFSs(List<char[]> blocks, int blocksSize, List<KeyPointer> keyPointerList) {
     // start and end pointers
     // List<{startPointerString, endPointerString}>
     List<List<String>> dataStartNEndPtrs = new ArrayList<>();
@@ -563,7 +1162,9 @@ public class DB {
                 .addData(new ArrayList<>(blocks.subList(blockCounter, blockCounter + assignedBlock)),
                         keyPointerList);
 
-        System.out.println("Inserted data node " + assignedBlock +" to .db" + pfsList.get(i).getSequenceNumber());
+        if (isVerbose) {
+          System.out.println("Inserted data node " + assignedBlock + " to .db" + pfsList.get(i).getSequenceNumber());
+        }
 
         // if already inserted in another PFS file,
         if (dataStartNEndPtrs.size() > 0) {
@@ -594,7 +1195,9 @@ public class DB {
       List<String> currStartNEndPtr = pfs.addData(new ArrayList<>(blocks.subList(blockCounter,
               blockCounter + assignedBlock)), keyPointerList);
 
-      System.out.println("Inserted " + assignedBlock +" to .db" + pfs.getSequenceNumber());
+      if (isVerbose) {
+        System.out.println("Inserted " + assignedBlock + " to .db" + pfs.getSequenceNumber());
+      }
 
       // if already inserted in another PFS file,
       // update the last pfs end block pointer to the next pfs begin pointer
@@ -618,7 +1221,9 @@ public class DB {
       blockCounter += assignedBlock;
     }
 
-    return dataStartNEndPtrs.get(0).get(0); // return the begin pointer
+    // the begin pointer and the end pointer
+    return Arrays.asList(dataStartNEndPtrs.get(0).get(0),
+            dataStartNEndPtrs.get(dataStartNEndPtrs.size() - 1).get(1));
   }
 
 
@@ -639,6 +1244,55 @@ public class DB {
     this.blockSize = blockSize;
   }
 
+  /**
+   * The number of keys one index block could hold:
+   * {child0 key0 child1 key1 ... key(n-1) child(n)}
+   *
+   * @return The node size of the B-tree.
+   */
+  public int getBlocksPerPFS() {
+    return blocksPerPFS;
+  }
+
+  public int getGrowthBlocks() {
+    return growthBlocks;
+  }
+
+  /**
+   * Writes all the changed blocks and closes the PFS files.
+   */
+  public void close() {
+    if (this.scanWorkers != null) {
+      this.scanWorkers.shutdown();
+    }
+    // let the background reclaim finish first
+    this.reclaimer.shutdown();
+    try {
+      this.reclaimer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (PFS pfs : this.pfsList) {
+      pfs.close();
+    }
+  }
+
+  public boolean isVerbose() {
+    return isVerbose;
+  }
+
+  public void setVerbose(boolean isVerbose) {
+    this.isVerbose = isVerbose;
+  }
+
+  public int getRecordsPerBlock() {
+    return (this.blockSize - BlockPointer.LENGTH) / RECORD_LENGTH;
+  }
+
+  public int getIndexNodeSize() {
+    return IndexTree.nodeSize(this.blockSize);
+  }
+
   public int getNumOfFCBFiles() {
     return numOfFCBFiles;
   }
@@ -658,33 +1312,6 @@ public class DB {
     this.numOfPFSFiles = numOfPFSFiles;
   }
 
-  /**
-   * Searches for a key in a B-tree and returns the associated data block pointer if the key is found.
-   *
-   * @param key The key to search for.
-   * @return Datablock pointer associated with the key, or null if the key is not found. 00000061
-   */
-    public String search(int key, String fcbFilename) {
-      // Use the B-tree's Lookup method to determine if the key exists
-      Btree btree = getBtree(fcbFilename);
-      SearchResult result = btree.Lookup(key);
-        if (result.found) {
-            // If the key exists, return the pointer associated with the key
-          //  get the pointer from the btree, and print out the key's record
-          // total block accessed = block accessed in btree + one headerblock
-            int totalBlocksAccessed = result.getBlockAccesses()+1;
-            System.out.println("# of Blocks = " + totalBlocksAccessed);
-            //return the data block pointer
-            return result.keyPointer.getPointer();
-
-
-        } else {
-            // If the key does not exist, print a message and return null
-            System.out.println("Key not found.");
-            return null;
-        }
-    }
-
   public String getRecordbyDataBlockPointer(int pfsNumber, int blockNumber, int recordNumber) {
     if (pfsNumber < 0 || pfsNumber >= pfsList.size()) {
       throw new IllegalArgumentException("PFS number out of range.");
@@ -702,13 +1329,8 @@ public class DB {
     @return The FCB with the specified name, or null if no FCB with that name exists.
   */
   public FCB findFCBByName(String name) {
-    // Assuming fcbList is a List<FCB> storing all FCBs
-    for (FCB fcb : fcbList) {
-      if (fcb.getName().equals(name)) {
-        return fcb;
-      }
-    }
-    return null; // FCB not found
+    // hash lookup in the FCB catalog
+    return fcbCatalog.get(name);
   }
   // DB get pfsList's first element
     public PFS getFirstPFS() {
@@ -716,217 +1338,1584 @@ public class DB {
     }
     // DB get fcbList
     public List<FCB> getFcbList() {
-        return fcbList;
+        return new ArrayList<>(fcbCatalog.getAll());
     }
 
+    public List<PFS> getPfsList() {
+        return pfsList;
+    }
 
+    public FCBCatalog getFcbCatalog() {
+        return fcbCatalog;
+    }
 
-    // rm related methods
-    public void removeFCB(String name) {
-        FCB fcb = findFCBByName(name);
-        if (fcb != null) {
-            fcbList.remove(fcb);
-            System.out.println("FCB " + name + " removed.");
-        } else {
-            System.out.println("FCB " + name + " not found.");
-        }
+  /**
+   * Compacts the PFS files: the live blocks are moved next to each other, file by file, and the empty
+   * PFS files at the end are deleted. It runs after the pending background reclaims, so the caller must not
+   * hold the storage lock.
+   */
+  public void compact() {
+    Future<?> task = this.reclaimer.submit(() -> {
+      lock();
+      try {
+        new Compactor(this).compact();
+      } finally {
+        unlock();
+      }
+    });
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      System.err.println("An error occurred while compacting: " + e.getCause());
     }
+  }
+
+  // the cached dictionaries, Bloom filters, hash, learned and secondary indexes hold the old block pointers
+  public void reloadAfterCompaction() {
+    this.dictionaryMap.clear();
+    this.hashIndexes.clear();
+    this.learnedIndexes.clear();
+    this.fcbCatalog = new FCBCatalog(this, true);
+    loadBloomFilters();
+    loadSecondaryIndexes();
+  }
+
+  // deletes the last PFS file, it has to be empty
+  public void removeLastPFS() {
+    PFS pfs = this.pfsList.remove(this.pfsList.size() - 1);
+    pfs.delete();
+    this.numOfPFSFiles--;
+    this.pfsList.get(0).updateSuperBlockNumOfPFSFiles(this.numOfPFSFiles);
+  }
+
+
+
 
   public void downloadFCBFile(FCB fcb) {
+    exportFCBFile(fcb, false, false);
+  }
+
+  /**
+   * Writes the records of a file to ./download/<file name>, one per line without the trailing spaces.
+   *
+   * The records are copied from the block buffers straight into byte buffers, so no String is created per record.
+   * In chain order the ranges of the file are encoded in parallel (see scanRecordsParallel) and written in order.
+   * In key order the index is walked (KeyIndex.iterator) and each record is copied from its block, a compressed
+   * block is decoded once for the keys it holds in a row. The bytes go to a FileChannel, or through gzip (fastest
+   * level) to <file name>.gz. Each char of a record is one byte of the CSV file it was put from (see openCSV), and
+   * the bytes are written unchanged, so the export has the encoding of that file.
+   *
+   * @param fcb        The file.
+   * @param isKeyOrder True to write the records in key order, false in the order of the data blocks.
+   * @param isGzip     True to compress the output with gzip.
+   * @return The number of bytes written before compression, or -1 if the file could not be written.
+   */
+  public long exportFCBFile(FCB fcb, boolean isKeyOrder, boolean isGzip) {
+    long startTime = System.nanoTime();
     // Ensure the ./download directory exists or create it
     File downloadDir = new File("./download");
     if (!downloadDir.exists()) {
       downloadDir.mkdirs();
     }
-    // Specify the path to the CSV file
-    String outputPath = "./download/" + fcb.getName();
-    int recordSize = 40;
+    Path outputPath = Paths.get("./download", fcb.getName() + (isGzip ? ".gz" : ""));
+
+    long[] totals = new long[2]; // records, bytes
+    try (OutputStream out = isGzip
+            ? new GZIPOutputStream(Files.newOutputStream(outputPath), EXPORT_BUFFER_BYTES) {
+                {
+                  def.setLevel(Deflater.BEST_SPEED); // the default level costs several times the export itself
+                }
+              }
+            : Channels.newOutputStream(FileChannel.open(outputPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+      if (isKeyOrder) {
+        ExportBuffer buffer = new ExportBuffer();
+        exportByKey(fcb, buffer, out);
+        buffer.writeTo(out);
+        totals[0] = buffer.records;
+        totals[1] = buffer.bytes;
+      } else {
+        scanRecordsParallel(fcb, ExportBuffer::new, buffer -> {
+          try {
+            buffer.writeTo(out);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          totals[0] += buffer.records;
+          totals[1] += buffer.bytes;
+        });
+      }
+    } catch (IOException | UncheckedIOException e) {
+      System.out.println("An error occurred while exporting " + fcb.getName() + ": " + e.getMessage());
+      return -1;
+    }
+
+    long nanos = Math.max(1, System.nanoTime() - startTime);
+    System.out.printf("Exported %d records of %s (%.1f MB) to %s in %d ms, %.1f MB/s.%n", totals[0], fcb.getName(),
+            totals[1] / 1e6, outputPath, nanos / 1_000_000, totals[1] / 1e6 / (nanos / 1e9));
+    return totals[1];
+  }
+
+  // copies the records to the buffer in key order, writing the buffer out whenever it is full
+  private void exportByKey(FCB fcb, ExportBuffer buffer, OutputStream out) throws IOException {
+    char[] slots = new char[RECORD_LENGTH * blockSize]; // a decoded block, a record takes at least 1 char
+    long slotsBlock = -1; // the address of the decoded block
+    Iterator<KeyPointer> keys = openIndex(fcb).iterator(Long.MIN_VALUE);
+    while (keys.hasNext()) {
+      DataBlockPointer dbp = new DataBlockPointer(keys.next().getPointer());
+      char[] content = pfsList.get(dbp.getPfsNumber()).getBlock(dbp.getBlockNumber());
+      int offset = dbp.getRecordNumber() * RECORD_LENGTH;
+      if (PFS.isCompressedBlock(content)) {
+        long address = dbp.getAddress() >>> 16;
+        if (address != slotsBlock) {
+          decodeSlots(content, slots);
+          slotsBlock = address;
+        }
+        content = slots;
+      }
+      if (offset + RECORD_LENGTH <= content.length && !isBlankRecord(content, offset)) {
+        buffer.accept(content, offset);
+      }
+      if (buffer.length >= EXPORT_BUFFER_BYTES) {
+        buffer.writeTo(out);
+      }
+    }
+  }
+
+  // decodes the records of a compressed block into 40-char slots, in the order of their record numbers
+  private void decodeSlots(char[] content, char[] slots) {
+    RecordDictionary dictionary = getDictionary(new String(content, 1, BlockPointer.LENGTH));
+    char[] decoded = new char[RECORD_LENGTH];
+    int start = 1 + BlockPointer.LENGTH;
+    int slot = 0;
+    long previousKey = -1;
+    for (int i = start; i < blockSize - BlockPointer.LENGTH && slot * RECORD_LENGTH < slots.length; i++) {
+      if (content[i] == RecordDictionary.RECORD_SEPARATOR) {
+        previousKey = dictionary.decodeInto(content, start, i - start, previousKey, decoded);
+        if (i > start) {
+          System.arraycopy(decoded, 0, slots, slot * RECORD_LENGTH, RECORD_LENGTH);
+        } else {
+          Arrays.fill(slots, slot * RECORD_LENGTH, (slot + 1) * RECORD_LENGTH, ' ');
+        }
+        slot++;
+        start = i + 1;
+      }
+    }
+  }
+
+  // the exported lines of one scanned range, or the next part of an export in key order
+  private static class ExportBuffer implements ObjIntConsumer<char[]> {
+    private byte[] lines = new byte[1 << 14];
+    private int length;
+    private long records;
+    private long bytes; // written out
+
+    @Override
+    public void accept(char[] record, int offset) {
+      int end = RecordFilter.trimmedEnd(record, offset);
+      if (length + (end - offset) + 1 > lines.length) {
+        lines = Arrays.copyOf(lines, Math.max(2 * lines.length, length + (end - offset) + 1));
+      }
+      // a record holds the bytes of its CSV line, one per char
+      for (int i = offset; i < end; i++) {
+        lines[length++] = (byte) record[i];
+      }
+      lines[length++] = '\n';
+      records++;
+    }
+
+    private void writeTo(OutputStream out) throws IOException {
+      out.write(lines, 0, length);
+      bytes += length;
+      length = 0;
+    }
+  }
 
+  /**
+   * Streams the records of a file in chain order. A plain record is passed in place in its block, a compressed
+   * record is decoded into a buffer which is reused for the next one, so no String is created per record.
+   * Blank slots are skipped. The visitor must not keep or change the buffer.
+   *
+   * @param fcb     The file.
+   * @param visitor Called with a buffer and the offset of each 40-char record in it.
+   * @return The number of data blocks read.
+   */
+  public int scanRecords(FCB fcb, ObjIntConsumer<char[]> visitor) {
+    char[] decoded = new char[RECORD_LENGTH];
+    int blocks = 0;
     String currBPStr = fcb.getDataStartBlock();
+    while (isBlockPointer(currBPStr)) {
+      BlockPointer currBP = new BlockPointer(currBPStr);
+      char[] content = this.pfsList.get(currBP.getPfsNumber()).getBlock(currBP.getBlockNumber());
+      blocks++;
+      scanBlock(content, decoded, visitor);
+      currBPStr = new String(content, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    return blocks;
+  }
 
-    char[] content ;
-    String nextPointer ;
+  /**
+   * Streams the records of a file on several threads. The data chain is cut into ranges of consecutive blocks of
+   * the chain (at most SCAN_RANGE_BLOCKS each) without reading the data blocks: from the zone map of the file, or
+   * from the entries of the data blocks in the index of a clustered file. Each range is scanned by its own task with
+   * its own visitor on the scan workers of the database, and the calling thread merges the visitors of the finished
+   * ranges in chain order. The tasks read their blocks ahead with PFS.readBlocksUnlocked, so they do not wait for
+   * each other on the PFS monitors. At most SCAN_WINDOW_BLOCKS blocks are handed out and not merged yet, which
+   * bounds the visitors waiting to be merged. A file with neither is scanned on the calling thread (scanRecords),
+   * and with a single core the ranges are scanned on the calling thread.
+   *
+   * @param fcb      The file.
+   * @param visitors Creates the visitor of one range, see scanRecords.
+   * @param merger   Called with the visitor of each range once it is scanned, in chain order.
+   * @return The number of data blocks read.
+   */
+  public <V extends ObjIntConsumer<char[]>> int scanRecordsParallel(FCB fcb, Supplier<V> visitors,
+                                                                    Consumer<V> merger) {
+    return scanRecordsParallel(fcb, Long.MIN_VALUE, Long.MAX_VALUE, visitors, merger);
+  }
 
-    try (FileWriter writer = new FileWriter(outputPath)) {
-      while (!currBPStr.equals("9999999")) {
-        BlockPointer currBP = new BlockPointer(currBPStr);
-        content = this.pfsList.get(currBP.getPfsNumber()).getContent()[currBP.getBlockNumber()];
-        nextPointer = new String(content, blockSize - 7, 7);
-        // extract each 40 block and write to a .csv file to ./download
+  /**
+   * Streams the records of a file which could have a key in a range on several threads, see scanRecordsParallel.
+   * If the file has a zone map, the ranges are the runs of zones whose keys could be in the range, and the rest of
+   * the chain is not read. A clustered file is read from the data block of the first key of the range to the block
+   * of its last key. The visitors still see every record of those blocks, they have to check the key.
+   *
+   * @param fcb      The file.
+   * @param fromKey  The smallest key of the range.
+   * @param toKey    The largest key of the range.
+   * @param visitors Creates the visitor of one range, see scanRecords.
+   * @param merger   Called with the visitor of each range once it is scanned, in chain order.
+   * @return The number of data blocks read.
+   */
+  public <V extends ObjIntConsumer<char[]>> int scanRecordsParallel(FCB fcb, long fromKey, long toKey,
+                                                                    Supplier<V> visitors, Consumer<V> merger) {
+    boolean isClustered = fcb.getIndexType() == FCB.CLUSTERED_INDEX;
+    if (!isBlockPointer(fcb.getZoneMapStart()) && !isClustered) {
+      V visitor = visitors.get();
+      int blocks = scanRecords(fcb, visitor);
+      merger.accept(visitor);
+      return blocks;
+    }
+    boolean isWholeFile = fromKey == Long.MIN_VALUE && toKey == Long.MAX_VALUE;
+    ScanRanges<V> ranges = new ScanRanges<>(this.scanWorkers, visitors, merger);
+    try {
+      if (!isClustered) {
+        // the zones of the range, adjacent zones are scanned together
+        ZoneMap zones = ZoneMap.read(this, fcb.getZoneMapStart());
+        String rangeStart = null;
+        int rangeSize = 0;
+        for (int zone = 0; zone < zones.size(); zone++) {
+          boolean isInRange = isWholeFile || zones.overlaps(zone, fromKey, toKey);
+          if (rangeSize > 0 && (!isInRange || rangeSize + zones.getBlocks(zone) > SCAN_RANGE_BLOCKS)) {
+            ranges.submit(rangeStart, rangeSize);
+            rangeSize = 0;
+          }
+          if (isInRange) {
+            if (rangeSize == 0) {
+              rangeStart = zones.getStart(zone);
+            }
+            rangeSize += zones.getBlocks(zone);
+          }
+        }
+        if (rangeSize > 0) {
+          ranges.submit(rangeStart, rangeSize);
+        }
+      } else {
+        // the data blocks of a clustered file are the entries of its index, in chain order
+        Iterator<String> leaves = ((ClusteredIndex) openIndex(fcb)).leaves(fromKey, toKey);
+        String rangeStart = null;
+        int rangeSize = 0;
+        while (leaves.hasNext()) {
+          String leafPtr = leaves.next();
+          if (rangeSize == SCAN_RANGE_BLOCKS) {
+            ranges.submit(rangeStart, rangeSize);
+            rangeSize = 0;
+          }
+          if (rangeSize == 0) {
+            rangeStart = leafPtr;
+          }
+          rangeSize++;
+        }
+        if (rangeSize > 0) {
+          ranges.submit(rangeStart, rangeSize);
+        }
+      }
+      ranges.finish();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      System.err.println("An error occurred while scanning the file: " + e.getCause());
+    } finally {
+      // without an interrupt, see PFS.readBlocksUnlocked
+      ranges.cancel();
+    }
+    return ranges.blocks;
+  }
 
+  // the ranges of one scan: hands them to the workers and merges their visitors in the order they were submitted
+  private class ScanRanges<V extends ObjIntConsumer<char[]>> {
+    private final ExecutorService workers; // null to scan on the calling thread
+    private final Supplier<V> visitors;
+    private final Consumer<V> merger;
+    private final Deque<Future<V>> pending = new ArrayDeque<>();
+    private final Deque<Integer> pendingSizes = new ArrayDeque<>();
+    private int pendingBlocks;
+    private int blocks;
+
+    private ScanRanges(ExecutorService workers, Supplier<V> visitors, Consumer<V> merger) {
+      this.workers = workers;
+      this.visitors = visitors;
+      this.merger = merger;
+    }
 
-        // Process each record
-        for (int i = 0; i < recordSize*6; i += 40) {
-          // Extract each record as a String, trimming trailing spaces
-          String record = new String(content, i, 40);
-          if(record.trim() == "") break;
-          // Write the record to the file, appending a new line
-          writer.write(record + "\n");
+    // scans size blocks of the chain from firstPtr
+    private void submit(String firstPtr, int size) throws InterruptedException, ExecutionException {
+      V visitor = visitors.get();
+      FutureTask<V> range = new FutureTask<>(() -> {
+        char[] decoded = new char[RECORD_LENGTH];
+        // the blocks read ahead, the blocks of a range are mostly consecutive since they are allocated in regions
+        char[][] ahead = new char[0][];
+        int aheadPFS = -1;
+        int aheadStart = 0;
+        String ptr = firstPtr;
+        for (int i = 0; i < size && isBlockPointer(ptr); i++) {
+          BlockPointer bp = new BlockPointer(ptr);
+          int offset = bp.getBlockNumber() - aheadStart;
+          if (bp.getPfsNumber() != aheadPFS || offset < 0 || offset >= ahead.length) {
+            aheadPFS = bp.getPfsNumber();
+            aheadStart = bp.getBlockNumber();
+            ahead = pfsList.get(aheadPFS).readBlocksUnlocked(aheadStart, Math.min(size - i, PFS.READ_AHEAD_BLOCKS));
+            offset = 0;
+          }
+          char[] content = ahead[offset];
+          scanBlock(content, decoded, visitor);
+          ptr = new String(content, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
         }
+        return visitor;
+      });
+      if (workers == null) {
+        range.run();
+      } else {
+        workers.execute(range);
+      }
+      pending.add(range);
+      pendingSizes.add(size);
+      pendingBlocks += size;
+      blocks += size;
+      // merge the oldest ranges before handing out more blocks than the caches should hold
+      while (pendingBlocks > SCAN_WINDOW_BLOCKS) {
+        merger.accept(pending.remove().get());
+        pendingBlocks -= pendingSizes.remove();
+      }
+    }
+
+    private void finish() throws InterruptedException, ExecutionException {
+      while (!pending.isEmpty()) {
+        merger.accept(pending.remove().get());
+      }
+    }
+
+    // drops the ranges which are not merged after a failure, a running task finishes its range
+    private void cancel() {
+      for (Future<V> range : pending) {
+        range.cancel(false);
+      }
+      pending.clear();
+    }
+  }
 
-        // update pointer
-        currBPStr = nextPointer;
+  private void scanBlock(char[] content, char[] decoded, ObjIntConsumer<char[]> visitor) {
+    if (PFS.isCompressedBlock(content)) {
+      // {marker, dictionary pointer, record0 RS record1 RS ... -> block pointer}
+      RecordDictionary dictionary = getDictionary(new String(content, 1, BlockPointer.LENGTH));
+      int start = 1 + BlockPointer.LENGTH;
+      long previousKey = -1;
+      for (int i = start; i < blockSize - BlockPointer.LENGTH; i++) {
+        if (content[i] == RecordDictionary.RECORD_SEPARATOR) {
+          previousKey = dictionary.decodeInto(content, start, i - start, previousKey, decoded);
+          if (i > start) {
+            visitor.accept(decoded, 0);
+          }
+          start = i + 1;
+        }
+      }
+    } else {
+      for (int i = 0; i < RECORD_LENGTH * getRecordsPerBlock(); i += RECORD_LENGTH) {
+        if (!isBlankRecord(content, i)) {
+          visitor.accept(content, i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the records of a file which match a filter, one per line without the trailing spaces, in chain order.
+   * The ranges of the file are filtered in parallel (see scanRecordsParallel) on the records in place, only the
+   * matches are copied.
+   *
+   * @param fcb    The file.
+   * @param filter The predicates, RecordFilter.ALL for every record.
+   * @param out    Where the matches are written, the caller flushes it.
+   * @return The number of matches.
+   */
+  public long scanFCBFile(FCB fcb, RecordFilter filter, Writer out) {
+    long startTime = System.nanoTime();
+    for (SecondaryIndex secondary : getSecondaryIndexes(fcb.getName())) {
+      String token = filter.indexToken(secondary.getColumn());
+      if (token != null) {
+        return scanBySecondaryIndex(secondary, token, filter, out, startTime);
       }
+    }
+    long[] counts = new long[2]; // scanned, matched
+    long[] keyBounds = filter.keyBounds();
+    int blocks = scanRecordsParallel(fcb, keyBounds[0], keyBounds[1], () -> new ScanMatches(filter), matches -> {
+      counts[0] += matches.scanned;
+      counts[1] += matches.matched;
+      try {
+        out.append(matches.lines);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    try {
+      out.write(counts[1] + " of " + counts[0] + " records matched, " + blocks + " blocks scanned in "
+              + (System.nanoTime() - startTime) / 1_000_000 + " ms.\n");
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new UncheckedIOException(e);
     }
+    return counts[1];
+  }
 
+  // the records found by a secondary index which match the filter, in the order of the index
+  private long scanBySecondaryIndex(SecondaryIndex secondary, String token, RecordFilter filter, Writer out,
+                                    long startTime) {
+    List<String> pointers = secondary.lookup(this, token);
+    long matched = 0;
+    try {
+      for (String pointer : pointers) {
+        DataBlockPointer dbp = new DataBlockPointer(pointer);
+        String row = getRecordbyDataBlockPointer(dbp.getPfsNumber(), dbp.getBlockNumber(), dbp.getRecordNumber());
+        if (filter.matches(toRecord(row), 0)) {
+          matched++;
+          out.write(row.trim());
+          out.write('\n');
+        }
+      }
+      out.write(matched + " of " + pointers.size() + " records matched through the index on column "
+              + secondary.getColumn() + " in " + (System.nanoTime() - startTime) / 1_000_000 + " ms.\n");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return matched;
   }
 
-  public void deleteFCBDataBlock(FCB fcb) {
-    String currBPStr = fcb.getDataStartBlock();
+  /**
+   * Builds a secondary index on a column of a file, see SecondaryIndex. The data chain is read once, and the
+   * entries are sorted and written as posting lists and a tree bottom up like the index of put (IndexBuilder).
+   *
+   * @param fcb    The file.
+   * @param column The column, from 2. Column 1 is the key, which the index of the file already covers.
+   * @return False if the column already has an index.
+   */
+  public boolean createSecondaryIndex(FCB fcb, int column) {
+    long startTime = System.nanoTime();
+    for (SecondaryIndex secondary : getSecondaryIndexes(fcb.getName())) {
+      if (secondary.getColumn() == column) {
+        System.out.println("Column " + column + " of " + fcb.getName() + " already has an index.");
+        return false;
+      }
+    }
 
-    char[] content ;
-    String nextPointer ;
+    // one entry for each token of each record
+    List<KeyPointer> entries = new ArrayList<>();
+    String ptr = fcb.getDataStartBlock();
+    while (isBlockPointer(ptr)) {
+      BlockPointer bp = new BlockPointer(ptr);
+      PFS pfs = this.pfsList.get(bp.getPfsNumber());
+      char[] content = pfs.getBlock(bp.getBlockNumber());
+      List<char[]> records = new ArrayList<>();
+      if (PFS.isCompressedBlock(content)) {
+        for (String record : pfs.extractRecordsFromBlock(content)) {
+          records.add(toRecord(record));
+        }
+      } else {
+        for (int i = 0; i < getRecordsPerBlock(); i++) {
+          records.add(Arrays.copyOfRange(content, i * RECORD_LENGTH, (i + 1) * RECORD_LENGTH));
+        }
+      }
+      for (int slot = 0; slot < records.size(); slot++) {
+        long key = RecordDictionary.parseKey(records.get(slot));
+        if (key < 0) {
+          continue; // an empty slot
+        }
+        String pointer = new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), slot).getPtrString();
+        for (long hash : SecondaryIndex.tokenHashes(records.get(slot), 0, column)) {
+          entries.add(new KeyPointer(hash << 32 | (key & 0xFFFFFFFFL), pointer));
+        }
+      }
+      ptr = new String(content, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
 
-    while (!currBPStr.equals("9999999")) {
-      BlockPointer currBP = new BlockPointer(currBPStr);
-      content = this.pfsList.get(currBP.getPfsNumber()).getContent()[currBP.getBlockNumber()];
-      nextPointer = new String(content, blockSize - 7, 7);
+    KeyPointer[] sorted = entries.toArray(new KeyPointer[0]);
+    Arrays.parallelSort(sorted, Comparator.comparingLong(KeyPointer::getKey));
+    SecondaryIndex secondary = new SecondaryIndex(fcb.getName(), column);
+    if (sorted.length > 0) {
+      secondary.build(this, sorted);
+    }
+    writeSecondaryIndexEntry(secondary);
+    this.secondaryIndexes.computeIfAbsent(fcb.getName(), name -> new CopyOnWriteArrayList<>()).add(secondary);
+    fcb.setSize(fcb.getSize() + secondary.getBlocks());
+    fcbCatalog.put(fcb);
+    flush(this.pfsList);
+    System.out.println("Indexed " + sorted.length + " values of column " + column + " of " + fcb.getName() + " in "
+            + secondary.getBlocks() + " blocks in " + (System.nanoTime() - startTime) / 1_000_000 + " ms.");
+    return true;
+  }
 
-      // Set currBPStr block to empty
-      this.pfsList.get(currBP.getPfsNumber()).setContentBlockEmpty(currBP.getBlockNumber());
+  // the secondary indexes of a file, none if it has no index
+  public List<SecondaryIndex> getSecondaryIndexes(String fileName) {
+    return this.secondaryIndexes.getOrDefault(fileName, Collections.emptyList());
+  }
 
-      // update pointer
-      currBPStr = nextPointer;
+  // loads the index directory, the indexes of removed files are reclaimed with the files
+  private void loadSecondaryIndexes() {
+    this.secondaryIndexes.clear();
+    for (SecondaryIndex secondary : SecondaryIndex.readDirectory(this, getIndexDirectoryStart())) {
+      if (!secondary.isDeleted()) {
+        this.secondaryIndexes.computeIfAbsent(secondary.getFileName(), name -> new CopyOnWriteArrayList<>())
+                .add(secondary);
+      }
     }
   }
 
-  public void deleteFCBFile(FCB fcb) {
-    deleteFCBDataBlock(fcb);
-    // deleteFCBIndexBlock(fcb);
+  // the first block of the index directory, NULL_PTR if no index was created yet
+  public String getIndexDirectoryStart() {
+    String head = getFirstPFS().getIndexDirectoryStart();
+    return isBlockPointer(head) ? head : BlockPointer.NULL_PTR;
+  }
 
-    // delete FCB metadata and update size
-    // deleteFCBinSuperBlock(fcb);
-    for(int i=0; i< this.pfsList.size(); i++) {
-      this.pfsList.get(i).writeContentToFile();
+  // writes the entry of a secondary index, and points the superblock to a new directory block
+  private void writeSecondaryIndexEntry(SecondaryIndex secondary) {
+    String head = getIndexDirectoryStart();
+    String newHead = secondary.write(this, head);
+    if (!newHead.equals(head)) {
+      getFirstPFS().updateSuperBlockIndexDirectory(newHead);
     }
   }
-  public Queue<String> cleanAll(FCB fcb) {
-    String indexStartBlock = fcb.getIndexStartBlock();
 
-    int indexStartBlockNumber = Integer.parseInt(indexStartBlock);
-    String blockNumber = fcb.getBlockNumber();
-    Queue<String> queue = new LinkedList<>();
-//    queue.add(indexStartBlockNumber);
-    queue.add(indexStartBlock);
-//    System.out.println("first q" +queue);
+  // adds or deletes the entries of a record in the secondary indexes of its file
+  private void indexRecord(FCB fcb, char[] record, String pointer, boolean isAdd) {
+    long key = RecordDictionary.parseKey(record);
+    for (SecondaryIndex secondary : getSecondaryIndexes(fcb.getName())) {
+      if (isAdd) {
+        secondary.addRecord(this, record, key, pointer);
+      } else {
+        secondary.removeRecord(this, record, key, pointer);
+      }
+    }
+  }
 
+  // the matches of one scanned range
+  private static class ScanMatches implements ObjIntConsumer<char[]> {
+    private final RecordFilter filter;
+    private final StringBuilder lines = new StringBuilder();
+    private long scanned;
+    private long matched;
 
-//    // clean the data block
-    while (!queue.isEmpty()) {
-//      int currentBlockNumber = queue.peek();
-      String currentBlockStr = queue.peek();
+    private ScanMatches(RecordFilter filter) {
+      this.filter = filter;
+    }
 
+    @Override
+    public void accept(char[] record, int offset) {
+      scanned++;
+      if (!filter.matches(record, offset)) {
+        return;
+      }
+      matched++;
+      int end = offset + RECORD_LENGTH;
+      while (end > offset && record[end - 1] <= ' ') {
+        end--;
+      }
+      lines.append(record, offset, end - offset).append('\n');
+    }
+  }
 
-      Queue<String> childPointers = processAllIndexBlocks(currentBlockStr);
-//            System.out.println("childPointers" + childPointers);
-      int currentBlockNumber = Integer.parseInt(currentBlockStr.substring(3));
-      int pfsNumber = Integer.parseInt(currentBlockStr.substring(0, 3));
-//      System.out.println("currentBlockNumber" + currentBlockNumber);
-//      System.out.println("pfsNumber" + pfsNumber);
-      pfsList.get(pfsNumber).updateBitMap(currentBlockNumber, false);
-//      // overwrite the block with empty char array
-//      Arrays.fill(pfsList.get(pfsNumber).getContent()[currentBlockNumber], ' ');
-//      Arrays.fill(pfsContentList.get(pfsNumber)[currentBlockNumber], ' ');
-      Arrays.fill(this.pfsList.get(pfsNumber).getContent()[currentBlockNumber], ' ');
+  /**
+   * Opens a cursor over the records of a file in key order, see RecordCursor.
+   *
+   * @param fcb     The file.
+   * @param fromKey The first key, Long.MIN_VALUE for the whole file.
+   * @return The cursor.
+   */
+  public RecordCursor openCursor(FCB fcb, long fromKey) {
+    return RecordCursor.byKey(this, fcb, fromKey);
+  }
 
-      queue.addAll(childPointers);
-      queue.poll();
-//            System.out.println("queue" + queue);
+  /**
+   * Opens a cursor over the records of a file in the order of its data blocks, see RecordCursor.
+   *
+   * @param fcb The file.
+   * @return The cursor.
+   */
+  public RecordCursor openChainCursor(FCB fcb) {
+    return RecordCursor.byChain(this, fcb, null, 0);
+  }
+
+  /**
+   * Opens a cursor where a previous one stopped.
+   *
+   * @param fcb         The file.
+   * @param resumeToken A token from RecordCursor.getResumeToken().
+   * @return The cursor, or null if the token is not valid.
+   */
+  public RecordCursor openCursor(FCB fcb, String resumeToken) {
+    return RecordCursor.resume(this, fcb, resumeToken);
+  }
 
+  /**
+   * Joins two files on their key and writes the joined rows in key order: the record of the first file followed
+   * by the columns of the second after its key. Both indexes are streamed (see IndexTree.iterator), so neither
+   * file is held in memory.
+   *
+   * Usually a sort-merge join: the keys of both indexes are walked in order side by side, which reads every index
+   * block of both once. When one file is much smaller, so its keys times the height of the larger index are fewer
+   * than the blocks of the larger index, the larger one is probed once per key of the smaller one instead
+   * (index nested loop). A hash index has no key order: if the larger file has one it is always probed, about one
+   * block per probe, and if the smaller file has one its keys are read bucket by bucket into an external sort
+   * (KeyPointerSorter) and streamed from there. Every way the rows come out in key order.
+   *
+   * @param first  The file whose record comes first in a row.
+   * @param second The other file.
+   * @param out    Where the rows are written, the caller flushes it.
+   * @return The number of rows joined.
+   */
+  public long joinFCBFiles(FCB first, FCB second, Writer out) {
+    long startTime = System.nanoTime();
+    KeyIndex firstIndex = openIndex(first);
+    KeyIndex secondIndex = openIndex(second);
+    boolean isFirstSmaller = first.getKeyCount() <= second.getKeyCount();
+    KeyIndex smallerIndex = isFirstSmaller ? firstIndex : secondIndex;
+    KeyIndex largerIndex = isFirstSmaller ? secondIndex : firstIndex;
+    long smaller = Math.min(first.getKeyCount(), second.getKeyCount());
+    long larger = Math.max(first.getKeyCount(), second.getKeyCount());
+    // a probe reads a block per level, a merge about larger / nodeSize leaves of the larger index
+    int height = (int) Math.ceil(Math.log(larger + 1.0) / Math.log(getIndexNodeSize() + 1.0));
+    // a hash index has no key order: the larger side is probed if it has one, the smaller one is sorted externally
+    boolean isNestedLoop = largerIndex instanceof HashIndex || smaller * height * getIndexNodeSize() < larger;
+
+    long rows = 0;
+    try (KeyPointerSorter sorter = smallerIndex instanceof HashIndex
+            ? new KeyPointerSorter(KeyPointerSorter.DEFAULT_BUDGET) : null) {
+      Iterator<KeyPointer> smallerKeys;
+      if (sorter != null) {
+        Iterator<KeyPointer> entries = ((HashIndex) smallerIndex).entries();
+        while (entries.hasNext()) {
+          sorter.add(entries.next());
+        }
+        smallerKeys = sorter.sorted();
+      } else {
+        smallerKeys = smallerIndex.iterator(Long.MIN_VALUE);
+      }
+      if (isNestedLoop) {
+        while (smallerKeys.hasNext()) {
+          KeyPointer keyPointer = smallerKeys.next();
+          String match = largerIndex.search(keyPointer.getKey());
+          if (match != null) {
+            writeJoinedRow(out, isFirstSmaller ? keyPointer.getPointer() : match,
+                    isFirstSmaller ? match : keyPointer.getPointer());
+            rows++;
+          }
+        }
+      } else {
+        Iterator<KeyPointer> left = isFirstSmaller ? smallerKeys : firstIndex.iterator(Long.MIN_VALUE);
+        Iterator<KeyPointer> right = isFirstSmaller ? secondIndex.iterator(Long.MIN_VALUE) : smallerKeys;
+        KeyPointer leftKey = left.hasNext() ? left.next() : null;
+        KeyPointer rightKey = right.hasNext() ? right.next() : null;
+        // the keys of an index are unique, so a key matches at most once
+        while (leftKey != null && rightKey != null) {
+          if (leftKey.getKey() < rightKey.getKey()) {
+            leftKey = left.hasNext() ? left.next() : null;
+          } else if (leftKey.getKey() > rightKey.getKey()) {
+            rightKey = right.hasNext() ? right.next() : null;
+          } else {
+            writeJoinedRow(out, leftKey.getPointer(), rightKey.getPointer());
+            rows++;
+            leftKey = left.hasNext() ? left.next() : null;
+            rightKey = right.hasNext() ? right.next() : null;
+          }
+        }
+      }
+      out.write(rows + " rows joined by " + (isNestedLoop ? "index nested loop" : "sort-merge") + ", "
+              + (firstIndex.getBlocksRead() + secondIndex.getBlocksRead()) + " index blocks read in "
+              + (System.nanoTime() - startTime) / 1_000_000 + " ms.\n");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    try {
-      for (PFS pfs : pfsList) {
-        pfs.writeCharArrayToFile();
+    return rows;
+  }
+
+  // the first record, then the second without its key
+  private void writeJoinedRow(Writer out, String firstPtr, String secondPtr) throws IOException {
+    DataBlockPointer firstDbp = new DataBlockPointer(firstPtr);
+    DataBlockPointer secondDbp = new DataBlockPointer(secondPtr);
+    String firstRecord = getRecordbyDataBlockPointer(firstDbp.getPfsNumber(), firstDbp.getBlockNumber(),
+            firstDbp.getRecordNumber()).trim();
+    String secondRecord = getRecordbyDataBlockPointer(secondDbp.getPfsNumber(), secondDbp.getBlockNumber(),
+            secondDbp.getRecordNumber()).trim();
+    out.write(firstRecord);
+    int comma = secondRecord.indexOf(',');
+    if (comma >= 0) {
+      out.write(secondRecord, comma, secondRecord.length() - comma);
+    }
+    out.write('\n');
+  }
+
+  /**
+   * Counts the records of a file, or the records which match a filter, and prints the count. Without a filter
+   * the count comes from the FCB, which keeps the number of keys in the index. Otherwise the data blocks are
+   * scanned in parallel (see scanRecordsParallel) and the records are counted in place.
+   *
+   * @param fcb         The file.
+   * @param filter      The predicates, RecordFilter.ALL for every record.
+   * @param groupColumn The column to group by (see RecordFilter.parseColumn), -1 for a single count.
+   * @return The number of records counted.
+   */
+  public long countFCBFile(FCB fcb, RecordFilter filter, int groupColumn) {
+    long startTime = System.nanoTime();
+    if (filter == RecordFilter.ALL && groupColumn == -1) {
+      System.out.println(fcb.getKeyCount() + " records in " + fcb.getName() + " (from the FCB).");
+      return fcb.getKeyCount();
+    }
+
+    long[] counts = new long[3]; // counted, records without the group column, blocks
+    GroupCounter groups = new GroupCounter();
+    long[] keyBounds = filter.keyBounds();
+    counts[2] = scanRecordsParallel(fcb, keyBounds[0], keyBounds[1], () -> new RecordGroups(filter, groupColumn),
+            range -> {
+              counts[0] += range.counted;
+              counts[1] += range.missing;
+              groups.addAll(range.groups);
+            });
+    long millis = (System.nanoTime() - startTime) / 1_000_000;
+
+    if (groupColumn == -1) {
+      System.out.println(counts[0] + " records matched, " + counts[2] + " blocks scanned in " + millis + " ms.");
+      return counts[0];
+    }
+    // the largest groups first
+    Integer[] order = new Integer[groups.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong((Integer group) -> -groups.getCount(group))
+            .thenComparing(groups::getValue));
+    for (int group : order) {
+      String value = groups.getValue(group);
+      System.out.printf("%10d  %s%n", groups.getCount(group), value.isEmpty() ? "(empty)" : value);
+    }
+    if (counts[1] > 0) {
+      System.out.printf("%10d  (no column %d)%n", counts[1], groupColumn);
+    }
+    System.out.println(counts[0] + " records in " + groups.size() + " groups, " + counts[2] + " blocks scanned in "
+            + millis + " ms.");
+    return counts[0];
+  }
+
+  /**
+   * Prints the smallest or the largest key of a file. Only the index is read: the first key of its leftmost
+   * leaf or the last key of its rightmost leaf.
+   *
+   * @param fcb     The file.
+   * @param isFirst True for the smallest key, false for the largest.
+   * @return The KeyPointer of the key, or null if the file is empty.
+   */
+  public KeyPointer findEdgeKey(FCB fcb, boolean isFirst) {
+    KeyIndex index = openIndex(fcb);
+    KeyPointer keyPointer = isFirst ? index.first() : index.last();
+    if (keyPointer == null) {
+      System.out.println(fcb.getName() + " has no records.");
+      return null;
+    }
+    System.out.println((isFirst ? "min" : "max") + " key of " + fcb.getName() + ": " + keyPointer.getKey()
+            + " (" + index.getBlocksRead() + " index blocks read)");
+    return keyPointer;
+  }
+
+  // the counts of one scanned range, by the value of a column if groupColumn is not -1
+  private static class RecordGroups implements ObjIntConsumer<char[]> {
+    private final RecordFilter filter;
+    private final int groupColumn;
+    private final GroupCounter groups = new GroupCounter();
+    private long counted;
+    private long missing; // records without the group column
+
+    private RecordGroups(RecordFilter filter, int groupColumn) {
+      this.filter = filter;
+      this.groupColumn = groupColumn;
+    }
+
+    @Override
+    public void accept(char[] record, int offset) {
+      if (!filter.matches(record, offset)) {
+        return;
       }
-//      this.pfsList.get(0).writeCharArrayToFile();
-//      System.out.println("File updated successfully.");
+      counted++;
+      if (groupColumn == -1) {
+        return;
+      }
+      int end = RecordFilter.trimmedEnd(record, offset);
+      long bounds = groupColumn == 0 ? (long) offset << 32 | end
+              : RecordFilter.columnBounds(record, offset, end, groupColumn);
+      if (bounds < 0) {
+        missing++;
+      } else {
+        groups.add(record, (int) (bounds >>> 32), (int) bounds, 1);
+      }
+    }
+  }
+
+  private static boolean isBlankRecord(char[] content, int offset) {
+    for (int i = offset; i < offset + RECORD_LENGTH; i++) {
+      if (content[i] > ' ') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Appends the rows of a CSV file to an existing file. The new data blocks are linked after the last data block
+   * and the new keys are inserted into the persisted index, so the cost depends on the number of new rows only.
+   * A compressed file is appended in compressed blocks with its own dictionary. Rows whose key is already in the
+   * file are skipped.
+   *
+   * @param fcb     The file to append to.
+   * @param csvName The name of the CSV file in ./csvs.
+   */
+  public void appendFCBFile(FCB fcb, String csvName) {
+    System.out.println("Appending " + csvName + " to " + fcb.getName() + "...");
+    char[][] data;
+    try {
+      data = convertCSVToCharArray("./csvs/" + csvName);
     } catch (IOException e) {
-      System.err.println("An error occurred while writing the file: " + e.getMessage());
+      System.err.println("An error occurred while reading the file: " + e.getMessage());
+      return;
+    }
+
+    // keep the rows with a new key
+    KeyIndex index = openIndex(fcb);
+    Set<Long> newKeys = new HashSet<>();
+    List<char[]> rows = new ArrayList<>(data.length);
+    for (char[] record : data) {
+      long key = RecordDictionary.parseKey(record);
+      if (key >= 0 && newKeys.add(key) && index.search(key) == null) {
+        rows.add(record);
+      }
     }
-    int blockLeft = 0;
-    for (PFS pfs : pfsList) {
-      blockLeft += pfs.getBlockLeft();
+    if (rows.size() < data.length) {
+      System.out.println("Skipped " + (data.length - rows.size()) + " rows without a key or with a key already in "
+              + fcb.getName() + ".");
+    }
+    if (rows.isEmpty()) {
+      return;
+    }
+    if (fcb.getIndexType() == FCB.CLUSTERED_INDEX) {
+      // each row goes to the data block of its key
+      int sizeBefore = fcb.getSize();
+      BloomFilter filter = this.bloomFilters.get(fcb.getName());
+      for (char[] row : rows) {
+        String dataBlockPtr = insertIntoLeaf(fcb, (ClusteredIndex) index, row);
+        index.insert(new KeyPointer(RecordDictionary.parseKey(row), dataBlockPtr));
+        indexRecord(fcb, row, dataBlockPtr, true);
+        if (filter != null) {
+          filter.add(RecordDictionary.parseKey(row));
+        }
+      }
+      finishRecordChange(fcb, index);
+      System.out.println("Appended " + rows.size() + " records in key order, " + (fcb.getSize() - sizeBefore)
+              + " blocks added.");
+      return;
     }
-//    System.out.println("empty blocks" + blockLeft);
 
-    return queue;
+    // the new blocks have the same layout as the last data block
+    String tailPtr = fcb.getDataEndBlock();
+    char[] tail = null;
+    if (isBlockPointer(tailPtr)) {
+      BlockPointer tailBP = new BlockPointer(tailPtr);
+      tail = this.pfsList.get(tailBP.getPfsNumber()).getBlock(tailBP.getBlockNumber());
+    }
+    List<char[]> blocks;
+    char[][] records = rows.toArray(new char[0][]);
+    if (tail != null && PFS.isCompressedBlock(tail)) {
+      String dictionaryPtr = new String(tail, 1, BlockPointer.LENGTH);
+      blocks = recordsToCompressedBlock(records, getDictionary(dictionaryPtr), dictionaryPtr);
+    } else {
+      blocks = recordsToBlock(records);
+    }
+
+    List<KeyPointer> keyPointerList = new ArrayList<>(rows.size());
+    List<String> dataStartNEndPtr = storeDataInPFSs(blocks, blocks.size(), keyPointerList);
+    if (tail != null) {
+      BlockPointer tailBP = new BlockPointer(tailPtr);
+      this.pfsList.get(tailBP.getPfsNumber()).updateBlockPointer(tailBP.getBlockNumber(), dataStartNEndPtr.get(0));
+    } else {
+      fcb.setDataStartBlock(dataStartNEndPtr.get(0));
+    }
+    fcb.setDataEndBlock(dataStartNEndPtr.get(1));
+    fcb.setSize(fcb.getSize() + blocks.size());
+    ZoneMap zones = new ZoneMap();
+    addZones(zones, dataStartNEndPtr.get(0), keyPointerList);
+    for (int zone = 0; zone < zones.size(); zone++) {
+      appendToZoneMap(fcb, zones.getStart(zone), zones.getBlocks(zone), zones.getMinKey(zone), zones.getMaxKey(zone));
+    }
+
+    BloomFilter filter = this.bloomFilters.get(fcb.getName());
+    Map<Long, char[]> rowsByKey = new HashMap<>();
+    if (!getSecondaryIndexes(fcb.getName()).isEmpty()) {
+      for (char[] row : rows) {
+        rowsByKey.put(RecordDictionary.parseKey(row), row);
+      }
+    }
+    for (KeyPointer keyPointer : keyPointerList) {
+      index.insert(keyPointer);
+      if (filter != null) {
+        filter.add(keyPointer.getKey());
+      }
+      if (rowsByKey.containsKey(keyPointer.getKey())) {
+        indexRecord(fcb, rowsByKey.get(keyPointer.getKey()), keyPointer.getPointer(), true);
+      }
+    }
+    finishRecordChange(fcb, index);
+    System.out.println("Appended " + rows.size() + " records in " + blocks.size() + " blocks.");
+  }
 
+  /**
+   * Inserts one record into a file. The record goes into a free slot of the last data block, or into a new
+   * data block linked after it, and its key is inserted into the persisted index.
+   * Only the changed data, index, bitmap and catalog blocks are written.
+   *
+   * @param fcb The file.
+   * @param row The CSV row, starting with its numeric key.
+   * @return False if the row has no key or the key is already in the file.
+   */
+  public boolean insertRecord(FCB fcb, String row) {
+    char[] record = toRecord(row);
+    long key = RecordDictionary.parseKey(record);
+    if (key < 0) {
+      System.out.println("A record has to start with a numeric key.");
+      return false;
+    }
+    KeyIndex index = openIndex(fcb);
+    if (index.search(key) != null) {
+      System.out.println("Key " + key + " already exists in " + fcb.getName() + ".");
+      return false;
+    }
+    String dataBlockPtr = fcb.getIndexType() == FCB.CLUSTERED_INDEX
+            ? insertIntoLeaf(fcb, (ClusteredIndex) index, record) : appendRecord(fcb, record);
+    index.insert(new KeyPointer(key, dataBlockPtr));
+    indexRecord(fcb, record, dataBlockPtr, true);
+    BloomFilter filter = this.bloomFilters.get(fcb.getName());
+    if (filter != null) {
+      filter.add(key);
+    }
+    finishRecordChange(fcb, index);
+    return true;
+  }
+
+  /**
+   * Replaces one record of a file in place. A compressed record which no longer fits in its block
+   * is moved to the end of the file and its index entry is pointed to the new place.
+   *
+   * @param fcb The file.
+   * @param key The key of the record.
+   * @param row The new CSV row, it has to keep the same key.
+   * @return False if the key is not in the file or the row has another key.
+   */
+  public boolean updateRecord(FCB fcb, long key, String row) {
+    char[] record = toRecord(row);
+    if (RecordDictionary.parseKey(record) != key) {
+      System.out.println("The row has to start with the key " + key + ".");
+      return false;
+    }
+    KeyIndex index = openIndex(fcb);
+    String dataBlockPtr = index.search(key);
+    if (dataBlockPtr == null) {
+      System.out.println("Can't find " + key);
+      return false;
+    }
+    DataBlockPointer dbp = new DataBlockPointer(dataBlockPtr);
+    indexRecord(fcb, toRecord(getRecordbyDataBlockPointer(dbp.getPfsNumber(), dbp.getBlockNumber(),
+            dbp.getRecordNumber())), dataBlockPtr, false);
+    indexRecord(fcb, record, dataBlockPtr, true);
+    writeRecord(fcb, index, dbp, new String(record));
+    finishRecordChange(fcb, index);
+    return true;
   }
 
-  public Queue<String> processAllIndexBlocks(String IndexBlockNumber) {
-    // extract all contents from pfsList
+  /**
+   * Deletes one record of a file. Its slot is cleared in place and its key is deleted from the persisted index,
+   * which is rebalanced. The slot is left empty, so the other records of the block keep their pointers.
+   *
+   * @param fcb The file.
+   * @param key The key of the record.
+   * @return False if the key is not in the file.
+   */
+  public boolean deleteRecord(FCB fcb, long key) {
+    KeyIndex index = openIndex(fcb);
+    String dataBlockPtr = index.search(key);
+    if (dataBlockPtr == null) {
+      System.out.println("Can't find " + key);
+      return false;
+    }
+    DataBlockPointer dbp = new DataBlockPointer(dataBlockPtr);
+    indexRecord(fcb, toRecord(getRecordbyDataBlockPointer(dbp.getPfsNumber(), dbp.getBlockNumber(),
+            dbp.getRecordNumber())), dataBlockPtr, false);
+    writeRecord(fcb, index, dbp, "");
+    index.delete(key);
+    finishRecordChange(fcb, index);
+    return true;
+  }
 
-//        }
-//    System.out.println("IndexBlockNumber" + IndexBlockNumber);
-//    Map<Integer, char[][]> pfsContents = new HashMap<>();
-    List<char[][]> pfsContentList = new ArrayList<>();
-    for (PFS pfs : pfsList) {
+  // truncate or pad a CSV row to one record, the same way as convertCSVToCharArray
+  private char[] toRecord(String row) {
+    return lineToRecord(row.trim());
+  }
 
-//      System.out.println("pfs" + pfs.getSequenceNumber() + "content" + Arrays.toString(content[15]));
+  // overwrite (or clear, with an empty record) the record at dbp
+  private void writeRecord(FCB fcb, KeyIndex index, DataBlockPointer dbp, String record) {
+    PFS pfs = this.pfsList.get(dbp.getPfsNumber());
+    char[] block = pfs.getBlock(dbp.getBlockNumber());
+    if (!PFS.isCompressedBlock(block)) {
+      String.format("%-" + RECORD_LENGTH + "s", record)
+              .getChars(0, RECORD_LENGTH, block, dbp.getRecordNumber() * RECORD_LENGTH);
+      pfs.writeContent(dbp.getBlockNumber(), block);
+      return;
+    }
 
-      pfsContentList.add(pfs.getContent());
-//      pfsContents.put(pfs.getSequenceNumber(), pfs.getContent());
+    List<String> records = pfs.extractRecordsFromBlock(block);
+    records.set(dbp.getRecordNumber(), record);
+    for (String moved : writeCompressedBlock(dbp.getBlockPointer(), records, dbp.getRecordNumber())) {
+      // this record did not fit in the block any more
+      char[] movedRecord = toRecord(moved);
+      long movedKey = RecordDictionary.parseKey(movedRecord);
+      String oldPtr = index.search(movedKey);
+      String newPtr = appendRecord(fcb, movedRecord);
+      index.updatePointer(movedKey, newPtr);
+      indexRecord(fcb, movedRecord, oldPtr, false);
+      indexRecord(fcb, movedRecord, newPtr, true);
     }
-    int blockNumber = Integer.parseInt(IndexBlockNumber.substring(3));
-    int pfsNumber = Integer.parseInt(IndexBlockNumber.substring(0, 3));
-//    char[] r = pfsContents.get(0)[15]; // is empty
+  }
 
-    char[][] specificPfsContent = pfsContentList.get(pfsNumber);
-//    System.out.println("specificPfsContent" + Arrays.toString(specificPfsContent[blockNumber]));
-//    char[][] content = pfsList.get(0).getContent();
-//        char[][] content = this.allPfsContent;
-    Queue<String> blockPointersQueue = new LinkedList<>();
-//        blockPointersQueue.add(blockNumber);
-    final int BLOCK_POINTER_SIZE = 7; // Size of block pointer
-    final int KEY_POINTER_SIZE = 15; // Size of key pointer
-    final String TERMINATOR = "9999999";
+  /**
+   * Encodes the records of a compressed block again and writes the block. While they do not fit, a record is
+   * taken out of the block (the preferred one first, then the last one) and left as an empty slot,
+   * so the slot numbers of the other records do not change.
+   *
+   * @param bp        The compressed block.
+   * @param records   The records of the block in slot order, an empty String for an empty slot.
+   * @param preferred The slot to take out first, -1 for none.
+   * @return The records which were taken out, they have to be stored somewhere else.
+   */
+  private List<String> writeCompressedBlock(BlockPointer bp, List<String> records, int preferred) {
+    PFS pfs = this.pfsList.get(bp.getPfsNumber());
+    char[] block = pfs.getBlock(bp.getBlockNumber());
+    String dictionaryPtr = new String(block, 1, BlockPointer.LENGTH);
+    String nextPtr = new String(block, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+
+    List<String> takenOut = new ArrayList<>();
+    while (true) {
+      StringBuilder blockBuilder = encodeCompressedRecords(dictionaryPtr, records);
+      if (blockBuilder.length() <= this.blockSize - BlockPointer.LENGTH) {
+        char[] newBlock = finishBlock(blockBuilder);
+        nextPtr.getChars(0, BlockPointer.LENGTH, newBlock, this.blockSize - BlockPointer.LENGTH);
+        pfs.writeContent(bp.getBlockNumber(), newBlock);
+        return takenOut;
+      }
 
-    // Extract the row from content based on rowIndex
-    char[] row = specificPfsContent[blockNumber];
+      int victim = preferred >= 0 && !records.get(preferred).isEmpty() ? preferred : records.size() - 1;
+      while (records.get(victim).isEmpty()) {
+        victim--;
+      }
+      takenOut.add(records.get(victim));
+      records.set(victim, "");
+    }
+  }
 
-    // Initialize the starting index for block pointer extraction
-    int index = 0;
+  // {# dictionaryPtr record0 RS record1 RS ...} without the padding and the block pointer
+  private StringBuilder encodeCompressedRecords(String dictionaryPtr, List<String> records) {
+    RecordDictionary dictionary = getDictionary(dictionaryPtr);
+    StringBuilder blockBuilder = new StringBuilder(this.blockSize);
+    blockBuilder.append(PFS.COMPRESSED_BLOCK_MARKER).append(dictionaryPtr);
+    long previousKey = -1; // an empty slot resets the key delta, the same as in RecordDictionary.decodeBlock
+    for (String record : records) {
+      char[] recordChars = toRecord(record);
+      blockBuilder.append(dictionary.encode(recordChars, previousKey)).append(RecordDictionary.RECORD_SEPARATOR);
+      previousKey = RecordDictionary.parseKey(recordChars);
+    }
+    return blockBuilder;
+  }
 
-    // Loop through the row, extracting block pointers and key pointers alternately
-    while (index < row.length) {
-      if (row[index] == '\0') break;
-      // Extract the block pointer
-      String blockPointerStr = new String(row, index, BLOCK_POINTER_SIZE);
-//      System.out.println(" new blockPointerStr" + blockPointerStr);
+  /**
+   * Stores a record at the end of a file: in the last data block if it has room, otherwise in a new data block
+   * in the same layout, linked after the last one.
+   *
+   * @param fcb    The file, its last data block and size are updated.
+   * @param record The 40-char record.
+   * @return The DataBlockPointer String of the record.
+   */
+  private String appendRecord(FCB fcb, char[] record) {
+    String tailPtr = fcb.getDataEndBlock();
+    char[] tail = null;
+    if (isBlockPointer(tailPtr)) {
+      BlockPointer tailBP = new BlockPointer(tailPtr);
+      PFS pfs = this.pfsList.get(tailBP.getPfsNumber());
+      tail = pfs.getBlock(tailBP.getBlockNumber());
+
+      if (PFS.isCompressedBlock(tail)) {
+        List<String> records = pfs.extractRecordsFromBlock(tail);
+        if (records.size() < PFS.MAX_COMPRESSED_RECORDS) {
+          records.add(new String(record));
+          String dictionaryPtr = new String(tail, 1, BlockPointer.LENGTH);
+          if (encodeCompressedRecords(dictionaryPtr, records).length() <= this.blockSize - BlockPointer.LENGTH) {
+            writeCompressedBlock(tailBP, records, -1);
+            appendToZoneMap(fcb, tailPtr, 0, RecordDictionary.parseKey(record), RecordDictionary.parseKey(record));
+            return new DataBlockPointer(tailBP.getPfsNumber(), tailBP.getBlockNumber(), records.size() - 1).getPtrString();
+          }
+        }
+      } else {
+        for (int i = 0; i < getRecordsPerBlock(); i++) {
+          if (new String(tail, i * RECORD_LENGTH, RECORD_LENGTH).trim().isEmpty()) {
+            System.arraycopy(record, 0, tail, i * RECORD_LENGTH, RECORD_LENGTH);
+            pfs.writeContent(tailBP.getBlockNumber(), tail);
+            appendToZoneMap(fcb, tailPtr, 0, RecordDictionary.parseKey(record), RecordDictionary.parseKey(record));
+            return new DataBlockPointer(tailBP.getPfsNumber(), tailBP.getBlockNumber(), i).getPtrString();
+          }
+        }
+      }
+    }
 
-      // Check if the block pointer is the terminator
-      if (!TERMINATOR.equals(blockPointerStr)) {
+    // the last block is full, link a new one after it
+    String newPtr = allocateBlock();
+    BlockPointer newBP = new BlockPointer(newPtr);
+    char[] block;
+    if (tail != null && PFS.isCompressedBlock(tail)) {
+      String dictionaryPtr = new String(tail, 1, BlockPointer.LENGTH);
+      block = recordsToCompressedBlock(new char[][] {record}, getDictionary(dictionaryPtr), dictionaryPtr).get(0);
+    } else {
+      block = recordsToBlock(new char[][] {record}).get(0);
+    }
+    BlockPointer.NULL_PTR.getChars(0, BlockPointer.LENGTH, block, this.blockSize - BlockPointer.LENGTH);
+    this.pfsList.get(newBP.getPfsNumber()).writeContent(newBP.getBlockNumber(), block);
+    if (tail != null) {
+      BlockPointer tailBP = new BlockPointer(tailPtr);
+      this.pfsList.get(tailBP.getPfsNumber()).updateBlockPointer(tailBP.getBlockNumber(), newPtr);
+    } else {
+      fcb.setDataStartBlock(newPtr);
+    }
+    fcb.setDataEndBlock(newPtr);
+    fcb.setSize(fcb.getSize() + 1);
+    appendToZoneMap(fcb, newPtr, 1, RecordDictionary.parseKey(record), RecordDictionary.parseKey(record));
+    return new DataBlockPointer(newBP.getPfsNumber(), newBP.getBlockNumber(), 0).getPtrString();
+  }
 
-        // Parse the block pointer and add to the queue if not the terminator
-//          int blockPointer = Integer.parseInt(blockPointerStr);
-        blockPointersQueue.add(blockPointerStr);
-//          System.out.println("blockPointerStr" + blockPointersQueue);
+  /**
+   * Stores a record of a clustered file in the data block of its key. A full block is split: the larger half of
+   * the keys moves to a new block linked after it, or only the new record if its key is larger than all of them,
+   * and the secondary indexes follow the moved records. See ClusteredIndex.
+   *
+   * @param fcb    The clustered file, its first and last data block and size are updated.
+   * @param index  The index of the file, it gets the entry of a new block.
+   * @param record The 40-char record, its key is not in the file.
+   * @return The DataBlockPointer String of the record.
+   */
+  private String insertIntoLeaf(FCB fcb, ClusteredIndex index, char[] record) {
+    long key = RecordDictionary.parseKey(record);
+    String leafPtr = index.leaf(key);
+    if (leafPtr == null) {
+      // the first block of an empty file
+      String newPtr = allocateBlock();
+      BlockPointer newBP = new BlockPointer(newPtr);
+      char[] block = recordsToBlock(new char[][] {record}).get(0);
+      BlockPointer.NULL_PTR.getChars(0, BlockPointer.LENGTH, block, this.blockSize - BlockPointer.LENGTH);
+      this.pfsList.get(newBP.getPfsNumber()).writeContent(newBP.getBlockNumber(), block);
+      fcb.setDataStartBlock(newPtr);
+      fcb.setDataEndBlock(newPtr);
+      fcb.setSize(fcb.getSize() + 1);
+      index.addFirstLeaf(newPtr);
+      return new DataBlockPointer(newBP.getPfsNumber(), newBP.getBlockNumber(), 0).getPtrString();
+    }
 
+    BlockPointer leafBP = new BlockPointer(leafPtr);
+    PFS pfs = this.pfsList.get(leafBP.getPfsNumber());
+    char[] leaf = pfs.getBlock(leafBP.getBlockNumber());
+    int recordsPerBlock = getRecordsPerBlock();
+    for (int i = 0; i < recordsPerBlock; i++) {
+      if (RecordDictionary.parseKey(leaf, i * RECORD_LENGTH) < 0) {
+        System.arraycopy(record, 0, leaf, i * RECORD_LENGTH, RECORD_LENGTH);
+        pfs.writeContent(leafBP.getBlockNumber(), leaf);
+        return new DataBlockPointer(leafBP.getPfsNumber(), leafBP.getBlockNumber(), i).getPtrString();
       }
+    }
 
-      // Move the index to skip over the next key pointer
-      index += BLOCK_POINTER_SIZE + KEY_POINTER_SIZE;
+    // the block is full: the slots of the records by key, the new record is slot recordsPerBlock
+    Integer[] slots = new Integer[recordsPerBlock + 1];
+    long[] keys = new long[recordsPerBlock + 1];
+    for (int i = 0; i < recordsPerBlock; i++) {
+      slots[i] = i;
+      keys[i] = RecordDictionary.parseKey(leaf, i * RECORD_LENGTH);
+    }
+    slots[recordsPerBlock] = recordsPerBlock;
+    keys[recordsPerBlock] = key;
+    Arrays.sort(slots, Comparator.comparingLong(i -> keys[i]));
+    int lower = slots[recordsPerBlock] == recordsPerBlock ? recordsPerBlock : (recordsPerBlock + 1) / 2;
+
+    String newPtr = allocateBlock();
+    BlockPointer newBP = new BlockPointer(newPtr);
+    char[][] upper = new char[recordsPerBlock + 1 - lower][];
+    for (int i = lower; i < slots.length; i++) {
+      upper[i - lower] = slots[i] == recordsPerBlock ? record
+              : Arrays.copyOfRange(leaf, slots[i] * RECORD_LENGTH, (slots[i] + 1) * RECORD_LENGTH);
+    }
+    char[] block = recordsToBlock(upper).get(0);
+    System.arraycopy(leaf, this.blockSize - BlockPointer.LENGTH, block, this.blockSize - BlockPointer.LENGTH,
+            BlockPointer.LENGTH);
+    this.pfsList.get(newBP.getPfsNumber()).writeContent(newBP.getBlockNumber(), block);
+
+    String newRecordPtr = null;
+    for (int i = lower; i < slots.length; i++) {
+      String movedPtr = new DataBlockPointer(newBP.getPfsNumber(), newBP.getBlockNumber(), i - lower).getPtrString();
+      if (slots[i] == recordsPerBlock) {
+        newRecordPtr = movedPtr;
+        continue;
+      }
+      indexRecord(fcb, upper[i - lower], new DataBlockPointer(leafBP.getPfsNumber(), leafBP.getBlockNumber(),
+              slots[i]).getPtrString(), false);
+      indexRecord(fcb, upper[i - lower], movedPtr, true);
+      Arrays.fill(leaf, slots[i] * RECORD_LENGTH, (slots[i] + 1) * RECORD_LENGTH, ' ');
+    }
+    if (newRecordPtr == null) {
+      // the new record stays in the block, in the first slot which was emptied
+      int slot = slots[lower];
+      System.arraycopy(record, 0, leaf, slot * RECORD_LENGTH, RECORD_LENGTH);
+      newRecordPtr = new DataBlockPointer(leafBP.getPfsNumber(), leafBP.getBlockNumber(), slot).getPtrString();
+    }
+    newPtr.getChars(0, BlockPointer.LENGTH, leaf, this.blockSize - BlockPointer.LENGTH);
+    pfs.writeContent(leafBP.getBlockNumber(), leaf);
+    if (leafPtr.equals(fcb.getDataEndBlock())) {
+      fcb.setDataEndBlock(newPtr);
+    }
+    fcb.setSize(fcb.getSize() + 1);
+    index.splitLeaf(keys[slots[lower - 1]], leafPtr, newPtr);
+    return newRecordPtr;
+  }
 
-      // If the next position exceeds the row's length, break the loop
-      if (index >= row.length) break;
-      // if the next block pointer is the terminator and the next char is null, break the loop
-      if (row[index] == '\0' && row[index + 1] == '\0') break;
+  /**
+   * Adds records stored at the end of the data chain to the zone map of the file, see ZoneMap.append. A file
+   * whose data blocks are not in a zone map keeps none, a scan of it follows the whole chain.
+   *
+   * @param fcb       The file.
+   * @param ptr       The first new data block, or the last block of the chain if newBlocks is 0.
+   * @param newBlocks The number of blocks just linked at the end of the chain.
+   * @param min       The smallest key of the records.
+   * @param max       The largest key of the records.
+   */
+  private void appendToZoneMap(FCB fcb, String ptr, int newBlocks, long min, long max) {
+    boolean isFirstBlock = newBlocks > 0 && ptr.equals(fcb.getDataStartBlock());
+    if (!isBlockPointer(fcb.getZoneMapStart()) && !isFirstBlock) {
+      return;
+    }
+    String head = ZoneMap.append(this, fcb.getZoneMapStart(), ptr, newBlocks, min, max);
+    if (!head.equals(fcb.getZoneMapStart())) {
+      fcb.setZoneMapStart(head);
+      fcb.setSize(fcb.getSize() + 1);
+    }
+  }
+
+  // store the index changes and the FCB, then write only the changed blocks
+  private void finishRecordChange(FCB fcb, KeyIndex index) {
+    index.write();
+    fcb.setIndexStartBlock(index.getRoot());
+    fcb.setSize(fcb.getSize() + index.getBlockDelta());
+    fcb.setKeyCount(fcb.getKeyCount() + index.getKeyDelta());
+    storeBloomFilter(fcb);
+    for (SecondaryIndex secondary : getSecondaryIndexes(fcb.getName())) {
+      if (secondary.isChanged()) {
+        fcb.setSize(fcb.getSize() + secondary.finishChanges());
+        writeSecondaryIndexEntry(secondary);
+      }
+    }
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MMM/yy:HHa");
+    fcb.setTime(LocalDateTime.now().format(formatter));
+
+    int writtenBlocks = 0;
+    for (PFS pfs : this.pfsList) {
+      writtenBlocks += pfs.getDirtyBlockCount();
+    }
+    // the catalog writes the FCB slot and the blocks changed before it
+    fcbCatalog.put(fcb);
+    flush(this.pfsList);
+    if (isVerbose) {
+      System.out.println("Wrote " + (writtenBlocks + 1) + " blocks.");
+    }
+  }
+
+  /**
+   * Writes the bits set in the Bloom filter of a file by inserted keys. Once the file has twice the keys its filter
+   * was built for, the false positives climb past 10%, so the filter is built again from the index for the keys
+   * of the file.
+   *
+   * @param fcb The file, its size is updated.
+   */
+  private void storeBloomFilter(FCB fcb) {
+    BloomFilter filter = this.bloomFilters.get(fcb.getName());
+    if (filter == null) {
+      return;
+    }
+    if (fcb.getKeyCount() <= 2 * filter.getCapacity()) {
+      filter.store(this);
+      return;
+    }
 
+    BloomFilter rebuilt = new BloomFilter(fcb.getKeyCount());
+    Iterator<KeyPointer> keys = openIndex(fcb).iterator(Long.MIN_VALUE);
+    while (keys.hasNext()) {
+      rebuilt.add(keys.next().getKey());
+    }
+    for (String ptr : filter.getBlockPointers()) {
+      BlockPointer bp = new BlockPointer(ptr);
+      this.pfsList.get(bp.getPfsNumber()).updateBitMap(bp.getBlockNumber(), false);
+    }
+    fcb.setBloomFilterStart(rebuilt.write(this));
+    fcb.setSize(fcb.getSize() - filter.getBlockPointers().size() + rebuilt.getBlockPointers().size());
+    this.bloomFilters.put(fcb.getName(), rebuilt);
+  }
 
-      // Check if the remaining characters are less than a block pointer size
-      // This can happen if the row's data structure is not strictly followed
-      if (row.length - index < BLOCK_POINTER_SIZE && row[index] == '\0') {
-        System.err.println("Incomplete block pointer at the end of the row.");
-        break;
+  /**
+   * Removes a file. The FCB is tombstoned right away, so the file is no longer visible, and its data,
+   * dictionary and index blocks are reclaimed by a background task.
+   *
+   * @param name The file name.
+   * @return The tombstoned FCB, or null if there is no such file.
+   */
+  public FCB removeFCBFile(String name) {
+    FCB fcb = fcbCatalog.tombstone(name);
+    if (fcb == null) {
+      return null;
+    }
+    this.bloomFilters.remove(name);
+    this.hashIndexes.remove(name);
+    this.learnedIndexes.remove(name);
+    // the indexes are tombstoned with the file, their blocks are reclaimed with its blocks
+    for (SecondaryIndex secondary : getSecondaryIndexes(name)) {
+      secondary.setDeleted(true);
+      writeSecondaryIndexEntry(secondary);
+    }
+    this.secondaryIndexes.remove(name);
+    this.numOfFCBFiles = fcbCatalog.size();
+    pfsList.get(0).updateSuperBlock();
+    pfsList.get(0).writeContentToFile();
+
+    scheduleReclaim(fcb);
+    return fcb;
+  }
+
+  // reclaim the blocks of a tombstoned FCB in the background
+  private void scheduleReclaim(FCB fcb) {
+    this.reclaimer.submit(() -> {
+      try {
+        reclaimFCBBlocks(fcb);
+      } catch (RuntimeException e) {
+        System.err.println("An error occurred while reclaiming " + fcb.getName() + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Frees all the blocks of a tombstoned FCB, then its catalog slot.
+   * The blocks are freed RECLAIM_BATCH_BLOCKS at a time: each batch holds the storage lock, only clears
+   * bitmap bits (a freed block is always fully overwritten when it is allocated again), and writes the changed
+   * bitmap blocks once. The next block to visit is never freed before its pointers are read.
+   *
+   * @param fcb The tombstoned FCB.
+   */
+  public void reclaimFCBBlocks(FCB fcb) {
+    // data blocks, following the linked allocation
+    String currBPStr = fcb.getDataStartBlock();
+    String dictionaryPtr = null;
+    while (isBlockPointer(currBPStr)) {
+      lock();
+      try {
+        Set<PFS> changed = new HashSet<>();
+        for (int i = 0; i < RECLAIM_BATCH_BLOCKS && isBlockPointer(currBPStr); i++) {
+          BlockPointer currBP = new BlockPointer(currBPStr);
+          PFS pfs = this.pfsList.get(currBP.getPfsNumber());
+          char[] content = pfs.getBlock(currBP.getBlockNumber());
+          if (dictionaryPtr == null && PFS.isCompressedBlock(content)) {
+            dictionaryPtr = new String(content, 1, BlockPointer.LENGTH);
+          }
+          currBPStr = new String(content, blockSize - BlockPointer.LENGTH, BlockPointer.LENGTH);
+          pfs.updateBitMap(currBP.getBlockNumber(), false);
+          changed.add(pfs);
+        }
+        flush(changed);
+      } finally {
+        unlock();
       }
     }
 
-//        System.out.println("blockPointersQueue: " + blockPointersQueue);
-    return blockPointersQueue;
+    // all the compressed blocks of a file share one dictionary block
+    if (dictionaryPtr != null) {
+      lock();
+      try {
+        BlockPointer dictionaryBP = new BlockPointer(dictionaryPtr);
+        PFS pfs = this.pfsList.get(dictionaryBP.getPfsNumber());
+        pfs.updateBitMap(dictionaryBP.getBlockNumber(), false);
+        this.dictionaryMap.remove(dictionaryPtr);
+        flush(Collections.singleton(pfs));
+      } finally {
+        unlock();
+      }
+    }
+
+    // the zone map and the Bloom filter are small next to the data, they are freed at once
+    if (isBlockPointer(fcb.getZoneMapStart()) || isBlockPointer(fcb.getBloomFilterStart())) {
+      lock();
+      try {
+        Set<PFS> changed = new HashSet<>();
+        List<String> ptrs = new ArrayList<>(ZoneMap.blockPointers(this, fcb.getZoneMapStart()));
+        ptrs.addAll(BloomFilter.blockPointers(this, fcb.getBloomFilterStart()));
+        for (String ptr : ptrs) {
+          BlockPointer bp = new BlockPointer(ptr);
+          PFS pfs = this.pfsList.get(bp.getPfsNumber());
+          pfs.updateBitMap(bp.getBlockNumber(), false);
+          changed.add(pfs);
+        }
+        flush(changed);
+      } finally {
+        unlock();
+      }
+    }
+
+    if (fcb.getIndexType() == FCB.HASH_INDEX) {
+      List<String> ptrs = new ArrayList<>(HashIndex.bucketBlocks(this, fcb.getIndexStartBlock()));
+      ptrs.addAll(HashIndex.directoryBlocks(this, fcb.getIndexStartBlock()));
+      reclaimBlocks(ptrs);
+    } else if (fcb.getIndexType() == FCB.LEARNED_INDEX) {
+      String treeRoot = LearnedIndex.treeRoot(this, fcb.getIndexStartBlock());
+      reclaimBlocks(LearnedIndex.blockPointers(this, fcb.getIndexStartBlock()));
+      reclaimIndexBlocks(treeRoot);
+    } else {
+      reclaimIndexBlocks(fcb.getIndexStartBlock());
+    }
+
+    // the secondary indexes tombstoned with the file, each directory entry is freed after its blocks
+    List<SecondaryIndex> removed = new ArrayList<>();
+    lock();
+    try {
+      for (SecondaryIndex secondary : SecondaryIndex.readDirectory(this, getIndexDirectoryStart())) {
+        if (secondary.isDeleted() && secondary.getFileName().equals(fcb.getName())) {
+          removed.add(secondary);
+        }
+      }
+    } finally {
+      unlock();
+    }
+    for (SecondaryIndex secondary : removed) {
+      reclaimBlocks(SecondaryIndex.postingBlocks(this, secondary.getRoot()));
+      reclaimIndexBlocks(secondary.getRoot());
+      lock();
+      try {
+        secondary.free(this);
+        flush(this.pfsList);
+      } finally {
+        unlock();
+      }
+    }
+
+    // the catalog slot is freed last, so an interrupted reclaim is resumed when the database is opened
+    lock();
+    try {
+      fcbCatalog.free(fcb);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Frees blocks in batches, each batch under the storage lock, e.g. the blocks of a removed file or the data
+   * blocks of a put which failed before its FCB was written.
+   *
+   * @param ptrs The BlockPointer Strings of the blocks.
+   */
+  public void reclaimBlocks(List<String> ptrs) {
+    for (int from = 0; from < ptrs.size(); from += RECLAIM_BATCH_BLOCKS) {
+      lock();
+      try {
+        Set<PFS> changed = new HashSet<>();
+        for (String ptr : ptrs.subList(from, Math.min(ptrs.size(), from + RECLAIM_BATCH_BLOCKS))) {
+          BlockPointer bp = new BlockPointer(ptr);
+          PFS pfs = this.pfsList.get(bp.getPfsNumber());
+          pfs.updateBitMap(bp.getBlockNumber(), false);
+          changed.add(pfs);
+        }
+        flush(changed);
+      } finally {
+        unlock();
+      }
+    }
+  }
+
+  // frees the blocks of an index tree, breadth first from the root
+  private void reclaimIndexBlocks(String root) {
+    Queue<String> queue = new LinkedList<>();
+    if (isBlockPointer(root)) {
+      queue.add(root);
+    }
+    while (!queue.isEmpty()) {
+      lock();
+      try {
+        Set<PFS> changed = new HashSet<>();
+        for (int i = 0; i < RECLAIM_BATCH_BLOCKS && !queue.isEmpty(); i++) {
+          BlockPointer currBP = new BlockPointer(queue.poll());
+          PFS pfs = this.pfsList.get(currBP.getPfsNumber());
+          for (BlockPointer child : generateBTreeChildBlockPointerArray(pfs.getBlock(currBP.getBlockNumber()))) {
+            queue.add(child.getPtrString());
+          }
+          pfs.updateBitMap(currBP.getBlockNumber(), false);
+          changed.add(pfs);
+        }
+        flush(changed);
+      } finally {
+        unlock();
+      }
+    }
   }
 
+  private void flush(Collection<PFS> changed) {
+    for (PFS pfs : changed) {
+      pfs.writeContentToFile();
+    }
+  }
+
+  private static boolean isBlockPointer(String ptr) {
+    return ptr != null && ptr.length() == BlockPointer.LENGTH && !ptr.equals(BlockPointer.NULL_PTR)
+            && !ptr.trim().isEmpty();
+  }
+
+  /**
+   * Locks the blocks of this database. The CLI holds it while a command runs but put, the background reclaim holds
+   * it for one batch, and the threads of put hold it to allocate blocks (allocateBlocks) and to add an FCB.
+   */
+  public void lock() {
+    this.storageLock.lock();
+  }
+
+  public void unlock() {
+    this.storageLock.unlock();
+  }
+
+
 
 
 
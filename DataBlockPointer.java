@@ -1,29 +1,36 @@
 public class DataBlockPointer {
-  private int pfsNumber; // PFS file number, 3 digits
-  private int blockNumber; // Block number, 4 digits
-  private int recordNumber; // Record number, 1 digits, from 0 to 5
-  private String ptrString; // Combined 8 digit string representation
+  public static final int LENGTH = 16; // 4 hex digits PFS # + 8 hex digits block # + 4 hex digits record #
+  public static final int MAX_RECORD_NUMBER = 0xFFFF;
+
+  private int pfsNumber; // PFS file number, 16 bits
+  private int blockNumber; // Block number, 32 bits
+  private int recordNumber; // Record number, 16 bits, the slot of the record in the block
+  private String ptrString; // Combined 16 hex digit string representation of the 64-bit address
 
   // Constructor using integers for PFS number and block number
-  // if pfc # = 1, block # = 0, record # = 1. the ptrString will be 001000001.
+  // if pfc # = 1, block # = 0, record # = 1. the ptrString will be 0001000000000001.
   public DataBlockPointer(int pfsNumber, int blockNumber, int recordNumber) {
+    if (recordNumber < 0 || recordNumber > MAX_RECORD_NUMBER) {
+      throw new IllegalArgumentException("Record number out of range: " + recordNumber);
+    }
     this.pfsNumber = pfsNumber;
     this.blockNumber = blockNumber;
     this.recordNumber = recordNumber;
-    // Combine the numbers into a 8 character string, ensuring correct formatting
-    this.ptrString = String.format("%03d%04d%01d", pfsNumber, blockNumber, recordNumber);
+    // Combine the numbers into a 16 character string, the block pointer followed by the record number
+    this.ptrString = new BlockPointer(pfsNumber, blockNumber).getPtrString() + String.format("%04X", recordNumber);
   }
 
-  // Constructor using a 8 character string
+  // Constructor using a 16 character string
   public DataBlockPointer(String ptrString) {
-    if (ptrString == null || ptrString.length() != 8) {
-      throw new IllegalArgumentException("PtrString must be exactly 8 digits long");
+    if (ptrString == null || ptrString.length() != LENGTH) {
+      throw new IllegalArgumentException("PtrString must be exactly " + LENGTH + " hex digits long");
     }
     this.ptrString = ptrString;
     // Parse the PFS number and block number from the string
-    this.pfsNumber = Integer.parseInt(ptrString.substring(0, 3));
-    this.blockNumber = Integer.parseInt(ptrString.substring(3, 7));
-    this.recordNumber = Integer.parseInt(ptrString.substring(7, 8));
+    BlockPointer bp = new BlockPointer(ptrString.substring(0, BlockPointer.LENGTH));
+    this.pfsNumber = bp.getPfsNumber();
+    this.blockNumber = bp.getBlockNumber();
+    this.recordNumber = Integer.parseInt(ptrString.substring(BlockPointer.LENGTH, LENGTH), 16);
   }
 
   // Getter for the PFS file number
@@ -46,6 +53,16 @@ public class DataBlockPointer {
     return this.ptrString;
   }
 
+  // Getter for the 64-bit (PFS, block, record) address
+  public long getAddress() {
+    return BlockPointer.toAddress(pfsNumber, blockNumber, recordNumber);
+  }
+
+  // Getter for the pointer of the block this record is in
+  public BlockPointer getBlockPointer() {
+    return new BlockPointer(pfsNumber, blockNumber);
+  }
+
 
 
   // Override toString() for easy printing
@@ -58,4 +75,4 @@ public class DataBlockPointer {
             ", ptrString='" + ptrString + '\'' +
             '}';
   }
-}
\ No newline at end of file
+}
@@ -1,34 +1,57 @@
 
 public class FCB {
+    public static final int LENGTH = 20 + 14 + 10 + 3 * BlockPointer.LENGTH + 1 + 10 + 2 * BlockPointer.LENGTH + 1; // 116 chars in the FCB block
+    public static final char DELETED = 'D'; // status of a removed FCB whose blocks are not reclaimed yet
+    public static final char ACTIVE = 'A';
+    public static final char BTREE_INDEX = 'B'; // the index start block is the root of a B-tree (IndexTree)
+    public static final char HASH_INDEX = 'H'; // the index start block is the first directory block of a HashIndex
+    public static final char LEARNED_INDEX = 'L'; // the index start block is the header block of a LearnedIndex
+    public static final char CLUSTERED_INDEX = 'C'; // data blocks in key order, the index start block is a ClusteredIndex
+
     private String name; // FCB name, limited to 20 characters
     private String time; // Timestamp, formatted as "15/SEP/23:25PM", limited to 14 characters
     private int size; // Number of blocks, assumed to be an integer
-    private String dataStartBlock; // Pointer to data start block, 7 characters, default "9999999"
-    private String indexStartBlock; // Pointer to index start block, 7 characters, default "9999999"
-    private String pfsNumber; // PFS file number, 3 digits
-    private String blockNumber; // Block number, 4 digits
+    private String dataStartBlock; // Pointer to data start block, 12 characters, default BlockPointer.NULL_PTR
+    private String indexStartBlock; // Pointer to index start block, 12 characters, default BlockPointer.NULL_PTR
+    private String dataEndBlock; // Pointer to the last data block, where records are inserted, default BlockPointer.NULL_PTR
+    private boolean isDeleted; // tombstone, set by rm until the blocks are reclaimed
+    private long keyCount; // Number of keys in the index, i.e. records, so count needs no scan
+    private String zoneMapStart; // Pointer to the zone map block with the newest zones (ZoneMap), default BlockPointer.NULL_PTR
+    private String bloomFilterStart; // Pointer to the first block of the Bloom filter of the keys (BloomFilter), default BlockPointer.NULL_PTR
+    private char indexType; // BTREE_INDEX, HASH_INDEX, LEARNED_INDEX or CLUSTERED_INDEX, chosen when the file is put
+    private String catalogSlot; // Where this FCB is stored in the FCB catalog (DataBlockPointer), null if not stored
 
     // Constructor
     public FCB(String name, String time, int size) {
         this.name = name.length() > 20 ? name.substring(0, 20) : name;
         this.time = time;
         this.size = size;
-        this.dataStartBlock = "9999999"; // Default value
-        this.indexStartBlock = "9999999"; // Default value
+        this.dataStartBlock = BlockPointer.NULL_PTR; // Default value
+        this.indexStartBlock = BlockPointer.NULL_PTR; // Default value
+        this.dataEndBlock = BlockPointer.NULL_PTR; // Default value
+        this.zoneMapStart = BlockPointer.NULL_PTR; // Default value
+        this.bloomFilterStart = BlockPointer.NULL_PTR; // Default value
+        this.indexType = BTREE_INDEX; // Default value
     }
 
     // Additional constructor to specify all fields
     public FCB(String name, String time, int size, String dataStartBlock, String indexStartBlock) {
         this(name, time, size); // Reuse the first constructor for common initializations
-        this.dataStartBlock = dataStartBlock.length() == 7 ? dataStartBlock : "9999999";
-        this.indexStartBlock = indexStartBlock.length() == 7 ? indexStartBlock : "9999999";
+        this.dataStartBlock = dataStartBlock.length() == BlockPointer.LENGTH ? dataStartBlock : BlockPointer.NULL_PTR;
+        this.indexStartBlock = indexStartBlock.length() == BlockPointer.LENGTH ? indexStartBlock : BlockPointer.NULL_PTR;
+    }
+
+    // Additional constructor which also sets the last data block
+    public FCB(String name, String time, int size, String dataStartBlock, String indexStartBlock, String dataEndBlock) {
+        this(name, time, size, dataStartBlock, indexStartBlock);
+        this.dataEndBlock = dataEndBlock.length() == BlockPointer.LENGTH ? dataEndBlock : BlockPointer.NULL_PTR;
     }
 
     // Additional constructor to specify all fields
     public FCB(char[] fcbContent) {
         // Ensure that fcbContent has the correct length
-        if (fcbContent.length != 58) {
-            throw new IllegalArgumentException("FCB content should be exactly 58 characters long.");
+        if (fcbContent.length != LENGTH) {
+            throw new IllegalArgumentException("FCB content should be exactly " + LENGTH + " characters long.");
         }
 
         // Name: First 20 characters, trim whitespace
@@ -42,6 +65,11 @@ public class FCB {
             this.size = 0;
             this.dataStartBlock = ""; // Default value
             this.indexStartBlock = ""; // Default value
+            this.dataEndBlock = ""; // Default value
+            this.keyCount = 0;
+            this.zoneMapStart = ""; // Default value
+            this.bloomFilterStart = ""; // Default value
+            this.indexType = BTREE_INDEX; // Default value
             return;
         }
 
@@ -57,11 +85,35 @@ public class FCB {
             throw new IllegalArgumentException("Invalid size format. Expected an integer.");
         }
 
-        // Data start block: Characters 44 to 50
-        this.dataStartBlock = new String(fcbContent, 44, 7);
+        // Data start block: Characters 44 to 55
+        this.dataStartBlock = new String(fcbContent, 44, BlockPointer.LENGTH);
+
+        // Index start block: Characters 56 to 67
+        this.indexStartBlock = new String(fcbContent, 44 + BlockPointer.LENGTH, BlockPointer.LENGTH);
 
-        // Index start block: Characters 50 to 57
-        this.indexStartBlock = new String(fcbContent, 51, 7);
+        // Data end block: Characters 68 to 79
+        this.dataEndBlock = new String(fcbContent, 44 + 2 * BlockPointer.LENGTH, BlockPointer.LENGTH);
+
+        // Status: Character 80
+        this.isDeleted = fcbContent[44 + 3 * BlockPointer.LENGTH] == DELETED;
+
+        // Key count: Characters 81 to 90
+        String keyCountStr = new String(fcbContent, 45 + 3 * BlockPointer.LENGTH, 10).trim();
+        try {
+            this.keyCount = Long.parseLong(keyCountStr);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid key count format. Expected an integer.");
+        }
+
+        // Zone map start block: Characters 91 to 102
+        this.zoneMapStart = new String(fcbContent, 55 + 3 * BlockPointer.LENGTH, BlockPointer.LENGTH);
+
+        // Bloom filter start block: Characters 103 to 114
+        this.bloomFilterStart = new String(fcbContent, 55 + 4 * BlockPointer.LENGTH, BlockPointer.LENGTH);
+
+        // Index type: Character 115
+        char type = fcbContent[55 + 5 * BlockPointer.LENGTH];
+        this.indexType = type == HASH_INDEX || type == LEARNED_INDEX || type == CLUSTERED_INDEX ? type : BTREE_INDEX;
     }
 
 
@@ -70,30 +122,78 @@ public class FCB {
         return name;
     }
     public String getTime() {return time;}
+    public void setTime(String time) {
+        this.time = time;
+    }
     public int getSize() {
         return size;
     }
+    public void setSize(int size) {
+        this.size = size;
+    }
     public String getDataStartBlock() {
         return dataStartBlock;
     }
+    public void setDataStartBlock(String dataStartBlock) {
+        this.dataStartBlock = dataStartBlock;
+    }
     public String getIndexStartBlock() {
         return indexStartBlock;
     }
-    public String getPfsNumber() {
-        return pfsNumber;
+    public void setIndexStartBlock(String indexStartBlock) {
+        this.indexStartBlock = indexStartBlock;
+    }
+    public String getDataEndBlock() {
+        return dataEndBlock;
+    }
+    public void setDataEndBlock(String dataEndBlock) {
+        this.dataEndBlock = dataEndBlock;
+    }
+    public boolean isDeleted() {
+        return isDeleted;
+    }
+    public void setDeleted(boolean isDeleted) {
+        this.isDeleted = isDeleted;
+    }
+    public long getKeyCount() {
+        return keyCount;
+    }
+    public void setKeyCount(long keyCount) {
+        this.keyCount = keyCount;
+    }
+    public String getZoneMapStart() {
+        return zoneMapStart;
+    }
+    public void setZoneMapStart(String zoneMapStart) {
+        this.zoneMapStart = zoneMapStart;
+    }
+    public String getBloomFilterStart() {
+        return bloomFilterStart;
+    }
+    public void setBloomFilterStart(String bloomFilterStart) {
+        this.bloomFilterStart = bloomFilterStart;
+    }
+    public char getIndexType() {
+        return indexType;
+    }
+    public void setIndexType(char indexType) {
+        this.indexType = indexType;
+    }
+    public String getCatalogSlot() {
+        return catalogSlot;
     }
-    public String getBlockNumber() {
-        return blockNumber;
+    public void setCatalogSlot(String catalogSlot) {
+        this.catalogSlot = catalogSlot;
     }
 
 
-    public void showContent() {
-        System.out.println(name+" "+time+" "+size*256+" Bytes");
+    public void showContent(int blockSize) {
+        System.out.println(name+" "+time+" "+(long) size*blockSize+" Bytes");
     }
 
     public void print() {
 
-        System.out.println(name+" "+time+" "+size+" " + this.dataStartBlock +" "+ this.indexStartBlock);
+        System.out.println(name+" "+time+" "+size+" " + this.dataStartBlock +" "+ this.indexStartBlock +" "+ this.dataEndBlock);
     }
 
     public String toString() {
@@ -111,7 +211,9 @@ public class FCB {
 //    System.out.println("sizeStr " + sizeStr);
 
         // Prepare the final metadata string
-        String metadataStr = newName + time + sizeStr + dataStartBlock + indexStartBlock;
+        String metadataStr = newName + time + sizeStr + dataStartBlock + indexStartBlock + dataEndBlock
+                + (isDeleted ? DELETED : ACTIVE) + String.format("%010d", keyCount) + zoneMapStart
+                + bloomFilterStart + indexType;
         // Convert the metadata string to a char array and return
         return metadataStr;
     }
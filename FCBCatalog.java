@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The FCB catalog of a database: a hash index from file name to FCB.
+ *
+ * The FCB block of .db0 is the directory of the hash index. It holds blockSize / 12 bucket pointers
+ * (21 with 256 byte blocks). Each bucket is a chain of catalog blocks, linked like the data blocks:
+ * {FCB0 FCB1 FCB2 ... -> next catalog block pointer}
+ * A file is stored in bucket (name hash % bucket count), in the first free slot of the chain.
+ * A catalog block is only allocated when its bucket is full, so the number of files is not limited.
+ *
+ * All the FCBs are loaded into a name -> FCB map when the database is opened, and each FCB remembers
+ * its slot (a DataBlockPointer: catalog block + slot #), so find, get, put and rm never scan the catalog.
+ */
+public class FCBCatalog {
+  private DB db; // the database this catalog belongs to
+  private int directoryBlock; // block # of the directory block in .db0
+  private int bucketCount; // number of bucket pointers in the directory block
+  private int slotsPerBlock; // number of FCBs in one catalog block
+  private Map<String, FCB> fcbMap; // file name -> FCB, in the order the files were added
+  private List<FCB> tombstones; // removed FCBs whose blocks are not reclaimed yet
+  private List<Deque<String>> freeSlots; // free slots (DataBlockPointer String) of each bucket
+  private String[] bucketTails; // last catalog block of each bucket, NULL_PTR if the bucket is empty
+
+  /**
+   * Creates the catalog of a new database or loads the catalog of an existing one.
+   *
+   * @param db     The database. Its .db0 has to be created or loaded already.
+   * @param isLoad True to load the existing catalog, false to write an empty directory.
+   */
+  public FCBCatalog(DB db, boolean isLoad) {
+    this.db = db;
+    this.directoryBlock = db.getFirstPFS().getFCBBlockNumber();
+    this.bucketCount = db.getBlockSize() / BlockPointer.LENGTH;
+    this.slotsPerBlock = (db.getBlockSize() - BlockPointer.LENGTH) / FCB.LENGTH;
+    this.fcbMap = new LinkedHashMap<>();
+    this.tombstones = new ArrayList<>();
+    this.freeSlots = new ArrayList<>();
+    this.bucketTails = new String[this.bucketCount];
+    for (int i = 0; i < this.bucketCount; i++) {
+      this.freeSlots.add(new ArrayDeque<>());
+      this.bucketTails[i] = BlockPointer.NULL_PTR;
+    }
+
+    if (isLoad) {
+      load();
+    } else {
+      // {bucket0 pointer, bucket1 pointer, ...} all empty
+      char[] directory = new char[db.getBlockSize()];
+      Arrays.fill(directory, ' ');
+      for (int i = 0; i < this.bucketCount; i++) {
+        BlockPointer.NULL_PTR.getChars(0, BlockPointer.LENGTH, directory, i * BlockPointer.LENGTH);
+      }
+      writeBlock(0, this.directoryBlock, directory);
+    }
+  }
+
+  /**
+   * Reads every bucket chain and fills the name -> FCB map.
+   */
+  private void load() {
+    char[] directory = db.getFirstPFS().getBlock(this.directoryBlock);
+    for (int bucket = 0; bucket < this.bucketCount; bucket++) {
+      String ptr = new String(directory, bucket * BlockPointer.LENGTH, BlockPointer.LENGTH);
+      while (isPointer(ptr)) {
+        BlockPointer bp = new BlockPointer(ptr);
+        char[] block = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+        for (int slot = 0; slot < this.slotsPerBlock; slot++) {
+          String slotPtr = new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), slot).getPtrString();
+          char[] fcbContent = Arrays.copyOfRange(block, slot * FCB.LENGTH, (slot + 1) * FCB.LENGTH);
+          if (new String(fcbContent).trim().isEmpty()) {
+            this.freeSlots.get(bucket).add(slotPtr);
+            continue;
+          }
+          FCB fcb = new FCB(fcbContent);
+          fcb.setCatalogSlot(slotPtr);
+          if (fcb.isDeleted()) {
+            this.tombstones.add(fcb);
+          } else {
+            this.fcbMap.put(fcb.getName(), fcb);
+          }
+        }
+        this.bucketTails[bucket] = ptr;
+        ptr = new String(block, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+      }
+    }
+  }
+
+  /**
+   * Returns the FCB of a file.
+   *
+   * @param name The file name.
+   * @return The FCB, or null if there is no such file.
+   */
+  public FCB get(String name) {
+    return this.fcbMap.get(name);
+  }
+
+  /**
+   * Adds a new FCB, or rewrites the slot of an FCB which is already in the catalog.
+   *
+   * @param fcb The FCB to store.
+   */
+  public void put(FCB fcb) {
+    FCB existing = this.fcbMap.get(fcb.getName());
+    if (existing != null && existing != fcb) {
+      fcb.setCatalogSlot(existing.getCatalogSlot());
+    }
+    if (fcb.getCatalogSlot() == null) {
+      int bucket = bucketOf(fcb.getName());
+      if (this.freeSlots.get(bucket).isEmpty()) {
+        addCatalogBlock(bucket);
+      }
+      fcb.setCatalogSlot(this.freeSlots.get(bucket).poll());
+    }
+    this.fcbMap.put(fcb.getName(), fcb);
+    writeSlot(fcb.getCatalogSlot(), fcb.toString());
+  }
+
+  /**
+   * Marks a file as deleted. It is no longer visible, but it keeps its slot until free is called,
+   * so the removal survives a restart before its blocks are reclaimed.
+   *
+   * @param name The file name.
+   * @return The tombstoned FCB, or null if there is no such file.
+   */
+  public FCB tombstone(String name) {
+    FCB fcb = this.fcbMap.remove(name);
+    if (fcb == null) {
+      return null;
+    }
+    fcb.setDeleted(true);
+    writeSlot(fcb.getCatalogSlot(), fcb.toString());
+    this.tombstones.add(fcb);
+    return fcb;
+  }
+
+  /**
+   * Clears the slot of a tombstoned FCB. The slot is reused by the next file of the same bucket.
+   *
+   * @param fcb The tombstoned FCB.
+   */
+  public void free(FCB fcb) {
+    if (!this.tombstones.remove(fcb)) {
+      return;
+    }
+    char[] empty = new char[FCB.LENGTH];
+    Arrays.fill(empty, ' ');
+    writeSlot(fcb.getCatalogSlot(), new String(empty));
+    this.freeSlots.get(bucketOf(fcb.getName())).add(fcb.getCatalogSlot());
+    fcb.setCatalogSlot(null);
+  }
+
+  public Collection<FCB> getAll() {
+    return this.fcbMap.values();
+  }
+
+  public List<FCB> getTombstones() {
+    return new ArrayList<>(this.tombstones);
+  }
+
+  public int size() {
+    return this.fcbMap.size();
+  }
+
+  // bucket # of a file name, String.hashCode is the same on every JVM
+  private int bucketOf(String name) {
+    return Math.floorMod(name.hashCode(), this.bucketCount);
+  }
+
+  // allocate an empty catalog block and link it at the end of the bucket chain
+  private void addCatalogBlock(int bucket) {
+    String ptr = db.findEmptyBlocks(1).get(0);
+    BlockPointer bp = new BlockPointer(ptr);
+    char[] block = new char[db.getBlockSize()];
+    Arrays.fill(block, ' ');
+    BlockPointer.NULL_PTR.getChars(0, BlockPointer.LENGTH, block, db.getBlockSize() - BlockPointer.LENGTH);
+    writeBlock(bp.getPfsNumber(), bp.getBlockNumber(), block);
+
+    String tail = this.bucketTails[bucket];
+    if (tail.equals(BlockPointer.NULL_PTR)) {
+      // first block of this bucket, update the directory
+      char[] directory = db.getFirstPFS().getBlock(this.directoryBlock);
+      ptr.getChars(0, BlockPointer.LENGTH, directory, bucket * BlockPointer.LENGTH);
+      writeBlock(0, this.directoryBlock, directory);
+    } else {
+      BlockPointer tailBP = new BlockPointer(tail);
+      PFS tailPFS = db.getPfsList().get(tailBP.getPfsNumber());
+      tailPFS.updateBlockPointer(tailBP.getBlockNumber(), ptr);
+      writeBlock(tailBP.getPfsNumber(), tailBP.getBlockNumber(), tailPFS.getBlock(tailBP.getBlockNumber()));
+    }
+    this.bucketTails[bucket] = ptr;
+
+    for (int slot = 0; slot < this.slotsPerBlock; slot++) {
+      this.freeSlots.get(bucket).add(new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), slot).getPtrString());
+    }
+  }
+
+  // write one FCB (or spaces) into its slot
+  private void writeSlot(String slotPtr, String content) {
+    DataBlockPointer dbp = new DataBlockPointer(slotPtr);
+    char[] block = db.getPfsList().get(dbp.getPfsNumber()).getBlock(dbp.getBlockNumber());
+    content.getChars(0, FCB.LENGTH, block, dbp.getRecordNumber() * FCB.LENGTH);
+    writeBlock(dbp.getPfsNumber(), dbp.getBlockNumber(), block);
+  }
+
+  private void writeBlock(int pfsNumber, int blockNumber, char[] block) {
+    PFS pfs = db.getPfsList().get(pfsNumber);
+    pfs.writeContent(blockNumber, block);
+    try {
+      pfs.writeCharArrayToFile();
+    } catch (IOException e) {
+      System.err.println("An error occurred while writing the file: " + e.getMessage());
+    }
+  }
+
+  // the directory of a new database could still hold '\0' instead of NULL_PTR
+  private static boolean isPointer(String ptr) {
+    return !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
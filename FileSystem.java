@@ -1,12 +1,22 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A simple file system simulation for managing .db0 database files and
@@ -14,6 +24,9 @@ import java.util.Set;
  */
 public class FileSystem {
   public static final int BLOCK_SIZE = 256; // The size for a block. Unit is byte
+  // what follows the file name of count: [where <condition>] [group by <field>]
+  private static final Pattern COUNT_PATTERN =
+          Pattern.compile("(?i)(?:where\\s+(.*?))?\\s*(?:group\\s+by\\s+(\\S+))?");
 
   /**
    * Finds and returns a set of unique database file names in the current directory,
@@ -51,9 +64,87 @@ public class FileSystem {
     return uniqueFileNames;
   }
 
+  /**
+   * Converts a size like "4K" or "4096" to a number of bytes.
+   *
+   * @param size The size, with an optional K, M or G suffix.
+   * @return The number of bytes.
+   */
+  public static int sizeToBytes(String size) {
+    String value = size.trim().toUpperCase();
+    long multiplier = 1;
+    if (value.endsWith("K")) {
+      multiplier = 1L << 10;
+    } else if (value.endsWith("M")) {
+      multiplier = 1L << 20;
+    } else if (value.endsWith("G")) {
+      multiplier = 1L << 30;
+    }
+    if (multiplier != 1) {
+      value = value.substring(0, value.length() - 1);
+    }
+    try {
+      long bytes = Long.parseLong(value) * multiplier;
+      if (bytes <= 0 || bytes > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(size);
+      }
+      return (int) bytes;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(size);
+    }
+  }
+
+  /**
+   * Converts a size like "1M", "16M", "256K" or "4000" (blocks) to a number of blocks.
+   *
+   * @param size      The size, with an optional K, M or G suffix for bytes.
+   * @param blockSize The block size of the database.
+   * @return The number of blocks.
+   */
+  public static int sizeToBlocks(String size, int blockSize) {
+    String value = size.trim().toUpperCase();
+    long multiplier = 0; // 0 means the value is already a number of blocks
+    if (value.endsWith("K")) {
+      multiplier = 1L << 10;
+    } else if (value.endsWith("M")) {
+      multiplier = 1L << 20;
+    } else if (value.endsWith("G")) {
+      multiplier = 1L << 30;
+    }
+    long blocks;
+    try {
+      if (multiplier == 0) {
+        blocks = Long.parseLong(value);
+      } else {
+        blocks = Long.parseLong(value.substring(0, value.length() - 1)) * multiplier / blockSize;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(size);
+    }
+    // the block # has to fit in a block pointer
+    if (blocks < 8 || blocks > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(size);
+    }
+    return (int) blocks;
+  }
+
+  /**
+   * Finds a file by its name, with or without the .csv extension.
+   *
+   * @param db   The open database.
+   * @param name The file name, e.g. movies-small or movies-small.csv.
+   * @return The FCB, or null if there is no such file.
+   */
+  private static FCB findFile(DB db, String name) {
+    FCB fcb = db.findFCBByName(name);
+    return fcb != null ? fcb : db.findFCBByName(name + ".csv");
+  }
+
   public static void main(String[] args) throws IOException {
     FileSystem fileSystem = new FileSystem();
-    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+    // commands and output are bytes, one char per byte like the records, so UTF-8 text passes through unchanged
+    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.ISO_8859_1));
+    System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.ISO_8859_1));
     //    String currentDatabase = null; // Track the currently open database
     DB currentDatabase = null; // Track the currently open database
 
@@ -84,6 +175,7 @@ public class FileSystem {
           if (uniqueDb0Files.contains(dbNameToKill)) {
 
             if (currentDatabase != null && currentDatabase.getName().equals(dbNameToKill)) {
+              currentDatabase.close();
               currentDatabase = null; // Reset current database if it's killed
             }
 
@@ -106,18 +198,66 @@ public class FileSystem {
         }
       } else if ("quit".equalsIgnoreCase(command)) {
         System.out.println("Exiting NoSQL CLI...");
+        if (currentDatabase != null) {
+          currentDatabase.close();
+        }
         break;
       } else if ("open".equalsIgnoreCase(command)) {
         // uodate unique files
         uniqueDb0Files = fileSystem.findUniqueDb0Files();
         if (commandParts.length > 1) {
           String databaseName = commandParts[1];
+          if (currentDatabase != null) {
+            currentDatabase.close();
+            currentDatabase = null;
+          }
           //check if database exist
           // if the database does not exist: create a new database
           if (uniqueDb0Files.size() == 0 || !uniqueDb0Files.contains(databaseName)) {
+            // optional page size, PFS file size and preallocation step,
+            // e.g. open db -page 4K -segment 16M -growth 1M
+            int blockSize = BLOCK_SIZE;
+            String segment = null;
+            String growth = null;
+            int blocksPerPFS = DB.DEFAULT_BLOCKS_PER_PFS;
+            int growthBlocks = -1;
+            String[] options = commandParts.length > 2 ? commandParts[2].split("\\s+") : new String[0];
+            try {
+              for (int i = 0; i + 1 < options.length; i += 2) {
+                if ("-page".equalsIgnoreCase(options[i])) {
+                  blockSize = sizeToBytes(options[i + 1]);
+                } else if ("-segment".equalsIgnoreCase(options[i])) {
+                  segment = options[i + 1];
+                } else if ("-growth".equalsIgnoreCase(options[i])) {
+                  growth = options[i + 1];
+                } else {
+                  System.out.println("Unknown option for 'open' command: " + options[i]);
+                }
+              }
+              if (blockSize < DB.MIN_BLOCK_SIZE || blockSize > DB.MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException("page size must be from " + DB.MIN_BLOCK_SIZE
+                        + " to " + DB.MAX_BLOCK_SIZE);
+              }
+              if (segment != null) {
+                blocksPerPFS = sizeToBlocks(segment, blockSize);
+              } else if (blockSize != BLOCK_SIZE) {
+                // keep the default 1MB PFS files with bigger pages
+                blocksPerPFS = Math.max(8, (int) (((long) DB.DEFAULT_BLOCKS_PER_PFS * BLOCK_SIZE) / blockSize));
+              }
+              if (growth != null) {
+                growthBlocks = sizeToBlocks(growth, blockSize);
+              }
+            } catch (IllegalArgumentException e) {
+              System.out.println("Invalid size: " + e.getMessage());
+              continue;
+            }
+            if (growthBlocks <= 0) {
+              growthBlocks = blocksPerPFS; // preallocate the whole PFS file by default
+            }
+
             System.out.println("Database does not exist: creating a new database...");
-            // create a new database.db0-> input (string name, block size)
-            currentDatabase = new DB(databaseName, BLOCK_SIZE, false);
+            // create a new database.db0-> input (string name, block size, blocks per PFS, growth)
+            currentDatabase = new DB(databaseName, blockSize, blocksPerPFS, growthBlocks, false);
             uniqueDb0Files.add(databaseName);
 
           } else {
@@ -129,140 +269,412 @@ public class FileSystem {
           System.out.println("Missing database name for 'open' command.");
         }
 
+      } else if (currentDatabase != null && "compact".equalsIgnoreCase(command)) {
+        // compaction waits for the background reclaim, so it takes the storage lock itself
+        currentDatabase.compact();
+      } else if (currentDatabase != null && "verbose".equalsIgnoreCase(command)) {
+        // verbose on|off: print the blocks allocated and written by each command
+        if (commandParts.length < 2 || !commandParts[1].matches("(?i)on|off")) {
+          System.out.println("Invalid Input mast be: verbose on|off");
+        } else {
+          currentDatabase.setVerbose("on".equalsIgnoreCase(commandParts[1]));
+        }
       } else if (currentDatabase != null) {
-        if ("put".equalsIgnoreCase(command)) {
-          if (commandParts.length > 1) {
-            // check if the file is exist in the current /csv dir, if not print "incorrect file name"
-            // if the file name is correct
-            // Define the directory where you expect the CSV files to be
-            String directoryPath = "./csvs";
-            File directory = new File(directoryPath);
-
-            // Ensure the directory exists
-            if (!directory.exists() || !directory.isDirectory()) {
-              System.out.println("The CSV directory does not exist.");
-              // Optionally, you can create the directory here if you want
-              // directory.mkdirs();
-            } else {
-              // Construct the path to the expected file within the ./csv directory
-              String filePath = directoryPath + "/" + commandParts[1];
-              File file = new File(filePath);
-
-              // Check if the file exists and is not a directory
-              if (file.exists() && !file.isDirectory()) {
-                // If the file exists, proceed with uploading the file to the database
-                currentDatabase.uploadFCBFile(commandParts[1]);
+        // the background reclaim of removed files waits while a command runs, but put takes the storage lock itself
+        // to allocate blocks and add each FCB: its threads would wait forever for a lock this thread holds
+        boolean isLocked = !"put".equalsIgnoreCase(command);
+        if (isLocked) {
+          currentDatabase.lock();
+        }
+        try {
+          if ("put".equalsIgnoreCase(command)) {
+            if (commandParts.length > 1) {
+              // check if the file is exist in the current /csv dir, if not print "incorrect file name"
+              // if the file name is correct
+              // Define the directory where you expect the CSV files to be
+              String directoryPath = "./csvs";
+              File directory = new File(directoryPath);
+
+              // Ensure the directory exists
+              if (!directory.exists() || !directory.isDirectory()) {
+                System.out.println("The CSV directory does not exist.");
+                // Optionally, you can create the directory here if you want
+                // directory.mkdirs();
               } else {
-                // If the file does not exist, print an error message
-                System.out.println("Incorrect file name or the file does not exist in the ./csv directory.");
+                // put <file name> [<file name> ...] [-compress] [-hash | -learned | -clustered], several files are
+                // stored concurrently, -compress stores the data blocks compressed, -hash indexes the keys in a hash
+                // index, -learned adds a learned index over the data blocks to the B-tree and -clustered stores the
+                // records in key order as the leaves of the index
+                boolean isCompressed = false;
+                char indexType = FCB.BTREE_INDEX;
+                List<String> fileNames = new ArrayList<>();
+                boolean isValid = true;
+                String[] arguments = input.trim().split("\\s+");
+                for (int i = 1; i < arguments.length; i++) {
+                  String fileName = arguments[i];
+                  if ("-compress".equalsIgnoreCase(fileName)) {
+                    isCompressed = true;
+                    continue;
+                  }
+                  if ("-hash".equalsIgnoreCase(fileName)) {
+                    indexType = FCB.HASH_INDEX;
+                    continue;
+                  }
+                  if ("-learned".equalsIgnoreCase(fileName)) {
+                    indexType = FCB.LEARNED_INDEX;
+                    continue;
+                  }
+                  if ("-clustered".equalsIgnoreCase(fileName)) {
+                    indexType = FCB.CLUSTERED_INDEX;
+                    continue;
+                  }
+                  // Check if the file exists and is not a directory
+                  File file = new File(directoryPath + "/" + fileName);
+                  if (!file.exists() || file.isDirectory()) {
+                    // If the file does not exist, print an error message
+                    System.out.println("Incorrect file name or the file does not exist in the ./csv directory: "
+                            + fileName);
+                    isValid = false;
+                  } else if (currentDatabase.findFCBByName(fileName) != null) {
+                    System.out.println(fileName + " already exists, rm it first.");
+                    isValid = false;
+                  } else if (fileNames.contains(fileName)) {
+                    System.out.println(fileName + " is listed twice.");
+                    isValid = false;
+                  } else {
+                    fileNames.add(fileName);
+                  }
+                }
+                if (isValid && fileNames.isEmpty()) {
+                  System.out.println("Missing filename for 'put' command.");
+                } else if (isValid) {
+                  // If the files exist, proceed with uploading them to the database
+                  currentDatabase.uploadFCBFiles(fileNames, isCompressed, indexType);
+                }
               }
+            } else {
+              System.out.println("Missing filename for 'put' command.");
             }
-          } else {
-            System.out.println("Missing filename for 'put' command.");
-          }
 
-        } else if ("get".equalsIgnoreCase(command)) {
-          if (commandParts.length > 1) {
-            String fileName = commandParts[1];
-            // find the fcb
-            FCB fcb = currentDatabase.findFCBByName(fileName);
-            System.out.println(fileName + " is downloaded in ./download.");
-            if (fcb == null) {
-              System.out.println("FCB file not found.");
+          } else if ("get".equalsIgnoreCase(command)) {
+            // get <file name> [key] [gzip]
+            if (commandParts.length > 1) {
+              String fileName = commandParts[1];
+              boolean isKeyOrder = false;
+              boolean isGzip = false;
+              for (String option : commandParts.length > 2 ? commandParts[2].trim().split("\\s+") : new String[0]) {
+                if ("key".equalsIgnoreCase(option)) {
+                  isKeyOrder = true;
+                } else if ("gzip".equalsIgnoreCase(option)) {
+                  isGzip = true;
+                } else {
+                  System.out.println("Unknown option " + option + ", must be key or gzip.");
+                  fileName = null;
+                }
+              }
+              if (fileName == null) {
+                continue;
+              }
+              // find the fcb
+              FCB fcb = currentDatabase.findFCBByName(fileName);
+              if (fcb == null) {
+                System.out.println("FCB file not found.");
+                continue;
+              }
+
+              if (currentDatabase.exportFCBFile(fcb, isKeyOrder, isGzip) >= 0) {
+                System.out.println(fileName + " is downloaded in ./download.");
+              }
+
+            } else {
+              System.out.println("Missing filename for 'get' command.");
+            }
+
+          } else if ("dir".equalsIgnoreCase(command)) {
+            //if fcblist is empty
+            if (currentDatabase.getFcbList().size() == 0) {
+              System.out.println("No FCB files found.");
               continue;
             }
+            currentDatabase.showFCBs();
+          } else if ("find".equalsIgnoreCase(command) && commandParts.length > 2) {
+            // find <file name> <column> <value>: the records whose column is the value or has it as a token
+            String[] columnParts = commandParts[2].trim().split("\\s+", 2);
+            FCB fcb = findFile(currentDatabase, commandParts[1]);
+            int column = RecordFilter.parseColumn(columnParts[0]);
+            if (columnParts.length < 2 || column < 2) {
+              System.out.println("Invalid Input mast be: find <File Name> <Column> <Value>, the column from 2");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              String value = columnParts[1].replaceAll("^['\"]|['\"]$", "");
+              char quote = value.indexOf('\'') == -1 ? '\'' : '"';
+              RecordFilter filter = RecordFilter.parse(column + " has " + quote + value + quote);
+              if (filter != null) {
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1)));
+                currentDatabase.scanFCBFile(fcb, filter, out);
+                out.flush();
+              }
+            }
+
+          } else if ("find".equalsIgnoreCase(command)) {
+            if (commandParts.length > 1) {
+              String fileInfo = commandParts[1]; // <file name>.<index>
+              String[] parts = fileInfo.split("\\.");
+              if (parts.length != 2 || parts[0] == "" || parts[1] == "") {
+                System.out.println("Invalid Input mast be: find <File Name>.<Key>");
+              } else {
+                long key = -1;
+                boolean isValidInt = false;
+                try {
+                  key = Long.parseLong(parts[1]);
+                  isValidInt = true;
+                } catch (java.lang.NumberFormatException e) {
+                  // Handle the error scenario, e.g., print an error message or take corrective action
+  //              System.out.println("The string " + parts[1] + " cannot be parsed as an integer.");
+                  System.out.println("Invalid input" + e.getMessage());
+                }
+
+                if(isValidInt) {
+                  // hash lookup of <file name>.csv in the FCB catalog
+                  FCB fcb = currentDatabase.findFCBByName(parts[0] + ".csv");
+                  if (fcb != null) {
+                    currentDatabase.find(fcb, key);
+                  } else {
+                    System.out.println("Can't find this file");
+                  }
+                }
+              }
 
-            if (fcb != null) {
-              currentDatabase.downloadFCBFile(fcb);
             }
+          } else if ("rm".equalsIgnoreCase(command)) {
+            if (commandParts.length > 1) {
+              String FCBName = commandParts[1];
+
+              // find the fcb
+              FCB fcb = currentDatabase.findFCBByName(FCBName);
+              if (fcb == null) {
+                System.out.println("FCB file not found.");
+                continue;
+              }
 
-          } else {
-            System.out.println("Missing filename for 'get' command.");
-          }
+              if (fcb != null) {
+                // tombstone the FCB, its blocks are reclaimed in the background
+                currentDatabase.removeFCBFile(FCBName);
+                System.out.println("FCB " + FCBName + " removed.");
+              }
 
-        } else if ("dir".equalsIgnoreCase(command)) {
-          //if fcblist is empty
-          if (currentDatabase.getFcbList().size() == 0) {
-            System.out.println("No FCB files found.");
-            continue;
-          }
-          currentDatabase.showFCBs();
-        } else if ("find".equalsIgnoreCase(command)) {
-          if (commandParts.length > 1) {
-            String fileInfo = commandParts[1]; // <file name>.<index>
-            String[] parts = fileInfo.split("\\.");
-            if (parts.length != 2 || parts[0] == "" || parts[1] == "") {
-              System.out.println("Invalid Input mast be: find <File Name>.<Key>");
             } else {
-              int key = -1;
-              boolean isValidInt = false;
-              try {
-                key = Integer.parseInt(parts[1]);
-                isValidInt = true;
-              } catch (java.lang.NumberFormatException e) {
-                // Handle the error scenario, e.g., print an error message or take corrective action
-//              System.out.println("The string " + parts[1] + " cannot be parsed as an integer.");
-                System.out.println("Invalid input" + e.getMessage());
+              System.out.println("Missing filename for 'rm' command.");
+            }
+
+          } else if ("append".equalsIgnoreCase(command)) {
+            // append <file name> <csv file name>
+            if (commandParts.length > 2) {
+              FCB fcb = findFile(currentDatabase, commandParts[1]);
+              File file = new File("./csvs/" + commandParts[2].trim());
+              if (fcb == null) {
+                System.out.println("Can't find this file");
+              } else if (!file.exists() || file.isDirectory()) {
+                System.out.println("Incorrect file name or the file does not exist in the ./csv directory.");
+              } else {
+                currentDatabase.appendFCBFile(fcb, commandParts[2].trim());
               }
+            } else {
+              System.out.println("Invalid Input mast be: append <File Name> <CSV File Name>");
+            }
 
-              if(isValidInt) {
-                boolean isFound = false;
-                System.out.println("current csv files:");
-                for(int i=0; i< currentDatabase.getFcbList().size(); i++) {
-                  String[] filePath = currentDatabase.getFcbList().get(i).getName().split("\\.");
-                  System.out.println(filePath[0]);
-                  if (filePath[0].equals(parts[0])) {
-                    isFound = true;
-                    BlockPointer root =
-                            new BlockPointer(currentDatabase.getFcbList().get(i).getIndexStartBlock());
-
-                    currentDatabase.find(root, key);
-                    break;
-                  }
-                }
+          } else if ("insert".equalsIgnoreCase(command)) {
+            // insert <file name> <row>
+            if (commandParts.length > 2) {
+              FCB fcb = findFile(currentDatabase, commandParts[1]);
+              if (fcb == null) {
+                System.out.println("Can't find this file");
+              } else if (currentDatabase.insertRecord(fcb, commandParts[2])) {
+                System.out.println("Record inserted into " + fcb.getName() + ".");
+              }
+            } else {
+              System.out.println("Invalid Input mast be: insert <File Name> <Row>");
+            }
 
-                if(! isFound ){
-                  System.out.println("Can't find this file");
-                }
+          } else if ("update".equalsIgnoreCase(command) || "delete".equalsIgnoreCase(command)) {
+            // update <file name>.<key> <row>, delete <file name>.<key>
+            boolean isUpdate = "update".equalsIgnoreCase(command);
+            int keyIndex = commandParts.length > 1 ? commandParts[1].lastIndexOf('.') : -1;
+            if (keyIndex <= 0 || (isUpdate && commandParts.length < 3)) {
+              System.out.println("Invalid Input mast be: " + (isUpdate ? "update <File Name>.<Key> <Row>"
+                      : "delete <File Name>.<Key>"));
+              continue;
+            }
+            long key;
+            try {
+              key = Long.parseLong(commandParts[1].substring(keyIndex + 1));
+            } catch (NumberFormatException e) {
+              System.out.println("Invalid input" + e.getMessage());
+              continue;
+            }
+            FCB fcb = findFile(currentDatabase, commandParts[1].substring(0, keyIndex));
+            if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else if (isUpdate && currentDatabase.updateRecord(fcb, key, commandParts[2])) {
+              System.out.println("Record " + key + " updated in " + fcb.getName() + ".");
+            } else if (!isUpdate && currentDatabase.deleteRecord(fcb, key)) {
+              System.out.println("Record " + key + " deleted from " + fcb.getName() + ".");
+            }
+
+          } else if ("count".equalsIgnoreCase(command)) {
+            // count <file name> [where <field> <op> <value> [and ...]] [group by <field>]
+            Matcher matcher = COUNT_PATTERN.matcher(commandParts.length > 2 ? commandParts[2].trim() : "");
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (commandParts.length < 2 || !matcher.matches()) {
+              System.out.println("Invalid Input mast be: count <File Name> [where <Field> <Op> <Value> [and ...]]"
+                      + " [group by <Field>]");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              RecordFilter filter = matcher.group(1) == null ? RecordFilter.ALL : RecordFilter.parse(matcher.group(1));
+              int groupColumn = matcher.group(2) == null ? -1 : RecordFilter.parseColumn(matcher.group(2));
+              if (matcher.group(2) != null && groupColumn == -1) {
+                System.out.println("Unknown field " + matcher.group(2) + ", must be key, record or a column number from 1.");
+              } else if (filter != null) {
+                currentDatabase.countFCBFile(fcb, filter, groupColumn);
               }
             }
 
-          }
-        } else if ("rm".equalsIgnoreCase(command)) {
-          if (commandParts.length > 1) {
-            String FCBName = commandParts[1];
-            char[] fcbBlock = currentDatabase.getFirstPFS().getContent()[5];
+          } else if ("min".equalsIgnoreCase(command) || "max".equalsIgnoreCase(command)) {
+            // min <file name>, max <file name>
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (commandParts.length < 2) {
+              System.out.println("Invalid Input mast be: " + command.toLowerCase() + " <File Name>");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              currentDatabase.findEdgeKey(fcb, "min".equalsIgnoreCase(command));
+            }
+
+          } else if ("createindex".equalsIgnoreCase(command)) {
+            // createindex <file name> <column>
+            FCB fcb = commandParts.length > 2 ? findFile(currentDatabase, commandParts[1]) : null;
+            int column = commandParts.length > 2 ? RecordFilter.parseColumn(commandParts[2].trim()) : -1;
+            if (commandParts.length < 3 || column < 2) {
+              System.out.println("Invalid Input mast be: createindex <File Name> <Column>, the column from 2");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              currentDatabase.createSecondaryIndex(fcb, column);
+            }
+
+          } else if ("bloom".equalsIgnoreCase(command)) {
+            // bloom <file name>
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (commandParts.length < 2) {
+              System.out.println("Invalid Input mast be: bloom <File Name>");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              currentDatabase.showBloomFilter(fcb);
+            }
+
+          } else if ("learned".equalsIgnoreCase(command)) {
+            // learned <file name>
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (commandParts.length < 2) {
+              System.out.println("Invalid Input mast be: learned <File Name>");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else {
+              currentDatabase.showLearnedIndex(fcb);
+            }
 
-            // find the fcb
-            FCB fcb = currentDatabase.findFCBByName(FCBName);
+          } else if ("join".equalsIgnoreCase(command)) {
+            // join <file name> <file name>
+            FCB first = commandParts.length > 2 ? findFile(currentDatabase, commandParts[1]) : null;
+            FCB second = commandParts.length > 2 ? findFile(currentDatabase, commandParts[2].trim()) : null;
+            if (commandParts.length < 3) {
+              System.out.println("Invalid Input mast be: join <File Name> <File Name>");
+            } else if (first == null || second == null) {
+              System.out.println("Can't find this file");
+            } else {
+              // the rows are streamed out, System.out itself is not closed
+              PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1)));
+              currentDatabase.joinFCBFiles(first, second, out);
+              out.flush();
+            }
+
+          } else if ("page".equalsIgnoreCase(command)) {
+            // page <file name> <batch size> [from <key> | chain | <resume token>]
+            String[] pageParts = commandParts.length > 2 ? commandParts[2].trim().split("\\s+") : new String[0];
+            int batchSize;
+            try {
+              batchSize = pageParts.length > 0 ? Integer.parseInt(pageParts[0]) : 0;
+            } catch (NumberFormatException e) {
+              batchSize = 0;
+            }
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (batchSize < 1 || pageParts.length > 3 || (pageParts.length == 3 && !"from".equalsIgnoreCase(pageParts[1]))) {
+              System.out.println("Invalid Input mast be: page <File Name> <Batch Size> [from <Key> | chain | <Token>]");
+              continue;
+            }
             if (fcb == null) {
-              System.out.println("FCB file not found.");
+              System.out.println("Can't find this file");
               continue;
             }
-
-            if (fcb != null) {
-
-              int fcbIndex = currentDatabase.getFcbList().indexOf(fcb);
-              PFS pfs = currentDatabase.getFirstPFS();
-
-              currentDatabase.deleteFCBFile(fcb);
-              currentDatabase.cleanAll(fcb);
-              currentDatabase.deleteOneFCBFile();
-              currentDatabase.getFirstPFS().updateSuperBlock();
-              currentDatabase.removeFCB(FCBName);
-              pfs.removeElements(fcbBlock, fcbIndex);
-//              System.out.println("FCB content after removal:");
-//              System.out.println(fcbBlock);
-              pfs.updateFCBBlock(5, fcbBlock);
-              pfs.updateFCBMetadata(currentDatabase.getFcbList());
+            RecordCursor cursor;
+            if (pageParts.length == 1) {
+              cursor = currentDatabase.openCursor(fcb, Long.MIN_VALUE);
+            } else if (pageParts.length == 3) {
+              try {
+                cursor = currentDatabase.openCursor(fcb, Long.parseLong(pageParts[2]));
+              } catch (NumberFormatException e) {
+                System.out.println("Invalid input" + e.getMessage());
+                continue;
+              }
+            } else if ("chain".equalsIgnoreCase(pageParts[1])) {
+              cursor = currentDatabase.openChainCursor(fcb);
+            } else {
+              cursor = currentDatabase.openCursor(fcb, pageParts[1]);
+            }
+            if (cursor == null) {
+              System.out.println("Invalid resume token: " + pageParts[1]);
+              continue;
+            }
+            for (String record : cursor.next(batchSize)) {
+              System.out.println(record);
+            }
+            String token = cursor.getResumeToken();
+            System.out.println(token == null ? "End of " + fcb.getName() + "."
+                    : "Next page: page " + fcb.getName() + " " + batchSize + " " + token);
+
+          } else if ("scan".equalsIgnoreCase(command)) {
+            // scan <file name> [where <field> <op> <value> [and <field> <op> <value> ...]]
+            RecordFilter filter = RecordFilter.ALL;
+            if (commandParts.length > 2) {
+              String[] whereParts = commandParts[2].trim().split("\\s+", 2);
+              if (!"where".equalsIgnoreCase(whereParts[0]) || whereParts.length < 2) {
+                System.out.println("Invalid Input mast be: scan <File Name> [where <Field> <Op> <Value> [and ...]]");
+                continue;
+              }
+              filter = RecordFilter.parse(whereParts[1]);
+            }
+            FCB fcb = commandParts.length > 1 ? findFile(currentDatabase, commandParts[1]) : null;
+            if (commandParts.length < 2) {
+              System.out.println("Invalid Input mast be: scan <File Name> [where <Field> <Op> <Value> [and ...]]");
+            } else if (fcb == null) {
+              System.out.println("Can't find this file");
+            } else if (filter != null) {
+              // the matches are streamed out, System.out itself is not closed
+              PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1)));
+              currentDatabase.scanFCBFile(fcb, filter, out);
+              out.flush();
             }
 
           } else {
-            System.out.println("Missing filename for 'rm' command.");
+            System.out.println("Unknown command or command not available outside a database context.");
+          }
+        } finally {
+          if (isLocked) {
+            currentDatabase.unlock();
           }
-
-        } else {
-          System.out.println("Unknown command or command not available outside a database context.");
         }
 
 
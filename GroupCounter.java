@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+/**
+ * Counts records by the value of a column, for count ... group by.
+ *
+ * An open addressing hash table of group numbers over primitive arrays: the chars of each value are copied once
+ * into a char pool when the group is first seen, and the counts are in a long array, so counting a record of a
+ * known group allocates nothing. Each scan range has its own counter, and the counters are merged with addAll.
+ */
+public class GroupCounter {
+  private int[] table = new int[64]; // group number + 1 in each slot, 0 for an empty slot
+  private int[] hashes = new int[32]; // hash of the value of each group
+  private int[] starts = new int[33]; // where the value of each group starts in the pool, the next start ends it
+  private long[] counts = new long[32];
+  private char[] pool = new char[256];
+  private int groups;
+
+  /**
+   * Adds to the count of a value.
+   *
+   * @param chars The buffer holding the value.
+   * @param start Where the value starts.
+   * @param end   Where the value ends.
+   * @param count The number of records to add.
+   */
+  public void add(char[] chars, int start, int end, long count) {
+    int hash = 1;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    int mask = table.length - 1;
+    int slot = mix(hash) & mask;
+    while (table[slot] != 0) {
+      int group = table[slot] - 1;
+      if (hashes[group] == hash && equals(group, chars, start, end)) {
+        counts[group] += count;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    // a new group
+    if (groups == counts.length) {
+      hashes = Arrays.copyOf(hashes, groups * 2);
+      starts = Arrays.copyOf(starts, groups * 2 + 1);
+      counts = Arrays.copyOf(counts, groups * 2);
+    }
+    int poolEnd = starts[groups];
+    if (poolEnd + end - start > pool.length) {
+      pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolEnd + end - start));
+    }
+    System.arraycopy(chars, start, pool, poolEnd, end - start);
+    starts[groups + 1] = poolEnd + end - start;
+    hashes[groups] = hash;
+    counts[groups] = count;
+    table[slot] = ++groups;
+    if (groups * 2 > table.length) {
+      rehash();
+    }
+  }
+
+  // adds the counts of another counter, e.g. of another scan range
+  public void addAll(GroupCounter other) {
+    for (int group = 0; group < other.groups; group++) {
+      add(other.pool, other.starts[group], other.starts[group + 1], other.counts[group]);
+    }
+  }
+
+  // the number of groups
+  public int size() {
+    return groups;
+  }
+
+  public String getValue(int group) {
+    return new String(pool, starts[group], starts[group + 1] - starts[group]);
+  }
+
+  public long getCount(int group) {
+    return counts[group];
+  }
+
+  private boolean equals(int group, char[] chars, int start, int end) {
+    int from = starts[group];
+    if (starts[group + 1] - from != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (pool[from++] != chars[i]) return false;
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int group = 0; group < groups; group++) {
+      int slot = mix(hashes[group]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = group + 1;
+    }
+  }
+
+  // spreads the high bits of a String-like hash over the low bits used by the table
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
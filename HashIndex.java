@@ -0,0 +1,493 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The hash index of a file, chosen with put -hash instead of the B-tree: a linear hash table of the keys, so find
+ * reads about one index block for a key instead of one block per level of the B-tree.
+ *
+ * A bucket is a chain of blocks {# of keys, overflow block, keyPointer0 keyPointer1 ...}, NULL_PTR for an empty
+ * bucket. The directory holds the first block of each bucket, {# of buckets, next directory block, bucket0
+ * bucket1 ...}, and the FCB points to its first block. The fields are binary like the nodes of IndexTree: 2 bytes
+ * for a count, 6 for a block pointer and 16 for a KeyPointer, so a 256-byte bucket block holds 15 keys and a
+ * directory block 41 buckets. The directory is read once and kept in memory (see DB.openIndex), so a lookup only
+ * reads the blocks of one bucket.
+ *
+ * With n buckets a key goes to bucket h mod 2p, or h mod p if that is n or more, where h is the mixed key and p is
+ * the largest power of 2 <= n (linear hashing). build makes as many buckets as it takes to fill BUILD_LOAD of the
+ * slots of one block each, the buckets of more keys than a block holds get an overflow block, which a higher load
+ * would make more common and a lower one would leave as empty slots. When the keys fill SPLIT_LOAD of the slots one
+ * bucket is added and the keys of the bucket it splits from which hash to it move there, so the table grows one
+ * bucket at a time and an insert rehashes at most one bucket. A delete moves the last key of the bucket into its
+ * slot and frees an overflow block which became empty; buckets are never merged. The keys have no order in the
+ * table, so first, last and iterator read every bucket.
+ */
+public class HashIndex implements KeyIndex {
+  public static final double BUILD_LOAD = 0.85; // share of the slots used when the index is built
+  public static final double SPLIT_LOAD = 0.9; // share of the slots used before a bucket is added
+  private static final int COUNT_LENGTH = 2; // # of keys or buckets in a block
+  private static final int NEXT_LENGTH = 6; // 48-bit BlockPointer of the next block of the chain
+  private static final int BUCKET_LENGTH = 6; // 48-bit BlockPointer of the first block of a bucket
+
+  private final DB db;
+  private final int slots; // KeyPointers in one bucket block
+  private final List<String> buckets = new ArrayList<>(); // the first block of each bucket
+  private final List<String> directoryPtrs = new ArrayList<>(); // the blocks of the directory
+  private final BitSet changedDirectory = new BitSet(); // directory blocks to write
+  private long keys;
+  private int blockDelta; // index blocks allocated minus index blocks freed
+  private int keyDelta; // keys inserted minus keys deleted
+  private int blocksRead; // bucket blocks read from the PFS files
+
+  private HashIndex(DB db, long keys) {
+    this.db = db;
+    this.slots = (db.getBlockSize() - COUNT_LENGTH - NEXT_LENGTH) / IndexTree.ENTRY_LENGTH;
+    this.keys = keys;
+  }
+
+  /**
+   * Builds the hash index of a file in new blocks: the directory, then the buckets one after the other.
+   *
+   * @param db          The database, the caller flushes the blocks.
+   * @param keyPointers The KeyPointers of the file, the keys are unique.
+   * @return The index, its block delta is the number of blocks it takes.
+   */
+  public static HashIndex build(DB db, List<KeyPointer> keyPointers) {
+    HashIndex index = new HashIndex(db, keyPointers.size());
+    int bucketCount = (int) Math.max(1, Math.ceil(keyPointers.size() / (BUILD_LOAD * index.slots)));
+
+    // counting sort of the KeyPointers by bucket
+    int[] starts = new int[bucketCount + 1];
+    int[] bucketOf = new int[keyPointers.size()];
+    for (int i = 0; i < keyPointers.size(); i++) {
+      bucketOf[i] = bucket(keyPointers.get(i).getKey(), bucketCount);
+      starts[bucketOf[i] + 1]++;
+    }
+    int bucketBlocks = 0;
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      bucketBlocks += (starts[bucket + 1] + index.slots - 1) / index.slots;
+      starts[bucket + 1] += starts[bucket];
+    }
+    KeyPointer[] sorted = new KeyPointer[keyPointers.size()];
+    int[] next = Arrays.copyOf(starts, bucketCount);
+    for (int i = 0; i < keyPointers.size(); i++) {
+      sorted[next[bucketOf[i]]++] = keyPointers.get(i);
+    }
+
+    int perBlock = entriesPerBlock(db);
+    int directoryBlocks = (bucketCount + perBlock - 1) / perBlock;
+    List<String> region = db.allocateBlocks(directoryBlocks + bucketBlocks);
+    index.directoryPtrs.addAll(region.subList(0, directoryBlocks));
+    int nextBlock = directoryBlocks;
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      int count = starts[bucket + 1] - starts[bucket];
+      int blocks = (count + index.slots - 1) / index.slots;
+      List<String> chain = region.subList(nextBlock, nextBlock + blocks);
+      index.buckets.add(blocks == 0 ? BlockPointer.NULL_PTR : chain.get(0));
+      index.writeChain(chain, Arrays.asList(sorted).subList(starts[bucket], starts[bucket + 1]));
+      nextBlock += blocks;
+    }
+    index.changedDirectory.set(0, directoryBlocks);
+    index.write();
+    index.blockDelta = region.size();
+    return index;
+  }
+
+  /**
+   * Reads the directory of the hash index of a file.
+   *
+   * @param db   The database.
+   * @param head The first directory block, the index start block of the file.
+   * @param keys The number of keys in the index.
+   * @return The index.
+   */
+  public static HashIndex read(DB db, String head, long keys) {
+    HashIndex index = new HashIndex(db, keys);
+    for (String ptr : directoryBlocks(db, head)) {
+      index.directoryPtrs.add(ptr);
+      index.buckets.addAll(decodeDirectory(getBlock(db, ptr)));
+    }
+    return index;
+  }
+
+  // starts counting the blocks read and the changes again, DB.openIndex hands out the same index every time
+  public void reset() {
+    blockDelta = 0;
+    keyDelta = 0;
+    blocksRead = 0;
+  }
+
+  public String search(long key) {
+    String ptr = buckets.get(bucket(key, buckets.size()));
+    while (isPointer(ptr)) {
+      char[] content = getBlock(db, ptr);
+      blocksRead++;
+      int count = (int) IndexTree.getBytes(content, 0, COUNT_LENGTH);
+      for (int i = 0; i < count; i++) {
+        int offset = COUNT_LENGTH + NEXT_LENGTH + i * IndexTree.ENTRY_LENGTH;
+        if (IndexTree.getBytes(content, offset, 8) == key) {
+          return BlockPointer.toHex(IndexTree.getBytes(content, offset + 8, 8), DataBlockPointer.LENGTH);
+        }
+      }
+      ptr = nextPtr(content);
+    }
+    return null;
+  }
+
+  public boolean insert(KeyPointer keyPointer) {
+    int bucket = bucket(keyPointer.getKey(), buckets.size());
+    List<String> chain = new ArrayList<>();
+    List<KeyPointer> entries = readChain(buckets.get(bucket), chain);
+    for (KeyPointer entry : entries) {
+      if (entry.getKey() == keyPointer.getKey()) {
+        return false;
+      }
+    }
+    entries.add(keyPointer);
+    writeBucket(bucket, chain, entries);
+    keys++;
+    keyDelta++;
+    if (keys > SPLIT_LOAD * slots * buckets.size()) {
+      split();
+    }
+    return true;
+  }
+
+  public boolean delete(long key) {
+    int bucket = bucket(key, buckets.size());
+    List<String> chain = new ArrayList<>();
+    List<KeyPointer> entries = readChain(buckets.get(bucket), chain);
+    if (!entries.removeIf(entry -> entry.getKey() == key)) {
+      return false;
+    }
+    writeBucket(bucket, chain, entries);
+    keys--;
+    keyDelta--;
+    return true;
+  }
+
+  public boolean updatePointer(long key, String pointer) {
+    int bucket = bucket(key, buckets.size());
+    List<String> chain = new ArrayList<>();
+    List<KeyPointer> entries = readChain(buckets.get(bucket), chain);
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i).getKey() == key) {
+        entries.set(i, new KeyPointer(key, pointer));
+        writeBucket(bucket, chain, entries);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the bucket blocks are written as they change, only the directory is left
+  public void write() {
+    int perBlock = entriesPerBlock(db);
+    for (int i = changedDirectory.nextSetBit(0); i >= 0; i = changedDirectory.nextSetBit(i + 1)) {
+      char[] content = new char[db.getBlockSize()];
+      String nextPtr = i + 1 < directoryPtrs.size() ? directoryPtrs.get(i + 1) : BlockPointer.NULL_PTR;
+      encodeDirectory(content, buckets.subList(i * perBlock, Math.min(buckets.size(), (i + 1) * perBlock)), nextPtr);
+      BlockPointer bp = new BlockPointer(directoryPtrs.get(i));
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    }
+    changedDirectory.clear();
+  }
+
+  public String getRoot() {
+    return directoryPtrs.get(0);
+  }
+
+  public int getBlockDelta() {
+    return blockDelta;
+  }
+
+  public int getKeyDelta() {
+    return keyDelta;
+  }
+
+  public int getBucketCount() {
+    return buckets.size();
+  }
+
+  public int getDirectoryBlocks() {
+    return directoryPtrs.size();
+  }
+
+  public KeyPointer first() {
+    Iterator<KeyPointer> keyPointers = iterator(Long.MIN_VALUE);
+    return keyPointers.hasNext() ? keyPointers.next() : null;
+  }
+
+  public KeyPointer last() {
+    KeyPointer last = null;
+    for (int bucket = 0; bucket < buckets.size(); bucket++) {
+      for (KeyPointer entry : readChain(buckets.get(bucket), new ArrayList<>())) {
+        if (last == null || entry.getKey() > last.getKey()) {
+          last = entry;
+        }
+      }
+    }
+    return last;
+  }
+
+  /**
+   * Reads every bucket and sorts the keys >= fromKey, the table has no key order. Unlike the B-tree this holds the
+   * KeyPointers in memory.
+   *
+   * @param fromKey The first key to return if it is in the index, Long.MIN_VALUE for every key.
+   * @return The KeyPointers in key order.
+   */
+  public Iterator<KeyPointer> iterator(long fromKey) {
+    List<KeyPointer> keyPointers = new ArrayList<>();
+    Iterator<KeyPointer> entries = entries();
+    while (entries.hasNext()) {
+      KeyPointer entry = entries.next();
+      if (entry.getKey() >= fromKey) {
+        keyPointers.add(entry);
+      }
+    }
+    keyPointers.sort(Comparator.comparingLong(KeyPointer::getKey));
+    return keyPointers.iterator();
+  }
+
+  /**
+   * Walks the keys bucket by bucket, in no key order. Only the blocks of one bucket are held at a time.
+   *
+   * @return The KeyPointers of every bucket.
+   */
+  public Iterator<KeyPointer> entries() {
+    return new Iterator<KeyPointer>() {
+      private int bucket; // the next bucket to read
+      private Iterator<KeyPointer> chain = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!chain.hasNext() && bucket < buckets.size()) {
+          chain = readChain(buckets.get(bucket++), new ArrayList<>()).iterator();
+        }
+        return chain.hasNext();
+      }
+
+      @Override
+      public KeyPointer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return chain.next();
+      }
+    };
+  }
+
+  public int getBlocksRead() {
+    return blocksRead;
+  }
+
+  /**
+   * Lists the directory blocks of a hash index.
+   *
+   * @param db   The database.
+   * @param head The first directory block.
+   * @return The block pointers in order.
+   */
+  public static List<String> directoryBlocks(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    String ptr = head;
+    while (isPointer(ptr)) {
+      ptrs.add(ptr);
+      ptr = nextPtr(getBlock(db, ptr));
+    }
+    return ptrs;
+  }
+
+  /**
+   * Lists the bucket blocks of a hash index, each bucket with its overflow blocks.
+   *
+   * @param db   The database.
+   * @param head The first directory block.
+   * @return The block pointers in bucket order.
+   */
+  public static List<String> bucketBlocks(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    for (String directoryPtr : directoryBlocks(db, head)) {
+      for (String ptr : decodeDirectory(getBlock(db, directoryPtr))) {
+        while (isPointer(ptr)) {
+          ptrs.add(ptr);
+          ptr = nextPtr(getBlock(db, ptr));
+        }
+      }
+    }
+    return ptrs;
+  }
+
+  // the number of bucket pointers in one directory block
+  public static int entriesPerBlock(DB db) {
+    return (db.getBlockSize() - COUNT_LENGTH - NEXT_LENGTH) / BUCKET_LENGTH;
+  }
+
+  /**
+   * Reads the KeyPointers of a bucket block.
+   *
+   * @param block The bucket block.
+   * @return The KeyPointers, in no key order.
+   */
+  public static List<KeyPointer> decodeBucket(char[] block) {
+    int count = (int) IndexTree.getBytes(block, 0, COUNT_LENGTH);
+    List<KeyPointer> entries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int offset = COUNT_LENGTH + NEXT_LENGTH + i * IndexTree.ENTRY_LENGTH;
+      entries.add(new KeyPointer(IndexTree.getBytes(block, offset, 8),
+              BlockPointer.toHex(IndexTree.getBytes(block, offset + 8, 8), DataBlockPointer.LENGTH)));
+    }
+    return entries;
+  }
+
+  /**
+   * Writes a bucket block, the rest of the block is left as it is.
+   *
+   * @param block   The block.
+   * @param entries The KeyPointers, at most as many as a bucket block holds.
+   * @param next    The BlockPointer String of the overflow block, NULL_PTR for the last block of the bucket.
+   */
+  public static void encodeBucket(char[] block, List<KeyPointer> entries, String next) {
+    IndexTree.putBytes(block, 0, entries.size(), COUNT_LENGTH);
+    IndexTree.putBytes(block, COUNT_LENGTH, Long.parseLong(next, 16), NEXT_LENGTH);
+    for (int i = 0; i < entries.size(); i++) {
+      int offset = COUNT_LENGTH + NEXT_LENGTH + i * IndexTree.ENTRY_LENGTH;
+      IndexTree.putBytes(block, offset, entries.get(i).getKey(), 8);
+      IndexTree.putBytes(block, offset + 8, Long.parseUnsignedLong(entries.get(i).getPointer(), 16), 8);
+    }
+  }
+
+  /**
+   * Reads the buckets of a directory block.
+   *
+   * @param block The directory block.
+   * @return The BlockPointer Strings of the first block of each bucket, NULL_PTR for an empty bucket.
+   */
+  public static List<String> decodeDirectory(char[] block) {
+    int count = (int) IndexTree.getBytes(block, 0, COUNT_LENGTH);
+    List<String> buckets = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      buckets.add(BlockPointer.toHex(IndexTree.getBytes(block, COUNT_LENGTH + NEXT_LENGTH + i * BUCKET_LENGTH,
+              BUCKET_LENGTH), BlockPointer.LENGTH));
+    }
+    return buckets;
+  }
+
+  /**
+   * Writes a directory block, the rest of the block is left as it is.
+   *
+   * @param block   The block.
+   * @param buckets The BlockPointer Strings of at most entriesPerBlock buckets.
+   * @param next    The BlockPointer String of the next directory block, NULL_PTR for the last one.
+   */
+  public static void encodeDirectory(char[] block, List<String> buckets, String next) {
+    IndexTree.putBytes(block, 0, buckets.size(), COUNT_LENGTH);
+    IndexTree.putBytes(block, COUNT_LENGTH, Long.parseLong(next, 16), NEXT_LENGTH);
+    for (int i = 0; i < buckets.size(); i++) {
+      IndexTree.putBytes(block, COUNT_LENGTH + NEXT_LENGTH + i * BUCKET_LENGTH, Long.parseLong(buckets.get(i), 16),
+              BUCKET_LENGTH);
+    }
+  }
+
+  // the BlockPointer String of the next block of a bucket or of the directory, NULL_PTR for the last one
+  public static String nextPtr(char[] block) {
+    return BlockPointer.toHex(IndexTree.getBytes(block, COUNT_LENGTH, NEXT_LENGTH), BlockPointer.LENGTH);
+  }
+
+  // the bucket of a key with bucketCount buckets
+  private static int bucket(long key, int bucketCount) {
+    int p = Integer.highestOneBit(bucketCount);
+    int bucket = (int) (BloomFilter.mix(key) & (2L * p - 1));
+    return bucket < bucketCount ? bucket : bucket - p;
+  }
+
+  // adds a bucket and moves the keys which hash to it from the bucket it splits from
+  private void split() {
+    int newBucket = buckets.size();
+    int from = newBucket ^ Integer.highestOneBit(newBucket);
+    List<String> chain = new ArrayList<>();
+    List<KeyPointer> entries = readChain(buckets.get(from), chain);
+
+    buckets.add(BlockPointer.NULL_PTR);
+    int perBlock = entriesPerBlock(db);
+    if (buckets.size() > directoryPtrs.size() * perBlock) {
+      // the last directory block links the new one
+      changedDirectory.set(directoryPtrs.size() - 1);
+      directoryPtrs.add(allocate());
+    }
+    changedDirectory.set(newBucket / perBlock);
+
+    List<KeyPointer> staying = new ArrayList<>();
+    List<KeyPointer> moving = new ArrayList<>();
+    for (KeyPointer entry : entries) {
+      (bucket(entry.getKey(), buckets.size()) == newBucket ? moving : staying).add(entry);
+    }
+    writeBucket(from, chain, staying);
+    writeBucket(newBucket, new ArrayList<>(), moving);
+  }
+
+  // the KeyPointers of a bucket, chain gets the blocks of the bucket
+  private List<KeyPointer> readChain(String head, List<String> chain) {
+    List<KeyPointer> entries = new ArrayList<>();
+    String ptr = head;
+    while (isPointer(ptr)) {
+      chain.add(ptr);
+      char[] content = getBlock(db, ptr);
+      blocksRead++;
+      entries.addAll(decodeBucket(content));
+      ptr = nextPtr(content);
+    }
+    return entries;
+  }
+
+  // stores the KeyPointers of a bucket in its blocks, adding or freeing overflow blocks as needed
+  private void writeBucket(int bucket, List<String> chain, List<KeyPointer> entries) {
+    int blocks = (entries.size() + slots - 1) / slots;
+    while (chain.size() < blocks) {
+      chain.add(allocate());
+    }
+    while (chain.size() > blocks) {
+      String ptr = chain.remove(chain.size() - 1);
+      BlockPointer bp = new BlockPointer(ptr);
+      db.getPfsList().get(bp.getPfsNumber()).updateBitMap(bp.getBlockNumber(), false);
+      blockDelta--;
+    }
+    String head = blocks == 0 ? BlockPointer.NULL_PTR : chain.get(0);
+    if (!head.equals(buckets.get(bucket))) {
+      buckets.set(bucket, head);
+      changedDirectory.set(bucket / entriesPerBlock(db));
+    }
+    writeChain(chain, entries);
+  }
+
+  // {# of keys, next block, keyPointer0 keyPointer1 ...} in each block of the chain
+  private void writeChain(List<String> chain, List<KeyPointer> entries) {
+    for (int i = 0; i < chain.size(); i++) {
+      char[] content = new char[db.getBlockSize()];
+      String nextPtr = i + 1 < chain.size() ? chain.get(i + 1) : BlockPointer.NULL_PTR;
+      encodeBucket(content, entries.subList(i * slots, Math.min(entries.size(), (i + 1) * slots)), nextPtr);
+      BlockPointer bp = new BlockPointer(chain.get(i));
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    }
+  }
+
+  private String allocate() {
+    blockDelta++;
+    return db.allocateBlock();
+  }
+
+  private static char[] getBlock(DB db, String ptr) {
+    BlockPointer bp = new BlockPointer(ptr);
+    return db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the IndexTree of keys which come in ascending order, bottom up and as they come, so the keys of a file
+ * never have to be in memory at once (see KeyPointerSorter).
+ *
+ * The keys fill the leaves from left to right. A full leaf is written to its own block, the next key becomes the
+ * separator between it and the next leaf and goes up to the level above with the block of the leaf, and the levels
+ * above fill the same way with {child, separator} pairs. A level holds back its last full node until the node after
+ * it is full too, so at the end the last two nodes of a level can share their keys and the last node is not left
+ * with fewer than (nodeSize - 1) / 2 keys, as IndexTree.delete expects. A level holds at most these two nodes, the
+ * memory is a few blocks per level whatever the number of keys.
+ *
+ * All the leaves are at the same depth, and all the nodes but the last two of each level are full. The blocks are
+ * written to the PFS cache and flushed every FLUSH_BLOCKS blocks, the caller flushes the rest.
+ */
+public class IndexBuilder {
+  public static final int FLUSH_BLOCKS = 1024; // index blocks written between two flushes
+
+  private final DB db;
+  private final int nodeSize; // maximum number of keys in one node
+  private final List<Level> levels = new ArrayList<>(); // the leaves first
+  private final Set<PFS> changed = new HashSet<>();
+  private KeyPointer last; // the last key added
+  private long keys; // keys added
+  private int blocks; // index blocks written
+  private int duplicates; // keys skipped because they were already added
+
+  /**
+   * Starts an empty index.
+   *
+   * @param db The database.
+   */
+  public IndexBuilder(DB db) {
+    this.db = db;
+    this.nodeSize = db.getIndexNodeSize();
+    this.levels.add(new Level());
+  }
+
+  /**
+   * Adds the next key. A key which is already there keeps its first record, like Btree.Insert.
+   *
+   * @param keyPointer The key and the DataBlockPointer of its record, not smaller than the keys added before.
+   * @return False if the key was already added.
+   */
+  public boolean add(KeyPointer keyPointer) {
+    if (last != null && keyPointer.getKey() <= last.getKey()) {
+      if (keyPointer.getKey() < last.getKey()) {
+        throw new IllegalArgumentException("Keys must be added in ascending order: " + keyPointer.getKey()
+                + " after " + last.getKey() + ".");
+      }
+      duplicates++;
+      return false;
+    }
+    last = keyPointer;
+    keys++;
+    Level leaves = levels.get(0);
+    leaves.keys.add(keyPointer);
+    // a full leaf, its separator and a full leaf after it
+    if (leaves.keys.size() == 2 * nodeSize + 1) {
+      push(1, writeNode(leaves, nodeSize, 0), leaves.keys.remove(0));
+    }
+    return true;
+  }
+
+  /**
+   * Writes the nodes which are not written yet.
+   *
+   * @return The BlockPointer String of the root, NULL_PTR if no key was added.
+   */
+  public String finish() {
+    if (keys == 0) {
+      return BlockPointer.NULL_PTR;
+    }
+    String root = null;
+    for (int height = 0; root == null; height++) {
+      Level level = levels.get(height);
+      boolean isTop = height + 1 == levels.size();
+      int entries = height == 0 ? level.keys.size() : level.children.size() - 1;
+      if (entries <= nodeSize) {
+        String ptr = writeNode(level, entries, height == 0 ? 0 : entries + 1);
+        if (isTop) {
+          root = ptr;
+        } else {
+          levels.get(height + 1).children.add(ptr);
+        }
+      } else {
+        // the last two nodes share the entries, the left one takes the extra entry
+        int left = entries / 2;
+        String leftPtr = writeNode(level, left, height == 0 ? 0 : left + 1);
+        KeyPointer separator = level.keys.remove(0);
+        push(height + 1, leftPtr, separator);
+        int right = entries - left - 1;
+        levels.get(height + 1).children.add(writeNode(level, right, height == 0 ? 0 : right + 1));
+      }
+    }
+    for (PFS pfs : changed) {
+      pfs.writeContentToFile();
+    }
+    changed.clear();
+    return root;
+  }
+
+  public long getKeys() {
+    return keys;
+  }
+
+  public int getBlocks() {
+    return blocks;
+  }
+
+  public int getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * The number of index blocks finish() writes for a number of keys, e.g. to compare another index with a B-tree.
+   *
+   * @param keys     The number of distinct keys.
+   * @param nodeSize The maximum number of keys in one node.
+   * @return The number of blocks.
+   */
+  public static long blocks(long keys, int nodeSize) {
+    if (keys == 0) {
+      return 0;
+    }
+    long blocks = 0;
+    long entries = keys; // the keys of a level
+    // a leaf is written at 2 * nodeSize + 1 keys, a node above at 2 * (nodeSize + 1) {child, separator} pairs
+    long heldBack = nodeSize;
+    while (true) {
+      long written = Math.max(0, (entries - heldBack) / (nodeSize + 1));
+      long nodes = written + (entries - written * (nodeSize + 1) <= nodeSize ? 1 : 2);
+      blocks += nodes;
+      if (nodes == 1) {
+        return blocks;
+      }
+      entries = nodes - 1;
+      heldBack = nodeSize + 1;
+    }
+  }
+
+  // adds {child, separator} to a level, and writes its first node once a full node and its separator are behind it
+  private void push(int height, String child, KeyPointer separator) {
+    if (height == levels.size()) {
+      levels.add(new Level());
+    }
+    Level level = levels.get(height);
+    level.children.add(child);
+    level.keys.add(separator);
+    if (level.children.size() == 2 * (nodeSize + 1)) {
+      push(height + 1, writeNode(level, nodeSize, nodeSize + 1), level.keys.remove(0));
+    }
+  }
+
+  // writes the first keys and children of a level to a new block and removes them from the level
+  private String writeNode(Level level, int keyCount, int childCount) {
+    List<KeyPointer> nodeKeys = level.keys.subList(0, keyCount);
+    List<String> nodeChildren = level.children.subList(0, childCount);
+    char[] block = new char[db.getBlockSize()];
+    IndexTree.encodeNode(block, nodeKeys, nodeChildren);
+    String ptr = db.allocateBlock();
+    BlockPointer bp = new BlockPointer(ptr);
+    PFS pfs = db.getPfsList().get(bp.getPfsNumber());
+    pfs.writeContent(bp.getBlockNumber(), block);
+    changed.add(pfs);
+    nodeKeys.clear();
+    nodeChildren.clear();
+    if (++blocks % FLUSH_BLOCKS == 0) {
+      for (PFS written : changed) {
+        written.writeContentToFile();
+      }
+      changed.clear();
+    }
+    return ptr;
+  }
+
+  // the keys and the children of a level which are not written yet
+  private static class Level {
+    private final List<KeyPointer> keys = new ArrayList<>();
+    private final List<String> children = new ArrayList<>(); // none for the leaves
+  }
+}
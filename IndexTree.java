@@ -0,0 +1,562 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The persisted B-tree index of one file, changed in place one key at a time.
+ *
+ * The nodes are the index blocks written by IndexBuilder and encodeNode:
+ * {# of keys, child0 key0 child1 key1 ... key(n-1) child(n)}, leaves have NULL_PTR children. The fields are
+ * binary, one byte per char: 2 bytes for the # of keys, 6 for a child (BlockPointer), 8 for a key and 8 for the
+ * address of its record (DataBlockPointer), so a 256-byte block holds 11 keys where the hex Strings held 5.
+ * Only the nodes on the path of a key, their siblings and newly allocated nodes are read and written,
+ * so a change costs a few blocks instead of rebuilding the index of the whole file.
+ *
+ * A node holds at most DB.getIndexNodeSize() keys. It is split when an insert overflows it, and a node
+ * other than the root is rebalanced (borrow from a sibling or merge) when a delete leaves it with fewer
+ * than (nodeSize - 1) / 2 keys. The blocks of merged nodes are freed in the bitmap.
+ * The changed blocks are only written to the PFS cache, the caller flushes them.
+ */
+public class IndexTree implements KeyIndex {
+  public static final int COUNT_LENGTH = 2; // # of keys in a node
+  public static final int CHILD_LENGTH = 6; // 48-bit BlockPointer of a child
+  public static final int ENTRY_LENGTH = 16; // 64-bit key and 64-bit DataBlockPointer address
+  private static final long NULL_CHILD = 0xFFFFFFFFFFFFL; // BlockPointer.NULL_PTR
+
+  private DB db;
+  private int nodeSize; // maximum number of keys in one node
+  private String root; // BlockPointer String of the root block
+  private int blockDelta; // index blocks allocated minus index blocks freed
+  private int keyDelta; // keys inserted minus keys deleted
+  private int blocksRead; // index blocks read from the PFS files
+  private Map<String, IndexNode> changed; // nodes to write, by BlockPointer String
+
+  /**
+   * Opens the index of a file.
+   *
+   * @param db   The database.
+   * @param root The index start block of the file, NULL_PTR for an empty index.
+   */
+  public IndexTree(DB db, String root) {
+    this.db = db;
+    this.nodeSize = db.getIndexNodeSize();
+    this.root = root;
+    this.changed = new LinkedHashMap<>();
+  }
+
+  /**
+   * Looks up a key.
+   *
+   * @param key The key.
+   * @return The DataBlockPointer String of the record, or null if the key is not in the index.
+   */
+  public String search(long key) {
+    if (!isPointer(root)) {
+      return null;
+    }
+    IndexNode node = read(root);
+    while (true) {
+      int i = position(node, key);
+      if (i < node.keys.size() && node.keys.get(i).getKey() == key) {
+        return node.keys.get(i).getPointer();
+      }
+      if (node.isLeaf()) {
+        return null;
+      }
+      node = read(node.children.get(i));
+    }
+  }
+
+  /**
+   * Inserts a key. A full node is split and its median key moves up, a new root is added when the root splits.
+   *
+   * @param keyPointer The key and the DataBlockPointer of its record.
+   * @return False if the key is already in the index.
+   */
+  public boolean insert(KeyPointer keyPointer) {
+    if (!isPointer(root)) {
+      IndexNode leaf = new IndexNode(allocate());
+      root = leaf.ptr;
+      changed.put(leaf.ptr, leaf);
+    }
+
+    // the path from the root to the leaf, with the child # taken at each node
+    List<IndexNode> path = new ArrayList<>();
+    List<Integer> positions = new ArrayList<>();
+    IndexNode node = read(root);
+    while (true) {
+      int i = position(node, keyPointer.getKey());
+      if (i < node.keys.size() && node.keys.get(i).getKey() == keyPointer.getKey()) {
+        return false;
+      }
+      path.add(node);
+      positions.add(i);
+      if (node.isLeaf()) break;
+      node = read(node.children.get(i));
+    }
+
+    keyDelta++;
+    KeyPointer up = keyPointer;
+    String upChild = null; // the new right sibling of the node below
+    for (int level = path.size() - 1; level >= 0; level--) {
+      node = path.get(level);
+      int i = positions.get(level);
+      node.keys.add(i, up);
+      if (upChild != null) {
+        node.children.add(i + 1, upChild);
+      }
+      changed.put(node.ptr, node);
+      if (node.keys.size() <= nodeSize) {
+        return true;
+      }
+
+      // split: {left keys} median {right keys}
+      int mid = node.keys.size() / 2;
+      IndexNode right = new IndexNode(allocate());
+      right.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
+      up = node.keys.get(mid);
+      node.keys.subList(mid, node.keys.size()).clear();
+      if (!node.isLeaf()) {
+        right.children.addAll(node.children.subList(mid + 1, node.children.size()));
+        node.children.subList(mid + 1, node.children.size()).clear();
+      }
+      changed.put(right.ptr, right);
+      upChild = right.ptr;
+    }
+
+    // the root was split
+    IndexNode newRoot = new IndexNode(allocate());
+    newRoot.keys.add(up);
+    newRoot.children.add(root);
+    newRoot.children.add(upChild);
+    changed.put(newRoot.ptr, newRoot);
+    root = newRoot.ptr;
+    return true;
+  }
+
+  /**
+   * Deletes a key. A key of an internal node is replaced by its predecessor, then the nodes on the path
+   * are rebalanced from the leaf up. The root keeps at least one block, an empty index is an empty leaf.
+   *
+   * @param key The key.
+   * @return False if the key is not in the index.
+   */
+  public boolean delete(long key) {
+    if (!isPointer(root)) {
+      return false;
+    }
+    List<IndexNode> path = new ArrayList<>();
+    List<Integer> positions = new ArrayList<>();
+    IndexNode node = read(root);
+    int found = -1;
+    while (true) {
+      int i = position(node, key);
+      path.add(node);
+      positions.add(i);
+      if (i < node.keys.size() && node.keys.get(i).getKey() == key) {
+        found = i;
+        break;
+      }
+      if (node.isLeaf()) {
+        return false;
+      }
+      node = read(node.children.get(i));
+    }
+
+    keyDelta--;
+    if (node.isLeaf()) {
+      node.keys.remove(found);
+    } else {
+      // the predecessor is the last key of the rightmost leaf of the left subtree
+      IndexNode leaf = read(node.children.get(found));
+      while (!leaf.isLeaf()) {
+        path.add(leaf);
+        positions.add(leaf.children.size() - 1);
+        leaf = read(leaf.children.get(leaf.children.size() - 1));
+      }
+      path.add(leaf);
+      positions.add(leaf.keys.size());
+      node.keys.set(found, leaf.keys.remove(leaf.keys.size() - 1));
+      changed.put(node.ptr, node);
+      node = leaf;
+    }
+    changed.put(node.ptr, node);
+
+    int minSize = (nodeSize - 1) / 2;
+    for (int level = path.size() - 1; level > 0 && path.get(level).keys.size() < minSize; level--) {
+      IndexNode child = path.get(level);
+      IndexNode parent = path.get(level - 1);
+      int i = positions.get(level - 1);
+      IndexNode left = i > 0 ? read(parent.children.get(i - 1)) : null;
+      IndexNode right = i < parent.keys.size() ? read(parent.children.get(i + 1)) : null;
+
+      if (left != null && left.keys.size() > minSize) {
+        // borrow the last key of the left sibling through the parent
+        child.keys.add(0, parent.keys.get(i - 1));
+        parent.keys.set(i - 1, left.keys.remove(left.keys.size() - 1));
+        if (!left.isLeaf()) {
+          child.children.add(0, left.children.remove(left.children.size() - 1));
+        }
+        changed.put(left.ptr, left);
+        changed.put(parent.ptr, parent);
+        break;
+      } else if (right != null && right.keys.size() > minSize) {
+        // borrow the first key of the right sibling through the parent
+        child.keys.add(parent.keys.get(i));
+        parent.keys.set(i, right.keys.remove(0));
+        if (!right.isLeaf()) {
+          child.children.add(right.children.remove(0));
+        }
+        changed.put(right.ptr, right);
+        changed.put(parent.ptr, parent);
+        break;
+      }
+
+      // merge with a sibling and the separating key, the right node of the two is freed
+      int leftIndex = left != null ? i - 1 : i;
+      IndexNode mergeLeft = left != null ? left : child;
+      IndexNode mergeRight = left != null ? child : right;
+      mergeLeft.keys.add(parent.keys.remove(leftIndex));
+      mergeLeft.keys.addAll(mergeRight.keys);
+      mergeLeft.children.addAll(mergeRight.children);
+      parent.children.remove(leftIndex + 1);
+      changed.put(mergeLeft.ptr, mergeLeft);
+      changed.put(parent.ptr, parent);
+      free(mergeRight.ptr);
+    }
+
+    // the root lost its last key, its only child becomes the root
+    IndexNode rootNode = read(root);
+    if (rootNode.keys.isEmpty() && !rootNode.isLeaf()) {
+      String oldRoot = root;
+      root = rootNode.children.get(0);
+      free(oldRoot);
+    }
+    return true;
+  }
+
+  /**
+   * Points a key to another record, used when a record moves to another block.
+   *
+   * @param key     The key.
+   * @param pointer The new DataBlockPointer String of the record.
+   * @return False if the key is not in the index.
+   */
+  public boolean updatePointer(long key, String pointer) {
+    if (!isPointer(root)) {
+      return false;
+    }
+    IndexNode node = read(root);
+    while (true) {
+      int i = position(node, key);
+      if (i < node.keys.size() && node.keys.get(i).getKey() == key) {
+        node.keys.set(i, new KeyPointer(key, pointer));
+        changed.put(node.ptr, node);
+        return true;
+      }
+      if (node.isLeaf()) {
+        return false;
+      }
+      node = read(node.children.get(i));
+    }
+  }
+
+  /**
+   * Writes the changed nodes into the PFS cache.
+   */
+  public void write() {
+    for (IndexNode node : changed.values()) {
+      char[] block = new char[db.getBlockSize()];
+      encodeNode(block, node.keys, node.children);
+      BlockPointer bp = new BlockPointer(node.ptr);
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), block);
+    }
+    changed.clear();
+  }
+
+  public String getRoot() {
+    return root;
+  }
+
+  // index blocks allocated minus index blocks freed since this tree was opened
+  public int getBlockDelta() {
+    return blockDelta;
+  }
+
+  // keys inserted minus keys deleted since this tree was opened
+  public int getKeyDelta() {
+    return keyDelta;
+  }
+
+  /**
+   * Finds the smallest key >= key with one descent, keeping the smallest such key seen on the path.
+   *
+   * @param key The key.
+   * @return The KeyPointer of the smallest key >= key, or null if every key is smaller.
+   */
+  public KeyPointer ceiling(long key) {
+    if (!isPointer(root)) {
+      return null;
+    }
+    KeyPointer ceiling = null;
+    IndexNode node = read(root);
+    while (true) {
+      int i = position(node, key);
+      if (i < node.keys.size()) {
+        ceiling = node.keys.get(i);
+        if (ceiling.getKey() == key) {
+          return ceiling;
+        }
+      }
+      if (node.isLeaf()) {
+        return ceiling;
+      }
+      node = read(node.children.get(i));
+    }
+  }
+
+  /**
+   * Returns the smallest key, from the leftmost leaf.
+   *
+   * @return The KeyPointer of the smallest key, or null for an empty index.
+   */
+  public KeyPointer first() {
+    return edge(true);
+  }
+
+  /**
+   * Returns the largest key, from the rightmost leaf.
+   *
+   * @return The KeyPointer of the largest key, or null for an empty index.
+   */
+  public KeyPointer last() {
+    return edge(false);
+  }
+
+  /**
+   * Walks the keys in ascending order, starting at the smallest key >= fromKey. Only the path from the root to
+   * the current leaf is held, one node per level, and each index block is read once, so the keys of a file of
+   * any size are streamed with a few blocks of memory. The tree must not change during the walk.
+   *
+   * @param fromKey The first key to return if it is in the index, Long.MIN_VALUE for every key.
+   * @return The KeyPointers in key order.
+   */
+  public Iterator<KeyPointer> iterator(long fromKey) {
+    Deque<int[]> positions = new ArrayDeque<>(); // the next key of each node on the path
+    Deque<IndexNode> path = new ArrayDeque<>();
+    if (isPointer(root)) {
+      descend(read(root), fromKey, path, positions);
+    }
+
+    return new Iterator<KeyPointer>() {
+      @Override
+      public boolean hasNext() {
+        // a node is left once its keys and its last child are done
+        while (!path.isEmpty() && positions.peek()[0] >= path.peek().keys.size()) {
+          path.pop();
+          positions.pop();
+        }
+        return !path.isEmpty();
+      }
+
+      @Override
+      public KeyPointer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        IndexNode node = path.peek();
+        int i = positions.peek()[0]++;
+        if (!node.isLeaf()) {
+          // the keys between this key and the next one
+          descend(read(node.children.get(i + 1)), Long.MIN_VALUE, path, positions);
+        }
+        return node.keys.get(i);
+      }
+    };
+  }
+
+  // index blocks read by search, first, last and iterator since this tree was opened
+  public int getBlocksRead() {
+    return blocksRead;
+  }
+
+  private KeyPointer edge(boolean isFirst) {
+    if (!isPointer(root)) {
+      return null;
+    }
+    IndexNode node = read(root);
+    while (!node.isLeaf()) {
+      node = read(node.children.get(isFirst ? 0 : node.children.size() - 1));
+    }
+    if (node.keys.isEmpty()) {
+      return null;
+    }
+    return node.keys.get(isFirst ? 0 : node.keys.size() - 1);
+  }
+
+  // pushes the nodes from node down to the leaf where fromKey is or would be
+  private void descend(IndexNode node, long fromKey, Deque<IndexNode> path, Deque<int[]> positions) {
+    while (true) {
+      int i = position(node, fromKey);
+      path.push(node);
+      positions.push(new int[]{i});
+      if (node.isLeaf()) {
+        return;
+      }
+      node = read(node.children.get(i));
+    }
+  }
+
+  // the smallest i with key <= keys[i]
+  private int position(IndexNode node, long key) {
+    int i = 0;
+    while (i < node.keys.size() && key > node.keys.get(i).getKey()) {
+      i++;
+    }
+    return i;
+  }
+
+  // the changed copy of a node if there is one, so a node is never read twice with different contents
+  private IndexNode read(String ptr) {
+    IndexNode node = changed.get(ptr);
+    if (node != null) {
+      return node;
+    }
+    BlockPointer bp = new BlockPointer(ptr);
+    char[] block = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+    blocksRead++;
+    node = new IndexNode(ptr);
+    node.keys.addAll(decodeKeys(block));
+    node.children.addAll(decodeChildren(block));
+    return node;
+  }
+
+  private String allocate() {
+    blockDelta++;
+    return db.allocateBlock();
+  }
+
+  private void free(String ptr) {
+    changed.remove(ptr);
+    BlockPointer bp = new BlockPointer(ptr);
+    db.getPfsList().get(bp.getPfsNumber()).updateBitMap(bp.getBlockNumber(), false);
+    blockDelta--;
+  }
+
+  /**
+   * The maximum number of keys of a node in one block.
+   *
+   * @param blockSize The block size.
+   * @return The node size.
+   */
+  public static int nodeSize(int blockSize) {
+    return (blockSize - COUNT_LENGTH - CHILD_LENGTH) / (CHILD_LENGTH + ENTRY_LENGTH);
+  }
+
+  /**
+   * Writes a node into a block, the rest of the block is left as it is ('\0' in a new block).
+   *
+   * @param block    The block.
+   * @param keys     The keys in order.
+   * @param children The BlockPointer Strings of keys.size() + 1 children, none for a leaf.
+   */
+  public static void encodeNode(char[] block, List<KeyPointer> keys, List<String> children) {
+    putBytes(block, 0, keys.size(), COUNT_LENGTH);
+    int offset = COUNT_LENGTH;
+    for (int i = 0; i <= keys.size(); i++) {
+      putBytes(block, offset, children.isEmpty() ? NULL_CHILD : Long.parseLong(children.get(i), 16), CHILD_LENGTH);
+      offset += CHILD_LENGTH;
+      if (i < keys.size()) {
+        KeyPointer keyPointer = keys.get(i);
+        putBytes(block, offset, keyPointer.getKey(), 8);
+        putBytes(block, offset + 8, Long.parseUnsignedLong(keyPointer.getPointer(), 16), 8);
+        offset += ENTRY_LENGTH;
+      }
+    }
+  }
+
+  /**
+   * Reads the keys of a node.
+   *
+   * @param block The index block.
+   * @return The KeyPointers in order.
+   */
+  public static List<KeyPointer> decodeKeys(char[] block) {
+    int count = (int) getBytes(block, 0, COUNT_LENGTH);
+    List<KeyPointer> keys = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int offset = COUNT_LENGTH + CHILD_LENGTH + i * (CHILD_LENGTH + ENTRY_LENGTH);
+      keys.add(new KeyPointer(getBytes(block, offset, 8),
+              BlockPointer.toHex(getBytes(block, offset + 8, 8), DataBlockPointer.LENGTH)));
+    }
+    return keys;
+  }
+
+  /**
+   * Reads the children of a node.
+   *
+   * @param block The index block.
+   * @return The BlockPointer Strings of the children, none for a leaf.
+   */
+  public static List<String> decodeChildren(char[] block) {
+    int count = (int) getBytes(block, 0, COUNT_LENGTH);
+    List<String> children = new ArrayList<>(count + 1);
+    if (getBytes(block, COUNT_LENGTH, CHILD_LENGTH) == NULL_CHILD) {
+      return children;
+    }
+    for (int i = 0; i <= count; i++) {
+      children.add(BlockPointer.toHex(getBytes(block, COUNT_LENGTH + i * (CHILD_LENGTH + ENTRY_LENGTH),
+              CHILD_LENGTH), BlockPointer.LENGTH));
+    }
+    return children;
+  }
+
+  /**
+   * Writes the low bytes of a value into a block, most significant first, one byte per char. The binary blocks of
+   * the secondary and hash indexes use the same fields.
+   *
+   * @param block  The block.
+   * @param offset Where the field starts.
+   * @param value  The value.
+   * @param length The number of bytes.
+   */
+  public static void putBytes(char[] block, int offset, long value, int length) {
+    for (int i = length - 1; i >= 0; i--) {
+      block[offset + i] = (char) (value & 0xFF);
+      value >>>= 8;
+    }
+  }
+
+  // the value of a field written by putBytes
+  public static long getBytes(char[] block, int offset, int length) {
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value = value << 8 | (block[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+
+  // one index block: keys.size() + 1 children for an internal node, no children for a leaf
+  private static class IndexNode {
+    private final String ptr;
+    private final List<KeyPointer> keys = new ArrayList<>();
+    private final List<String> children = new ArrayList<>();
+
+    private IndexNode(String ptr) {
+      this.ptr = ptr;
+    }
+
+    private boolean isLeaf() {
+      return children.isEmpty();
+    }
+  }
+}
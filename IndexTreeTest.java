@@ -0,0 +1,441 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Tests the persisted indexes without input, unlike BtreeTest: run it from the project directory with
+ * {@code java IndexTreeTest}, it prints one line per test and exits with status 1 if one of them fails.
+ *
+ * - IndexTree: keys inserted and deleted in random order across many splits, merges and borrows, with a reopen of the
+ *   database in between. After each batch every remaining key is found, the deleted ones are not, the iterator
+ *   returns the keys in order, every node but the root is at least half full, all the leaves are at the same depth
+ *   and the bitmap holds exactly the nodes of the tree.
+ * - IndexBuilder: the trees of put for sizes around the node size are valid and as large as IndexBuilder.blocks
+ *   predicts, and IndexTree can delete from them.
+ * - KeyPointerSorter: a budget far below the keys spills sorted runs, the merge returns every key in order.
+ * - Clustered file: inserts split the full data blocks, and the key and chain order cursors resumed from their
+ *   tokens after every batch return each record once.
+ * - Upload pipeline: a stage which fails while the queues between the stages are full stops the put, which frees
+ *   the data blocks it stored.
+ *
+ * The test creates the database indextreetest and csvs/indextreetest.csv, and deletes them at the end.
+ */
+public final class IndexTreeTest {
+  private static final String NAME = "indextreetest";
+  private static final int BLOCK_SIZE = 256;
+
+  private static final PrintStream console = System.out;
+  private static int failures;
+
+  public static void main(String[] args) throws IOException {
+    System.out.println("*** Index Testing ***\n");
+    deleteFiles();
+    // DB prints every step, only the results of the tests are shown
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    try {
+      testIndexTree();
+      testIndexBuilder();
+      testKeyPointerSorter();
+      testClusteredFile();
+      testFailedUpload();
+    } finally {
+      System.setOut(console);
+      deleteFiles();
+    }
+    System.out.println(failures == 0 ? "\nAll tests passed." : "\n" + failures + " checks failed.");
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  // random inserts and deletes in batches, the tree is checked after each batch
+  private static void testIndexTree() {
+    DB db = new DB(NAME, BLOCK_SIZE, false);
+    int baseline = usedBlocks(db);
+    Random random = new Random(33);
+    List<Long> keys = new ArrayList<>();
+    for (long i = 0; i < 6000; i++) {
+      keys.add(i * 7 + random.nextInt(7));
+    }
+    Collections.shuffle(keys, random);
+
+    Map<Long, String> expected = new TreeMap<>();
+    IndexTree tree = new IndexTree(db, BlockPointer.NULL_PTR);
+    int blocks = 0;
+    boolean isChecked = true;
+    for (int i = 0; i < keys.size(); i++) {
+      String pointer = new DataBlockPointer(0, i, i % 6).getPtrString();
+      isChecked &= tree.insert(new KeyPointer(keys.get(i), pointer));
+      expected.put(keys.get(i), pointer);
+      if (i % 7 == 0) {
+        // the key is already there, the first record stays
+        isChecked &= !tree.insert(new KeyPointer(keys.get(i), new DataBlockPointer(1, 1, 1).getPtrString()));
+      }
+      if ((i + 1) % 500 == 0) {
+        blocks += writeTree(db, tree);
+        isChecked &= checkIndex(db, tree.getRoot(), expected, blocks, baseline, "insert " + (i + 1));
+        tree = new IndexTree(db, tree.getRoot());
+      }
+    }
+    check(isChecked, "IndexTree insert returns false only for a key already there");
+
+    // everything is on disk, the tree is read again from the blocks
+    String root = tree.getRoot();
+    db.close();
+    db = new DB(NAME, BLOCK_SIZE, true);
+    tree = new IndexTree(db, root);
+    isChecked = checkIndex(db, root, expected, blocks, baseline, "reopen");
+
+    Collections.shuffle(keys, random);
+    for (int i = 0; i < keys.size(); i++) {
+      long key = keys.get(i);
+      isChecked &= tree.delete(key);
+      isChecked &= !tree.delete(key);
+      expected.remove(key);
+      if (i % 11 == 0 && i + 1 < keys.size()) {
+        String pointer = new DataBlockPointer(2, i, 0).getPtrString();
+        isChecked &= tree.updatePointer(keys.get(i + 1), pointer);
+        expected.put(keys.get(i + 1), pointer);
+      }
+      if ((i + 1) % 500 == 0 || i + 1 == keys.size()) {
+        blocks += writeTree(db, tree);
+        isChecked &= checkIndex(db, tree.getRoot(), expected, blocks, baseline, "delete " + (i + 1));
+        tree = new IndexTree(db, tree.getRoot());
+      }
+    }
+    check(isChecked, "IndexTree keeps every remaining key across splits and merges of " + keys.size() + " keys");
+    check(blocks <= 1, "IndexTree frees its nodes when the keys are deleted, " + blocks + " block left");
+    db.close();
+    deleteFiles();
+  }
+
+  // trees of put for sizes around the node size, then deletes from the largest one
+  private static void testIndexBuilder() {
+    DB db = new DB(NAME, BLOCK_SIZE, false);
+    int nodeSize = db.getIndexNodeSize();
+    boolean isChecked = true;
+    for (int size : new int[] {0, 1, nodeSize, nodeSize + 1, 2 * nodeSize + 1, 2 * nodeSize + 2, 1000, 12345}) {
+      int baseline = usedBlocks(db);
+      IndexBuilder builder = new IndexBuilder(db);
+      Map<Long, String> expected = new TreeMap<>();
+      for (int i = 0; i < size; i++) {
+        KeyPointer keyPointer = new KeyPointer(2L * i, new DataBlockPointer(0, i, 0).getPtrString());
+        builder.add(keyPointer);
+        isChecked &= !builder.add(keyPointer);
+        expected.put(keyPointer.getKey(), keyPointer.getPointer());
+      }
+      String root = builder.finish();
+      isChecked &= builder.getBlocks() == IndexBuilder.blocks(size, nodeSize);
+      isChecked &= builder.getDuplicates() == size;
+      isChecked &= checkIndex(db, root, expected, builder.getBlocks(), baseline, "build " + size);
+
+      if (size == 12345) {
+        IndexTree tree = new IndexTree(db, root);
+        for (long key = 0; key < 2L * size; key += 4) {
+          isChecked &= tree.delete(key);
+          expected.remove(key);
+        }
+        int blocks = builder.getBlocks() + writeTree(db, tree);
+        isChecked &= checkIndex(db, tree.getRoot(), expected, blocks, baseline, "delete from build");
+      }
+    }
+    check(isChecked, "IndexBuilder writes valid trees of the predicted size");
+    db.close();
+    deleteFiles();
+  }
+
+  // a small budget spills sorted runs, which the merge reads back in order
+  private static void testKeyPointerSorter() throws IOException {
+    Random random = new Random(7);
+    List<Long> keys = new ArrayList<>();
+    for (long i = 0; i < 10000; i++) {
+      keys.add(i);
+      if (i % 20 == 0) {
+        keys.add(i); // duplicates are kept, put skips them
+      }
+    }
+    Collections.shuffle(keys, random);
+    boolean isChecked = true;
+    int runs;
+    try (KeyPointerSorter sorter = new KeyPointerSorter(1000)) {
+      for (long key : keys) {
+        sorter.add(new KeyPointer(key, new DataBlockPointer(0, (int) key, 0).getPtrString()));
+      }
+      runs = sorter.getRuns();
+      isChecked &= sorter.size() == keys.size();
+      Iterator<KeyPointer> sorted = sorter.sorted();
+      Collections.sort(keys);
+      for (long key : keys) {
+        if (!sorted.hasNext()) {
+          isChecked = false;
+          break;
+        }
+        KeyPointer keyPointer = sorted.next();
+        isChecked &= keyPointer.getKey() == key;
+        isChecked &= keyPointer.getPointer().equals(new DataBlockPointer(0, (int) key, 0).getPtrString());
+      }
+      isChecked &= !sorted.hasNext();
+    }
+    check(isChecked && runs > 1, "KeyPointerSorter merges " + runs + " spilled runs in key order");
+  }
+
+  // a clustered file split by inserts, read back with resumed cursors
+  private static void testClusteredFile() throws IOException {
+    File csv = new File("./csvs/" + NAME + ".csv");
+    Set<Long> expected = new HashSet<>();
+    try (FileWriter writer = new FileWriter(csv)) {
+      writer.write("movieId,title,genres\n");
+      for (long key = 10; key <= 6000; key += 10) {
+        writer.write(key + ",Movie " + key + ",Drama\n");
+        expected.add(key);
+      }
+    }
+    DB db = new DB(NAME, BLOCK_SIZE, false);
+    try {
+      db.uploadFCBFile(NAME + ".csv", false, FCB.CLUSTERED_INDEX);
+      FCB fcb = db.findFCBByName(NAME + ".csv");
+      int leaves = countLeaves(db, fcb);
+
+      Random random = new Random(5);
+      boolean isChecked = true;
+      for (int i = 0; i < 900; i++) {
+        long key = 10L * random.nextInt(620) + 1 + random.nextInt(9);
+        boolean isNew = expected.add(key);
+        isChecked &= db.insertRecord(fcb, key + ",New " + key + ",Comedy") == isNew;
+      }
+      List<Long> present = new ArrayList<>(expected);
+      Collections.shuffle(present, random);
+      for (long key : present.subList(0, 300)) {
+        isChecked &= db.deleteRecord(fcb, key);
+        expected.remove(key);
+      }
+      int splitLeaves = countLeaves(db, fcb);
+      check(isChecked && splitLeaves > leaves, "Clustered inserts split " + leaves + " data blocks into "
+              + splitLeaves);
+
+      KeyIndex index = db.openIndex(fcb);
+      isChecked = true;
+      for (long key : expected) {
+        isChecked &= index.search(key) != null;
+      }
+      for (long key = 3; key < 6300; key += 10) {
+        isChecked &= expected.contains(key) == (index.search(key) != null);
+      }
+      check(isChecked, "Clustered index finds the " + expected.size() + " keys after the splits");
+
+      List<Long> inOrder = new ArrayList<>(expected);
+      Collections.sort(inOrder);
+      check(readResumed(db, fcb, db.openCursor(fcb, Long.MIN_VALUE)).equals(inOrder),
+              "Key order cursor resumed after every batch returns each key once, in order");
+      List<Long> chainKeys = readResumed(db, fcb, db.openChainCursor(fcb));
+      check(chainKeys.size() == expected.size() && new HashSet<>(chainKeys).equals(expected),
+              "Chain order cursor resumed after every batch returns each record once");
+    } finally {
+      db.close();
+      csv.delete();
+    }
+  }
+
+  // the index builder fails once the writer waits on a full queue, the pipeline has to stop and free its blocks
+  private static void testFailedUpload() {
+    DB db = new DB(NAME, BLOCK_SIZE, false);
+    int baseline = usedBlocks(db);
+    char[][] records = new char[8 * UploadPipeline.BLOCKS_PER_CHUNK * db.getRecordsPerBlock()][];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = DB.lineToRecord(i + ",Movie " + i + ",Drama");
+    }
+    UploadPipeline pipeline = new UploadPipeline(db, null, null) {
+      @Override
+      Void buildIndex() throws InterruptedException, IOException {
+        Thread.sleep(500);
+        throw new IOException("injected failure");
+      }
+    };
+    boolean[] isStored = {true};
+    Thread put = new Thread(() -> isStored[0] = pipeline.run(Arrays.asList(records).iterator()), "put");
+    PrintStream err = System.err;
+    System.setErr(System.out); // the error of the injected failure is expected
+    try {
+      put.start();
+      put.join(30_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      System.setErr(err);
+    }
+    check(!put.isAlive() && !isStored[0], "A failed stage stops the upload pipeline");
+    check(!put.isAlive() && usedBlocks(db) == baseline, "A failed upload frees its data blocks, "
+            + (usedBlocks(db) - baseline) + " blocks left");
+    db.close();
+    deleteFiles();
+  }
+
+  // reads a file in batches of 37 records, each batch from a new cursor opened with the token of the last one
+  private static List<Long> readResumed(DB db, FCB fcb, RecordCursor cursor) {
+    List<Long> keys = new ArrayList<>();
+    while (cursor != null) {
+      for (String row : cursor.next(37)) {
+        keys.add(Long.parseLong(row.substring(0, row.indexOf(','))));
+      }
+      String token = cursor.getResumeToken();
+      cursor = token == null ? null : db.openCursor(fcb, token);
+    }
+    return keys;
+  }
+
+  private static int countLeaves(DB db, FCB fcb) {
+    int leaves = 0;
+    Iterator<String> leafPtrs = ((ClusteredIndex) db.openIndex(fcb)).leaves(Long.MIN_VALUE, Long.MAX_VALUE);
+    while (leafPtrs.hasNext()) {
+      leafPtrs.next();
+      leaves++;
+    }
+    return leaves;
+  }
+
+  // writes the changed nodes and flushes them, returns the blocks allocated minus the blocks freed
+  private static int writeTree(DB db, IndexTree tree) {
+    tree.write();
+    for (PFS pfs : db.getPfsList()) {
+      pfs.writeContentToFile();
+    }
+    return tree.getBlockDelta();
+  }
+
+  /**
+   * Checks an index against the keys it should hold.
+   *
+   * @param db       The database.
+   * @param root     The root of the tree.
+   * @param expected The keys and their pointers.
+   * @param blocks   The number of nodes the tree should have.
+   * @param baseline The blocks used before the tree was built.
+   * @param step     What was done before the check, printed if it fails.
+   * @return False if a check failed.
+   */
+  private static boolean checkIndex(DB db, String root, Map<Long, String> expected, int blocks, int baseline,
+                                    String step) {
+    IndexTree tree = new IndexTree(db, root);
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      if (!entry.getValue().equals(tree.search(entry.getKey()))) {
+        return fail(step + ": key " + entry.getKey() + " is not found");
+      }
+      if (!expected.containsKey(entry.getKey() + 1) && tree.search(entry.getKey() + 1) != null) {
+        return fail(step + ": key " + (entry.getKey() + 1) + " is found but not in the index");
+      }
+    }
+    Iterator<KeyPointer> keys = tree.iterator(Long.MIN_VALUE);
+    for (long key : expected.keySet()) {
+      if (!keys.hasNext() || keys.next().getKey() != key) {
+        return fail(step + ": the iterator does not return key " + key);
+      }
+    }
+    if (keys.hasNext()) {
+      return fail(step + ": the iterator returns more keys than the index holds");
+    }
+
+    int[] nodes = new int[1];
+    if (isPointer(root) && leafDepth(db, root, Long.MIN_VALUE, Long.MAX_VALUE, true, nodes, step) < 0) {
+      return false;
+    }
+    if (nodes[0] != blocks) {
+      return fail(step + ": the tree has " + nodes[0] + " nodes, the block deltas add up to " + blocks);
+    }
+    if (usedBlocks(db) - baseline != blocks) {
+      return fail(step + ": " + (usedBlocks(db) - baseline) + " blocks are used for " + blocks + " nodes");
+    }
+    return true;
+  }
+
+  // the depth of the leaves below a node whose keys must be in (low, high], -1 if the keys are out of order, a node
+  // but the root is less than half full or the leaves are at different depths; adds the nodes to nodes[0]
+  private static int leafDepth(DB db, String ptr, long low, long high, boolean isRoot, int[] nodes, String step) {
+    nodes[0]++;
+    BlockPointer bp = new BlockPointer(ptr);
+    char[] block = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+    List<KeyPointer> keys = IndexTree.decodeKeys(block);
+    List<String> children = IndexTree.decodeChildren(block);
+    int nodeSize = db.getIndexNodeSize();
+    if (keys.size() > nodeSize || (!isRoot && keys.size() < (nodeSize - 1) / 2)) {
+      fail(step + ": node " + ptr + " has " + keys.size() + " keys");
+      return -1;
+    }
+    long previous = low;
+    for (KeyPointer keyPointer : keys) {
+      if (keyPointer.getKey() <= previous || keyPointer.getKey() > high) {
+        fail(step + ": key " + keyPointer.getKey() + " of node " + ptr + " is out of order");
+        return -1;
+      }
+      previous = keyPointer.getKey();
+    }
+    if (children.isEmpty()) {
+      return 0;
+    }
+    int depth = -1;
+    for (int i = 0; i < children.size(); i++) {
+      long childLow = i == 0 ? low : keys.get(i - 1).getKey();
+      long childHigh = i == keys.size() ? high : keys.get(i).getKey() - 1;
+      int childDepth = leafDepth(db, children.get(i), childLow, childHigh, false, nodes, step);
+      if (childDepth < 0) {
+        return -1;
+      }
+      if (depth >= 0 && childDepth != depth) {
+        fail(step + ": the leaves below node " + ptr + " are at different depths");
+        return -1;
+      }
+      depth = childDepth;
+    }
+    return depth + 1;
+  }
+
+  // the blocks used after the superblock, bitmap and FCB blocks, which a new PFS file takes for itself
+  private static int usedBlocks(DB db) {
+    int used = 0;
+    for (PFS pfs : db.getPfsList()) {
+      used += db.getBlocksPerPFS() - pfs.calculateBlocksLeft() - pfs.getFirstDataBlock();
+    }
+    return used;
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+
+  private static void check(boolean isPassed, String test) {
+    console.println((isPassed ? "PASS " : "FAIL ") + test);
+    if (!isPassed) {
+      failures++;
+    }
+  }
+
+  private static boolean fail(String message) {
+    console.println("  " + message);
+    return false;
+  }
+
+  // the PFS files of the test database
+  private static void deleteFiles() {
+    File[] files = new File(".").listFiles((dir, name) -> name.startsWith(NAME + ".db"));
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+}
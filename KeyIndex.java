@@ -0,0 +1,71 @@
+import java.util.Iterator;
+
+/**
+ * The primary index of a file, from the key of a record to its DataBlockPointer: the B-tree (IndexTree) or the
+ * hash index (HashIndex) chosen when the file was put, see DB.openIndex. The changes are only written to the PFS
+ * cache, the caller flushes them.
+ */
+public interface KeyIndex {
+  /**
+   * Looks up a key.
+   *
+   * @param key The key.
+   * @return The DataBlockPointer String of the record, or null if the key is not in the index.
+   */
+  String search(long key);
+
+  /**
+   * Inserts a key.
+   *
+   * @param keyPointer The key and the DataBlockPointer of its record.
+   * @return False if the key is already in the index.
+   */
+  boolean insert(KeyPointer keyPointer);
+
+  /**
+   * Deletes a key.
+   *
+   * @param key The key.
+   * @return False if the key is not in the index.
+   */
+  boolean delete(long key);
+
+  /**
+   * Points a key to another record, when its record moved.
+   *
+   * @param key     The key.
+   * @param pointer The new DataBlockPointer String.
+   * @return False if the key is not in the index.
+   */
+  boolean updatePointer(long key, String pointer);
+
+  // writes the changed blocks into the PFS cache
+  void write();
+
+  // the block the FCB points to
+  String getRoot();
+
+  // index blocks allocated minus index blocks freed since the index was opened
+  int getBlockDelta();
+
+  // keys inserted minus keys deleted since the index was opened
+  int getKeyDelta();
+
+  // the smallest key, null for an empty index
+  KeyPointer first();
+
+  // the largest key, null for an empty index
+  KeyPointer last();
+
+  /**
+   * Walks the keys in ascending order, starting at the smallest key >= fromKey. The index must not change during
+   * the walk.
+   *
+   * @param fromKey The first key to return if it is in the index, Long.MIN_VALUE for every key.
+   * @return The KeyPointers in key order.
+   */
+  Iterator<KeyPointer> iterator(long fromKey);
+
+  // index blocks read since the index was opened
+  int getBlocksRead();
+}
@@ -1,45 +1,51 @@
 public class KeyPointer {
-  private int key;
+  public static final int KEY_LENGTH = 16; // 64-bit key as 16 hex digits
+  public static final int LENGTH = KEY_LENGTH + DataBlockPointer.LENGTH;
+
+  private long key;
   private String pointer;
   private String keyPointerStr;
 
   /**
    * Constructs a KeyPointer object with the given key and pointer.
-   * @param key The key associated with this KeyPointer. offset 0-6
-   * @param pointer The pointer string associated with this KeyPointer, which should be an 8-digit string
-   *                following the DataBlockPointer format. offset 7-14
+   * @param key The key associated with this KeyPointer. offset 0-15, 64-bit two's complement in hex
+   * @param pointer The pointer string associated with this KeyPointer, which should be a 16-digit string
+   *                following the DataBlockPointer format. offset 16-31
    */
-  public KeyPointer(int key, String pointer) {
-    if (pointer == null || pointer.length() != 8) {
-      throw new IllegalArgumentException("Pointer must be exactly 8 digits long");
+  public KeyPointer(long key, String pointer) {
+    if (pointer == null || pointer.length() != DataBlockPointer.LENGTH) {
+      throw new IllegalArgumentException("Pointer must be exactly " + DataBlockPointer.LENGTH + " digits long");
     }
     this.key = key;
     this.pointer = pointer;
-    String keyStr = String.format("%07d", key);
-    this.keyPointerStr = keyStr + pointer;
+    this.keyPointerStr = formatKey(key) + pointer;
   }
 
   // dummy constructor
   public KeyPointer() {
     this.key = -1;
-    this.pointer = "0000000";
-    String keyStr = String.format("%07d", key);
-    this.keyPointerStr = keyStr + pointer;
+    this.pointer = "0000000000000000";
+    this.keyPointerStr = formatKey(key) + pointer;
   }
 
-  // Constructor using a 15 character string
+  // Constructor using a 32 character string
   public KeyPointer(String keyPointerStr) {
-    if (keyPointerStr == null || keyPointerStr.length() != 15) {
-      throw new IllegalArgumentException("PtrString must be exactly 15 digits long");
+    if (keyPointerStr == null || keyPointerStr.length() != LENGTH) {
+      throw new IllegalArgumentException("PtrString must be exactly " + LENGTH + " digits long");
     }
     this.keyPointerStr = keyPointerStr;
     // Parse the PFS number and block number from the string
-    this.key = Integer.parseInt(keyPointerStr.substring(0, 7));
-    this.pointer = keyPointerStr.substring(7, 15);
+    this.key = Long.parseUnsignedLong(keyPointerStr.substring(0, KEY_LENGTH), 16);
+    this.pointer = keyPointerStr.substring(KEY_LENGTH, LENGTH);
+  }
+
+  // 16 hex digits, negative keys are stored as two's complement
+  public static String formatKey(long key) {
+    return BlockPointer.toHex(key, KEY_LENGTH);
   }
 
   // Getter for the key
-  public int getKey() {
+  public long getKey() {
     return key;
   }
 
@@ -52,7 +58,7 @@ public class KeyPointer {
     return keyPointerStr;
   }
 
-  public void setKey(Integer key) {
+  public void setKey(Long key) {
     if (key == null) {
       throw new IllegalArgumentException("Key cannot be null");
     }
@@ -62,8 +68,8 @@ public class KeyPointer {
   }
 
   public void setPointer(String pointer) {
-    if (pointer == null || pointer.length() != 7) {
-      throw new IllegalArgumentException("Pointer must be exactly 7 digits long");
+    if (pointer == null || pointer.length() != DataBlockPointer.LENGTH) {
+      throw new IllegalArgumentException("Pointer must be exactly " + DataBlockPointer.LENGTH + " digits long");
     }
     this.pointer = pointer;
     // Update keyPointerStr to reflect the new pointer value
@@ -76,8 +82,7 @@ public class KeyPointer {
    * This method ensures that keyPointerStr is always in sync with key and pointer.
    */
   private void updateKeyPointerStr() {
-    String keyStr = String.format("%07d", this.key);
-    this.keyPointerStr = keyStr + this.pointer;
+    this.keyPointerStr = formatKey(this.key) + this.pointer;
   }
 
 
@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * An external merge sort of KeyPointers by key, which feeds the bottom-up build of an index (IndexBuilder).
+ *
+ * The KeyPointers are buffered up to a memory budget. A full buffer is sorted and spilled to a temporary file
+ * as a sorted run of 32-char KeyPointer Strings, so the heap holds at most one buffer whatever the number of rows.
+ * sorted() merges the runs and the rest of the buffer with a priority queue over the head of each run. At most 64
+ * runs are read at once: with more runs, groups of adjacent runs are merged into longer runs first.
+ *
+ * The sort is stable: equal keys come out in the order they were added, so the first record of a duplicate key
+ * comes first. close() deletes the runs.
+ */
+public class KeyPointerSorter implements Closeable {
+  public static final int DEFAULT_BUDGET = 1 << 20; // KeyPointers held in memory, about 150 MB
+  private static final int RUN_BUFFER_BYTES = 1 << 16; // read and write buffer of one run
+  private static final int MAX_MERGE_RUNS = 64; // runs merged at once, more are merged in several passes
+
+  private final int budget;
+  private KeyPointer[] buffer;
+  private int buffered; // KeyPointers in the buffer
+  private final List<Path> runs = new ArrayList<>();
+  private final List<DataInputStream> readers = new ArrayList<>();
+  private long size;
+
+  /**
+   * Creates a sorter.
+   *
+   * @param budget The number of KeyPointers held in memory before a run is spilled.
+   */
+  public KeyPointerSorter(int budget) {
+    if (budget < 1) {
+      throw new IllegalArgumentException("Budget must be at least 1.");
+    }
+    this.budget = budget;
+    this.buffer = new KeyPointer[Math.min(budget, 1 << 16)];
+  }
+
+  public void add(KeyPointer keyPointer) throws IOException {
+    if (buffered == buffer.length) {
+      if (buffered == budget) {
+        spill();
+      } else {
+        buffer = Arrays.copyOf(buffer, (int) Math.min(budget, 2L * buffer.length));
+      }
+    }
+    buffer[buffered++] = keyPointer;
+    size++;
+  }
+
+  public void addAll(List<KeyPointer> keyPointers) throws IOException {
+    for (KeyPointer keyPointer : keyPointers) {
+      add(keyPointer);
+    }
+  }
+
+  // the number of KeyPointers added, with duplicate keys
+  public long size() {
+    return size;
+  }
+
+  // the number of runs spilled to disk
+  public int getRuns() {
+    return runs.size();
+  }
+
+  /**
+   * Returns the KeyPointers in ascending key order. Nothing could be added afterwards.
+   * The iterator throws an UncheckedIOException if a run could not be read.
+   *
+   * @return The sorted KeyPointers.
+   */
+  public Iterator<KeyPointer> sorted() throws IOException {
+    Arrays.parallelSort(buffer, 0, buffered, Comparator.comparingLong(KeyPointer::getKey));
+    Iterator<KeyPointer> rest = Arrays.asList(buffer).subList(0, buffered).iterator();
+    if (runs.isEmpty()) {
+      return rest;
+    }
+
+    // adjacent runs are merged, so equal keys keep their order
+    while (runs.size() >= MAX_MERGE_RUNS) {
+      List<Path> merged = new ArrayList<>();
+      for (int from = 0; from < runs.size(); from += MAX_MERGE_RUNS) {
+        List<Path> group = runs.subList(from, Math.min(runs.size(), from + MAX_MERGE_RUNS));
+        Path run = Files.createTempFile("keypointers", ".run");
+        merged.add(run);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER_BYTES))) {
+          Iterator<KeyPointer> entries = merge(group, null);
+          while (entries.hasNext()) {
+            out.writeBytes(entries.next().getKeyPointerStr());
+          }
+        } finally {
+          closeReaders();
+        }
+        for (Path old : group) {
+          Files.deleteIfExists(old);
+        }
+      }
+      runs.clear();
+      runs.addAll(merged);
+    }
+    return merge(runs, rest);
+  }
+
+  // merges sorted runs and then the rest, which was added last
+  private Iterator<KeyPointer> merge(List<Path> group, Iterator<KeyPointer> rest) throws IOException {
+    // the head of each run, ties go to the earlier run
+    PriorityQueue<Source> heads = new PriorityQueue<>(
+            Comparator.comparingLong((Source source) -> source.head.getKey()).thenComparingInt(source -> source.order));
+    for (int i = 0; i < group.size(); i++) {
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(Files.newInputStream(group.get(i)), RUN_BUFFER_BYTES));
+      readers.add(in);
+      Source source = new Source(i, fromRun(in));
+      if (source.advance()) {
+        heads.add(source);
+      }
+    }
+    if (rest != null) {
+      Source source = new Source(group.size(), rest);
+      if (source.advance()) {
+        heads.add(source);
+      }
+    }
+
+    return new Iterator<KeyPointer>() {
+      @Override
+      public boolean hasNext() {
+        return !heads.isEmpty();
+      }
+
+      @Override
+      public KeyPointer next() {
+        Source source = heads.poll();
+        if (source == null) {
+          throw new NoSuchElementException();
+        }
+        KeyPointer next = source.head;
+        if (source.advance()) {
+          heads.add(source);
+        }
+        return next;
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    closeReaders();
+    for (Path run : runs) {
+      try {
+        Files.deleteIfExists(run);
+      } catch (IOException e) {
+        System.err.println("An error occurred while deleting a sort run: " + e.getMessage());
+      }
+    }
+    runs.clear();
+    buffer = new KeyPointer[0];
+    buffered = 0;
+  }
+
+  private void closeReaders() {
+    for (DataInputStream in : readers) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        System.err.println("An error occurred while closing a sort run: " + e.getMessage());
+      }
+    }
+    readers.clear();
+  }
+
+  // sorts the buffer and writes it as the next run
+  private void spill() throws IOException {
+    Arrays.parallelSort(buffer, 0, buffered, Comparator.comparingLong(KeyPointer::getKey));
+    Path run = Files.createTempFile("keypointers", ".run");
+    runs.add(run);
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER_BYTES))) {
+      for (int i = 0; i < buffered; i++) {
+        out.writeBytes(buffer[i].getKeyPointerStr());
+      }
+    }
+    Arrays.fill(buffer, 0, buffered, null);
+    buffered = 0;
+  }
+
+  private static Iterator<KeyPointer> fromRun(DataInputStream in) {
+    return new Iterator<KeyPointer>() {
+      private final byte[] entry = new byte[KeyPointer.LENGTH];
+      private KeyPointer next = read();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public KeyPointer next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        KeyPointer current = next;
+        next = read();
+        return current;
+      }
+
+      private KeyPointer read() {
+        try {
+          in.readFully(entry);
+          return new KeyPointer(new String(entry, StandardCharsets.ISO_8859_1));
+        } catch (EOFException e) {
+          return null;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  // one sorted run being merged
+  private static class Source {
+    private final int order;
+    private final Iterator<KeyPointer> entries;
+    private KeyPointer head;
+
+    private Source(int order, Iterator<KeyPointer> entries) {
+      this.order = order;
+      this.entries = entries;
+    }
+
+    private boolean advance() {
+      head = entries.hasNext() ? entries.next() : null;
+      return head != null;
+    }
+  }
+}
@@ -0,0 +1,435 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The learned index of a file, chosen with put -learned: piecewise linear models from a key to the place of its
+ * record in the data chain, on top of the B-tree of the file. A file put in about key order, like the MovieLens
+ * files with their nearly dense movieIds, needs few models, and a lookup goes straight to the data block instead
+ * of descending the B-tree.
+ *
+ * The chain is cut into runs of consecutive blocks (same PFS file, block numbers one after the other, plain
+ * layout), so the i-th slot of a run is in block start + i / recordsPerBlock. Over each run the keys are fitted in
+ * chain order by segments with a maximum error of epsilon slots (the shrinking cone of FITing-tree): a segment is
+ * {first key, last key, run start block, first slot, last slot, slope}, and the slot of a key of the segment is
+ * predicted within epsilon of the real one. epsilon is half a block, so the window is at most 2 blocks, and the block
+ * of the predicted slot is read first. A key found there is the lookup; a key which no segment covers, or which is
+ * not in its window, is looked up in the B-tree. So the keys inserted or appended after put, which go to the end of
+ * the chain, are found through the B-tree, a deleted key leaves an empty slot the model still points to, and a
+ * compressed file has no segments. Every change goes to the B-tree, the segments are only written by put.
+ *
+ * The index start block of the FCB is the header block {B-tree root, # of segments, epsilon -> first segment block},
+ * followed by {segment0 segment1 ... -> next segment block}. The segments are read into memory the first time the
+ * file is used, see DB.openIndex.
+ */
+public class LearnedIndex implements KeyIndex {
+  public static final int SEGMENT_LENGTH = 2 * KeyPointer.KEY_LENGTH + BlockPointer.LENGTH + 8 + 8 + 16; // 76 chars
+  public static final int RUN_START_OFFSET = 2 * KeyPointer.KEY_LENGTH; // where the run start block is in a segment
+  public static final int MIN_SEGMENT_KEYS = 8; // keys of a shorter segment are left to the B-tree
+  private static final int HEADER_LENGTH = BlockPointer.LENGTH + 10 + 6; // root, # of segments, epsilon
+
+  private final DB db;
+  private final String head;
+  private final int epsilon; // the largest distance in slots between a predicted and a real place
+  private final int recordsPerBlock;
+  private String treeRoot;
+  private IndexTree tree;
+
+  private int segments;
+  private long[] firstKeys = new long[16];
+  private long[] lastKeys = new long[16];
+  private String[] runStarts = new String[16];
+  private int[] firstSlots = new int[16];
+  private int[] lastSlots = new int[16];
+  private double[] slopes = new double[16];
+
+  private int blocksRead; // data blocks read by the model since the index was opened
+  private boolean isLastSearchByModel;
+  // the lookups since the segments were loaded
+  private long modelHits;
+  private long treeLookups;
+
+  private LearnedIndex(DB db, String head, String treeRoot, int epsilon) {
+    this.db = db;
+    this.head = head;
+    this.treeRoot = treeRoot;
+    this.epsilon = epsilon;
+    this.recordsPerBlock = db.getRecordsPerBlock();
+    this.tree = new IndexTree(db, treeRoot);
+  }
+
+  /**
+   * Fits the segments over the data chain of a file and writes them to new blocks.
+   *
+   * @param db         The database, the caller flushes the blocks.
+   * @param treeRoot   The root of the B-tree of the file.
+   * @param dataStart  The first data block of the file.
+   * @return The index, its header block is the index start block of the file.
+   */
+  public static LearnedIndex build(DB db, String treeRoot, String dataStart) {
+    int recordsPerBlock = db.getRecordsPerBlock();
+    int epsilon = Math.max(1, recordsPerBlock / 2);
+    Fitter fitter = new Fitter(epsilon);
+    String runStart = null;
+    BlockPointer previous = null;
+    int runBlocks = 0;
+    String ptr = dataStart;
+    while (isPointer(ptr)) {
+      BlockPointer bp = new BlockPointer(ptr);
+      char[] content = getBlock(db, ptr);
+      boolean isPlain = !PFS.isCompressedBlock(content);
+      boolean isNext = previous != null && previous.getPfsNumber() == bp.getPfsNumber()
+              && previous.getBlockNumber() + 1 == bp.getBlockNumber();
+      if (!isPlain || !isNext) {
+        fitter.close();
+        runStart = isPlain ? ptr : null;
+        runBlocks = 0;
+      }
+      if (runStart != null) {
+        for (int slot = 0; slot < recordsPerBlock; slot++) {
+          long key = RecordDictionary.parseKey(content, slot * DB.RECORD_LENGTH);
+          if (key >= 0) {
+            fitter.add(runStart, key, runBlocks * recordsPerBlock + slot);
+          }
+        }
+      }
+      runBlocks++;
+      previous = bp;
+      ptr = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    fitter.close();
+
+    String[] fitted = fitter.segments.toArray(new String[0]);
+    int perBlock = segmentsPerBlock(db);
+    List<String> region = db.allocateBlocks(1 + (fitted.length + perBlock - 1) / perBlock);
+    LearnedIndex index = new LearnedIndex(db, region.get(0), treeRoot, epsilon);
+    for (String segment : fitted) {
+      index.addSegment(segment, 0);
+    }
+    for (int i = 0; i < region.size(); i++) {
+      char[] content = new char[db.getBlockSize()];
+      Arrays.fill(content, ' ');
+      if (i == 0) {
+        index.header().getChars(0, HEADER_LENGTH, content, 0);
+      } else {
+        for (int segment = (i - 1) * perBlock; segment < Math.min(fitted.length, i * perBlock); segment++) {
+          fitted[segment].getChars(0, SEGMENT_LENGTH, content, (segment - (i - 1) * perBlock) * SEGMENT_LENGTH);
+        }
+      }
+      String nextPtr = i + 1 < region.size() ? region.get(i + 1) : BlockPointer.NULL_PTR;
+      nextPtr.getChars(0, BlockPointer.LENGTH, content, db.getBlockSize() - BlockPointer.LENGTH);
+      BlockPointer bp = new BlockPointer(region.get(i));
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    }
+    return index;
+  }
+
+  /**
+   * Reads the segments of the learned index of a file.
+   *
+   * @param db   The database.
+   * @param head The header block, the index start block of the file.
+   * @return The index.
+   */
+  public static LearnedIndex read(DB db, String head) {
+    List<String> ptrs = blockPointers(db, head);
+    char[] header = getBlock(db, head);
+    LearnedIndex index = new LearnedIndex(db, head, new String(header, 0, BlockPointer.LENGTH),
+            Integer.parseInt(new String(header, BlockPointer.LENGTH + 10, 6).trim()));
+    int count = Integer.parseInt(new String(header, BlockPointer.LENGTH, 10).trim());
+    for (int i = 1; i < ptrs.size(); i++) {
+      char[] content = getBlock(db, ptrs.get(i));
+      for (int slot = 0; slot < segmentsPerBlock(db) && index.segments < count; slot++) {
+        index.addSegment(new String(content, slot * SEGMENT_LENGTH, SEGMENT_LENGTH), 0);
+      }
+    }
+    return index;
+  }
+
+  // starts counting the blocks read and the changes again, DB.openIndex hands out the same index every time
+  public void reset() {
+    tree = new IndexTree(db, treeRoot);
+    blocksRead = 0;
+  }
+
+  /**
+   * Looks up a key through its segment, or through the B-tree if the segment does not find it.
+   *
+   * @param key The key.
+   * @return The DataBlockPointer String of the record, or null if the key is not in the file.
+   */
+  public String search(long key) {
+    String found = searchModel(key);
+    isLastSearchByModel = found != null;
+    if (found != null) {
+      modelHits++;
+      return found;
+    }
+    treeLookups++;
+    return tree.search(key);
+  }
+
+  public boolean insert(KeyPointer keyPointer) {
+    return tree.insert(keyPointer);
+  }
+
+  public boolean delete(long key) {
+    return tree.delete(key);
+  }
+
+  public boolean updatePointer(long key, String pointer) {
+    return tree.updatePointer(key, pointer);
+  }
+
+  // writes the B-tree, and the header if the root of the B-tree moved
+  public void write() {
+    tree.write();
+    if (!tree.getRoot().equals(treeRoot)) {
+      treeRoot = tree.getRoot();
+      BlockPointer bp = new BlockPointer(head);
+      PFS pfs = db.getPfsList().get(bp.getPfsNumber());
+      char[] content = pfs.getBlock(bp.getBlockNumber());
+      header().getChars(0, HEADER_LENGTH, content, 0);
+      pfs.writeContent(bp.getBlockNumber(), content);
+    }
+  }
+
+  public String getRoot() {
+    return head;
+  }
+
+  public int getBlockDelta() {
+    return tree.getBlockDelta();
+  }
+
+  public int getKeyDelta() {
+    return tree.getKeyDelta();
+  }
+
+  public KeyPointer first() {
+    return tree.first();
+  }
+
+  public KeyPointer last() {
+    return tree.last();
+  }
+
+  public Iterator<KeyPointer> iterator(long fromKey) {
+    return tree.iterator(fromKey);
+  }
+
+  // index blocks of the B-tree and data blocks of the windows read since the index was opened
+  public int getBlocksRead() {
+    return tree.getBlocksRead() + blocksRead;
+  }
+
+  // true if the last search found its key through a segment, so its data block is already read
+  public boolean isLastSearchByModel() {
+    return isLastSearchByModel;
+  }
+
+  public int getSegments() {
+    return segments;
+  }
+
+  public int getEpsilon() {
+    return epsilon;
+  }
+
+  // the number of keys the segments cover, from their first and last slots
+  public long getCoveredSlots() {
+    long slots = 0;
+    for (int i = 0; i < segments; i++) {
+      slots += lastSlots[i] - firstSlots[i] + 1;
+    }
+    return slots;
+  }
+
+  public long getModelHits() {
+    return modelHits;
+  }
+
+  public long getTreeLookups() {
+    return treeLookups;
+  }
+
+  /**
+   * Lists the header and segment blocks of a learned index, without the blocks of its B-tree.
+   *
+   * @param db   The database.
+   * @param head The header block.
+   * @return The block pointers in order.
+   */
+  public static List<String> blockPointers(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    String ptr = head;
+    while (isPointer(ptr)) {
+      ptrs.add(ptr);
+      ptr = new String(getBlock(db, ptr), db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    return ptrs;
+  }
+
+  // the root of the B-tree of a learned index
+  public static String treeRoot(DB db, String head) {
+    return new String(getBlock(db, head), 0, BlockPointer.LENGTH);
+  }
+
+  // the number of segments in one segment block
+  public static int segmentsPerBlock(DB db) {
+    return (db.getBlockSize() - BlockPointer.LENGTH) / SEGMENT_LENGTH;
+  }
+
+  // the record of the key in the window of its segment, null if no segment has it there
+  private String searchModel(long key) {
+    // the last segment whose first key is <= key
+    int low = 0;
+    int high = segments - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (firstKeys[mid] <= key) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    int segment = high;
+    if (segment < 0 || key > lastKeys[segment]) {
+      return null;
+    }
+
+    double predicted = firstSlots[segment] + slopes[segment] * (key - firstKeys[segment]);
+    int from = Math.max(firstSlots[segment], (int) Math.floor(predicted - epsilon));
+    int to = Math.min(lastSlots[segment], (int) Math.ceil(predicted + epsilon));
+    int center = Math.min(to, Math.max(from, (int) Math.round(predicted)));
+    BlockPointer start = new BlockPointer(runStarts[segment]);
+    // the block of the predicted slot first, then the rest of the window
+    int centerBlock = center / recordsPerBlock;
+    for (int i = from / recordsPerBlock - 1; i <= to / recordsPerBlock; i++) {
+      if (i == centerBlock) {
+        continue;
+      }
+      BlockPointer bp = runBlock(start, i < from / recordsPerBlock ? centerBlock : i);
+      if (bp == null) {
+        return null;
+      }
+      char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      blocksRead++;
+      for (int slot = 0; slot < recordsPerBlock; slot++) {
+        if (RecordDictionary.parseKey(content, slot * DB.RECORD_LENGTH) == key) {
+          return new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), slot).getPtrString();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds a block of a run. A run is in one PFS file when it is fitted, compaction lays the data chain out again
+   * from the first data block of the next PFS file when a file is full, so a moved run goes on there.
+   *
+   * @param start    The first block of the run.
+   * @param runBlock The number of the block in the run.
+   * @return The block, null if it would be past the last PFS file.
+   */
+  private BlockPointer runBlock(BlockPointer start, int runBlock) {
+    int pfsNumber = start.getPfsNumber();
+    int blockNumber = start.getBlockNumber() + runBlock;
+    while (blockNumber >= db.getBlocksPerPFS()) {
+      if (++pfsNumber >= db.getPfsList().size()) {
+        return null;
+      }
+      blockNumber += db.getPfsList().get(pfsNumber).getFirstDataBlock() - db.getBlocksPerPFS();
+    }
+    return new BlockPointer(pfsNumber, blockNumber);
+  }
+
+  // {B-tree root, # of segments, epsilon}
+  private String header() {
+    return treeRoot + String.format("%010d%06d", segments, epsilon);
+  }
+
+  private void addSegment(String segment, int offset) {
+    if (segments == firstKeys.length) {
+      firstKeys = Arrays.copyOf(firstKeys, 2 * segments);
+      lastKeys = Arrays.copyOf(lastKeys, 2 * segments);
+      runStarts = Arrays.copyOf(runStarts, 2 * segments);
+      firstSlots = Arrays.copyOf(firstSlots, 2 * segments);
+      lastSlots = Arrays.copyOf(lastSlots, 2 * segments);
+      slopes = Arrays.copyOf(slopes, 2 * segments);
+    }
+    int at = offset;
+    firstKeys[segments] = Long.parseUnsignedLong(segment.substring(at, at += KeyPointer.KEY_LENGTH), 16);
+    lastKeys[segments] = Long.parseUnsignedLong(segment.substring(at, at += KeyPointer.KEY_LENGTH), 16);
+    runStarts[segments] = segment.substring(at, at += BlockPointer.LENGTH);
+    firstSlots[segments] = Integer.parseInt(segment.substring(at, at += 8), 16);
+    lastSlots[segments] = Integer.parseInt(segment.substring(at, at += 8), 16);
+    slopes[segments] = Double.longBitsToDouble(Long.parseUnsignedLong(segment.substring(at, at + 16), 16));
+    segments++;
+  }
+
+  /**
+   * Fits the keys of the runs in chain order into segments: a segment starts at its first key and keeps the range
+   * of slopes which predict every key since within epsilon slots. A key outside the range, a smaller key or a new
+   * run closes the segment.
+   */
+  private static class Fitter {
+    private final int epsilon;
+    private final List<String> segments = new ArrayList<>();
+    private String runStart;
+    private long firstKey;
+    private int firstSlot;
+    private long lastKey;
+    private int lastSlot;
+    private int keys; // keys in the open segment, 0 if there is none
+    private double minSlope;
+    private double maxSlope;
+
+    private Fitter(int epsilon) {
+      this.epsilon = epsilon;
+    }
+
+    private void add(String start, long key, int slot) {
+      if (keys > 0 && start.equals(runStart) && key > lastKey) {
+        double low = (slot - firstSlot - epsilon) / (double) (key - firstKey);
+        double high = (slot - firstSlot + epsilon) / (double) (key - firstKey);
+        if (Math.max(low, minSlope) <= Math.min(high, maxSlope)) {
+          minSlope = Math.max(low, minSlope);
+          maxSlope = Math.min(high, maxSlope);
+          lastKey = key;
+          lastSlot = slot;
+          keys++;
+          return;
+        }
+      }
+      close();
+      runStart = start;
+      firstKey = key;
+      firstSlot = slot;
+      lastKey = key;
+      lastSlot = slot;
+      keys = 1;
+      minSlope = Double.NEGATIVE_INFINITY;
+      maxSlope = Double.POSITIVE_INFINITY;
+    }
+
+    private void close() {
+      if (keys >= MIN_SEGMENT_KEYS) {
+        double slope = (minSlope + maxSlope) / 2;
+        segments.add(KeyPointer.formatKey(firstKey) + KeyPointer.formatKey(lastKey) + runStart
+                + String.format("%08X%08X%016X", firstSlot, lastSlot, Double.doubleToLongBits(slope)));
+      }
+      keys = 0;
+    }
+  }
+
+  private static char[] getBlock(DB db, String ptr) {
+    BlockPointer bp = new BlockPointer(ptr);
+    return db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
@@ -1,27 +1,53 @@
 import java.io.*;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This object is the PFS which is content of .db file.
  * It could help the database stores metadata, data blocks and index block.
- * For all the .db files, block 0~3 are hexadecimal bitmap.
- * For .db0, block 4 is the database metadata. block 5 is the FCB metadetas
+ * For all the .db files, block 0 is a header and block 1~N are hexadecimal bitmap.
+ * For .db0, block 0 is the database metadata (superblock). block N+1 is the FCB metadetas
+ *
+ * Each block is stored as one line of the file (block size chars + '\n'), so block i starts at
+ * offset i * (block size + 1). Blocks are read on demand and only the changed blocks are written back.
+ * The file is preallocated in steps of db.getGrowthBlocks() blocks up to db.getBlocksPerPFS() blocks.
+ *
+ * The block, bitmap and write methods are synchronized, so files which are put concurrently could write their
+ * own blocks into the same PFS file.
  */
 public class PFS {
+  public static final char COMPRESSED_BLOCK_MARKER = '#'; // first char of a compressed data block
+  public static final int MAX_COMPRESSED_RECORDS = DataBlockPointer.MAX_RECORD_NUMBER + 1;
+  public static final int SUPER_BLOCK = 0; // block # of the superblock in .db0 (segment header in .dbN)
+  public static final int INDEX_DIRECTORY_OFFSET = 71; // superblock chars 71-82, the first index directory block
+  private static final int MAX_CACHED_BLOCKS = 16384; // clean blocks kept in memory for each PFS file
+  public static final int READ_AHEAD_BLOCKS = 32; // blocks read at once when a block is not in memory
+
   private DB db; // A DB object
   private int sequenceNumber; // An integer sequence number
-  private char[][] content; // The char[4000][256] stores all the data
+  private int blocksPerPFS; // how many blocks this PFS file could hold
+  private int bitmapBlocks; // how many blocks the bitmap takes, starting at block 1
+  private Map<Integer, char[]> cachedBlocks; // LRU cache of blocks which are the same as in the file
+  private Map<Integer, char[]> dirtyBlocks; // blocks changed since the last write, sorted by block #
+  private BitSet usedBlocks; // in memory copy of the bitmap
   private int blockLeft; // how many block left for this PFS file
   private int emptyBlock; // block # for next empty block
   private String fileName; // the file name for this PFS file
+  private RandomAccessFile file; // the .db file, kept open while the database is open
+  private volatile int allocatedBlocks; // how many blocks are preallocated in the file
+  private volatile boolean hasDirtyBlocks; // whether dirtyBlocks is not empty, read without the monitor
 //  private List<KeyPointer> keyPointerList;
 
 
@@ -35,16 +61,32 @@ public class PFS {
   public PFS(DB db, int PFSNumber) {
     this.db = db;
     this.sequenceNumber = PFSNumber; // if .db0, sequenceNumber = 0
-    this.content = new char[4000][db.getBlockSize()]; // first block is always bitmap
+    this.blocksPerPFS = db.getBlocksPerPFS();
+    this.bitmapBlocks = getBitmapBlocks(this.blocksPerPFS, db.getBlockSize());
     this.fileName = db.getName() + ".db" + PFSNumber;
+    this.cachedBlocks = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+        return size() > MAX_CACHED_BLOCKS;
+      }
+    };
+    this.dirtyBlocks = new TreeMap<>();
+    this.usedBlocks = new BitSet(this.blocksPerPFS);
+
+    try {
+      this.file = new RandomAccessFile(fileName, "rw");
+      this.allocatedBlocks = (int) (this.file.length() / (db.getBlockSize() + 1));
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to open PFS file " + fileName + ": " + e.getMessage());
+    }
 
     // check if this file is already exist
     if (db.getNumOfPFSFiles() >= sequenceNumber + 1) {
-      loadExistingPFS(); // update the current content[][] 2d array
+      loadExistingPFS(); // load the bitmap
 
       this.blockLeft = this.calculateBlocksLeft();
     } else {
-      this.blockLeft = 4000;
+      this.blockLeft = this.blocksPerPFS;
       if (this.sequenceNumber == 0) {
         // init the .db0 with write all the superblock info & BitMap(with first 3 blocks full),
         // leave 1 block for FCB block
@@ -67,24 +109,46 @@ public class PFS {
     }
   }
 
-  public int loadExistingFCB(List<FCB> fcbList) {
-    int size = 0;
-    if(this.sequenceNumber == 0) {
-      // TODO: hard coded
-      for(int i=0; i<4; i++) {
-        int fcbLength = 58;
-        String temp = new String(this.content[5], i*fcbLength, fcbLength);
-        FCB fcb = new FCB(temp.toCharArray());
-        if(fcb.getName() != "") {
-          size++;
-          fcbList.add(fcb);
-        }
-//        fcb.print();
+  /**
+   * Calculates how many blocks the hexadecimal bitmap takes. 1 char represents 4 blocks.
+   *
+   * @param blocksPerPFS The number of blocks in one PFS file.
+   * @param blockSize    The block size.
+   * @return The number of bitmap blocks.
+   */
+  public static int getBitmapBlocks(int blocksPerPFS, int blockSize) {
+    int hexChars = (blocksPerPFS + 3) / 4;
+    return (hexChars + blockSize - 1) / blockSize;
+  }
+
+  /**
+   * Reads the superblock line of an existing .db0 file. It is always the first line,
+   * so it could be read before the block size of the database is known.
+   *
+   * @param dbName The database name.
+   * @return The superblock content.
+   * @throws IOException If the .db0 file could not be read.
+   */
+  public static String readSuperBlock(String dbName) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(dbName + ".db0"), StandardCharsets.ISO_8859_1))) {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("Superblock information is missing.");
       }
+      return line;
     }
-    return size;
   }
 
+  // block # of the FCB block, right after the bitmap of .db0
+  public int getFCBBlockNumber() {
+    return 1 + this.bitmapBlocks;
+  }
+
+  // first block # which could hold data or index blocks
+  public int getFirstDataBlock() {
+    return this.sequenceNumber == 0 ? getFCBBlockNumber() + 1 : 1 + this.bitmapBlocks;
+  }
 
   // blocks is the already produced blocks,
   // keyPointerList is the start and end pointer in string
@@ -102,9 +166,9 @@ public class PFS {
    *                       sample:        List<{String key, String value}>
    *                       {"1", "1,Toy Story (1995),Adventure|Animation|C"}
    * @return A list containing the start and end pointers to the added data blocks.
-   * {start pointer,end pointer}  pointer is a block pointer with 7 char.
+   * {start pointer,end pointer}  pointer is a block pointer with 12 char.
    */
-  public List<String> addData(List<char[]> blocks, List<KeyPointer> keyPointerList) {
+  public synchronized List<String> addData(List<char[]> blocks, List<KeyPointer> keyPointerList) {
     this.emptyBlock = findNextFreeBlock();
 
     BlockPointer startBp = new BlockPointer(this.sequenceNumber, this.emptyBlock);
@@ -118,13 +182,13 @@ public class PFS {
       counter++;
       int currBlock = this.emptyBlock;
 
-      if (currBlock >= content.length) {
+      if (currBlock < 0 || currBlock >= this.blocksPerPFS) {
         System.out.println("No more empty blocks available.");
         break; // Exit if there are no more empty blocks
       }
 
       // Put one block in corresponding this.content
-      System.arraycopy(block, 0, this.content[currBlock], 0, block.length);
+      writeContent(currBlock, Arrays.copyOf(block, db.getBlockSize()));
 
       updateBitMap(currBlock, true); // mark this block full and update blockLeft
 
@@ -137,7 +201,7 @@ public class PFS {
         pointerString = bp.getPtrString();
       } else {
         // if this is the end block
-        pointerString = "9999999";
+        pointerString = BlockPointer.NULL_PTR;
         BlockPointer curDP = new BlockPointer(sequenceNumber, currBlock);
         startNEndPtrs.add(curDP.getPtrString()); // add the end pointer into startNEndPtrs
       }
@@ -170,14 +234,11 @@ public class PFS {
    * @param blockNum       The block number where the data is stored. From 0 to 3999
    */
   public void updateKeyPointerList(char[] block, List<KeyPointer> keyPointerList, int blockNum) {
-    // 6 records in one data block, each 40 characters long
-    int recordLength = 40;
-    for (int i = 0; i < 6; i++) {
-      // Calculate the start and end indices for the current record
-      int start = i * recordLength;
-
+    // 6 records in one data block (up to 10 in a compressed block), each 40 characters long
+    List<String> records = extractRecordsFromBlock(block);
+    for (int i = 0; i < records.size(); i++) {
       // Extract the current record from the block
-      String record = new String(block, start, Math.min(recordLength, block.length - start));
+      String record = records.get(i);
 
       // Find the index of the first comma to separate the key from the rest of the record
       int commaIndex = record.indexOf(',');
@@ -193,7 +254,7 @@ public class PFS {
       DataBlockPointer dbPointer = new DataBlockPointer(this.sequenceNumber, blockNum, i);
 
       // Create the current record list containing the key and DataBlockPointer string
-      KeyPointer currKeyPtr = new KeyPointer(Integer.valueOf(key), dbPointer.getPtrString());
+      KeyPointer currKeyPtr = new KeyPointer(Long.parseLong(key), dbPointer.getPtrString());
 
       // Add the current record to the keyPointerList
       keyPointerList.add(currKeyPtr);
@@ -206,26 +267,28 @@ public class PFS {
    * Updates the pointer at the end of a specified block with a new value.
    *
    * @param blockNum The block number to update the pointer for.
-   * @param pointer  The new pointer value to write at the end of the block. String size will be 7.
+   * @param pointer  The new pointer value to write at the end of the block. String size will be 12.
    *                 example:
-   *                 0010005 means 001 is store in .db1, 0005 block# 5
+   *                 000100000005 means 0001 is store in .db1, 00000005 block# 5
    */
-  void updateBlockPointer(int blockNum, String pointer) {
+  synchronized void updateBlockPointer(int blockNum, String pointer) {
     // Validate the pointer length
-    if (pointer == null || pointer.length() != 7) {
-      throw new IllegalArgumentException("Pointer must be exactly 7 characters long.");
+    if (pointer == null || pointer.length() != BlockPointer.LENGTH) {
+      throw new IllegalArgumentException("Pointer must be exactly " + BlockPointer.LENGTH + " characters long.");
     }
 
-    // Calculate the start index for the 7-character pointer within the block
-    int pointerStartIndex = this.db.getBlockSize() - 7;
+    // Calculate the start index for the 12-character pointer within the block
+    int pointerStartIndex = this.db.getBlockSize() - BlockPointer.LENGTH;
 
     // Convert the pointer string to a char array
     char[] pointerChars = pointer.toCharArray();
 
-    // Update the last 7 characters of the specified block
+    // Update the last 12 characters of the specified block
+    char[] block = getBlock(blockNum);
     for (int i = 0; i < pointerChars.length; i++) {
-      this.content[blockNum][pointerStartIndex + i] = pointerChars[i];
+      block[pointerStartIndex + i] = pointerChars[i];
     }
+    writeContent(blockNum, block);
   }
 
   // todo: updateDataBlockPointer
@@ -238,18 +301,16 @@ public class PFS {
    * Initializes the bitmap for the PFS file, setting up the initial state of the blocks.
    */
   public void initBitMap() {
-    // fill the four line with Hexadecimal bit map 0-F, first 3 blocks char
-    for (int i = 0; i < 256; i++) {
-      this.content[0][i] = '0';
-      this.content[1][i] = '0';
-      this.content[2][i] = '0';
-      this.content[3][i] = '0';
+    // fill the bitmap blocks with Hexadecimal bit map 0-F
+    for (int i = 1; i <= this.bitmapBlocks; i++) {
+      char[] bitmapBlock = new char[db.getBlockSize()];
+      Arrays.fill(bitmapBlock, '0');
+      writeContent(i, bitmapBlock);
+    }
+    // update the header block and the bitmap blocks full
+    for (int i = 0; i <= this.bitmapBlocks; i++) {
+      updateBitMap(i, true);
     }
-    // update the block 0, 1, 2, 3 full
-    updateBitMap(0, true);
-    updateBitMap(1, true);
-    updateBitMap(2, true);
-    updateBitMap(3, true);
   }
 
   /**
@@ -260,12 +321,10 @@ public class PFS {
 
     initBitMap();
 
-    // leave the 6th block, but mark it empty. it will be the FCB infos.
-    updateBitMap(5, true);
+    // leave the block after the bitmap, but mark it full. it will be the FCB infos.
+    updateBitMap(getFCBBlockNumber(), true);
 
-    // fill the 5th line with superblock info, update the block 0 tobe full
-    // db name(first 30 , offset 0~29), db numOfFCBFiles(1 byte), db numOfPFSFiles(5 bytes),
-    // db blocksize(3 bytes) .
+    // fill the block 0 with superblock info
     updateSuperBlock();
 
   }
@@ -277,6 +336,10 @@ public class PFS {
     db.setNumOfPFSFiles(db.getNumOfPFSFiles() + 1);
 
     initBitMap();
+
+    // block 0 of a .dbN is a segment header: db name(0~29), PFS number(30~34)
+    String header = String.format("%-30.30s%-5d", db.getName(), this.sequenceNumber);
+    writeContent(SUPER_BLOCK, Arrays.copyOf(header.toCharArray(), db.getBlockSize()));
   }
 
   /**
@@ -284,23 +347,9 @@ public class PFS {
    *
    * @param numOfPFSFiles The new number of PFS files to record.
    */
-  public void updateSuperBlockNumOfPFSFiles(int numOfPFSFiles) {
+  public synchronized void updateSuperBlockNumOfPFSFiles(int numOfPFSFiles) {
     if (this.sequenceNumber == 0) {
-      int superBlockNum = 4; // super block is in 5th block
-      // 31-35 is # of PFC file number
-      String numOfPFSFilesString = String.valueOf(numOfPFSFiles);
-      char[] numOfPFSFilesChars = numOfPFSFilesString.toCharArray();
-      int it = 31;
-      int startingI = 31;
-
-      for (; it <= 35; it++) {
-        if (it < startingI + numOfPFSFilesChars.length) {
-          this.content[superBlockNum][it] = numOfPFSFilesChars[it - startingI];
-        } else {
-          this.content[superBlockNum][it] = ' ';
-        }
-      }
-
+      updateSuperBlock();
     } else {
       System.out.println("only update SuperBlock info in .db0");
     }
@@ -318,11 +367,9 @@ public class PFS {
    *
    * @param numOfFCBFiles The new number of FCB files to record.
    */
-  public void updateSuperBlockNumOfFCBFiles(int numOfFCBFiles) {
+  public synchronized void updateSuperBlockNumOfFCBFiles(int numOfFCBFiles) {
     if (this.sequenceNumber == 0) {
-      int superBlockNum = 4; // super block is in 5th block
-      // 30 fillin fcb size
-      this.content[superBlockNum][30] = String.valueOf(numOfFCBFiles).toCharArray()[0];
+      updateSuperBlock();
     } else {
       System.out.println("only update SuperBlock info in .db0");
     }
@@ -340,27 +387,8 @@ public class PFS {
    *
    * @return The number of free blocks left.
    */
-  public int calculateBlocksLeft() {
-    int blocksLeft = 0;
-    int counter = 1000;
-    // Iterate over each character in the bitmap
-    for (int line = 0; line < 4; line++) { // Assuming the bitmap is in the first four lines
-      for (int i = 0; i < 256; i++) {
-        if (counter <= 0) return blocksLeft;
-        counter--;
-        char hexChar = this.content[line][i];
-        int value = Character.digit(hexChar, 16);
-
-        // Convert the hexadecimal value to binary and count the zeros
-        for (int bit = 0; bit < 4; bit++) {
-          if ((value & (1 << bit)) == 0) {
-            blocksLeft++; // Increment for each block that is free
-          }
-        }
-      }
-    }
-
-    return blocksLeft;
+  public synchronized int calculateBlocksLeft() {
+    return this.blocksPerPFS - this.usedBlocks.cardinality();
   }
 
   /**
@@ -368,38 +396,13 @@ public class PFS {
    *
    * @return The block number of the next free block.
    */
-  public int findNextFreeBlock() {
-    // Loop through each row and column of the content array
-    int counter = 1000;
-    for (int row = 0; row < 4; row++) {
-      for (int col = 0; col < 256; col++) {
-        // If no free block is found, return -1
-        if (counter == 0) return -1;
-        counter--;
-        char hexChar = this.content[row][col];
-
-        // Convert the hexadecimal character to a binary string
-        String binaryString = Integer.toBinaryString(Character.digit(hexChar, 16));
-
-        // Left-pad the binary string with zeros to ensure it has 4 bits
-        binaryString = String.format("%4s", binaryString).replace(' ', '0');
-
-        // Check each bit to find the first '0'
-        for (int bit = 0; bit < 4; bit++) {
-          if (binaryString.charAt(bit) == '0') {
-
-            // Calculate and return the block number
-            int blockNumber = (row * 256 * 4) + (col * 4) + bit;
-            return blockNumber;
-          }
-        }
-      }
-    }
+  public synchronized int findNextFreeBlock() {
+    int blockNumber = this.usedBlocks.nextClearBit(0);
     // If no free block is found, return -1
-    return -1;
+    return blockNumber < this.blocksPerPFS ? blockNumber : -1;
   }
 
-  public void findEmptyBlocks(int assignedBlock, List<String> emptyBlocks) {
+  public synchronized void findEmptyBlocks(int assignedBlock, List<String> emptyBlocks) {
     this.emptyBlock = findNextFreeBlock(); // make sure emptyBlock variable is the latest
     for(int i = 0; i < assignedBlock; i++) {
       int curr_block = this.emptyBlock;
@@ -412,31 +415,6 @@ public class PFS {
     }
   }
 
-  /**
-   * Updates the FCB (File Control Block) metadata with provided details and stores it in the PFS.
-   * This includes the FCB name, creation or modification time, size, and pointers to data and index blocks.
-   *
-   */
-  public void updateFCBMetadata(List<FCB> fcbList) {
-    if(this.sequenceNumber == 0) {
-      String fcbMetadatas = "";
-
-      for(int i=0; i< fcbList.size(); i++) {
-        fcbMetadatas += fcbList.get(i).toString();
-      }
-      char[] fcbMetadataArray = fcbMetadatas.toCharArray();
-      for(int i=0; i<fcbMetadataArray.length; i++) {
-        this.content[5][i] = fcbMetadataArray[i];
-      }
-      // write the current char array to .dbfile
-      try {
-        writeCharArrayToFile();
-      } catch (IOException e) {
-        System.err.println("An error occurred while writing the file: " + e.getMessage());
-      }
-    }
-  }
-
 private void appendMetadataToBlock(char[] block, char[] metadata, int existingMetadataCount) {
   final int METADATA_SIZE = 57; // Size of each metadata entry
   final int MAX_ENTRIES = 4; // Maximum number of metadata entries per block
@@ -519,66 +497,63 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
    * Updates the superblock information, including database name, number of FCB and PFS files, and block size.
    * This method is primarily used to maintain metadata consistency across the PFS files.
    */
-  public void updateSuperBlock() {
+  public synchronized void updateSuperBlock() {
     if (this.sequenceNumber != 0) {
       System.out.println("only update SuperBlock info in .db0");
+      return;
     }
-    int superBlockNum = 4; // super block is in 5th block
-    // Update SuperBlock will be in the block 3
+    int superBlockNum = SUPER_BLOCK; // super block is in 1st block
     updateBitMap(superBlockNum, true);
 
 //    System.out.println("Number of FCB Files: " + this.db.getNumOfFCBFiles());
 //    System.out.println("Number of PFS Files: " + this.db.getNumOfPFSFiles());
 
-    String dbName = this.db.getName();
-    int numOfFCBFiles = this.db.getNumOfFCBFiles();
-    int numOfPFSFiles = this.db.getNumOfPFSFiles();
-    int blockSize = this.db.getBlockSize();
+    // 0-29 db name, 30-39 # of FCB files, 40-44 # of PFS files, 45-50 block size,
+    // 51-60 blocks per PFS file, 61-70 preallocation growth step in blocks
+    String superBlock = String.format("%-30.30s%-10d%-5d%-6d%-10d%-10d",
+            this.db.getName(), this.db.getNumOfFCBFiles(), this.db.getNumOfPFSFiles(),
+            this.db.getBlockSize(), this.db.getBlocksPerPFS(), this.db.getGrowthBlocks());
 
-    // 0-29 will be db name
-    // Ensure the database name is not longer than 30 characters
-    if (dbName.length() > 30) {
-      dbName = dbName.substring(0, 30);
-    } else {
-      // Right-pad the database name with spaces to ensure it fills 30 characters
-      while (dbName.length() < 30) {
-        dbName += " ";
-      }
-    }
-    // fillin db name
-    for (int i = 0; i < dbName.length(); i++) {
-      this.content[superBlockNum][i] = dbName.charAt(i);
-    }
-
-    // 30 fillin fcb size
-    this.content[superBlockNum][30] = String.valueOf(numOfFCBFiles).toCharArray()[0];
+    char[] block = getBlock(superBlockNum);
+    superBlock.getChars(0, superBlock.length(), block, 0);
+    writeContent(superBlockNum, block);
+  }
 
-    // 31-35 is # of PFC file number
-    String numOfPFSFilesString = String.valueOf(numOfPFSFiles);
-    char[] numOfPFSFilesChars = numOfPFSFilesString.toCharArray();
-    int it = 31;
-    int startingI = 31;
+  // the first block of the index directory (SecondaryIndex), blank in a database without secondary indexes
+  public String getIndexDirectoryStart() {
+    return new String(getBlock(SUPER_BLOCK), INDEX_DIRECTORY_OFFSET, BlockPointer.LENGTH);
+  }
 
-    for (; it <= 35; it++) {
-      if (it < startingI + numOfPFSFilesChars.length) {
-        this.content[superBlockNum][it] = numOfPFSFilesChars[it - startingI];
-      } else {
-        this.content[superBlockNum][it] = ' ';
-      }
+  /**
+   * Points the superblock of .db0 to the first block of the index directory, the caller flushes it.
+   *
+   * @param ptr The BlockPointer String of the block.
+   */
+  public synchronized void updateSuperBlockIndexDirectory(String ptr) {
+    if (this.sequenceNumber != 0) {
+      System.out.println("only update SuperBlock info in .db0");
+      return;
     }
+    char[] block = getBlock(SUPER_BLOCK);
+    ptr.getChars(0, BlockPointer.LENGTH, block, INDEX_DIRECTORY_OFFSET);
+    writeContent(SUPER_BLOCK, block);
+  }
 
-    // 36-38 is # of block size
-    String blockSizeString = String.valueOf(blockSize);
-    char[] blockSizeChars = blockSizeString.toCharArray();
-    startingI = 36;
-
-    for (; it <= 38; it++) {
-      if (it < startingI + blockSizeChars.length) {
-        this.content[superBlockNum][it] = blockSizeChars[it - startingI];
-      } else {
-        this.content[superBlockNum][it] = ' ';
-      }
-    }
+  /**
+   * Parses the fields of a superblock line.
+   * {block size, blocks per PFS file, growth step in blocks, # of FCB files, # of PFS files}
+   *
+   * @param superBlock The superblock content.
+   * @return The superblock fields.
+   */
+  public static int[] parseSuperBlock(String superBlock) {
+    return new int[] {
+            Integer.parseInt(superBlock.substring(45, 51).trim()),
+            Integer.parseInt(superBlock.substring(51, 61).trim()),
+            Integer.parseInt(superBlock.substring(61, 71).trim()),
+            Integer.parseInt(superBlock.substring(30, 40).trim()),
+            Integer.parseInt(superBlock.substring(40, 45).trim())
+    };
   }
 
   /**
@@ -588,22 +563,9 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
    * @param blockNum     The block number to update. From 0 to 3999
    * @param isBecomeFull A boolean indicating whether the block is becoming full (true) or empty (false).
    */
-  public void updateBitMap(int blockNum, boolean isBecomeFull) {
-    int row = blockNum / (256 * 4);
-    int col = (blockNum / 4) % 256;
-    int bitPosition = blockNum % 4;
-
-    // Convert the hex character to binary
-    char hexChar = this.content[row][col];
-    int value = Character.digit(hexChar, 16);
-    int[] binary = new int[4];
-    for (int i = 3; i >= 0; i--) {
-      binary[i] = value % 2;
-      value /= 2;
-    }
-
+  public synchronized void updateBitMap(int blockNum, boolean isBecomeFull) {
     // Check the current status before changing it
-    boolean isCurrentlyEmpty = binary[bitPosition] == 0;
+    boolean isCurrentlyEmpty = !this.usedBlocks.get(blockNum);
 
     // Adjust blockSize based on the change
     if (isCurrentlyEmpty && isBecomeFull) {
@@ -612,199 +574,292 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
     } else if (!isCurrentlyEmpty && !isBecomeFull) {
       // If the block was used (1) and is now empty (0), inc blockLeft
       this.blockLeft += 1;
+    } else {
+      // Note: If the status does not change, do not adjust blockSize
+      return;
     }
-    // Note: If the status does not change, do not adjust blockSize
+    this.usedBlocks.set(blockNum, isBecomeFull);
 
-    // Update the binary value based on isBlockEmpty
-    binary[bitPosition] = isBecomeFull ? 1 : 0;
-
-    // Convert the binary back to a single hexadecimal character
+    // Convert the 4 blocks of this hex char back to a single hexadecimal character
     // 1000 (8) is for 1st block full, 0100 (4) is for 2nd block full
-    int newValue = binary[0] * 8 + binary[1] * 4 + binary[2] * 2 + binary[3];
-    this.content[row][col] = Integer.toHexString(newValue).toUpperCase().charAt(0);
+    int firstBlock = blockNum - blockNum % 4;
+    int newValue = 0;
+    for (int bit = 0; bit < 4; bit++) {
+      if (this.usedBlocks.get(firstBlock + bit)) {
+        newValue |= 8 >> bit;
+      }
+    }
+    int hexIndex = blockNum / 4;
+    int row = 1 + hexIndex / db.getBlockSize();
+    char[] bitmapBlock = getBlock(row);
+    bitmapBlock[hexIndex % db.getBlockSize()] = Integer.toHexString(newValue).toUpperCase().charAt(0);
+    writeContent(row, bitmapBlock);
   }
 
-  public void writeContent(int blockNum, char[] newBlockContent) {
-    if(blockNum < 0 || blockNum >= 4000) {
-      System.out.println("Invalid block number, please input from 0 to 3999");
+  public synchronized void writeContent(int blockNum, char[] newBlockContent) {
+    if(blockNum < 0 || blockNum >= this.blocksPerPFS) {
+      System.out.println("Invalid block number, please input from 0 to " + (this.blocksPerPFS - 1));
       return;
     }
 
-    if(newBlockContent.length != 256) {
-      System.out.println("Invalid block content, please input char length 256");
+    if(newBlockContent.length != db.getBlockSize()) {
+      System.out.println("Invalid block content, please input char length " + db.getBlockSize());
       return;
     }
 
-    this.content[blockNum] = newBlockContent;
+    this.cachedBlocks.remove(blockNum);
+    this.dirtyBlocks.put(blockNum, newBlockContent);
+    this.hasDirtyBlocks = true;
   }
 
-
   /**
-   * Writes the current state of the `content` 2D char array to the associated .db file. This method is used to persist
-   * changes made to the PFS structure, including updates to metadata, data blocks, and the bitmap.
+   * Returns the content of one block, reading it from the .db file if it is not in memory.
+   * Changes to the returned array have to be saved with writeContent.
    *
-   * @throws IOException If an error occurs during file writing.
+   * @param blockNum The block number. From 0 to blocks per PFS - 1
+   * @return The block content.
    */
-  public void writeCharArrayToFile() throws IOException {
-    String fileName = this.db.getName() + ".db" + this.sequenceNumber;
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-      for (char[] row : this.content) {
-        writer.write(row);
-        // Todo: remove this when demo.
-        writer.newLine(); // Use this if you want each row in a new line, remove if not needed
-      }
+  public synchronized char[] getBlock(int blockNum) {
+    if (blockNum < 0 || blockNum >= this.blocksPerPFS) {
+      throw new IllegalArgumentException("Block number out of range: " + blockNum);
+    }
+    char[] block = this.dirtyBlocks.get(blockNum);
+    if (block == null) {
+      block = this.cachedBlocks.get(blockNum);
+    }
+    if (block == null) {
+      block = readBlock(blockNum);
+      this.cachedBlocks.put(blockNum, block);
     }
+    return block;
   }
 
+  /**
+   * Reads consecutive blocks from the .db file without the monitor of this PFS file and without its cache, for the
+   * tasks of a parallel scan (DB.scanRecordsParallel), which would otherwise take turns on getBlock and its LRU
+   * cache. The blocks are read with one positional read, so the readers do not share a file position. While blocks
+   * are changed and not written yet, the first block is returned from getBlock instead, so no change is missed.
+   * The caller must not be interrupted during the read, an interrupt closes the channel of the file.
+   *
+   * @param firstBlock The first block number.
+   * @param count      The number of blocks, fewer are returned at the end of the file.
+   * @return The blocks, at least the first one. Changes have to be saved with writeContent.
+   */
+  public char[][] readBlocksUnlocked(int firstBlock, int count) {
+    int blockSize = db.getBlockSize();
+    int allocated = this.allocatedBlocks;
+    if (this.hasDirtyBlocks || firstBlock >= allocated) {
+      return new char[][] {getBlock(firstBlock)};
+    }
+    count = Math.max(1, Math.min(count, allocated - firstBlock));
+    ByteBuffer bytes = ByteBuffer.allocate(count * (blockSize + 1));
+    long position = (long) firstBlock * (blockSize + 1);
+    try {
+      FileChannel channel = this.file.getChannel();
+      int read = 0;
+      // a positional read may return fewer bytes
+      while (bytes.hasRemaining() && read >= 0) {
+        read = channel.read(bytes, position + bytes.position());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read block " + firstBlock + " of " + fileName + ": " + e.getMessage());
+    }
 
-  public int getSequenceNumber() {
-    return sequenceNumber;
+    char[][] blocks = new char[count][blockSize];
+    byte[] array = bytes.array();
+    for (int i = 0; i < count; i++) {
+      int offset = i * (blockSize + 1);
+      for (int j = 0; j < blockSize; j++) {
+        blocks[i][j] = (char) (array[offset + j] & 0xFF);
+      }
+    }
+    return blocks;
   }
 
-  public void setSequenceNumber(int sequenceNumber) {
-    this.sequenceNumber = sequenceNumber;
-  }
+  // read one block from the .db file, a block which is not allocated yet is empty
+  // the following blocks are read with it and cached, so reading a contiguous chain takes few reads
+  private char[] readBlock(int blockNum) {
+    int blockSize = db.getBlockSize();
+    if (blockNum >= this.allocatedBlocks) {
+      return new char[blockSize];
+    }
+    int count = Math.min(READ_AHEAD_BLOCKS, this.allocatedBlocks - blockNum);
+    byte[] bytes = new byte[count * (blockSize + 1)];
+    try {
+      this.file.seek((long) blockNum * (blockSize + 1));
+      this.file.readFully(bytes);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read block " + blockNum + " of " + fileName + ": " + e.getMessage());
+    }
 
-  public int getBlockLeft() {
-    blockLeft = calculateBlocksLeft();
-    return blockLeft;
+    char[] first = null;
+    for (int i = 0; i < count; i++) {
+      int currBlock = blockNum + i;
+      if (i > 0 && (this.dirtyBlocks.containsKey(currBlock) || this.cachedBlocks.containsKey(currBlock))) {
+        continue;
+      }
+      char[] block = new char[blockSize];
+      int offset = i * (blockSize + 1);
+      for (int j = 0; j < blockSize; j++) {
+        block[j] = (char) (bytes[offset + j] & 0xFF);
+      }
+      if (i == 0) {
+        first = block;
+      } else {
+        this.cachedBlocks.put(currBlock, block);
+      }
+    }
+    return first;
   }
 
-
-
-  // Todo: change to no change line
   /**
-   * Load the content of the PFS file into the 2D char array, considering the special structure of .db0.
+   * Writes the current state of the `content` 2D char array to the associated .db file. This method is used to persist
+   * changes made to the PFS structure, including updates to metadata, data blocks, and the bitmap.
+   *
+   * @throws IOException If an error occurs during file writing.
    */
-  public void loadExistingPFS() {
-    try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-      int rowIndex = 0; // Start directly after FCB block
-      while (rowIndex < 4000) {
-        String line = reader.readLine();
-        for (int colIndex = 0; colIndex < line.length() && colIndex < 256; colIndex++) {
-          content[rowIndex][colIndex] = line.charAt(colIndex);
+  public synchronized void writeCharArrayToFile() throws IOException {
+    int blockSize = db.getBlockSize();
+    byte[] buffer = new byte[0];
+    int runStart = -1; // first block # of the consecutive dirty blocks in buffer
+    int runLength = 0;
+
+    // consecutive dirty blocks are written with one write
+    for (Map.Entry<Integer, char[]> entry : this.dirtyBlocks.entrySet()) {
+      int blockNum = entry.getKey();
+      if (runLength > 0 && blockNum != runStart + runLength) {
+        writeBlocks(runStart, buffer, runLength);
+        runLength = 0;
+      }
+      if (runLength == 0) {
+        runStart = blockNum;
+      }
+      if (buffer.length < (runLength + 1) * (blockSize + 1)) {
+        buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, (runLength + 1) * (blockSize + 1)));
+      }
+      char[] block = entry.getValue();
+      int offset = runLength * (blockSize + 1);
+      for (int i = 0; i < blockSize; i++) {
+        if (block[i] > 0xFF) {
+          throw new IOException("Block " + blockNum + " of " + fileName + " holds a char which is not a byte at " + i);
         }
-        rowIndex++;
+        buffer[offset + i] = (byte) block[i];
       }
-    } catch (IOException e) {
-      System.err.println("An error occurred while loading PFS file: " + e.getMessage());
-      throw new RuntimeException("Failed to load PFS file.");
+      // Todo: remove this when demo.
+      buffer[offset + blockSize] = '\n'; // each block in a new line
+      runLength++;
+    }
+    if (runLength > 0) {
+      writeBlocks(runStart, buffer, runLength);
     }
 
-    writeContentToFile();
+    this.cachedBlocks.putAll(this.dirtyBlocks);
+    this.dirtyBlocks.clear();
+    this.hasDirtyBlocks = false;
   }
 
-//  public void loadExistingPFS() {
-//    try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
-//      long fileSize = file.length();
-//      int numLines = (int) (fileSize / 256); // Assuming each line is 256 characters long
-//
-//      // Adjust the loop to iterate only over the actual number of lines
-//      for (int i = 0; i < numLines; i++) {
-//        for (int j = 0; j < 256; j++) {
-//          content[i][j] = (char) file.readByte();
-//        }
-//      }
-//    } catch (IOException e) {
-//      System.err.println("An error occurred while loading PFS file: " + e.getMessage());
-//      throw new RuntimeException("Failed to load PFS file.");
-//    }
-//  }
-
+  // write count blocks starting at block # firstBlock, preallocating the file if needed
+  private void writeBlocks(int firstBlock, byte[] buffer, int count) throws IOException {
+    int blockSize = db.getBlockSize();
+    int lastBlock = firstBlock + count - 1;
+    if (lastBlock >= this.allocatedBlocks) {
+      // grow the file in steps of growth blocks, up to the PFS size
+      int growth = Math.max(1, db.getGrowthBlocks());
+      int newAllocated = (int) Math.min(this.blocksPerPFS, ((long) lastBlock / growth + 1) * growth);
+      this.file.setLength((long) newAllocated * (blockSize + 1));
+      this.allocatedBlocks = newAllocated;
+    }
+    this.file.seek((long) firstBlock * (blockSize + 1));
+    this.file.write(buffer, 0, count * (blockSize + 1));
+  }
 
-  /*
-    * Reads the bitmap section of the PFS file.
-    * the bitmap is directly stored as hexadecimal characters in this.content array.
+  /**
+   * Shrinks the .db file to the first blocks. The blocks after them have to be free.
+   *
+   * @param blocks The number of blocks to keep.
    */
-  private void readBitmap(BufferedReader reader) throws IOException {
-    for (int i = 0; i < 4; i++) {
-      String line = reader.readLine();
-      if (line == null) {
-        throw new IOException("Unexpected end of file while reading the bitmap.");
-      }
-      for (int j = 0; j < line.length() && j < 256; j++) { // Ensure we don't exceed the line length or 256 characters
-        char hexChar = line.charAt(j);
-        // Assuming the bitmap line directly reflects the hex representation of block status
-        this.content[i][j] = hexChar;
-
-
-        // directly stores the read hex values into `this.content`
+  public synchronized void truncate(int blocks) {
+    try {
+      writeCharArrayToFile();
+      if (blocks < this.allocatedBlocks) {
+        this.file.setLength((long) blocks * (db.getBlockSize() + 1));
+        this.allocatedBlocks = blocks;
+        this.cachedBlocks.keySet().removeIf(blockNum -> blockNum >= blocks);
       }
+    } catch (IOException e) {
+      System.err.println("An error occurred while writing the file: " + e.getMessage());
     }
   }
-  /*
-    * Reads the superblock section of the PFS file.
-    * The superblock is assumed to be a single line of text.
+
+  /**
+   * Closes and deletes the .db file.
    */
-  private void readSuperBlock(BufferedReader reader) throws IOException {
-    //the superblock is at the 5th row (index 4)
-    // skip the first 4 blocks
-//    for (int i = 0; i < 4; i++) {
-//      reader.readLine();
-//    }
-    String superBlockLine = reader.readLine();
-    if (superBlockLine == null) {
-      throw new IOException("Superblock information is missing.");
+  public void delete() {
+    try {
+      this.file.close();
+      Files.deleteIfExists(Paths.get(this.fileName));
+    } catch (IOException e) {
+      System.err.println("An error occurred while deleting the file: " + e.getMessage());
     }
+  }
 
-    // Directly store the superblock characters into the corresponding row of 'content'
-
-//    for (int colIndex = 0; colIndex < superBlockLine.length() && colIndex < db.getBlockSize(); colIndex++) {
-      for (int colIndex = 0; colIndex < superBlockLine.length() &&colIndex < 256; colIndex++) {
-      this.content[4][colIndex] = superBlockLine.charAt(colIndex); // Assuming blockSize matches or exceeds superBlockLine.length()
+  /**
+   * Writes the changed blocks and closes the .db file.
+   */
+  public synchronized void close() {
+    try {
+      writeCharArrayToFile();
+      this.file.close();
+    } catch (IOException e) {
+      System.err.println("An error occurred while closing the file: " + e.getMessage());
     }
+  }
 
-    // Optionally fill the remainder of the block with spaces if superBlockLine is shorter than db.getBlockSize()
-    for (int colIndex = superBlockLine.length(); colIndex < db.getBlockSize(); colIndex++) {
-      this.content[4][colIndex] = ' ';
-    }
+
+  public int getSequenceNumber() {
+    return sequenceNumber;
   }
 
- /*
-    FCBs only exists in .db0 file, and it is stored in the 6th block.
-    load the FCB metadata from the file.
-  */
-  private void readFCBs(BufferedReader reader) throws IOException {
-    // Skip directly to the 6th block
-//    for (int i = 0; i < 5; i++) {
-//      reader.readLine(); // Skip the initial 5 blocks.
-//    }
-    int blockIndex = 5; // Starting from the 6th block for FCB data.
-    String fcbLine = reader.readLine();
-    if (fcbLine == null) {
-      throw new IOException("FCB information is missing.");
-    }
-    // store each character of the line in this.content array
-    for (int colIndex = 0; colIndex < fcbLine.length() && colIndex < db.getBlockSize(); colIndex++) {
-      this.content[blockIndex][colIndex] = fcbLine.charAt(colIndex);
-    }
-    // Optionally fill the remainder of the block with spaces if fcbLine is shorter than db.getBlockSize()
-    for (int colIndex = fcbLine.length(); colIndex < db.getBlockSize(); colIndex++) {
-      this.content[blockIndex][colIndex] = ' ';
-    }
+  public void setSequenceNumber(int sequenceNumber) {
+    this.sequenceNumber = sequenceNumber;
+  }
 
+  // number of blocks changed since the last write
+  public synchronized int getDirtyBlockCount() {
+    return this.dirtyBlocks.size();
+  }
 
+  public synchronized int getBlockLeft() {
+    blockLeft = calculateBlocksLeft();
+    return blockLeft;
   }
 
-  public void readBlocks(BufferedReader reader) throws IOException {
-    int rowIndex = 6; // Start directly after FCB block
-    while (rowIndex < 4000) {
-      String line = reader.readLine();
-      if (line == null) break; // End of file
-      for (int colIndex = 0; colIndex < line.length() && colIndex < 256; colIndex++) {
-        content[rowIndex][colIndex] = line.charAt(colIndex);
+
+
+  /**
+   * Load the bitmap of the PFS file, the other blocks are read when they are used.
+   */
+  public void loadExistingPFS() {
+    int blockSize = db.getBlockSize();
+    for (int hexIndex = 0; hexIndex < (this.blocksPerPFS + 3) / 4; hexIndex++) {
+      char[] bitmapBlock = getBlock(1 + hexIndex / blockSize);
+      int value = Character.digit(bitmapBlock[hexIndex % blockSize], 16);
+      for (int bit = 0; bit < 4; bit++) {
+        if (value > 0 && (value & (8 >> bit)) != 0) {
+          this.usedBlocks.set(hexIndex * 4 + bit);
+        }
       }
-      rowIndex++;
     }
   }
 
   public void showFCBMetadata() {
-    int blockIndex = 5; // The block where FCB data is stored
+    int blockIndex = getFCBBlockNumber(); // The block where FCB data is stored
     StringBuilder fcbDataBuilder = new StringBuilder();
 
-    // Collect the FCB data from the 6th block
+    // Collect the FCB data from the FCB block
+    char[] fcbBlock = getBlock(blockIndex);
     for (int colIndex = 0; colIndex < db.getBlockSize(); colIndex++) {
-      char c = this.content[blockIndex][colIndex];
+      char c = fcbBlock[colIndex];
       fcbDataBuilder.append(c);
     }
 
@@ -836,12 +891,13 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
   }
   // printout this.content
   public void showContent() {
-    for (int i = 0; i < 4000; i++) {
-      for(int j = 0; j < 256; j++) {
+    for (int i = 0; i < this.allocatedBlocks; i++) {
+      char[] block = getBlock(i);
+      for(int j = 0; j < db.getBlockSize(); j++) {
 
-        if (this.content[i][j] != ' ') {
+        if (block[j] != ' ') {
           // don't print out the space
-          System.out.print(this.content[i][j]);
+          System.out.print(block[j]);
         }
 
       }
@@ -859,7 +915,7 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
   // printout this.content[5]
   public void showFCBContent() {
     final int METADATA_SIZE = 57; // Size of each metadata entry
-    char[] block = this.content[5]; // Assuming this is the metadata block
+    char[] block = getBlock(getFCBBlockNumber()); // Assuming this is the metadata block
     StringBuilder builder = new StringBuilder();
 
     // Iterate over each metadata entry
@@ -940,17 +996,26 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
    * @throws IOException If reading the file fails.
    */
   public String getRecord(int blockNumber, int recordNumber) {
-    if (blockNumber < 0 || blockNumber >= content.length) {
+    if (blockNumber < 0 || blockNumber >= this.blocksPerPFS) {
       throw new IllegalArgumentException("Block number out of range.");
     }
-    if (recordNumber < 0 || recordNumber >= 6) { // Assuming max 6 records per block
+
+    char[] block = getBlock(blockNumber);
+    if (isCompressedBlock(block)) {
+      List<String> records = extractRecordsFromBlock(block);
+      if (recordNumber < 0 || recordNumber >= records.size()) {
+        throw new IllegalArgumentException("Record number out of range.");
+      }
+      return records.get(recordNumber);
+    }
+
+    if (recordNumber < 0 || recordNumber >= db.getRecordsPerBlock()) {
       throw new IllegalArgumentException("Record number out of range.");
     }
 
-    int recordSize = 40; // fixed size for each record
+    int recordSize = DB.RECORD_LENGTH; // fixed size for each record
     int startIndex = recordNumber * recordSize;
 
-    char[] block = content[blockNumber];
     char[] recordChars = new char[recordSize];
     System.arraycopy(block, startIndex, recordChars, 0, recordSize);
 
@@ -963,18 +1028,28 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
     // Assuming the FCB has methods to get the starting and ending block indexes
     String startBlock = fcb.getDataStartBlock();
     // parse the startBlock to get the block number
-    int startBlockNum = Integer.parseInt(startBlock);
+    int startBlockNum = new BlockPointer(startBlock).getBlockNumber();
 
 
     for (int i = startBlockNum; i <= startBlockNum+fcb.getSize()-2; i++) {
-      blocksData.add(content[i]);
+      blocksData.add(getBlock(i));
     }
     return blocksData;
   }
   public List<String> extractRecordsFromBlock(char[] block) {
     List<String> records = new ArrayList<>();
-    int recordLength = 40; // Each record is 40 characters long
-    int totalRecords = 6; // There are 6 records in a block
+    if (isCompressedBlock(block)) {
+      // {marker, dictionary pointer, record0 RS record1 RS ... -> block pointer}
+      RecordDictionary dictionary = db.getDictionary(new String(block, 1, BlockPointer.LENGTH));
+      int start = 1 + BlockPointer.LENGTH;
+      for (String record : dictionary.decodeBlock(block, start, block.length - BlockPointer.LENGTH)) {
+        records.add(record.trim());
+      }
+      return records;
+    }
+
+    int recordLength = DB.RECORD_LENGTH; // Each record is 40 characters long
+    int totalRecords = db.getRecordsPerBlock(); // 6 records in a 256 byte block
 
     for (int i = 0; i < totalRecords; i++) {
       int start = i * recordLength;
@@ -984,6 +1059,16 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
 
     return records;
   }
+
+  /**
+   * Checks if a data block is stored in the compressed layout.
+   *
+   * @param block The content of a data block.
+   * @return True if the block starts with the compressed block marker.
+   */
+  public static boolean isCompressedBlock(char[] block) {
+    return block.length > 0 && block[0] == COMPRESSED_BLOCK_MARKER;
+  }
   // write the records to a CSV file
     public void writeRecordsToCSV(String fileName, List<char[]>blocksData)
             throws IOException {
@@ -1060,51 +1145,16 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
     public int findBlockNumberByFCB(FCB fcb) {
         // Assuming the FCB has a method to get the starting block index
         String startBlock = fcb.getDataStartBlock();
-        return Integer.parseInt(startBlock);
-    }
-
-  public char[][] getContent() {
-    return this.content;
-  }
-  public void removeElements(char[] block, int startIndex) {
-    final int LENGTH_TO_REMOVE = 58;
-    int endIndex = startIndex + LENGTH_TO_REMOVE - 1;
-
-    // Ensure endIndex does not exceed the array bounds
-    if (endIndex >= block.length) {
-      System.err.println("End index is out of bounds.");
-      return;
-    }
-
-    // Shift elements to the left to overwrite the elements to be "removed"
-    int shiftStartIndex = endIndex + 1;
-    for (int i = startIndex; i < block.length - LENGTH_TO_REMOVE; i++) {
-      if (shiftStartIndex < block.length) {
-        block[i] = block[shiftStartIndex++];
-      } else {
-        block[i] = '\0'; // Fill the remaining space with null characters or any default value
-      }
+        return new BlockPointer(startBlock).getBlockNumber();
     }
 
-//    // Optional: Fill the end of the array with a default value if desired
-//    for (int i = block.length - LENGTH_TO_REMOVE; i < block.length; i++) {
-//      block[i] = '\0'; // Assuming you want to clear the shifted elements
-//    }
+  public int getBlocksPerPFS() {
+    return this.blocksPerPFS;
   }
   //TODO: update the FCB block in the PFS file
    //write updated block to the file
     public void updateFCBBlock(int blockNum, char[] updatedBlock) {
-      if (blockNum < 0 || blockNum >= 4000) {
-        System.out.println("Invalid block number, please input from 0 to 3999");
-        return;
-      }
-
-      if (updatedBlock.length != 256) {
-        System.out.println("Invalid block content, please input char length 256");
-        return;
-      }
-
-      this.content[blockNum] = updatedBlock;
+      writeContent(blockNum, updatedBlock);
     }
 
 
@@ -1116,28 +1166,11 @@ private void appendMetadataToBlock(char[] block, char[] metadata, int existingMe
         System.err.println("An error occurred while writing the file: " + e.getMessage());
       }
     }
-  //TODO: traverse pfs based on given fcb,  update the bitmap from 1 to 0
-
-
-  // iterate keypointer list, and update the bitmap
-  public void freeBlocksByFCB(String fcbName) {
-    List<KeyPointer> keyPointerList = db.getKeyPointerList(fcbName);
-    for (KeyPointer kp : keyPointerList) {
-      String pointer = kp.getPointer();
-      DataBlockPointer dbp = new DataBlockPointer(pointer);
-      // blockNum is the pointer
-      int blockNum = dbp.getBlockNumber();
-
-      updateBitMap(blockNum, false);
-    }
-
-  }
-
   public void setContentBlockEmpty(int blockNum) {
     // mark this block to empty
     updateBitMap(blockNum, false);
     // fill this block to null
-    Arrays.fill(this.content[blockNum], '\u0000');
+    writeContent(blockNum, new char[db.getBlockSize()]);
   }
 
 }
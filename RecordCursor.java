@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pages through the records of a file with constant memory, in key order or in the order of the data chain.
+ *
+ * In key order the cursor walks the index (KeyIndex.iterator, a hash index is read and sorted first) and reads each
+ * record through its pointer. In chain order it follows the data blocks and holds only the records of the current block. next(batchSize) returns the
+ * next records, and getResumeToken() tells where the following batch starts, so a client could stop and open a new
+ * cursor from the token later (DB.openCursor):
+ * - {@code k<key>}: key order, from the smallest key >= key. The file could change between batches, each key
+ *   is still returned at most once.
+ * - {@code c<DataBlockPointer>}: chain order, from that slot. It stays valid while the blocks of the file do not
+ *   move, i.e. until the file is removed or the database is compacted.
+ * A cursor itself must not be used while its file changes.
+ */
+public class RecordCursor {
+  private static final char KEY_ORDER = 'k';
+  private static final char CHAIN_ORDER = 'c';
+
+  private final DB db;
+  private final boolean isKeyOrder;
+
+  // key order
+  private Iterator<KeyPointer> keys;
+  private long nextKey;
+
+  // chain order
+  private String blockPtr; // the current data block, NULL_PTR at the end of the chain
+  private List<String> blockRecords; // the records of the current block by slot, blank for an empty slot
+  private String nextBlockPtr;
+  private int slot; // the next slot of the current block
+
+  private RecordCursor(DB db, boolean isKeyOrder) {
+    this.db = db;
+    this.isKeyOrder = isKeyOrder;
+  }
+
+  /**
+   * Opens a cursor in key order.
+   *
+   * @param db      The database.
+   * @param fcb     The file.
+   * @param fromKey The first key, Long.MIN_VALUE for the whole file.
+   * @return The cursor.
+   */
+  public static RecordCursor byKey(DB db, FCB fcb, long fromKey) {
+    RecordCursor cursor = new RecordCursor(db, true);
+    cursor.keys = db.openIndex(fcb).iterator(fromKey);
+    cursor.nextKey = fromKey;
+    return cursor;
+  }
+
+  /**
+   * Opens a cursor in chain order.
+   *
+   * @param db        The database.
+   * @param fcb       The file.
+   * @param fromBlock The data block to start at, null for the first block of the file.
+   * @param fromSlot  The slot of that block to start at.
+   * @return The cursor.
+   */
+  public static RecordCursor byChain(DB db, FCB fcb, String fromBlock, int fromSlot) {
+    RecordCursor cursor = new RecordCursor(db, false);
+    cursor.load(fromBlock == null ? fcb.getDataStartBlock() : fromBlock);
+    cursor.slot = fromSlot;
+    return cursor;
+  }
+
+  /**
+   * Opens a cursor where a previous one stopped.
+   *
+   * @param db    The database.
+   * @param fcb   The file.
+   * @param token A token from getResumeToken().
+   * @return The cursor, or null if the token is not valid.
+   */
+  public static RecordCursor resume(DB db, FCB fcb, String token) {
+    try {
+      if (token.length() > 1 && token.charAt(0) == KEY_ORDER) {
+        return byKey(db, fcb, Long.parseLong(token.substring(1)));
+      }
+      if (token.length() == 1 + DataBlockPointer.LENGTH && token.charAt(0) == CHAIN_ORDER) {
+        DataBlockPointer dbp = new DataBlockPointer(token.substring(1));
+        if (dbp.getPfsNumber() >= db.getPfsList().size() || dbp.getBlockNumber() >= db.getBlocksPerPFS()) {
+          return null;
+        }
+        return byChain(db, fcb, dbp.getBlockPointer().getPtrString(), dbp.getRecordNumber());
+      }
+    } catch (IllegalArgumentException e) {
+      // a NumberFormatException or a malformed pointer
+    }
+    return null;
+  }
+
+  /**
+   * Returns the next records.
+   *
+   * @param batchSize The maximum number of records.
+   * @return The records without their trailing spaces, fewer than batchSize only at the end of the file.
+   */
+  public List<String> next(int batchSize) {
+    List<String> batch = new ArrayList<>(Math.min(batchSize, 1024));
+    while (batch.size() < batchSize && hasNext()) {
+      if (isKeyOrder) {
+        KeyPointer keyPointer = keys.next();
+        DataBlockPointer dbp = new DataBlockPointer(keyPointer.getPointer());
+        batch.add(db.getRecordbyDataBlockPointer(dbp.getPfsNumber(), dbp.getBlockNumber(),
+                dbp.getRecordNumber()).trim());
+        nextKey = keyPointer.getKey() + 1;
+      } else {
+        batch.add(blockRecords.get(slot++));
+      }
+    }
+    return batch;
+  }
+
+  // true if there is another record
+  public boolean hasNext() {
+    if (isKeyOrder) {
+      return keys.hasNext();
+    }
+    while (isBlockPointer(blockPtr)) {
+      // blank slots are skipped
+      while (slot < blockRecords.size() && blockRecords.get(slot).isEmpty()) {
+        slot++;
+      }
+      if (slot < blockRecords.size()) {
+        return true;
+      }
+      load(nextBlockPtr);
+      slot = 0;
+    }
+    return false;
+  }
+
+  /**
+   * Returns where the next batch starts, see the class comment.
+   *
+   * @return The token, or null at the end of the file.
+   */
+  public String getResumeToken() {
+    if (!hasNext()) {
+      return null;
+    }
+    if (isKeyOrder) {
+      return KEY_ORDER + Long.toString(nextKey);
+    }
+    BlockPointer bp = new BlockPointer(blockPtr);
+    return CHAIN_ORDER + new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), slot).getPtrString();
+  }
+
+  // reads a data block and its records, plain records are cut into 40-char slots
+  private void load(String ptr) {
+    blockPtr = ptr;
+    blockRecords = new ArrayList<>();
+    if (!isBlockPointer(ptr)) {
+      return;
+    }
+    BlockPointer bp = new BlockPointer(ptr);
+    PFS pfs = db.getPfsList().get(bp.getPfsNumber());
+    char[] content = pfs.getBlock(bp.getBlockNumber());
+    nextBlockPtr = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    if (PFS.isCompressedBlock(content)) {
+      for (String record : pfs.extractRecordsFromBlock(content)) {
+        blockRecords.add(record.trim());
+      }
+      return;
+    }
+    for (int i = 0; i < db.getRecordsPerBlock(); i++) {
+      blockRecords.add(new String(content, i * DB.RECORD_LENGTH, DB.RECORD_LENGTH).trim());
+    }
+  }
+
+  private static boolean isBlockPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}
@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small per-FCB substitution dictionary used by compressed data blocks.
+ * The most valuable substrings of a file (genre tokens, "(1995)," and so on) are replaced
+ * by a single control character, so a compressed block could hold more records than
+ * the 6 fixed 40-char slots of a plain data block.
+ *
+ * Inside a block the key of a record could also be stored as a delta to the key of the previous
+ * record, so consecutive movieIds take 2 chars instead of up to 6.
+ *
+ * The codes are control characters which never appear in a CSV record and which survive
+ * the line based .db file format ('\t', '\n', '\r' and the record separator are skipped).
+ */
+public class RecordDictionary {
+  public static final char RECORD_SEPARATOR = '\u001E'; // terminates each record in a compressed block
+  public static final char DICTIONARY_MARKER = '%'; // first char of a dictionary block
+  public static final int TRAINING_RECORDS = 1 << 17; // records a dictionary is trained on, sampled from larger files
+  private static final char KEY_DELTA = '\u001F'; // followed by one char holding (key - previous key)
+  private static final int MAX_KEY_DELTA = '~' - ' ' + 1; // deltas 1..95 map to ' '..'~'
+  private static final char[] CODES = buildCodes(); // single char codes, one for each entry
+  private static final int[] CODE_INDEX = buildCodeIndex(); // control char -> entry index, -1 if unused
+  private static final int RECORD_LENGTH = 40; // Length of each decoded record
+
+  private final List<String> entries; // entry i is encoded as CODES[i]
+  private final Map<Character, List<Integer>> entriesByFirstChar; // longest entries first
+
+  /**
+   * Creates a dictionary from an ordered list of entries.
+   *
+   * @param entries The substrings to substitute, at most CODES.length of them.
+   */
+  public RecordDictionary(List<String> entries) {
+    if (entries.size() > CODES.length) {
+      throw new IllegalArgumentException("Dictionary can hold at most " + CODES.length + " entries.");
+    }
+    this.entries = new ArrayList<>(entries);
+    this.entriesByFirstChar = new HashMap<>();
+    for (int i = 0; i < this.entries.size(); i++) {
+      String entry = this.entries.get(i);
+      List<Integer> candidates = entriesByFirstChar.computeIfAbsent(entry.charAt(0), c -> new ArrayList<>());
+      candidates.add(i);
+      candidates.sort((a, b) -> this.entries.get(b).length() - this.entries.get(a).length());
+    }
+  }
+
+  /**
+   * Trains a dictionary from the records of one file. Candidates are the tokens between
+   * ',', '|' and ' ' (including the delimiter that follows them); the ones saving the most
+   * characters are kept as long as the dictionary still fits in one block.
+   *
+   * @param records   The 40-char records of the file, or a sample of them (DB.sampleCSV).
+   * @param blockSize The block size, the serialized dictionary has to fit in one block.
+   * @return The trained dictionary.
+   */
+  public static RecordDictionary train(char[][] records, int blockSize) {
+    Map<String, Integer> frequency = new HashMap<>();
+    for (char[] record : records) {
+      int length = trimmedLength(record);
+      int start = 0;
+      for (int i = 0; i < length; i++) {
+        char c = record[i];
+        boolean isDelimiter = c == ',' || c == '|' || c == ' ';
+        if (isDelimiter || i == length - 1) {
+          int end = i + 1;
+          if (end - start > 1) {
+            frequency.merge(new String(record, start, end - start), 1, Integer::sum);
+          }
+          start = end;
+        }
+      }
+    }
+
+    // savings of one entry = (length - 1) chars for every occurrence
+    List<Map.Entry<String, Integer>> candidates = new ArrayList<>(frequency.entrySet());
+    candidates.removeIf(e -> e.getValue() < 2 || e.getKey().trim().isEmpty());
+    candidates.sort((a, b) -> Long.compare(
+            (long) (b.getKey().length() - 1) * b.getValue(), (long) (a.getKey().length() - 1) * a.getValue()));
+
+    List<String> entries = new ArrayList<>();
+    int used = 1; // the dictionary marker
+    int capacity = blockSize;
+    for (Map.Entry<String, Integer> candidate : candidates) {
+      if (entries.size() == CODES.length) break;
+      String entry = candidate.getKey();
+      if (used + entry.length() + 1 > capacity) continue;
+      entries.add(entry);
+      used += entry.length() + 1;
+    }
+    return new RecordDictionary(entries);
+  }
+
+  /**
+   * Loads a dictionary which is stored in a dictionary block.
+   *
+   * @param block The content of the dictionary block.
+   * @return The dictionary.
+   */
+  public static RecordDictionary fromBlock(char[] block) {
+    if (block[0] != DICTIONARY_MARKER) {
+      throw new IllegalArgumentException("Block is not a dictionary block.");
+    }
+    List<String> entries = new ArrayList<>();
+    int start = 1;
+    for (int i = 1; i < block.length; i++) {
+      if (block[i] == RECORD_SEPARATOR) {
+        entries.add(new String(block, start, i - start));
+        start = i + 1;
+      } else if (block[i] == '\0') {
+        break;
+      }
+    }
+    return new RecordDictionary(entries);
+  }
+
+  /**
+   * Serializes this dictionary into one block.
+   * {marker entry0 RS entry1 RS ... }
+   *
+   * @param blockSize The block size.
+   * @return The block content.
+   */
+  public char[] toBlock(int blockSize) {
+    char[] block = new char[blockSize];
+    int pos = 0;
+    block[pos++] = DICTIONARY_MARKER;
+    for (String entry : entries) {
+      entry.getChars(0, entry.length(), block, pos);
+      pos += entry.length();
+      block[pos++] = RECORD_SEPARATOR;
+    }
+    return block;
+  }
+
+  /**
+   * Encodes one record, trailing spaces are dropped since decode pads them back.
+   *
+   * @param record      A 40-char record.
+   * @param previousKey The key of the previous record in the same block, -1 for the first record.
+   * @return The encoded record.
+   */
+  public String encode(char[] record, long previousKey) {
+    int length = trimmedLength(record);
+
+    StringBuilder builder = new StringBuilder(length);
+    int i = 0;
+    int commaIndex = keyLength(record, length);
+    if (previousKey >= 0 && commaIndex > 0) {
+      long delta = Long.parseLong(new String(record, 0, commaIndex)) - previousKey;
+      if (delta >= 1 && delta <= MAX_KEY_DELTA) {
+        builder.append(KEY_DELTA).append((char) (' ' + delta - 1));
+        i = commaIndex;
+      }
+    }
+
+    while (i < length) {
+      char c = record[i];
+      int matched = -1;
+      List<Integer> candidates = entriesByFirstChar.get(c);
+      if (candidates != null) {
+        for (int index : candidates) {
+          String entry = entries.get(index);
+          if (entry.length() <= length - i && regionMatches(record, i, entry)) {
+            matched = index;
+            break;
+          }
+        }
+      }
+
+      if (matched != -1) {
+        builder.append(CODES[matched]);
+        i += entries.get(matched).length();
+      } else {
+        // control chars are reserved for codes
+        builder.append(c < ' ' ? ' ' : c);
+        i++;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Decodes one encoded record.
+   *
+   * @param encoded     The content of a compressed block.
+   * @param offset      Where the encoded record starts.
+   * @param length      The length of the encoded record.
+   * @param previousKey The key of the previous record in the same block, -1 for the first record.
+   * @return The 40-char record, padded with spaces.
+   */
+  public String decode(char[] encoded, int offset, int length, long previousKey) {
+    StringBuilder builder = new StringBuilder(RECORD_LENGTH);
+    int i = offset;
+    if (length >= 2 && encoded[offset] == KEY_DELTA) {
+      builder.append(previousKey + (encoded[offset + 1] - ' ') + 1);
+      i += 2;
+    }
+    for (; i < offset + length; i++) {
+      int code = codeIndex(encoded[i]);
+      if (code >= 0 && code < entries.size()) {
+        builder.append(entries.get(code));
+      } else {
+        builder.append(encoded[i]);
+      }
+    }
+    while (builder.length() < RECORD_LENGTH) {
+      builder.append(' ');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Decodes one encoded record into a buffer, without creating Strings. Used by scans, see DB.scanRecords.
+   *
+   * @param encoded     The content of a compressed block.
+   * @param offset      Where the encoded record starts.
+   * @param length      The length of the encoded record.
+   * @param previousKey The key of the previous record in the same block, -1 for the first record.
+   * @param record      The 40-char buffer, padded with spaces.
+   * @return The key of the record, -1 if it does not start with a numeric key.
+   */
+  public long decodeInto(char[] encoded, int offset, int length, long previousKey, char[] record) {
+    int size = 0;
+    int i = offset;
+    if (length >= 2 && encoded[offset] == KEY_DELTA) {
+      size = appendKey(previousKey + (encoded[offset + 1] - ' ') + 1, record);
+      i += 2;
+    }
+    for (; i < offset + length && size < RECORD_LENGTH; i++) {
+      int code = codeIndex(encoded[i]);
+      if (code >= 0 && code < entries.size()) {
+        String entry = entries.get(code);
+        int copied = Math.min(entry.length(), RECORD_LENGTH - size);
+        entry.getChars(0, copied, record, size);
+        size += copied;
+      } else {
+        record[size++] = encoded[i];
+      }
+    }
+    Arrays.fill(record, size, RECORD_LENGTH, ' ');
+
+    long key = 0;
+    int digits = 0;
+    while (digits < size && digits < 18 && Character.isDigit(record[digits])) {
+      key = key * 10 + (record[digits++] - '0');
+    }
+    return digits > 0 && digits < size && record[digits] == ',' ? key : -1;
+  }
+
+  // writes the decimal digits of a non-negative key at the start of a record, returns their number
+  private static int appendKey(long key, char[] record) {
+    int digits = 1;
+    for (long rest = key / 10; rest > 0; rest /= 10) {
+      digits++;
+    }
+    for (int i = digits - 1; i >= 0; i--) {
+      record[i] = (char) ('0' + key % 10);
+      key /= 10;
+    }
+    return digits;
+  }
+
+  /**
+   * Decodes all the records of a compressed block.
+   *
+   * @param block The content of a compressed block.
+   * @param start Where the first encoded record starts.
+   * @param end   Where the records area ends (the block pointer is after it).
+   * @return The 40-char records in slot order.
+   */
+  public List<String> decodeBlock(char[] block, int start, int end) {
+    List<String> records = new ArrayList<>();
+    long previousKey = -1;
+    for (int i = start; i < end; i++) {
+      if (block[i] == RECORD_SEPARATOR) {
+        String record = decode(block, start, i - start, previousKey);
+        int commaIndex = record.indexOf(',');
+        previousKey = commaIndex > 0 ? parseKey(record.substring(0, commaIndex)) : -1;
+        records.add(record);
+        start = i + 1;
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Parses the key of a record.
+   *
+   * @param record A record, or the part of it before the first comma.
+   * @return The key before the first comma, or -1 if there is none.
+   */
+  public static long parseKey(char[] record) {
+    int commaIndex = keyLength(record, trimmedLength(record));
+    return commaIndex > 0 ? Long.parseLong(new String(record, 0, commaIndex)) : -1;
+  }
+
+  /**
+   * Parses the key of a record in a plain data block without copying the record.
+   *
+   * @param block  The data block.
+   * @param offset Where the record starts, it is DB.RECORD_LENGTH chars long.
+   * @return The key before the first comma, or -1 for an empty slot or a record without a key.
+   */
+  public static long parseKey(char[] block, int offset) {
+    long key = 0;
+    int i = offset;
+    while (i < offset + DB.RECORD_LENGTH && i - offset < 18 && Character.isDigit(block[i])) {
+      key = key * 10 + (block[i++] - '0');
+    }
+    return i > offset && i < offset + DB.RECORD_LENGTH && block[i] == ',' ? key : -1;
+  }
+
+  private static long parseKey(String key) {
+    try {
+      return Long.parseLong(key);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // length of the digits before the first comma, -1 if the record does not start with a numeric key
+  private static int keyLength(char[] record, int length) {
+    int i = 0;
+    while (i < length && i < 18 && Character.isDigit(record[i])) {
+      i++;
+    }
+    return i > 0 && i < length && record[i] == ',' ? i : -1;
+  }
+
+  private static int trimmedLength(char[] record) {
+    int length = record.length;
+    while (length > 0 && record[length - 1] <= ' ') {
+      length--;
+    }
+    return length;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  private static boolean regionMatches(char[] record, int offset, String entry) {
+    for (int i = 0; i < entry.length(); i++) {
+      if (record[offset + i] != entry.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static int codeIndex(char c) {
+    return c < ' ' ? CODE_INDEX[c] : -1;
+  }
+
+  // control chars 0x01-0x1F except '\t', '\n', '\r', the record separator and the key delta
+  private static char[] buildCodes() {
+    StringBuilder codes = new StringBuilder();
+    for (char c = 1; c < ' '; c++) {
+      if (c == '\t' || c == '\n' || c == '\r' || c == RECORD_SEPARATOR || c == KEY_DELTA) continue;
+      codes.append(c);
+    }
+    return codes.toString().toCharArray();
+  }
+
+  private static int[] buildCodeIndex() {
+    int[] index = new int[' '];
+    Arrays.fill(index, -1);
+    for (int i = 0; i < CODES.length; i++) {
+      index[CODES[i]] = i;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,382 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A conjunction of simple predicates on the records of a file, used by the scan command:
+ * {@code <field> <op> <value> [and <field> <op> <value> ...]}
+ *
+ * The field is {@code key}, {@code record} (the whole record) or a 1-based column number, column 1 is the key.
+ * Columns are separated by commas outside double quotes, and the quotes around a column are not part of it.
+ * The ops are {@code contains}, {@code has}, {@code =}, {@code !=} and the numeric {@code <, <=, >, >=};
+ * {@code =} and {@code !=} compare numbers when the field is the key, text otherwise, and {@code has} holds when
+ * the field or one of its {@code |} separated tokens is the value, e.g. {@code 3 has Comedy} for a genre list. A value with spaces is quoted with ' or ".
+ * Records are cut at 40 chars, so a predicate only sees the first 40 chars of a CSV row.
+ *
+ * The predicates are evaluated on the chars of a record in place, a rejected record never becomes a String.
+ * A RecordFilter does not change after it is parsed, so several scan threads could share it.
+ */
+public class RecordFilter {
+  public static final RecordFilter ALL = new RecordFilter(new ArrayList<>()); // no predicates
+
+  private static final int RECORD = 0; // the whole record, columns are 1-based
+  private static final int KEY = 1;
+
+  private static final int CONTAINS = 0;
+  private static final int EQUALS = 1;
+  private static final int NOT_EQUALS = 2;
+  private static final int LESS = 3;
+  private static final int LESS_OR_EQUAL = 4;
+  private static final int GREATER = 5;
+  private static final int GREATER_OR_EQUAL = 6;
+  private static final int HAS = 7;
+  private static final String[] OPS = {"contains", "=", "!=", "<", "<=", ">", ">=", "has"};
+
+  private final List<Predicate> predicates;
+
+  private RecordFilter(List<Predicate> predicates) {
+    this.predicates = predicates;
+  }
+
+  /**
+   * Parses the condition after {@code where}.
+   *
+   * @param condition The predicates, joined by {@code and}.
+   * @return The filter, or null after printing what is wrong with the condition.
+   */
+  public static RecordFilter parse(String condition) {
+    List<String> tokens = tokenize(condition);
+    if (tokens == null) {
+      System.out.println("Missing closing quote in: " + condition);
+      return null;
+    }
+    List<Predicate> predicates = new ArrayList<>();
+    for (int i = 0; i < tokens.size(); i += 4) {
+      if (i + 3 > tokens.size() || (i + 3 < tokens.size() && !"and".equalsIgnoreCase(tokens.get(i + 3)))) {
+        System.out.println("Invalid condition, must be: <field> <op> <value> [and <field> <op> <value> ...]");
+        return null;
+      }
+      if (i + 3 == tokens.size() - 1) {
+        System.out.println("Missing predicate after 'and'.");
+        return null;
+      }
+
+      String field = tokens.get(i);
+      int column = parseColumn(field);
+      if (column == -1) {
+        System.out.println("Unknown field " + field + ", must be key, record or a column number from 1.");
+        return null;
+      }
+
+      int op = -1;
+      for (int j = 0; j < OPS.length; j++) {
+        if (OPS[j].equalsIgnoreCase(tokens.get(i + 1)) || ("==".equals(tokens.get(i + 1)) && j == EQUALS)) {
+          op = j;
+        }
+      }
+      if (op == -1) {
+        System.out.println("Unknown op " + tokens.get(i + 1) + ", must be one of contains has = != < <= > >=.");
+        return null;
+      }
+
+      String value = tokens.get(i + 2);
+      boolean isNumeric = (op >= LESS && op <= GREATER_OR_EQUAL) || (column == KEY && (op == EQUALS || op == NOT_EQUALS));
+      long number = 0;
+      if (isNumeric) {
+        try {
+          number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+          System.out.println("Op " + OPS[op] + " on " + field + " needs a number: " + value);
+          return null;
+        }
+      }
+      predicates.add(new Predicate(column, op, value.toCharArray(), isNumeric, number));
+    }
+    return new RecordFilter(predicates);
+  }
+
+  /**
+   * Evaluates the predicates on one record.
+   *
+   * @param record A buffer holding the record.
+   * @param offset Where the 40-char record starts.
+   * @return True if all the predicates hold.
+   */
+  public boolean matches(char[] record, int offset) {
+    if (predicates.isEmpty()) {
+      return true;
+    }
+    int end = trimmedEnd(record, offset);
+    for (Predicate predicate : predicates) {
+      if (!predicate.matches(record, offset, end)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the range of keys which the predicates on the key allow, for the zone map of a scan.
+   *
+   * @return {smallest key, largest key}, {Long.MIN_VALUE, Long.MAX_VALUE} if no predicate bounds the key.
+   */
+  public long[] keyBounds() {
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    for (Predicate predicate : predicates) {
+      if (predicate.column != KEY || !predicate.isNumeric) {
+        continue;
+      }
+      long number = predicate.number;
+      switch (predicate.op) {
+        case EQUALS:
+          from = Math.max(from, number);
+          to = Math.min(to, number);
+          break;
+        case LESS:
+          to = number == Long.MIN_VALUE ? Long.MIN_VALUE : Math.min(to, number - 1);
+          from = number == Long.MIN_VALUE ? Long.MAX_VALUE : from; // nothing is less
+          break;
+        case LESS_OR_EQUAL:
+          to = Math.min(to, number);
+          break;
+        case GREATER:
+          from = number == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(from, number + 1);
+          to = number == Long.MAX_VALUE ? Long.MIN_VALUE : to; // nothing is greater
+          break;
+        case GREATER_OR_EQUAL:
+          from = Math.max(from, number);
+          break;
+        default:
+          break;
+      }
+    }
+    return new long[]{from, to};
+  }
+
+  /**
+   * Returns the token a secondary index on a column has to look up for this filter (see SecondaryIndex): the
+   * records which match a text {@code =} or {@code has} on the column are among the records with the first token
+   * of its value.
+   *
+   * @param column The indexed column, from 2.
+   * @return The token, or null if no predicate could use an index on the column.
+   */
+  public String indexToken(int column) {
+    for (Predicate predicate : predicates) {
+      if (predicate.column == column && !predicate.isNumeric && (predicate.op == EQUALS || predicate.op == HAS)) {
+        return SecondaryIndex.firstToken(new String(predicate.value));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses a field name, see the class comment.
+   *
+   * @param field {@code key}, {@code record} or a column number from 1.
+   * @return The column, 0 for the whole record, or -1 if the field is not valid.
+   */
+  public static int parseColumn(String field) {
+    if ("key".equalsIgnoreCase(field)) {
+      return KEY;
+    }
+    if ("record".equalsIgnoreCase(field)) {
+      return RECORD;
+    }
+    try {
+      int column = Integer.parseInt(field);
+      return column >= 1 ? column : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Finds a column of a record in place, without the double quotes around it.
+   *
+   * @param record The buffer holding the record.
+   * @param offset Where the record starts.
+   * @param end    Where the record ends, without the trailing spaces.
+   * @param column The column, from 1.
+   * @return start << 32 | end of the column, or -1 if the record has fewer columns.
+   */
+  public static long columnBounds(char[] record, int offset, int end, int column) {
+    // the start of the column, then its end
+    int start = offset;
+    int commas = 0;
+    boolean isQuoted = false;
+    while (start < end && commas < column - 1) {
+      if (record[start] == '"') {
+        isQuoted = !isQuoted;
+      } else if (record[start] == ',' && !isQuoted) {
+        commas++;
+      }
+      start++;
+    }
+    if (commas < column - 1) {
+      return -1;
+    }
+    int stop = start;
+    isQuoted = false;
+    while (stop < end && (isQuoted || record[stop] != ',')) {
+      if (record[stop] == '"') {
+        isQuoted = !isQuoted;
+      }
+      stop++;
+    }
+    if (start < stop && record[start] == '"') {
+      start++;
+      if (stop > start && record[stop - 1] == '"') {
+        stop--;
+      }
+    }
+    return (long) start << 32 | stop;
+  }
+
+  // where a 40-char record ends without its trailing spaces
+  public static int trimmedEnd(char[] record, int offset) {
+    int end = offset + DB.RECORD_LENGTH;
+    while (end > offset && record[end - 1] <= ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  // splits on spaces, a token quoted with ' or " keeps its spaces; null if a quote is not closed
+  private static List<String> tokenize(String condition) {
+    List<String> tokens = new ArrayList<>();
+    int i = 0;
+    while (i < condition.length()) {
+      char c = condition.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '\'' || c == '"') {
+        int close = condition.indexOf(c, i + 1);
+        if (close == -1) {
+          return null;
+        }
+        tokens.add(condition.substring(i + 1, close));
+        i = close + 1;
+      } else {
+        int start = i;
+        while (i < condition.length() && !Character.isWhitespace(condition.charAt(i))) {
+          i++;
+        }
+        tokens.add(condition.substring(start, i));
+      }
+    }
+    return tokens;
+  }
+
+  // one <field> <op> <value>
+  private static class Predicate {
+    private final int column;
+    private final int op;
+    private final char[] value;
+    private final boolean isNumeric;
+    private final long number;
+
+    private Predicate(int column, int op, char[] value, boolean isNumeric, long number) {
+      this.column = column;
+      this.op = op;
+      this.value = value;
+      this.isNumeric = isNumeric;
+      this.number = number;
+    }
+
+    // the record is record[offset, end) without the trailing spaces
+    private boolean matches(char[] record, int offset, int end) {
+      long bounds = column == RECORD ? (long) offset << 32 | end : columnBounds(record, offset, end, column);
+      if (bounds < 0) {
+        return false; // the record has fewer columns, or they were cut
+      }
+      int start = (int) (bounds >>> 32);
+      int stop = (int) bounds;
+
+      if (isNumeric) {
+        return compareNumber(record, start, stop);
+      }
+      switch (op) {
+        case CONTAINS:
+          return indexOf(record, start, stop) >= 0;
+        case EQUALS:
+          return stop - start == value.length && indexOf(record, start, stop) == start;
+        case NOT_EQUALS:
+          return !(stop - start == value.length && indexOf(record, start, stop) == start);
+        case HAS:
+          return hasToken(record, start, stop);
+        default:
+          return false;
+      }
+    }
+
+    // true if record[start, stop) is the value or one of its tokens is
+    private boolean hasToken(char[] record, int start, int stop) {
+      if (stop - start == value.length && indexOf(record, start, stop) == start) {
+        return true;
+      }
+      for (int tokenStart = start, i = start; i <= stop; i++) {
+        if (i < stop && record[i] != SecondaryIndex.TOKEN_SEPARATOR) {
+          continue;
+        }
+        if (i - tokenStart == value.length && indexOf(record, tokenStart, i) == tokenStart) {
+          return true;
+        }
+        tokenStart = i + 1;
+      }
+      return false;
+    }
+
+    // a field which is not a number only passes !=
+    private boolean compareNumber(char[] record, int start, int stop) {
+      while (start < stop && record[start] == ' ') {
+        start++;
+      }
+      boolean isNegative = start < stop && record[start] == '-';
+      int i = isNegative ? start + 1 : start;
+      if (i == stop || stop - i > 18) {
+        return op == NOT_EQUALS;
+      }
+      long field = 0;
+      for (; i < stop; i++) {
+        if (record[i] < '0' || record[i] > '9') {
+          return op == NOT_EQUALS;
+        }
+        field = field * 10 + (record[i] - '0');
+      }
+      if (isNegative) {
+        field = -field;
+      }
+      switch (op) {
+        case EQUALS:
+          return field == number;
+        case NOT_EQUALS:
+          return field != number;
+        case LESS:
+          return field < number;
+        case LESS_OR_EQUAL:
+          return field <= number;
+        case GREATER:
+          return field > number;
+        case GREATER_OR_EQUAL:
+          return field >= number;
+        default:
+          return false;
+      }
+    }
+
+    // the first position of the value in record[start, stop), -1 if it is not there
+    private int indexOf(char[] record, int start, int stop) {
+      for (int i = start; i + value.length <= stop; i++) {
+        int j = 0;
+        while (j < value.length && record[i + j] == value[j]) {
+          j++;
+        }
+        if (j == value.length) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
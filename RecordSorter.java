@@ -0,0 +1,157 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An external sort of the records of a CSV file by key, which feeds the data blocks of a clustered file in key order
+ * to the upload pipeline (DB.uploadFCBFile with FCB.CLUSTERED_INDEX).
+ *
+ * The file is read once: each record is appended to a temporary file, RECORD_LENGTH bytes per row, and its key goes
+ * into a KeyPointerSorter with the row number in place of a record address. sorted() merges the keys and reads each
+ * record back from its row, so the heap holds the sort buffer of the keys, never the records. A row without a key is
+ * left out, and of the rows with the same key only the first one is returned, since the key sort is stable.
+ * close() deletes the temporary files.
+ */
+public class RecordSorter implements Closeable {
+  private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+  private final KeyPointerSorter keys; // key -> row number
+  private final Path recordFile; // the records in row order
+  private FileChannel records; // opened by sorted()
+  private long rows; // rows read from the CSV files
+  private long returned; // records returned by sorted()
+
+  /**
+   * Creates a sorter.
+   *
+   * @param budget The number of keys held in memory before a run is spilled, see KeyPointerSorter.
+   * @throws IOException If the temporary file could not be created.
+   */
+  public RecordSorter(int budget) throws IOException {
+    this.keys = new KeyPointerSorter(budget);
+    this.recordFile = Files.createTempFile("records", ".run");
+  }
+
+  /**
+   * Reads the rows of a CSV file after its header line.
+   *
+   * @param filePath The path to the CSV file.
+   * @throws IOException If the file could not be read or a run could not be written.
+   */
+  public void addAll(String filePath) throws IOException {
+    try (BufferedReader br = DB.openCSV(filePath);
+         OutputStream out = new BufferedOutputStream(
+                 Files.newOutputStream(recordFile, StandardOpenOption.APPEND), WRITE_BUFFER_BYTES)) {
+      br.readLine(); // Skip the header line
+      byte[] bytes = new byte[DB.RECORD_LENGTH];
+      String line;
+      while ((line = br.readLine()) != null) {
+        char[] record = DB.lineToRecord(line);
+        for (int i = 0; i < DB.RECORD_LENGTH; i++) {
+          bytes[i] = (byte) record[i];
+        }
+        out.write(bytes);
+        long key = RecordDictionary.parseKey(record);
+        if (key >= 0) {
+          keys.add(new KeyPointer(key, BlockPointer.toHex(rows, DataBlockPointer.LENGTH)));
+        }
+        rows++;
+      }
+    }
+  }
+
+  /**
+   * Returns the records with a key in ascending key order, the first row of a duplicate key only. Nothing could be
+   * added afterwards. The iterator throws an UncheckedIOException if a run or a record could not be read.
+   *
+   * @return The sorted records.
+   */
+  public Iterator<char[]> sorted() throws IOException {
+    Iterator<KeyPointer> sortedKeys = keys.sorted();
+    records = FileChannel.open(recordFile, StandardOpenOption.READ);
+    return new Iterator<char[]>() {
+      private final ByteBuffer buffer = ByteBuffer.allocate(DB.RECORD_LENGTH);
+      private long previousKey = -1; // the keys are not negative
+      private KeyPointer next = nextKey();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public char[] next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        char[] record = read(Long.parseUnsignedLong(next.getPointer(), 16));
+        next = nextKey();
+        returned++;
+        return record;
+      }
+
+      // the first row of the next key
+      private KeyPointer nextKey() {
+        while (sortedKeys.hasNext()) {
+          KeyPointer keyPointer = sortedKeys.next();
+          if (keyPointer.getKey() != previousKey) {
+            previousKey = keyPointer.getKey();
+            return keyPointer;
+          }
+        }
+        return null;
+      }
+
+      private char[] read(long row) {
+        buffer.clear();
+        try {
+          while (buffer.hasRemaining()) {
+            if (records.read(buffer, row * DB.RECORD_LENGTH + buffer.position()) < 0) {
+              throw new IOException("Row " + row + " is missing from " + recordFile);
+            }
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        char[] record = new char[DB.RECORD_LENGTH];
+        for (int i = 0; i < DB.RECORD_LENGTH; i++) {
+          record[i] = (char) (buffer.get(i) & 0xFF);
+        }
+        return record;
+      }
+    };
+  }
+
+  // the rows read, with the ones without a key and the duplicate keys
+  public long getRows() {
+    return rows;
+  }
+
+  // the rows left out so far, all of them once sorted() returned its last record
+  public long getSkipped() {
+    return rows - returned;
+  }
+
+  @Override
+  public void close() {
+    keys.close();
+    try {
+      if (records != null) {
+        records.close();
+      }
+      Files.deleteIfExists(recordFile);
+    } catch (IOException e) {
+      System.err.println("An error occurred while deleting a sort run: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,617 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A secondary index of a file: the records by the values of one of their columns, built by createindex.
+ *
+ * A column is cut into tokens at TOKEN_SEPARATOR, so a genre list like {@code Action|Comedy} is found by either
+ * genre, and a column without one, like a title, is a single token. The index is a persisted B-tree (IndexTree)
+ * keyed by {hash of the token << 32 | low 32 bits}, so the entries of a token are next to each other and a lookup
+ * is one descent plus a walk over its entries. Two tokens could have the same hash, so the records found through
+ * an index are checked again with the filter of the scan.
+ *
+ * A token of fewer than postingsPerBlock records has one entry per record, {hash << 32 | low 32 bits of the record
+ * key -> record pointer}; when two of them would have the same key, the second one takes the next free key, at
+ * most MAX_PROBES keys after it and wrapping within the low 32 bits (probeKey), and a token whose record finds no free
+ * key moves to a posting list. A token of as many or more has a single entry {hash << 32 -> its posting list}, a
+ * chain of posting blocks {# of pointers, next posting block, record pointer...} binary like the index
+ * nodes, 31 records per 256-byte block where the tree holds 11 per leaf. The entry points to the first block with
+ * POSTINGS_SLOT as its record number, new records go to the first block and a full one gets a new block in front.
+ *
+ * The indexes of a database are listed in the index directory, a chain of blocks {entry0 entry1 ... -> next
+ * directory block} which the superblock points to. An entry is {status, file name, column, root block, number of
+ * blocks, number of entries}, 56 chars; the status is 'D' once the file is removed and until its blocks are
+ * reclaimed, like an FCB. The blocks count the posting blocks, the entries count one per token of each record.
+ */
+public class SecondaryIndex {
+  public static final char TOKEN_SEPARATOR = '|';
+  public static final int ENTRY_LENGTH = 1 + 20 + 3 + BlockPointer.LENGTH + 10 + 10; // 56 chars
+  public static final int ROOT_OFFSET = 1 + 20 + 3; // where the root block is in an entry
+  public static final int POSTINGS_SLOT = DataBlockPointer.MAX_RECORD_NUMBER; // the record # of a posting list
+  private static final int COUNT_LENGTH = 2; // # of record pointers in a posting block
+  private static final int NEXT_LENGTH = 6; // 48-bit BlockPointer of the next posting block
+  private static final int POSTING_LENGTH = 8; // 64-bit DataBlockPointer address of a record
+  private static final long NULL_NEXT = 0xFFFFFFFFFFFFL; // BlockPointer.NULL_PTR
+  private static final int MAX_PROBES = 16;
+
+  private final String fileName;
+  private final int column;
+  private String root = BlockPointer.NULL_PTR;
+  private int blocks;
+  private long entries;
+  private boolean isDeleted;
+  private String slot; // where the entry is in the index directory (DataBlockPointer), null if not written
+  private IndexTree tree; // open while records of the file change, see finishChanges
+  private int postingDelta; // posting blocks allocated minus posting blocks freed
+
+  public SecondaryIndex(String fileName, int column) {
+    this.fileName = fileName;
+    this.column = column;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public int getColumn() {
+    return column;
+  }
+
+  public String getRoot() {
+    return root;
+  }
+
+  public int getBlocks() {
+    return blocks;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public boolean isDeleted() {
+    return isDeleted;
+  }
+
+  public void setDeleted(boolean isDeleted) {
+    this.isDeleted = isDeleted;
+  }
+
+  /**
+   * Writes the index of the entries of a file, the posting lists first and the tree bottom up (IndexBuilder).
+   *
+   * @param db     The database, the caller flushes the rest of the blocks.
+   * @param sorted The entries {hash of a token << 32 | low 32 bits of the record key -> record pointer}, one per
+   *               token of each record, sorted by key.
+   */
+  public void build(DB db, KeyPointer[] sorted) {
+    IndexBuilder builder = new IndexBuilder(db);
+    int flushed = 0;
+    for (int from = 0, to = 0; from < sorted.length; from = to) {
+      long hash = sorted[from].getKey() >>> 32;
+      while (to < sorted.length && sorted[to].getKey() >>> 32 == hash) {
+        to++;
+      }
+      List<KeyPointer> placed = to - from >= postingsPerBlock(db) ? null : place(sorted, from, to);
+      if (placed == null) {
+        List<String> pointers = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+          pointers.add(sorted[i].getPointer());
+        }
+        builder.add(new KeyPointer(hash << 32, writePostings(db, pointers, BlockPointer.NULL_PTR)));
+      } else {
+        for (KeyPointer keyPointer : placed) {
+          builder.add(keyPointer);
+        }
+      }
+      if (postingDelta - flushed >= IndexBuilder.FLUSH_BLOCKS) {
+        for (PFS pfs : db.getPfsList()) {
+          pfs.writeContentToFile();
+        }
+        flushed = postingDelta;
+      }
+    }
+    root = builder.finish();
+    blocks = builder.getBlocks() + postingDelta;
+    entries = sorted.length;
+    postingDelta = 0;
+  }
+
+  // the entries of one token with their probed keys in key order, null if one of them finds no free key
+  private static List<KeyPointer> place(KeyPointer[] sorted, int from, int to) {
+    Set<Long> taken = new HashSet<>();
+    List<KeyPointer> placed = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      int probe = 0;
+      while (probe < MAX_PROBES && !taken.add(probeKey(sorted[i].getKey(), probe))) {
+        probe++;
+      }
+      if (probe == MAX_PROBES) {
+        return null;
+      }
+      placed.add(new KeyPointer(probeKey(sorted[i].getKey(), probe), sorted[i].getPointer()));
+    }
+    // a key which wrapped around comes first
+    placed.sort(Comparator.comparingLong(KeyPointer::getKey));
+    return placed;
+  }
+
+  /**
+   * Finds the records which have a token in the column.
+   *
+   * @param db    The database.
+   * @param token The token.
+   * @return The DataBlockPointer Strings of the records, some of them could have another token with the same hash.
+   */
+  public List<String> lookup(DB db, String token) {
+    char[] chars = token.toCharArray();
+    long hash = tokenHash(chars, 0, chars.length);
+    List<String> pointers = new ArrayList<>();
+    Iterator<KeyPointer> keys = new IndexTree(db, root).iterator(hash << 32);
+    while (keys.hasNext()) {
+      KeyPointer keyPointer = keys.next();
+      if (keyPointer.getKey() >>> 32 != hash) {
+        break;
+      }
+      if (isPostings(keyPointer.getPointer())) {
+        String ptr = postingBlock(keyPointer.getPointer());
+        while (isPointer(ptr)) {
+          char[] block = readBlock(db, ptr);
+          pointers.addAll(decodePostings(block));
+          ptr = decodeNext(block);
+        }
+      } else {
+        pointers.add(keyPointer.getPointer());
+      }
+    }
+    return pointers;
+  }
+
+  /**
+   * Adds the entries of a record. The changed index blocks are written by finishChanges, the posting blocks are
+   * written to the PFS cache.
+   *
+   * @param db      The database.
+   * @param record  The 40-char record.
+   * @param key     The key of the record.
+   * @param pointer The DataBlockPointer String of the record.
+   */
+  public void addRecord(DB db, char[] record, long key, String pointer) {
+    IndexTree index = open(db);
+    for (long hash : tokenHashes(record, 0, column)) {
+      String head = index.search(hash << 32);
+      if (head != null && isPostings(head)) {
+        String headPtr = postingBlock(head);
+        char[] block = readBlock(db, headPtr);
+        List<String> postings = decodePostings(block);
+        if (postings.size() < postingsPerBlock(db)) {
+          postings.add(pointer);
+          encodePostings(block, postings, decodeNext(block));
+          writeBlock(db, headPtr, block);
+        } else {
+          index.updatePointer(hash << 32, writePostings(db, Arrays.asList(pointer), headPtr));
+        }
+        entries++;
+        continue;
+      }
+
+      // the entries of the token move to a posting list once they would fill a posting block
+      List<KeyPointer> same = new ArrayList<>();
+      Iterator<KeyPointer> keys = index.iterator(hash << 32);
+      while (keys.hasNext() && same.size() < postingsPerBlock(db)) {
+        KeyPointer keyPointer = keys.next();
+        if (keyPointer.getKey() >>> 32 != hash) {
+          break;
+        }
+        same.add(keyPointer);
+      }
+      int probe = 0;
+      long entryKey = hash << 32 | (key & 0xFFFFFFFFL);
+      if (same.size() + 1 < postingsPerBlock(db)) {
+        while (probe < MAX_PROBES && !index.insert(new KeyPointer(probeKey(entryKey, probe), pointer))) {
+          probe++;
+        }
+      }
+      if (same.size() + 1 >= postingsPerBlock(db) || probe == MAX_PROBES) {
+        // also when the keys after the one of the record are taken, the entry is never dropped
+        List<String> pointers = new ArrayList<>();
+        for (KeyPointer keyPointer : same) {
+          index.delete(keyPointer.getKey());
+          pointers.add(keyPointer.getPointer());
+        }
+        pointers.add(pointer);
+        index.insert(new KeyPointer(hash << 32, writePostings(db, pointers, BlockPointer.NULL_PTR)));
+      }
+      entries++;
+    }
+  }
+
+  /**
+   * Deletes the entries of a record. The last record of the first posting block of a token takes the place of the
+   * deleted one, so only the first block of a posting list is ever partly filled.
+   *
+   * @param db      The database.
+   * @param record  The 40-char record, as it is in the index.
+   * @param key     The key of the record.
+   * @param pointer The DataBlockPointer String of the record.
+   */
+  public void removeRecord(DB db, char[] record, long key, String pointer) {
+    IndexTree index = open(db);
+    for (long hash : tokenHashes(record, 0, column)) {
+      String head = index.search(hash << 32);
+      if (head != null && isPostings(head)) {
+        removePosting(db, index, hash << 32, postingBlock(head), pointer);
+        continue;
+      }
+
+      // the keys addRecord and build could have given the entry
+      long entryKey = hash << 32 | (key & 0xFFFFFFFFL);
+      for (int probe = 0; probe < MAX_PROBES; probe++) {
+        if (pointer.equals(index.search(probeKey(entryKey, probe)))) {
+          index.delete(probeKey(entryKey, probe));
+          entries--;
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the index blocks changed by addRecord and removeRecord.
+   *
+   * @return The index and posting blocks allocated minus the ones freed, the caller adds them to the size of the
+   *         file and writes the entry.
+   */
+  public int finishChanges() {
+    if (tree == null) {
+      return 0;
+    }
+    tree.write();
+    root = tree.getRoot();
+    int blockDelta = tree.getBlockDelta() + postingDelta;
+    blocks += blockDelta;
+    tree = null;
+    postingDelta = 0;
+    return blockDelta;
+  }
+
+  // true if finishChanges has blocks to write
+  public boolean isChanged() {
+    return tree != null;
+  }
+
+  /**
+   * Lists the posting blocks of an index, e.g. to free or move them with the blocks of its tree.
+   *
+   * @param db   The database.
+   * @param root The root of the tree.
+   * @return The BlockPointer Strings of the posting blocks, each list in order.
+   */
+  public static List<String> postingBlocks(DB db, String root) {
+    List<String> ptrs = new ArrayList<>();
+    if (!isPointer(root)) {
+      return ptrs;
+    }
+    Iterator<KeyPointer> keys = new IndexTree(db, root).iterator(0);
+    while (keys.hasNext()) {
+      KeyPointer keyPointer = keys.next();
+      if (isPostings(keyPointer.getPointer())) {
+        for (String ptr = postingBlock(keyPointer.getPointer()); isPointer(ptr); ptr = decodeNext(readBlock(db, ptr))) {
+          ptrs.add(ptr);
+        }
+      }
+    }
+    return ptrs;
+  }
+
+  // the key of an entry moved by probe keys, the low 32 bits wrap around so the key keeps the hash of its token
+  private static long probeKey(long entryKey, int probe) {
+    return entryKey & 0xFFFFFFFF00000000L | (entryKey + probe) & 0xFFFFFFFFL;
+  }
+
+  // the number of record pointers in one posting block, 31 in a 256-byte block
+  public static int postingsPerBlock(DB db) {
+    return (db.getBlockSize() - COUNT_LENGTH - NEXT_LENGTH) / POSTING_LENGTH;
+  }
+
+  // true if an entry of the tree points to a posting list instead of a record
+  public static boolean isPostings(String pointer) {
+    return Integer.parseInt(pointer.substring(BlockPointer.LENGTH), 16) == POSTINGS_SLOT;
+  }
+
+  /**
+   * Reads the record pointers of a posting block.
+   *
+   * @param block The posting block.
+   * @return The DataBlockPointer Strings.
+   */
+  public static List<String> decodePostings(char[] block) {
+    int count = (int) IndexTree.getBytes(block, 0, COUNT_LENGTH);
+    List<String> pointers = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      pointers.add(BlockPointer.toHex(IndexTree.getBytes(block, COUNT_LENGTH + NEXT_LENGTH + i * POSTING_LENGTH,
+              POSTING_LENGTH), DataBlockPointer.LENGTH));
+    }
+    return pointers;
+  }
+
+  // the BlockPointer String of the next posting block, NULL_PTR for the last one
+  public static String decodeNext(char[] block) {
+    return BlockPointer.toHex(IndexTree.getBytes(block, COUNT_LENGTH, NEXT_LENGTH), BlockPointer.LENGTH);
+  }
+
+  /**
+   * Writes a posting block, the rest of the block is left as it is.
+   *
+   * @param block    The block.
+   * @param pointers The DataBlockPointer Strings of at most postingsPerBlock records.
+   * @param next     The BlockPointer String of the next posting block, NULL_PTR for the last one.
+   */
+  public static void encodePostings(char[] block, List<String> pointers, String next) {
+    IndexTree.putBytes(block, 0, pointers.size(), COUNT_LENGTH);
+    IndexTree.putBytes(block, COUNT_LENGTH, isPointer(next) ? Long.parseLong(next, 16) : NULL_NEXT, NEXT_LENGTH);
+    for (int i = 0; i < pointers.size(); i++) {
+      IndexTree.putBytes(block, COUNT_LENGTH + NEXT_LENGTH + i * POSTING_LENGTH,
+              Long.parseUnsignedLong(pointers.get(i), 16), POSTING_LENGTH);
+    }
+  }
+
+  // writes records to new posting blocks in front of next, the first block takes the records which do not fill one
+  private String writePostings(DB db, List<String> pointers, String next) {
+    int perBlock = postingsPerBlock(db);
+    int end = pointers.size();
+    while (end > 0) {
+      int start = end - ((end - 1) % perBlock + 1);
+      char[] block = new char[db.getBlockSize()];
+      encodePostings(block, pointers.subList(start, end), next);
+      next = db.allocateBlock();
+      writeBlock(db, next, block);
+      postingDelta++;
+      end = start;
+    }
+    return postingsPointer(next);
+  }
+
+  // deletes a record from a posting list, and the entry of the token with the last record
+  private void removePosting(DB db, IndexTree index, long entryKey, String headPtr, String pointer) {
+    char[] head = readBlock(db, headPtr);
+    List<String> headPostings = decodePostings(head);
+    String ptr = headPtr;
+    char[] block = head;
+    List<String> postings = headPostings;
+    int i = postings.indexOf(pointer);
+    while (i < 0) {
+      ptr = decodeNext(block);
+      if (!isPointer(ptr)) {
+        return; // not in the list
+      }
+      block = readBlock(db, ptr);
+      postings = decodePostings(block);
+      i = postings.indexOf(pointer);
+    }
+    String last = headPostings.remove(headPostings.size() - 1);
+    if (block != head) {
+      postings.set(i, last);
+      encodePostings(block, postings, decodeNext(block));
+      writeBlock(db, ptr, block);
+    } else if (i < headPostings.size()) {
+      headPostings.set(i, last);
+    }
+    entries--;
+    if (!headPostings.isEmpty()) {
+      encodePostings(head, headPostings, decodeNext(head));
+      writeBlock(db, headPtr, head);
+      return;
+    }
+    String next = decodeNext(head);
+    BlockPointer bp = new BlockPointer(headPtr);
+    db.getPfsList().get(bp.getPfsNumber()).updateBitMap(bp.getBlockNumber(), false);
+    postingDelta--;
+    if (isPointer(next)) {
+      index.updatePointer(entryKey, postingsPointer(next));
+    } else {
+      index.delete(entryKey);
+    }
+  }
+
+  /**
+   * The distinct hashes of the tokens of a column.
+   *
+   * @param record The buffer holding the record.
+   * @param offset Where the 40-char record starts.
+   * @param column The column, from 1.
+   * @return The hashes, none if the record has fewer columns.
+   */
+  public static long[] tokenHashes(char[] record, int offset, int column) {
+    int end = RecordFilter.trimmedEnd(record, offset);
+    long bounds = RecordFilter.columnBounds(record, offset, end, column);
+    if (bounds < 0) {
+      return new long[0];
+    }
+    int start = (int) (bounds >>> 32);
+    int stop = (int) bounds;
+    long[] hashes = new long[8];
+    int count = 0;
+    for (int tokenStart = start, i = start; i <= stop; i++) {
+      if (i < stop && record[i] != TOKEN_SEPARATOR) {
+        continue;
+      }
+      long hash = tokenHash(record, tokenStart, i);
+      tokenStart = i + 1;
+      boolean isNew = true;
+      for (int j = 0; j < count && isNew; j++) {
+        isNew = hashes[j] != hash;
+      }
+      if (isNew) {
+        if (count == hashes.length) {
+          hashes = Arrays.copyOf(hashes, 2 * count);
+        }
+        hashes[count++] = hash;
+      }
+    }
+    return Arrays.copyOf(hashes, count);
+  }
+
+  // the first token of a value, what a lookup for the value has to search
+  public static String firstToken(String value) {
+    int separator = value.indexOf(TOKEN_SEPARATOR);
+    return separator == -1 ? value : value.substring(0, separator);
+  }
+
+  // a 31-bit hash of chars[start, end), the finalizer of MurmurHash3 spreads the String-like hash
+  private static long tokenHash(char[] chars, int start, int end) {
+    int hash = 1;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash & 0x7FFFFFFFL;
+  }
+
+  private IndexTree open(DB db) {
+    if (tree == null) {
+      tree = new IndexTree(db, root);
+    }
+    return tree;
+  }
+
+  // the first posting block of a posting list entry
+  private static String postingBlock(String pointer) {
+    return pointer.substring(0, BlockPointer.LENGTH);
+  }
+
+  // the entry pointer of a posting list
+  private static String postingsPointer(String blockPtr) {
+    return blockPtr + BlockPointer.toHex(POSTINGS_SLOT, DataBlockPointer.LENGTH - BlockPointer.LENGTH);
+  }
+
+  // a copy of a block, changed and written back with writeBlock
+  private static char[] readBlock(DB db, String ptr) {
+    BlockPointer bp = new BlockPointer(ptr);
+    return Arrays.copyOf(db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber()), db.getBlockSize());
+  }
+
+  private static void writeBlock(DB db, String ptr, char[] block) {
+    BlockPointer bp = new BlockPointer(ptr);
+    db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), block);
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+  /**
+   * Reads the index directory of a database.
+   *
+   * @param db   The database.
+   * @param head The first directory block, from the superblock.
+   * @return The indexes, removed ones included.
+   */
+  public static List<SecondaryIndex> readDirectory(DB db, String head) {
+    List<SecondaryIndex> indexes = new ArrayList<>();
+    for (String ptr : directoryBlocks(db, head)) {
+      BlockPointer bp = new BlockPointer(ptr);
+      char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      for (int entry = 0; entry < entriesPerBlock(db); entry++) {
+        int offset = entry * ENTRY_LENGTH;
+        if (content[offset] <= ' ') {
+          continue; // a free entry
+        }
+        SecondaryIndex index = new SecondaryIndex(new String(content, offset + 1, 20).trim(),
+                Integer.parseInt(new String(content, offset + 21, 3)));
+        index.isDeleted = content[offset] == FCB.DELETED;
+        index.root = new String(content, offset + ROOT_OFFSET, BlockPointer.LENGTH);
+        index.blocks = Integer.parseInt(new String(content, offset + ROOT_OFFSET + BlockPointer.LENGTH, 10));
+        index.entries = Long.parseLong(new String(content, offset + ROOT_OFFSET + BlockPointer.LENGTH + 10, 10));
+        index.slot = new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), entry).getPtrString();
+        indexes.add(index);
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Writes the entry of this index, in a free entry of the directory the first time.
+   *
+   * @param db   The database, the caller flushes the blocks.
+   * @param head The first directory block, NULL_PTR if there is none yet.
+   * @return The first directory block, a new one if the directory was full.
+   */
+  public String write(DB db, String head) {
+    if (slot == null) {
+      for (String ptr : directoryBlocks(db, head)) {
+        BlockPointer bp = new BlockPointer(ptr);
+        char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+        for (int entry = 0; entry < entriesPerBlock(db) && slot == null; entry++) {
+          if (content[entry * ENTRY_LENGTH] <= ' ') {
+            slot = new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), entry).getPtrString();
+          }
+        }
+      }
+    }
+    if (slot == null) {
+      // a new directory block in front of the others
+      String newHead = db.allocateBlock();
+      char[] content = new char[db.getBlockSize()];
+      Arrays.fill(content, ' ');
+      head.getChars(0, BlockPointer.LENGTH, content, db.getBlockSize() - BlockPointer.LENGTH);
+      BlockPointer bp = new BlockPointer(newHead);
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+      slot = new DataBlockPointer(bp.getPfsNumber(), bp.getBlockNumber(), 0).getPtrString();
+      head = newHead;
+    }
+    writeSlot(db, String.format("%c%-20.20s%03d%s%010d%010d", isDeleted ? FCB.DELETED : FCB.ACTIVE, fileName,
+            column, root, blocks, entries));
+    return head;
+  }
+
+  // clears the entry of this index, its blocks have been freed
+  public void free(DB db) {
+    if (slot != null) {
+      char[] empty = new char[ENTRY_LENGTH];
+      Arrays.fill(empty, ' ');
+      writeSlot(db, new String(empty));
+      slot = null;
+    }
+  }
+
+  /**
+   * Lists the blocks of the index directory.
+   *
+   * @param db   The database.
+   * @param head The first directory block.
+   * @return The block pointers in order.
+   */
+  public static List<String> directoryBlocks(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    String ptr = head;
+    while (ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR)) {
+      ptrs.add(ptr);
+      BlockPointer bp = new BlockPointer(ptr);
+      char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      ptr = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    return ptrs;
+  }
+
+  // the number of entries in one directory block
+  public static int entriesPerBlock(DB db) {
+    return (db.getBlockSize() - BlockPointer.LENGTH) / ENTRY_LENGTH;
+  }
+
+  private void writeSlot(DB db, String content) {
+    DataBlockPointer dbp = new DataBlockPointer(slot);
+    PFS pfs = db.getPfsList().get(dbp.getPfsNumber());
+    char[] block = pfs.getBlock(dbp.getBlockNumber());
+    content.getChars(0, ENTRY_LENGTH, block, dbp.getRecordNumber() * ENTRY_LENGTH);
+    pfs.writeContent(dbp.getBlockNumber(), block);
+  }
+}
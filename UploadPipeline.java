@@ -0,0 +1,311 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The staged pipeline which stores the data blocks of a file and sorts its keys for DB.uploadFCBFile.
+ *
+ * reader -> [records] -> packers -> [blocks] -> writer -> [key pointers] -> index builder
+ *
+ * The reader parses the CSV file in chunks of records, the packers turn each chunk into data blocks, the writer
+ * allocates the blocks in the PFS files in chunk order, links them and flushes them, and the index builder collects
+ * the KeyPointers of each stored chunk in an external sort (KeyPointerSorter), from which the caller writes the index
+ * at the end (DB.storeIndexAndFCB). The stages run on their own threads and are connected by bounded queues, so a
+ * fast stage waits (put blocks) instead of buffering the whole file.
+ *
+ * Only the writer touches the PFS files. It takes one allocation region per chunk, so the pipelines of files which are
+ * put concurrently interleave whole chunks instead of single blocks. The caller must not hold the storage lock of
+ * the database: the writer takes it for each allocation, and a failed pipeline for each batch of blocks it frees.
+ */
+public class UploadPipeline {
+  public static final int QUEUE_CAPACITY = 4; // chunks waiting between two stages
+  public static final int BLOCKS_PER_CHUNK = 1024; // data blocks in one chunk of plain records
+  public static final int STOP_TIMEOUT_SECONDS = 60; // time the stages get to stop after one of them failed
+
+  private final DB db;
+  private final RecordDictionary dictionary; // null for plain data blocks
+  private final String dictionaryPtr;
+  private final int packers; // number of packer threads
+  private final int chunkRecords; // records in one chunk
+
+  private final BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final BlockingQueue<Chunk> packed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final BlockingQueue<List<KeyPointer>> stored = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  // results, read by the caller after run returns
+  private String dataStartPtr = BlockPointer.NULL_PTR;
+  private String dataEndPtr = BlockPointer.NULL_PTR;
+  private int dataBlocks;
+  private int records;
+  private final KeyPointerSorter sorter = new KeyPointerSorter(KeyPointerSorter.DEFAULT_BUDGET);
+  private final ZoneMap zoneMap = new ZoneMap(); // filled by the writer in chain order
+
+  /**
+   * Creates a pipeline for one file.
+   *
+   * @param db            The database.
+   * @param dictionary    The dictionary of the file for compressed data blocks, null for plain data blocks.
+   * @param dictionaryPtr The block pointer of the dictionary block, null for plain data blocks.
+   */
+  public UploadPipeline(DB db, RecordDictionary dictionary, String dictionaryPtr) {
+    this.db = db;
+    this.dictionary = dictionary;
+    this.dictionaryPtr = dictionaryPtr;
+    // the reader, the writer and the index builder take one core each
+    this.packers = Math.max(1, Runtime.getRuntime().availableProcessors() - 3);
+    this.chunkRecords = BLOCKS_PER_CHUNK * db.getRecordsPerBlock();
+  }
+
+  /**
+   * Stores a CSV file, parsing it while the blocks are packed and written.
+   *
+   * @param filePath The path to the CSV file.
+   * @return False if a stage failed.
+   */
+  public boolean run(String filePath) {
+    return run(() -> {
+      try (BufferedReader br = DB.openCSV(filePath)) {
+        br.readLine(); // Skip the header line
+        parse(br.lines().map(DB::lineToRecord).iterator());
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Stores records which are already parsed, e.g. the records of a clustered file in key order (RecordSorter).
+   *
+   * @param records The 40-char records, read while the blocks of the earlier ones are packed and written.
+   * @return False if a stage failed.
+   */
+  public boolean run(Iterator<char[]> records) {
+    return run(() -> {
+      parse(records);
+      return null;
+    });
+  }
+
+  // the reader: cuts the records into chunks
+  private void parse(Iterator<char[]> records) throws InterruptedException {
+    List<char[]> chunk = new ArrayList<>(chunkRecords);
+    int sequence = 0;
+    while (records.hasNext()) {
+      chunk.add(records.next());
+      if (chunk.size() == chunkRecords) {
+        parsed.put(new Chunk(sequence++, chunk.toArray(new char[0][])));
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty()) {
+      parsed.put(new Chunk(sequence, chunk.toArray(new char[0][])));
+    }
+  }
+
+  private boolean run(Callable<Void> reader) {
+    ExecutorService executor = Executors.newFixedThreadPool(packers + 3, r -> {
+      Thread thread = new Thread(r, "upload-pipeline");
+      thread.setDaemon(true);
+      return thread;
+    });
+    CompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+    stages.submit(() -> {
+      reader.call();
+      // one end marker for each packer, a failed stage is stopped by shutdownNow instead: its end markers could
+      // wait forever on a full queue
+      for (int i = 0; i < packers; i++) {
+        parsed.put(Chunk.END);
+      }
+      return null;
+    });
+    for (int i = 0; i < packers; i++) {
+      stages.submit(this::pack);
+    }
+    stages.submit(this::write);
+    stages.submit(this::buildIndex);
+
+    boolean isStored = false;
+    try {
+      for (int i = 0; i < packers + 3; i++) {
+        stages.take().get();
+      }
+      isStored = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      System.err.println("An error occurred while uploading the file: " + e.getCause());
+    } finally {
+      // a failed stage leaves the others waiting on a queue
+      executor.shutdownNow();
+    }
+    if (!isStored) {
+      freeStoredBlocks(executor);
+    }
+    return isStored;
+  }
+
+  // no FCB will point to the blocks the writer stored before a stage failed, so they are freed
+  private void freeStoredBlocks(ExecutorService executor) {
+    boolean isStopped = false;
+    try {
+      // the writer could still be storing a chunk
+      isStopped = executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!isStopped) {
+      // the blocks of a writer which still runs are not freed under it, compact frees them as they have no FCB
+      System.err.println("An error occurred while stopping the upload pipeline, its data blocks are freed by the "
+              + "next compact.");
+      return;
+    }
+    sorter.close();
+    freeStoredBlocks();
+  }
+
+  /**
+   * Frees the data blocks stored by the pipeline, e.g. when the index of the file could not be built.
+   */
+  public void freeStoredBlocks() {
+    List<String> blocks = new ArrayList<>(dataBlocks);
+    String ptr = dataBlocks == 0 ? BlockPointer.NULL_PTR : dataStartPtr;
+    while (!ptr.equals(BlockPointer.NULL_PTR)) {
+      blocks.add(ptr);
+      if (ptr.equals(dataEndPtr)) {
+        break;
+      }
+      BlockPointer bp = new BlockPointer(ptr);
+      char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      ptr = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    db.reclaimBlocks(blocks);
+    if (!blocks.isEmpty()) {
+      System.err.println("Freed the " + blocks.size() + " data blocks stored before the upload failed.");
+    }
+    dataStartPtr = BlockPointer.NULL_PTR;
+    dataEndPtr = BlockPointer.NULL_PTR;
+    dataBlocks = 0;
+    records = 0;
+  }
+
+  // records -> data blocks, the chunks could leave the packers out of order
+  private Void pack() throws InterruptedException {
+    while (true) {
+      Chunk chunk = parsed.take();
+      if (chunk == Chunk.END) {
+        packed.put(Chunk.END);
+        return null;
+      }
+      chunk.blocks = dictionary == null ? db.recordsToBlock(chunk.records)
+              : db.recordsToCompressedBlock(chunk.records, dictionary, dictionaryPtr);
+      packed.put(chunk);
+    }
+  }
+
+  // stores the chunks in order and links each one after the previous one
+  private Void write() throws InterruptedException {
+    Map<Integer, Chunk> waiting = new TreeMap<>(); // chunks packed before the previous ones
+    int next = 0;
+    int ended = 0;
+    while (ended < packers) {
+      Chunk chunk = packed.take();
+      if (chunk == Chunk.END) {
+        ended++;
+        continue;
+      }
+      waiting.put(chunk.sequence, chunk);
+      while (waiting.containsKey(next)) {
+        store(waiting.remove(next++));
+      }
+    }
+    stored.put(new ArrayList<>()); // end marker, not sent by a failed writer (see run)
+    return null;
+  }
+
+  private void store(Chunk chunk) throws InterruptedException {
+    if (chunk.blocks.isEmpty()) {
+      return;
+    }
+    List<KeyPointer> keyPointers = new ArrayList<>(chunk.records.length);
+    List<String> startNEndPtr = db.storeDataInRegion(chunk.blocks, keyPointers, zoneMap);
+    if (dataBlocks == 0) {
+      dataStartPtr = startNEndPtr.get(0);
+    } else {
+      // link the last block of the previous chunk to this chunk
+      BlockPointer lastBP = new BlockPointer(dataEndPtr);
+      PFS pfs = db.getPfsList().get(lastBP.getPfsNumber());
+      pfs.updateBlockPointer(lastBP.getBlockNumber(), startNEndPtr.get(0));
+      pfs.writeContentToFile();
+    }
+    dataEndPtr = startNEndPtr.get(1);
+    dataBlocks += chunk.blocks.size();
+    records += chunk.records.length;
+    stored.put(keyPointers);
+  }
+
+  // sorts the KeyPointers of the stored chunks externally, the caller writes the index once all of them are known;
+  // IndexTreeTest overrides it to fail the pipeline
+  Void buildIndex() throws InterruptedException, IOException {
+    while (true) {
+      List<KeyPointer> keyPointers = stored.take();
+      if (keyPointers.isEmpty()) break;
+      sorter.addAll(keyPointers);
+    }
+    return null;
+  }
+
+  public String getDataStartPtr() {
+    return dataStartPtr;
+  }
+
+  public String getDataEndPtr() {
+    return dataEndPtr;
+  }
+
+  public int getDataBlocks() {
+    return dataBlocks;
+  }
+
+  public int getRecords() {
+    return records;
+  }
+
+  /**
+   * The KeyPointers of the stored records, sorted once run returned true. The caller closes it.
+   *
+   * @return The sorter.
+   */
+  public KeyPointerSorter getSorter() {
+    return sorter;
+  }
+
+  public ZoneMap getZoneMap() {
+    return zoneMap;
+  }
+
+  // a chunk of records and, once packed, its data blocks
+  private static class Chunk {
+    private static final Chunk END = new Chunk(-1, new char[0][]);
+
+    private final int sequence;
+    private final char[][] records;
+    private List<char[]> blocks;
+
+    private Chunk(int sequence, char[][] records) {
+      this.sequence = sequence;
+      this.records = records;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The zone map of a file: the smallest and the largest key of each zone of its data chain, so a scan with a range
+ * of keys (DB.scanRecordsParallel) only reads the zones which could hold one, and skips the rest of the chain.
+ *
+ * A zone is a run of up to ZONE_BLOCKS consecutive blocks of the chain: {first block pointer, number of blocks,
+ * min key, max key}, 48 chars. A zone of 64 blocks keeps the map at 1/320 of the data, so a range scan reads far
+ * fewer zone map blocks than one zone per block would, while a file loaded in key order still has narrow zones.
+ * The zone map blocks are {zone0 zone1 ... -> older zone map block}: the FCB points to the block of the newest
+ * zones, so a record added at the end of the chain only rewrites that block. Deleted records leave the bounds of
+ * their zone as they are, the bounds only have to hold every key of the zone, not be tight.
+ */
+public class ZoneMap {
+  public static final int ZONE_BLOCKS = 64; // data blocks in one zone
+  public static final int ENTRY_LENGTH = BlockPointer.LENGTH + 4 + 2 * KeyPointer.KEY_LENGTH; // 48 chars
+
+  private final List<String> starts = new ArrayList<>(); // first block of each zone, in chain order
+  private int[] blocks = new int[16];
+  private long[] minKeys = new long[16];
+  private long[] maxKeys = new long[16];
+
+  /**
+   * Adds the next block of the chain.
+   *
+   * @param ptr         The block pointer.
+   * @param keyPointers The KeyPointers of the file, the ones from index from are in this block.
+   * @param from        The first KeyPointer of this block.
+   */
+  public void addBlock(String ptr, List<KeyPointer> keyPointers, int from) {
+    long min = Long.MAX_VALUE; // no keys
+    long max = Long.MIN_VALUE;
+    for (int i = from; i < keyPointers.size(); i++) {
+      min = Math.min(min, keyPointers.get(i).getKey());
+      max = Math.max(max, keyPointers.get(i).getKey());
+    }
+    addBlock(ptr, min, max);
+  }
+
+  /**
+   * Adds the next block of the chain.
+   *
+   * @param ptr The block pointer.
+   * @param min The smallest key of the block, Long.MAX_VALUE if it has no key.
+   * @param max The largest key of the block, Long.MIN_VALUE if it has no key.
+   */
+  public void addBlock(String ptr, long min, long max) {
+    int last = starts.size() - 1;
+    if (last >= 0 && blocks[last] < ZONE_BLOCKS) {
+      blocks[last]++;
+      minKeys[last] = Math.min(minKeys[last], min);
+      maxKeys[last] = Math.max(maxKeys[last], max);
+      return;
+    }
+    addZone(ptr, 1, min, max);
+  }
+
+  // the number of zones
+  public int size() {
+    return starts.size();
+  }
+
+  public String getStart(int zone) {
+    return starts.get(zone);
+  }
+
+  public int getBlocks(int zone) {
+    return blocks[zone];
+  }
+
+  public long getMinKey(int zone) {
+    return minKeys[zone];
+  }
+
+  public long getMaxKey(int zone) {
+    return maxKeys[zone];
+  }
+
+  // true if the zone could hold a key in [fromKey, toKey]
+  public boolean overlaps(int zone, long fromKey, long toKey) {
+    return minKeys[zone] <= toKey && maxKeys[zone] >= fromKey;
+  }
+
+  /**
+   * Writes the zones to new blocks, the newest zones first in the chain.
+   *
+   * @param db The database, the caller flushes the blocks.
+   * @return The block of the newest zones, NULL_PTR if there are no zones.
+   */
+  public String write(DB db) {
+    int perBlock = entriesPerBlock(db);
+    int count = (starts.size() + perBlock - 1) / perBlock;
+    if (count == 0) {
+      return BlockPointer.NULL_PTR;
+    }
+    List<String> region = db.allocateBlocks(count);
+    for (int i = 0; i < count; i++) {
+      char[] content = new char[db.getBlockSize()];
+      Arrays.fill(content, ' ');
+      for (int zone = i * perBlock; zone < Math.min(starts.size(), (i + 1) * perBlock); zone++) {
+        writeEntry(content, zone - i * perBlock, starts.get(zone), blocks[zone], minKeys[zone], maxKeys[zone]);
+      }
+      // block i holds older zones than block i + 1
+      String olderPtr = i == 0 ? BlockPointer.NULL_PTR : region.get(i - 1);
+      olderPtr.getChars(0, BlockPointer.LENGTH, content, db.getBlockSize() - BlockPointer.LENGTH);
+      BlockPointer bp = new BlockPointer(region.get(i));
+      db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    }
+    return region.get(count - 1);
+  }
+
+  /**
+   * Reads the zone map of a file.
+   *
+   * @param db   The database.
+   * @param head The zone map block of the file with the newest zones.
+   * @return The zones in chain order.
+   */
+  public static ZoneMap read(DB db, String head) {
+    List<char[]> contents = new ArrayList<>();
+    for (String ptr : blockPointers(db, head)) {
+      BlockPointer bp = new BlockPointer(ptr);
+      contents.add(db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber()));
+    }
+    Collections.reverse(contents);
+    ZoneMap zones = new ZoneMap();
+    for (char[] content : contents) {
+      for (int entry = 0; entry < entriesPerBlock(db) && !isBlankEntry(content, entry); entry++) {
+        int offset = entry * ENTRY_LENGTH;
+        zones.addZone(new String(content, offset, BlockPointer.LENGTH),
+                Integer.parseInt(new String(content, offset + BlockPointer.LENGTH, 4), 16),
+                parseKey(content, offset + BlockPointer.LENGTH + 4),
+                parseKey(content, offset + BlockPointer.LENGTH + 4 + KeyPointer.KEY_LENGTH));
+      }
+    }
+    return zones;
+  }
+
+  /**
+   * Adds records stored at the end of the chain of a file to its zone map. They join the newest zone if it has
+   * room for the new blocks, otherwise the new blocks are a new zone.
+   *
+   * @param db        The database, the caller flushes the blocks.
+   * @param head      The zone map block with the newest zones, NULL_PTR for a file without records.
+   * @param ptr       The first new data block, or the last block of the chain if newBlocks is 0.
+   * @param newBlocks The number of blocks just linked at the end of the chain.
+   * @param min       The smallest key of the records.
+   * @param max       The largest key of the records.
+   * @return The zone map block with the newest zones, a new one if that block was full.
+   */
+  public static String append(DB db, String head, String ptr, int newBlocks, long min, long max) {
+    int perBlock = entriesPerBlock(db);
+    char[] content = null;
+    int entries = 0;
+    if (isPointer(head)) {
+      BlockPointer bp = new BlockPointer(head);
+      content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      while (entries < perBlock && !isBlankEntry(content, entries)) {
+        entries++;
+      }
+    }
+
+    if (entries > 0) {
+      // widen the newest zone, or add the new block to it
+      int offset = (entries - 1) * ENTRY_LENGTH;
+      int zoneBlocks = Integer.parseInt(new String(content, offset + BlockPointer.LENGTH, 4), 16);
+      if (zoneBlocks + newBlocks <= ZONE_BLOCKS) {
+        writeEntry(content, entries - 1, new String(content, offset, BlockPointer.LENGTH), zoneBlocks + newBlocks,
+                Math.min(parseKey(content, offset + BlockPointer.LENGTH + 4), min),
+                Math.max(parseKey(content, offset + BlockPointer.LENGTH + 4 + KeyPointer.KEY_LENGTH), max));
+        BlockPointer bp = new BlockPointer(head);
+        db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+        return head;
+      }
+    }
+
+    // a new zone, in a new head block if the head is full
+    if (content == null || entries == perBlock) {
+      String newHead = db.allocateBlock();
+      content = new char[db.getBlockSize()];
+      Arrays.fill(content, ' ');
+      (isPointer(head) ? head : BlockPointer.NULL_PTR)
+              .getChars(0, BlockPointer.LENGTH, content, db.getBlockSize() - BlockPointer.LENGTH);
+      head = newHead;
+      entries = 0;
+    }
+    writeEntry(content, entries, ptr, newBlocks, min, max);
+    BlockPointer bp = new BlockPointer(head);
+    db.getPfsList().get(bp.getPfsNumber()).writeContent(bp.getBlockNumber(), content);
+    return head;
+  }
+
+  /**
+   * Lists the zone map blocks of a file, the newest zones first.
+   *
+   * @param db   The database.
+   * @param head The zone map block with the newest zones.
+   * @return The block pointers.
+   */
+  public static List<String> blockPointers(DB db, String head) {
+    List<String> ptrs = new ArrayList<>();
+    String ptr = head;
+    while (isPointer(ptr)) {
+      ptrs.add(ptr);
+      BlockPointer bp = new BlockPointer(ptr);
+      char[] content = db.getPfsList().get(bp.getPfsNumber()).getBlock(bp.getBlockNumber());
+      ptr = new String(content, db.getBlockSize() - BlockPointer.LENGTH, BlockPointer.LENGTH);
+    }
+    return ptrs;
+  }
+
+  // the number of zones in one zone map block
+  public static int entriesPerBlock(DB db) {
+    return (db.getBlockSize() - BlockPointer.LENGTH) / ENTRY_LENGTH;
+  }
+
+  private void addZone(String start, int zoneBlocks, long min, long max) {
+    int zone = starts.size();
+    if (zone == blocks.length) {
+      blocks = Arrays.copyOf(blocks, 2 * blocks.length);
+      minKeys = Arrays.copyOf(minKeys, 2 * minKeys.length);
+      maxKeys = Arrays.copyOf(maxKeys, 2 * maxKeys.length);
+    }
+    starts.add(start);
+    blocks[zone] = zoneBlocks;
+    minKeys[zone] = min;
+    maxKeys[zone] = max;
+  }
+
+  private static void writeEntry(char[] content, int entry, String start, int zoneBlocks, long min, long max) {
+    int offset = entry * ENTRY_LENGTH;
+    start.getChars(0, BlockPointer.LENGTH, content, offset);
+    String.format("%04X", zoneBlocks).getChars(0, 4, content, offset + BlockPointer.LENGTH);
+    KeyPointer.formatKey(min).getChars(0, KeyPointer.KEY_LENGTH, content, offset + BlockPointer.LENGTH + 4);
+    KeyPointer.formatKey(max).getChars(0, KeyPointer.KEY_LENGTH, content,
+            offset + BlockPointer.LENGTH + 4 + KeyPointer.KEY_LENGTH);
+  }
+
+  private static long parseKey(char[] content, int offset) {
+    return Long.parseUnsignedLong(new String(content, offset, KeyPointer.KEY_LENGTH), 16);
+  }
+
+  private static boolean isBlankEntry(char[] content, int entry) {
+    return content[entry * ENTRY_LENGTH] == ' ' || content[entry * ENTRY_LENGTH] == 0;
+  }
+
+  private static boolean isPointer(String ptr) {
+    return ptr != null && !ptr.trim().isEmpty() && !ptr.equals(BlockPointer.NULL_PTR);
+  }
+}